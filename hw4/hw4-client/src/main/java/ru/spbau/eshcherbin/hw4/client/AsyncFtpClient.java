@@ -0,0 +1,425 @@
+package ru.spbau.eshcherbin.hw4.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpMessageCodec;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQueryType;
+import ru.spbau.eshcherbin.hw4.messages.Message;
+import ru.spbau.eshcherbin.hw4.messages.MessageReader;
+import ru.spbau.eshcherbin.hw4.messages.MessageWriter;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking FTP client that serves any number of requests with a single thread.
+ * Requests to a server are multiplexed over a few connections, each of which pipelines its queries.
+ * Results are delivered through futures which are completed by the client's thread,
+ * so dependent actions that may block should use the asynchronous variants of the future methods.
+ */
+public class AsyncFtpClient {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(AsyncFtpClient.class);
+    private static final int DEFAULT_CONNECTIONS_PER_SERVER = 2;
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private final int connectionsPerServer;
+    private final @NotNull Selector selector;
+    private final @NotNull Thread clientThread;
+    private final @NotNull Queue<Request> newRequests = new ConcurrentLinkedQueue<>();
+    private final @NotNull ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final @NotNull Map<SocketAddress, List<Connection>> connections = new HashMap<>();
+    private volatile boolean isRunning = false;
+
+    /**
+     * Creates the client with the default number of connections per server.
+     * @throws IOException if an I/O error occurs
+     */
+    public AsyncFtpClient() throws IOException {
+        this(DEFAULT_CONNECTIONS_PER_SERVER);
+    }
+
+    /**
+     * Creates the client.
+     * @param connectionsPerServer the maximum number of connections opened to a single server
+     * @throws IOException if an I/O error occurs
+     */
+    public AsyncFtpClient(int connectionsPerServer) throws IOException {
+        if (connectionsPerServer <= 0) {
+            throw new IllegalArgumentException("Number of connections must be positive");
+        }
+        this.connectionsPerServer = connectionsPerServer;
+        selector = Selector.open();
+        clientThread = new Thread(this::run, "async-ftp-client");
+    }
+
+    /**
+     * Starts the client's thread.
+     */
+    public void start() {
+        isRunning = true;
+        clientThread.start();
+    }
+
+    /**
+     * Stops the client. Requests that are not completed yet fail.
+     */
+    public void stop() {
+        isRunning = false;
+        selector.wakeup();
+        try {
+            clientThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Performs the list query.
+     * @param serverAddress the address of the server
+     * @param path the path argument of the list query
+     * @return the future response
+     */
+    public @NotNull CompletableFuture<FtpListResponse> list(@NotNull SocketAddress serverAddress,
+                                                            @NotNull String path) {
+        CompletableFuture<FtpListResponse> future = new CompletableFuture<>();
+        submit(new Request(serverAddress, new FtpQuery(FtpQueryType.LIST, path), future, null));
+        return future;
+    }
+
+    /**
+     * Performs the get query.
+     * @param serverAddress the address of the server
+     * @param path the path to the file on the server
+     * @param savePath the path where the file should be saved
+     * @return the future path of the saved file, which fails with {@link FileNotFoundException}
+     * if there is no such file on the server
+     */
+    public @NotNull CompletableFuture<Path> get(@NotNull SocketAddress serverAddress,
+                                                @NotNull String path, @NotNull Path savePath) {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        submit(new Request(serverAddress, new FtpQuery(FtpQueryType.GET, path), future, savePath));
+        return future;
+    }
+
+    /**
+     * Hands a request off to the client's thread.
+     * @param request the request
+     */
+    private void submit(@NotNull Request request) {
+        newRequests.add(request);
+        if (!isRunning && newRequests.remove(request)) {
+            request.fail(new IOException("Client is not running"));
+            return;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Chooses the connection to the server with the least number of outstanding requests,
+     * opening a new one if the limit is not reached yet.
+     * @param serverAddress the address of the server
+     * @return the connection
+     * @throws IOException if an I/O error occurs
+     */
+    private @NotNull Connection chooseConnection(@NotNull SocketAddress serverAddress) throws IOException {
+        List<Connection> serverConnections = connections.computeIfAbsent(serverAddress, address -> new ArrayList<>());
+        Connection result = null;
+        for (Connection connection : serverConnections) {
+            if (result == null || connection.requests.size() < result.requests.size()) {
+                result = connection;
+            }
+        }
+        if (result == null || (!result.requests.isEmpty() && serverConnections.size() < connectionsPerServer)) {
+            result = new Connection(serverAddress);
+            serverConnections.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the client's loop.
+     */
+    private void run() {
+        try {
+            while (isRunning) {
+                selector.select();
+                Request request;
+                while ((request = newRequests.poll()) != null) {
+                    try {
+                        chooseConnection(request.serverAddress).send(request);
+                    } catch (IOException e) {
+                        request.fail(e);
+                    }
+                }
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey selectionKey = keyIterator.next();
+                    keyIterator.remove();
+                    Connection connection = (Connection) selectionKey.attachment();
+                    try {
+                        if (selectionKey.isValid() && selectionKey.isConnectable()) {
+                            connection.handleConnect();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isReadable()) {
+                            connection.handleIncoming();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isWritable()) {
+                            connection.handleOutgoing();
+                        }
+                    } catch (IOException e) {
+                        connection.close(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("I/O error while running client: {}", e.getMessage());
+        } finally {
+            IOException stopException = new IOException("Client stopped");
+            Request request;
+            while ((request = newRequests.poll()) != null) {
+                request.fail(stopException);
+            }
+            for (List<Connection> serverConnections : new ArrayList<>(connections.values())) {
+                for (Connection connection : new ArrayList<>(serverConnections)) {
+                    connection.close(stopException);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A query awaiting its response.
+     */
+    private static class Request {
+        private final @NotNull SocketAddress serverAddress;
+        private final @NotNull FtpQuery query;
+        private final @NotNull CompletableFuture<?> future;
+        private final @Nullable Path savePath;
+
+        private Request(@NotNull SocketAddress serverAddress, @NotNull FtpQuery query,
+                        @NotNull CompletableFuture<?> future, @Nullable Path savePath) {
+            this.serverAddress = serverAddress;
+            this.query = query;
+            this.future = future;
+            this.savePath = savePath;
+        }
+
+        private void fail(@NotNull Throwable throwable) {
+            future.completeExceptionally(throwable);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void complete(@NotNull T result) {
+            ((CompletableFuture<T>) future).complete(result);
+        }
+    }
+
+    /**
+     * A connection to a server with the requests sent over it, in the order of sending.
+     */
+    private class Connection {
+        private final @NotNull SocketAddress serverAddress;
+        private final @NotNull SocketChannel channel;
+        private final @NotNull SelectionKey selectionKey;
+        private final @NotNull MessageReader reader;
+        private final @NotNull MessageWriter writer;
+        private final @NotNull Deque<Request> requests = new ArrayDeque<>();
+        private @Nullable FileChannel fileChannel;
+        private long bytesReceived;
+        private long contentLength;
+
+        private Connection(@NotNull SocketAddress serverAddress) throws IOException {
+            this.serverAddress = serverAddress;
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean isConnected = channel.connect(serverAddress);
+            selectionKey = channel.register(selector, isConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
+                    this);
+            reader = new MessageReader(channel);
+            writer = new MessageWriter(channel);
+            if (isConnected) {
+                logger.info("Connected to {}", serverAddress);
+            }
+        }
+
+        /**
+         * Queues the request's query to be sent.
+         * @param request the request
+         */
+        private void send(@NotNull Request request) {
+            requests.add(request);
+            writer.startNewMessage(FtpMessageCodec.toMessage(request.query));
+            if (channel.isConnected()) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void handleConnect() throws IOException {
+            channel.finishConnect();
+            logger.info("Connected to {}", serverAddress);
+            selectionKey.interestOps(requests.isEmpty()
+                    ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void handleOutgoing() throws IOException {
+            if (writer.write()) {
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Receives the available responses and file contents.
+         * @throws IOException if an I/O error occurs
+         */
+        private void handleIncoming() throws IOException {
+            while (true) {
+                if (fileChannel != null) {
+                    if (!receiveFileContent()) {
+                        return;
+                    }
+                    completeGet();
+                    continue;
+                }
+                Optional<Message> messageOptional = reader.read();
+                if (!messageOptional.isPresent()) {
+                    if (reader.isClientDisconnected()) {
+                        throw new IOException("Server closed the connection");
+                    }
+                    return;
+                }
+                Request request = requests.peek();
+                if (request == null) {
+                    messageOptional.get().release();
+                    throw new IOException("Unexpected response");
+                }
+                switch (request.query.getType()) {
+                    case LIST:
+                        requests.poll();
+                        request.complete(FtpMessageCodec.decode(messageOptional.get(), FtpListResponse.class));
+                        break;
+                    case GET: {
+                        FtpGetResponse response = FtpMessageCodec.decode(messageOptional.get(), FtpGetResponse.class);
+                        if (!response.isFound() || request.savePath == null) {
+                            requests.poll();
+                            request.fail(new FileNotFoundException(request.query.getPath()));
+                            break;
+                        }
+                        try {
+                            fileChannel = FileChannel.open(request.savePath, StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        } catch (IOException e) {
+                            requests.poll();
+                            request.fail(e);
+                            throw e;
+                        }
+                        bytesReceived = 0;
+                        contentLength = response.getContentLength();
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unexpected query type " + request.query.getType());
+                }
+            }
+        }
+
+        /**
+         * Receives the available part of the file content.
+         * The client's buffer is used instead of <tt>transferFrom</tt>,
+         * which does not distinguish a closed connection from an empty socket buffer.
+         * @return whether the whole file content has been received
+         * @throws IOException if an I/O error occurs
+         */
+        private boolean receiveFileContent() throws IOException {
+            if (fileChannel == null) {
+                return true;
+            }
+            while (bytesReceived < contentLength) {
+                receiveBuffer.clear();
+                receiveBuffer.limit((int) Math.min(receiveBuffer.capacity(), contentLength - bytesReceived));
+                int bytesRead = channel.read(receiveBuffer);
+                if (bytesRead == -1) {
+                    throw new IOException("Server closed the connection");
+                }
+                if (bytesRead == 0) {
+                    return false;
+                }
+                receiveBuffer.flip();
+                while (receiveBuffer.hasRemaining()) {
+                    bytesReceived += fileChannel.write(receiveBuffer, bytesReceived);
+                }
+            }
+            return true;
+        }
+
+        private void completeGet() throws IOException {
+            Request request = requests.poll();
+            FileChannel completedFileChannel = fileChannel;
+            fileChannel = null;
+            if (completedFileChannel != null) {
+                completedFileChannel.close();
+            }
+            if (request != null && request.savePath != null) {
+                request.complete(request.savePath);
+            }
+        }
+
+        /**
+         * Closes the connection and fails all its requests.
+         * @param cause the reason of closing
+         */
+        private void close(@NotNull IOException cause) {
+            List<Connection> serverConnections = connections.get(serverAddress);
+            if (serverConnections != null) {
+                serverConnections.remove(this);
+            }
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                fileChannel = null;
+            }
+            reader.discard();
+            writer.discard();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Request request;
+            while ((request = requests.poll()) != null) {
+                request.fail(cause);
+            }
+            logger.info("Disconnected from {}: {}", serverAddress, cause.getMessage());
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package ru.spbau.eshcherbin.hw4.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.chunks.ContentChunker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store of file chunks on disk, which lets the client fetch only the chunks it does not have.
+ * Each chunk is kept in a file named after its hash, and the index of the chunks in the order of their use
+ * is kept next to them, so that the least recently used chunks are evicted once the total size of the chunks
+ * exceeds the capacity. The index is saved by {@link #flush()} and {@link #close()}; chunk files missing
+ * from the index, e.g. after a crash, are adopted as the least recently used ones when the store is opened.
+ * Chunks are verified against their hashes when they are read, and corrupted ones are dropped.
+ * The store is safe to share between threads.
+ */
+public class ChunkStore implements Closeable {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(ChunkStore.class);
+    private static final @NotNull String INDEX_FILE_NAME = "index";
+    private static final @NotNull String CHUNKS_DIRECTORY_NAME = "chunks";
+    private static final int INDEX_MAGIC = 0x43484B31;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private final @NotNull Path directory;
+    private final @NotNull Path chunksDirectory;
+    private final long capacity;
+    // in the order of use, the least recently used first
+    private final @NotNull LinkedHashMap<String, Integer> chunkSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final @NotNull MessageDigest chunkHash = ContentChunker.newChunkHash();
+    private long size = 0;
+    private long evictedChunksNumber = 0;
+
+    /**
+     * Opens the store, creating its directory if it does not exist.
+     * @param directory the directory of the store
+     * @param capacity the maximum total size of the stored chunks in bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public ChunkStore(@NotNull Path directory, long capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.directory = directory;
+        chunksDirectory = directory.resolve(CHUNKS_DIRECTORY_NAME);
+        this.capacity = capacity;
+        Files.createDirectories(chunksDirectory);
+        LinkedHashMap<String, Integer> indexedSizes = loadIndex();
+        // the chunks missing from the index go first, as nothing is known about their use
+        try (Stream<Path> shards = Files.list(chunksDirectory)) {
+            for (Iterator<Path> shardIterator = shards.iterator(); shardIterator.hasNext(); ) {
+                Path shard = shardIterator.next();
+                if (!Files.isDirectory(shard)) {
+                    continue;
+                }
+                try (Stream<Path> chunks = Files.list(shard)) {
+                    for (Iterator<Path> chunkIterator = chunks.iterator(); chunkIterator.hasNext(); ) {
+                        Path chunk = chunkIterator.next();
+                        String key = chunk.getFileName().toString();
+                        if (!isValidKey(key) || !shard.getFileName().toString().equals(key.substring(0, 2))) {
+                            continue;
+                        }
+                        long chunkSize = Files.size(chunk);
+                        Integer indexedSize = indexedSizes.get(key);
+                        if (indexedSize == null && chunkSize > 0 && chunkSize <= ContentChunker.MAX_CHUNK_SIZE) {
+                            chunkSizes.put(key, (int) chunkSize);
+                            size += chunkSize;
+                        } else if (indexedSize == null || indexedSize != chunkSize) {
+                            Files.delete(chunk);
+                        }
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : indexedSizes.entrySet()) {
+            if (Files.exists(getChunkPath(entry.getKey()))) {
+                chunkSizes.put(entry.getKey(), entry.getValue());
+                size += entry.getValue();
+            }
+        }
+        evict();
+        logger.info("Chunk store {} opened: {} chunks of {} bytes", directory, chunkSizes.size(), size);
+    }
+
+    /**
+     * Returns whether the chunk is in the store.
+     * @param hash the hash of the chunk
+     * @return whether the chunk is in the store
+     */
+    public synchronized boolean contains(@NotNull byte[] hash) {
+        return chunkSizes.containsKey(toKey(hash));
+    }
+
+    /**
+     * Reads a chunk, which becomes the most recently used one.
+     * @param hash the hash of the chunk
+     * @return the content of the chunk or <tt>null</tt> if it is not in the store or is corrupted
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized @Nullable byte[] read(@NotNull byte[] hash) throws IOException {
+        String key = toKey(hash);
+        if (chunkSizes.get(key) == null) {
+            return null;
+        }
+        byte[] content;
+        try {
+            content = Files.readAllBytes(getChunkPath(key));
+        } catch (NoSuchFileException e) {
+            content = null;
+        }
+        if (content == null || !MessageDigest.isEqual(chunkHash.digest(content), hash)) {
+            logger.error("Chunk {} is corrupted, dropping it", key);
+            remove(key);
+            return null;
+        }
+        return content;
+    }
+
+    /**
+     * Adds a chunk to the store unless it is there already, evicting the least recently used chunks
+     * if the store exceeds its capacity. The chunk should match the hash, which is not checked.
+     * @param hash the hash of the chunk
+     * @param content the array containing the chunk
+     * @param offset the offset of the chunk in the array
+     * @param length the size of the chunk
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void write(@NotNull byte[] hash, @NotNull byte[] content, int offset, int length)
+            throws IOException {
+        String key = toKey(hash);
+        if (chunkSizes.get(key) != null || length > capacity) {
+            return;
+        }
+        Path chunkPath = getChunkPath(key);
+        Files.createDirectories(chunkPath.getParent());
+        try (OutputStream outputStream = Files.newOutputStream(chunkPath)) {
+            outputStream.write(content, offset, length);
+        }
+        chunkSizes.put(key, length);
+        size += length;
+        evict();
+    }
+
+    /**
+     * Returns the total size of the stored chunks.
+     * @return the total size of the chunks in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum total size of the stored chunks.
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of stored chunks.
+     * @return the number of chunks
+     */
+    public synchronized int getChunksNumber() {
+        return chunkSizes.size();
+    }
+
+    /**
+     * Returns the number of chunks evicted since the store was opened.
+     * @return the number of evicted chunks
+     */
+    public synchronized long getEvictedChunksNumber() {
+        return evictedChunksNumber;
+    }
+
+    /**
+     * Saves the index of the store, replacing the previous one atomically.
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void flush() throws IOException {
+        Path indexPath = directory.resolve(INDEX_FILE_NAME);
+        Path temporaryPath = Files.createTempFile(directory, INDEX_FILE_NAME, ".tmp");
+        try {
+            try (DataOutputStream outputStream = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporaryPath)))) {
+                outputStream.writeInt(INDEX_MAGIC);
+                outputStream.writeInt(chunkSizes.size());
+                for (Map.Entry<String, Integer> entry : chunkSizes.entrySet()) {
+                    outputStream.write(fromKey(entry.getKey()));
+                    outputStream.writeInt(entry.getValue());
+                }
+            }
+            try {
+                Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    /**
+     * Saves the index of the store.
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Reads the saved index of the store.
+     * @return the sizes of the indexed chunks in the order of use or an empty map if there is no valid index
+     */
+    private @NotNull LinkedHashMap<String, Integer> loadIndex() {
+        LinkedHashMap<String, Integer> indexedSizes = new LinkedHashMap<>();
+        Path indexPath = directory.resolve(INDEX_FILE_NAME);
+        if (!Files.exists(indexPath)) {
+            return indexedSizes;
+        }
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (inputStream.readInt() != INDEX_MAGIC) {
+                throw new IOException("Unknown index format");
+            }
+            int chunksNumber = inputStream.readInt();
+            byte[] hash = new byte[ContentChunker.HASH_LENGTH];
+            for (int i = 0; i < chunksNumber; i++) {
+                inputStream.readFully(hash);
+                indexedSizes.put(toKey(hash), inputStream.readInt());
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read the index of chunk store {}: {}", directory, e.getMessage());
+            indexedSizes.clear();
+        }
+        return indexedSizes;
+    }
+
+    /**
+     * Evicts the least recently used chunks until the store fits its capacity.
+     * @throws IOException if an I/O error occurs
+     */
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Integer>> iterator = chunkSizes.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Map.Entry<String, Integer> entry = iterator.next();
+            Files.deleteIfExists(getChunkPath(entry.getKey()));
+            size -= entry.getValue();
+            iterator.remove();
+            evictedChunksNumber++;
+        }
+    }
+
+    private void remove(@NotNull String key) throws IOException {
+        Integer chunkSize = chunkSizes.remove(key);
+        if (chunkSize != null) {
+            size -= chunkSize;
+        }
+        Files.deleteIfExists(getChunkPath(key));
+    }
+
+    /**
+     * Returns the path of the file of a chunk, which is placed in a subdirectory named after the first byte of its hash
+     * so that no directory grows too large.
+     * @param key the hexadecimal hash of the chunk
+     * @return the path of the chunk file
+     */
+    private @NotNull Path getChunkPath(@NotNull String key) {
+        return chunksDirectory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static @NotNull String toKey(@NotNull byte[] hash) {
+        char[] key = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            key[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            key[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String(key);
+    }
+
+    private static @NotNull byte[] fromKey(@NotNull String key) {
+        byte[] hash = new byte[key.length() / 2];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) Integer.parseInt(key.substring(2 * i, 2 * i + 2), 16);
+        }
+        return hash;
+    }
+
+    private static boolean isValidKey(@NotNull String key) {
+        if (key.length() != 2 * ContentChunker.HASH_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,37 +1,124 @@
 package ru.spbau.eshcherbin.hw4.client;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.chunks.ContentChunker;
+import ru.spbau.eshcherbin.hw4.delta.BlockSignatures;
+import ru.spbau.eshcherbin.hw4.delta.DeltaReconstructor;
+import ru.spbau.eshcherbin.hw4.ftp.FtpBatchQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompressionResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpConditionalGetQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaChunk;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaOperation;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaQuery;
 import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListChunk;
 import ru.spbau.eshcherbin.hw4.ftp.FtpListResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListResponseItem;
+import ru.spbau.eshcherbin.hw4.ftp.FtpMessage;
+import ru.spbau.eshcherbin.hw4.ftp.FtpMessageCodec;
+import ru.spbau.eshcherbin.hw4.ftp.FtpNotModifiedResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPingResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpProtocolException;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutResponse;
 import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
 import ru.spbau.eshcherbin.hw4.ftp.FtpQueryType;
+import ru.spbau.eshcherbin.hw4.ftp.FtpRecipePart;
+import ru.spbau.eshcherbin.hw4.ftp.FtpResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpTreeChunk;
+import ru.spbau.eshcherbin.hw4.ftp.FtpTreeItem;
+import ru.spbau.eshcherbin.hw4.messages.BufferPool;
 import ru.spbau.eshcherbin.hw4.messages.Message;
 import ru.spbau.eshcherbin.hw4.messages.MessageReader;
 import ru.spbau.eshcherbin.hw4.messages.MessageWriter;
+import ru.spbau.eshcherbin.hw4.tls.TlsChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * The FTP client.
  */
 public class FtpClient implements Client {
     private static final @NotNull Logger logger = LoggerFactory.getLogger(FtpClient.class);
+    /**
+     * The maximum number of batch queries awaiting responses at once.
+     */
+    private static final int PIPELINE_WINDOW = 32;
+    private static final int MAX_BATCH_PATHS = 1024;
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CHUNKED_RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int STORED_CHUNK = -1;
+    private static final @NotNull String CONTENT_HASH_ALGORITHM = "SHA-256";
+    private final @Nullable SSLContext sslContext;
     private @Nullable SocketChannel channel;
+    private @Nullable ByteChannel dataChannel;
+    private @Nullable TlsChannel tlsChannel;
+    private @Nullable MessageReader reader;
+    private @Nullable MessageWriter writer;
+
+    /**
+     * Creates a client connecting without TLS.
+     */
+    public FtpClient() {
+        this(null);
+    }
+
+    /**
+     * Creates a client connecting over TLS if a context is given. The server's certificate is checked
+     * against the host name or the address the client connects to. The context caches the sessions,
+     * so the clients sharing it resume the sessions with the same server with abbreviated handshakes.
+     * @param sslContext the initialized context trusting the server's certificate or <tt>null</tt> to connect
+     * without TLS
+     */
+    public FtpClient(@Nullable SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
 
     /**
-     * Connects the client to the server.
+     * Connects the client to the server, performing the TLS handshake if the client uses TLS.
      * @param serverAddress the address of the server
-     * @throws IOException if an I/O error occurs
+     * @throws IOException if an I/O error occurs or the handshake fails
      * @throws ClientAlreadyConnectedException if the client is already connected
      */
     @Override
@@ -41,9 +128,46 @@ public class FtpClient implements Client {
             throw new ClientAlreadyConnectedException();
         }
         channel = SocketChannel.open(serverAddress);
+        dataChannel = channel;
+        tlsChannel = null;
+        if (sslContext != null) {
+            try {
+                // the first query follows the last handshake message, which Nagle's algorithm would hold it back for
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                tlsChannel = new TlsChannel(channel, createEngine(sslContext, serverAddress));
+                while (!tlsChannel.handshake()) {
+                    // the channel is blocking, so each call makes progress
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            dataChannel = tlsChannel;
+            logger.info("TLS session with {} established: {}, {}", serverAddress,
+                    tlsChannel.getSession().getProtocol(), tlsChannel.getSession().getCipherSuite());
+        }
+        reader = new MessageReader(dataChannel);
+        writer = new MessageWriter(dataChannel);
         logger.info("Connected to {}", serverAddress);
     }
 
+    /**
+     * Returns whether the connection has resumed the TLS session of an earlier connection
+     * with an abbreviated handshake.
+     * @return whether the session has been resumed, which is <tt>false</tt> if the client is not connected over TLS
+     */
+    public boolean isTlsSessionResumed() {
+        return tlsChannel != null && tlsChannel.isSessionResumed();
+    }
+
+    /**
+     * Returns the TLS session of the connection.
+     * @return the session or <tt>null</tt> if the client is not connected over TLS
+     */
+    public @Nullable SSLSession getTlsSession() {
+        return tlsChannel == null ? null : tlsChannel.getSession();
+    }
+
     /**
      * Disconnects the client.
      * @throws IOException if an I/O error occurs
@@ -55,10 +179,78 @@ public class FtpClient implements Client {
             throw new ClientNotConnectedException();
         }
         SocketAddress remoteAddress = channel.getRemoteAddress();
+        if (tlsChannel != null) {
+            tlsChannel.close();
+            tlsChannel = null;
+        }
         channel.close();
+        if (reader != null) {
+            reader.discard();
+        }
+        if (writer != null) {
+            writer.discard();
+        }
         logger.info("Disconnected from {}", remoteAddress);
     }
 
+    /**
+     * Returns whether the client is connected to a server.
+     * A connection closed by the server is only detected by the next query.
+     * @return whether the client is connected to a server
+     */
+    public boolean isConnected() {
+        return channel != null && channel.isConnected();
+    }
+
+    /**
+     * Performs the ping query, which checks that the connection is alive.
+     * @throws IOException if an I/O error occurs or the server has closed the connection
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public void executePing() throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        sendQuery(new FtpQuery(FtpQueryType.PING, ""));
+        Optional<Message> messageOptional = receiveMessage();
+        if (!messageOptional.isPresent()) {
+            throw new IOException("Server closed the connection");
+        }
+        FtpMessageCodec.decode(messageOptional.get(), FtpPingResponse.class);
+    }
+
+    /**
+     * Negotiates the compression of the responses to the following queries.
+     * The server chooses the first of the offered codecs it supports; the responses tell whether they are compressed,
+     * so they are decompressed transparently.
+     * @param offered the offered codecs in the order of preference
+     * @return the codec chosen by the server or {@link FtpCompression#NONE} if the server does not compress
+     * @throws IOException if an I/O error occurs or the server has closed the connection
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public @NotNull FtpCompression negotiateCompression(@NotNull FtpCompression... offered)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        StringBuilder names = new StringBuilder();
+        for (FtpCompression compression : offered) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(compression.getName());
+        }
+        sendQuery(new FtpQuery(FtpQueryType.NEGOTIATE_COMPRESSION, names.toString()));
+        Optional<Message> messageOptional = receiveMessage();
+        if (!messageOptional.isPresent()) {
+            throw new IOException("Server closed the connection");
+        }
+        FtpCompression compression = FtpMessageCodec.decode(messageOptional.get(), FtpCompressionResponse.class)
+                .getCompression();
+        logger.info("Compression {} negotiated", compression.getName());
+        return compression;
+    }
+
     /**
      * Performs the list query.
      * @param path the path argument of the list query.
@@ -68,30 +260,101 @@ public class FtpClient implements Client {
      */
     public @NotNull FtpListResponse executeList(@NotNull String path)
             throws IOException, ClientNotConnectedException {
+        return executeList(FtpQueryType.LIST, path);
+    }
+
+    /**
+     * Performs the list query requesting the SHA-256 hashes of the contents of the listed files,
+     * which allows telling changed files apart without downloading them.
+     * Hashing reads every listed file on the server, so this query is much slower than the plain one.
+     * @param path the path argument of the list query
+     * @return the response
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public @NotNull FtpListResponse executeListWithHashes(@NotNull String path)
+            throws IOException, ClientNotConnectedException {
+        return executeList(FtpQueryType.LIST_WITH_HASHES, path);
+    }
+
+    /**
+     * Performs a list query of the given type.
+     * @param type the type of the query
+     * @param path the path argument of the query
+     * @return the response
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    private @NotNull FtpListResponse executeList(@NotNull FtpQueryType type, @NotNull String path)
+            throws IOException, ClientNotConnectedException {
         if (channel == null || !channel.isConnected()) {
             throw new ClientNotConnectedException();
         }
-        Message queryMessage = new Message(SerializationUtils.serialize(new FtpQuery(FtpQueryType.LIST, path)));
-        MessageWriter writer = new MessageWriter(channel);
-        writer.startNewMessage(queryMessage);
         try {
-            writer.write();
+            sendQuery(new FtpQuery(type, path));
         } catch (IOException e) {
             logger.error("Unable to send the list query");
             return FtpListResponse.emptyResponse();
         }
-        MessageReader reader = new MessageReader(channel);
-        Optional<Message> messageOptional = reader.read();
-        if (!messageOptional.isPresent()) {
-            logger.error("Unable to receive the response to list query");
-            return FtpListResponse.emptyResponse();
+        return receiveListResponse();
+    }
+
+    /**
+     * Performs the streaming list query. The items are received lazily, chunk by chunk, as the stream is consumed,
+     * so that a huge directory is listed without holding all its items in memory at once.
+     * The stream should be consumed or closed before the next query is performed;
+     * closing it skips the rest of the response.
+     * I/O errors occurring while the stream is consumed are thrown as {@link UncheckedIOException}.
+     * @param path the path argument of the query
+     * @return the stream of items of the directory, empty if there is no such directory
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public @NotNull Stream<FtpListResponseItem> executeListStream(@NotNull String path)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        sendQuery(new FtpQuery(FtpQueryType.LIST_STREAM, path));
+        ListChunkIterator iterator = new ListChunkIterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::skipRemaining);
+    }
+
+    /**
+     * Performs the recursive list query, which lists the whole tree under the directory in a single round trip.
+     * The items are passed to the consumer as they are received, directories before their contents.
+     * @param path the path argument of the query
+     * @param consumer the consumer of the items of the tree
+     * @return <tt>false</tt> if the server has left out some of the tree because of its depth or entry limits,
+     * <tt>true</tt> otherwise
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public boolean executeListRecursive(@NotNull String path, @NotNull Consumer<FtpTreeItem> consumer)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        sendQuery(new FtpQuery(FtpQueryType.LIST_RECURSIVE, path));
+        while (true) {
+            Optional<Message> messageOptional = receiveMessage();
+            if (!messageOptional.isPresent()) {
+                throw new IOException("Server closed the connection");
+            }
+            FtpTreeChunk chunk = FtpMessageCodec.decode(messageOptional.get(), FtpTreeChunk.class);
+            chunk.getItems().forEach(consumer);
+            if (chunk.isLast()) {
+                return !chunk.isTruncated();
+            }
         }
-        Message responseMessage = messageOptional.get();
-        return SerializationUtils.deserialize(responseMessage.getData());
     }
 
     /**
      * Performs the get query.
+     * If a previous download of the file to the same path was interrupted, it is resumed
+     * from the end of the partial file, provided that the file on the server has not changed since.
      * @param path the path to the file on the server
      * @param savePath the path where the file should be saved
      * @throws IOException if an I/O error occurs
@@ -102,29 +365,885 @@ public class FtpClient implements Client {
         if (channel == null || !channel.isConnected()) {
             throw new ClientNotConnectedException();
         }
-        FileChannel fileChannel = FileChannel.open(savePath,
-                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        Message queryMessage = new Message(SerializationUtils.serialize(new FtpQuery(FtpQueryType.GET, path)));
-        MessageWriter writer = new MessageWriter(channel);
-        writer.startNewMessage(queryMessage);
+        FtpQuery query = new FtpQuery(FtpQueryType.GET, path);
+        PartialDownload partialDownload = PartialDownload.load(savePath);
+        if (partialDownload != null && Files.exists(savePath)) {
+            long partialSize = Files.size(savePath);
+            if (partialSize < partialDownload.getFileSize()) {
+                logger.info("Resuming the download of {} from byte {}", path, partialSize);
+                query = new FtpQuery(FtpQueryType.GET, path, partialSize, FtpQuery.TO_END_OF_FILE,
+                        partialDownload.getVersionToken());
+            }
+        }
         try {
-            writer.write();
+            sendQuery(query);
         } catch (IOException e) {
-            logger.error("Unable to send the list query");
+            logger.error("Unable to send the get query");
             return;
         }
-        MessageReader reader = new MessageReader(channel);
-        Optional<Message> messageOptional = reader.read();
+        receiveGetResponse(path, savePath);
+    }
+
+    /**
+     * Downloads a file unless the local copy has the same content. The hash of the copy is sent to the server,
+     * which answers with a tiny not modified response if the file matches it, and with the file otherwise.
+     * If there is no local copy or its previous download was interrupted, the file is simply downloaded.
+     * @param path the path to the file on the server
+     * @param savePath the path of the local copy, where the file should be saved
+     * @return whether the file was downloaded, which is <tt>false</tt> if the local copy is up to date
+     * or the file was not found
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public boolean executeGetIfChanged(@NotNull String path, @NotNull Path savePath)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        if (!Files.isRegularFile(savePath) || PartialDownload.load(savePath) != null) {
+            executeGet(path, savePath);
+            return Files.exists(savePath);
+        }
+        sendQuery(new FtpConditionalGetQuery(path, hashFile(savePath)));
+        Optional<Message> messageOptional = receiveMessage();
+        if (!messageOptional.isPresent()) {
+            throw new IOException("Server closed the connection");
+        }
+        FtpMessage response = FtpMessageCodec.decode(messageOptional.get(), FtpResponse.class);
+        if (response instanceof FtpNotModifiedResponse) {
+            logger.info("File {} is not modified", path);
+            return false;
+        }
+        if (!(response instanceof FtpGetResponse)) {
+            throw new FtpProtocolException("Expected FtpGetResponse but received "
+                    + response.getClass().getSimpleName());
+        }
+        return saveFile(path, savePath, (FtpGetResponse) response);
+    }
+
+    /**
+     * Uploads a file to the server, which replaces the file at the given path once the whole content is received.
+     * The content is sent straight from the file to the socket with <tt>transferTo</tt>, or, over TLS,
+     * through a pooled buffer, which lets whole records be encrypted at once. If the server rejects
+     * the upload, it still consumes the content, so the connection may be used further.
+     * If the file shrinks while it is being sent, the content cannot be completed, so the client is disconnected.
+     * @param localPath the path to the local file to upload
+     * @param path the path to save the file to on the server
+     * @return the response telling whether the file has been stored
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public @NotNull FtpPutResponse executePut(@NotNull Path localPath, @NotNull String path)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        try (FileChannel fileChannel = FileChannel.open(localPath, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            sendQuery(new FtpPutQuery(path, fileSize));
+            long position = 0;
+            while (position < fileSize) {
+                long bytesSent = tlsChannel == null
+                        ? fileChannel.transferTo(position, fileSize - position, dataChannel)
+                        : sendThroughBuffer(fileChannel, position, fileSize - position);
+                if (bytesSent == 0 && position >= fileChannel.size()) {
+                    disconnect();
+                    throw new IOException("File " + localPath + " was truncated while being uploaded");
+                }
+                position += bytesSent;
+            }
+        }
+        Optional<Message> messageOptional = receiveMessage();
+        if (!messageOptional.isPresent()) {
+            throw new IOException("Server closed the connection");
+        }
+        FtpPutResponse response = FtpMessageCodec.decode(messageOptional.get(), FtpPutResponse.class);
+        logger.info("Put query for {} answered: {}", path, response.getStatus());
+        return response;
+    }
+
+    /**
+     * Sends a part of the file through a pooled buffer.
+     * @param fileChannel the channel of the file
+     * @param position the position of the part
+     * @param length the length of the part
+     * @return the number of bytes sent, which is <tt>0</tt> if the file ends before the part
+     * @throws IOException if an I/O error occurs
+     */
+    private long sendThroughBuffer(@NotNull FileChannel fileChannel, long position, long length) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.lease((int) Math.min(length, RECEIVE_BUFFER_SIZE));
+        try {
+            int bytesRead = fileChannel.read(buffer, position);
+            if (bytesRead <= 0) {
+                return 0;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                dataChannel.write(buffer);
+            }
+            return bytesRead;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Performs a ranged get query, which fetches a part of the file only.
+     * The received bytes are written at the same positions of the given file channel,
+     * so that several ranges of the file may be fetched into it in parallel.
+     * @param path the path to the file on the server
+     * @param offset the position of the first requested byte
+     * @param length the maximum number of requested bytes or {@link FtpQuery#TO_END_OF_FILE}
+     * @param fileChannel the channel of the file to save the range to
+     * @return the response, which contains the size of the whole file
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public @NotNull FtpGetResponse executeGetRange(@NotNull String path, long offset, long length,
+                                                   @NotNull FileChannel fileChannel)
+            throws IOException, ClientNotConnectedException {
+        return executeGetRange(path, offset, length, FtpQuery.UNCONDITIONAL, fileChannel);
+    }
+
+    /**
+     * Performs a ranged get query for the given version of the file.
+     * The received bytes are written at the same positions of the given file channel,
+     * so that several ranges of the file may be fetched into it in parallel.
+     * If the file has another version, the server sends the whole file, which is not written:
+     * the client is disconnected instead, as the content cannot be skipped otherwise.
+     * @param path the path to the file on the server
+     * @param offset the position of the first requested byte
+     * @param length the maximum number of requested bytes or {@link FtpQuery#TO_END_OF_FILE}
+     * @param versionToken the version token of the file or {@link FtpQuery#UNCONDITIONAL}
+     * @param fileChannel the channel of the file to save the range to
+     * @return the response, which contains the size of the whole file
+     * @throws IOException if an I/O error occurs or the file has another version
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public @NotNull FtpGetResponse executeGetRange(@NotNull String path, long offset, long length, long versionToken,
+                                                   @NotNull FileChannel fileChannel)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        FtpQuery query = new FtpQuery(FtpQueryType.GET, path, offset, length, versionToken);
+        sendQuery(query);
+        Optional<Message> messageOptional = receiveMessage();
+        if (!messageOptional.isPresent()) {
+            throw new IOException("Server closed the connection");
+        }
+        FtpGetResponse response = FtpMessageCodec.decode(messageOptional.get(), FtpGetResponse.class);
+        if (versionToken != FtpQuery.UNCONDITIONAL && response.isFound()
+                && (response.getVersionToken() != versionToken || response.getOffset() != offset)) {
+            disconnect();
+            throw new IOException("File " + path + " has changed");
+        }
+        long contentLength = response.getContentLength();
+        if (response.isFound() && receiveContent(fileChannel, response) != contentLength) {
+            throw new IOException("Server closed the connection");
+        }
+        return response;
+    }
+
+    /**
+     * Performs several list queries, sending them without waiting for the responses to the previous ones.
+     * @param paths the path arguments of the list queries
+     * @return the responses in the order of the queries
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public @NotNull List<FtpListResponse> executeListBatch(@NotNull List<String> paths)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        List<FtpListResponse> responses = new ArrayList<>(paths.size());
+        int queriesSent = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            queriesSent = sendQueries(FtpQueryType.LIST, paths, queriesSent, i);
+            responses.add(receiveListResponse());
+        }
+        return responses;
+    }
+
+    /**
+     * Downloads several files with batch get queries, each of which asks for up to {@link #MAX_BATCH_PATHS} files.
+     * The server sends the files back to back, and each file is saved as soon as it arrives.
+     * @param paths the paths to the files on the server
+     * @param savePaths the paths where the files should be saved, in the same order
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public void executeGetBatch(@NotNull List<String> paths, @NotNull List<Path> savePaths)
+            throws IOException, ClientNotConnectedException {
+        if (paths.size() != savePaths.size()) {
+            throw new IllegalArgumentException("Numbers of paths and save paths differ");
+        }
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        for (int from = 0; from < paths.size(); from += MAX_BATCH_PATHS) {
+            int to = Math.min(from + MAX_BATCH_PATHS, paths.size());
+            sendQuery(new FtpBatchQuery(FtpQueryType.GET_BATCH, paths.subList(from, to)));
+            for (int i = from; i < to; i++) {
+                receiveGetResponse(paths.get(i), savePaths.get(i));
+            }
+        }
+    }
+
+    /**
+     * Updates the local copy of a file by downloading only its changes.
+     * The copy is signed block by block, the blocks being signed in parallel, and the server answers
+     * with the blocks of the copy that the current file consists of and the literal bytes in between.
+     * The file is reconstructed next to the copy and replaces it once its hash matches the one reported
+     * by the server; otherwise the whole file is downloaded. If there is no local copy, the file is simply downloaded.
+     * @param path the path to the file on the server
+     * @param savePath the path of the local copy, where the file should be saved
+     * @return the number of bytes of the file content received from the server
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public long executeGetDelta(@NotNull String path, @NotNull Path savePath)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        if (!Files.isRegularFile(savePath) || Files.size(savePath) == 0) {
+            executeGet(path, savePath);
+            return Files.exists(savePath) ? Files.size(savePath) : 0;
+        }
+        Path absoluteSavePath = savePath.toAbsolutePath();
+        Path temporaryPath = Files.createTempFile(absoluteSavePath.getParent(),
+                absoluteSavePath.getFileName().toString(), ".delta");
+        try {
+            FtpDeltaChunk lastChunk;
+            boolean isReconstructed;
+            long literalBytes;
+            try (FileChannel copyChannel = FileChannel.open(savePath, StandardOpenOption.READ);
+                 FileChannel targetChannel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+                int blockSize = BlockSignatures.chooseBlockSize(copyChannel.size());
+                FtpDeltaQuery query = BlockSignatures.sign(path, copyChannel, blockSize);
+                sendQuery(query);
+                DeltaReconstructor reconstructor = new DeltaReconstructor(copyChannel, blockSize, targetChannel);
+                do {
+                    Optional<Message> messageOptional = receiveMessage();
+                    if (!messageOptional.isPresent()) {
+                        throw new IOException("Server closed the connection");
+                    }
+                    lastChunk = FtpMessageCodec.decode(messageOptional.get(), FtpDeltaChunk.class);
+                    for (FtpDeltaOperation operation : lastChunk.getOperations()) {
+                        reconstructor.apply(operation);
+                    }
+                } while (!lastChunk.isLast());
+                isReconstructed = reconstructor.getPosition() == lastChunk.getFileSize()
+                        && Arrays.equals(reconstructor.getContentHash(), lastChunk.getContentHash());
+                literalBytes = reconstructor.getLiteralBytes();
+                logger.info("Delta of {} received: {} of {} bytes sent as literals", path, literalBytes,
+                        reconstructor.getPosition());
+            }
+            if (!lastChunk.isFound()) {
+                logger.error("File {} was not found on the server", path);
+                return 0;
+            }
+            if (!isReconstructed) {
+                logger.error("File {} reconstructed from the delta does not match its hash, downloading it again",
+                        path);
+                executeGet(path, savePath);
+                return Files.size(savePath);
+            }
+            try {
+                Files.move(temporaryPath, savePath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, savePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            PartialDownload.delete(savePath);
+            return literalBytes;
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    /**
+     * Downloads a file fetching only the chunks that are not in the chunk store.
+     * The server splits the file into content-defined chunks and sends their hashes; the chunks found in the store
+     * are copied from it, and the missing ones are fetched with pipelined ranged get queries for the same version
+     * of the file, adjacent missing chunks being fetched at once and repeated ones only once.
+     * The fetched chunks are verified against their hashes and added to the store.
+     * The file is assembled next to the save path and replaces it once complete; if the file changes on the server
+     * in the meantime or a chunk does not match its hash, the whole file is downloaded.
+     * @param path the path to the file on the server
+     * @param savePath the path where the file should be saved
+     * @param store the chunk store
+     * @return the number of bytes of the file content received from the server
+     * @throws IOException if an I/O error occurs
+     * @throws ClientNotConnectedException if the client is not connected
+     */
+    public long executeGetChunked(@NotNull String path, @NotNull Path savePath, @NotNull ChunkStore store)
+            throws IOException, ClientNotConnectedException {
+        if (channel == null || !channel.isConnected()) {
+            throw new ClientNotConnectedException();
+        }
+        sendQuery(new FtpQuery(FtpQueryType.GET_CHUNKED, path));
+        List<FtpRecipePart> parts = new ArrayList<>();
+        FtpRecipePart lastPart;
+        int chunksNumber = 0;
+        do {
+            Optional<Message> messageOptional = receiveMessage();
+            if (!messageOptional.isPresent()) {
+                throw new IOException("Server closed the connection");
+            }
+            lastPart = FtpMessageCodec.decode(messageOptional.get(), FtpRecipePart.class);
+            if (lastPart.getChunksNumber() > 0 && lastPart.getHashLength() != ContentChunker.HASH_LENGTH) {
+                throw new FtpProtocolException("Unexpected chunk hash length " + lastPart.getHashLength());
+            }
+            parts.add(lastPart);
+            chunksNumber += lastPart.getChunksNumber();
+        } while (!lastPart.isLast());
+        if (!lastPart.isFound()) {
+            logger.error("File {} was not found on the server", path);
+            return 0;
+        }
+        long versionToken = lastPart.getVersionToken();
+        int[] chunkSizes = new int[chunksNumber];
+        byte[] chunkHashes = new byte[chunksNumber * ContentChunker.HASH_LENGTH];
+        int chunk = 0;
+        for (FtpRecipePart part : parts) {
+            System.arraycopy(part.getChunkSizes(), 0, chunkSizes, chunk, part.getChunksNumber());
+            System.arraycopy(part.getChunkHashes(), 0, chunkHashes, chunk * ContentChunker.HASH_LENGTH,
+                    part.getChunkHashes().length);
+            chunk += part.getChunksNumber();
+        }
+        parts.clear();
+
+        Path absoluteSavePath = savePath.toAbsolutePath();
+        Path temporaryPath = Files.createTempFile(absoluteSavePath.getParent(),
+                absoluteSavePath.getFileName().toString(), ".chunked");
+        try {
+            long bytesReceived;
+            boolean isAssembled;
+            try (FileChannel fileChannel = FileChannel.open(temporaryPath, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                // the chunks in the store are copied first, so that adding the fetched ones cannot evict them
+                long[] offsets = new long[chunksNumber + 1];
+                int[] sources = new int[chunksNumber];
+                Map<ByteBuffer, Integer> missingChunks = new HashMap<>();
+                for (int i = 0; i < chunksNumber; i++) {
+                    if (chunkSizes[i] > ContentChunker.MAX_CHUNK_SIZE) {
+                        throw new FtpProtocolException("Chunk of " + chunkSizes[i] + " bytes is too large");
+                    }
+                    offsets[i + 1] = offsets[i] + chunkSizes[i];
+                    byte[] hash = getChunkHash(chunkHashes, i);
+                    byte[] content = store.read(hash);
+                    if (content != null && content.length == chunkSizes[i]) {
+                        writeFully(fileChannel, ByteBuffer.wrap(content), offsets[i]);
+                        sources[i] = STORED_CHUNK;
+                    } else {
+                        Integer firstOccurrence = missingChunks.putIfAbsent(ByteBuffer.wrap(hash), i);
+                        sources[i] = firstOccurrence == null ? i : firstOccurrence;
+                    }
+                }
+                if (offsets[chunksNumber] != lastPart.getFileSize()) {
+                    throw new FtpProtocolException("Recipe of " + path + " does not match the file size");
+                }
+                List<long[]> ranges = new ArrayList<>();
+                for (int i = 0; i < chunksNumber; i++) {
+                    if (sources[i] != i) {
+                        continue;
+                    }
+                    long[] lastRange = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                    if (lastRange != null && lastRange[0] + lastRange[1] == offsets[i]
+                            && lastRange[1] + chunkSizes[i] <= MAX_CHUNKED_RANGE_SIZE) {
+                        lastRange[1] += chunkSizes[i];
+                    } else {
+                        ranges.add(new long[] {offsets[i], chunkSizes[i]});
+                    }
+                }
+                bytesReceived = fetchRanges(path, versionToken, ranges, fileChannel);
+                isAssembled = bytesReceived >= 0
+                        && verifyFetchedChunks(chunkSizes, chunkHashes, offsets, sources, fileChannel, store);
+                logger.info("Chunked download of {}: {} of {} chunks fetched in {} ranges", path,
+                        missingChunks.size(), chunksNumber, ranges.size());
+            }
+            if (!isAssembled) {
+                logger.error("File {} has changed on the server or its chunks do not match their hashes, "
+                        + "downloading it again", path);
+                executeGet(path, savePath);
+                return Files.exists(savePath) ? Files.size(savePath) : 0;
+            }
+            try {
+                Files.move(temporaryPath, savePath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, savePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            PartialDownload.delete(savePath);
+            return bytesReceived;
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+
+    /**
+     * Fetches byte ranges of a file of the given version with pipelined ranged get queries.
+     * @param path the path to the file on the server
+     * @param versionToken the version token of the file
+     * @param ranges the offsets and the lengths of the ranges
+     * @param fileChannel the channel of the file to save the ranges to at their offsets
+     * @return the number of bytes received or <tt>-1</tt> if the file has changed on the server
+     * @throws IOException if an I/O error occurs or the server has closed the connection
+     */
+    private long fetchRanges(@NotNull String path, long versionToken, @NotNull List<long[]> ranges,
+                             @NotNull FileChannel fileChannel) throws IOException {
+        long bytesReceived = 0;
+        boolean isChanged = false;
+        int queriesSent = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            queriesSent = sendQueries(ranges.size(), index -> new FtpQuery(FtpQueryType.GET, path,
+                    ranges.get(index)[0], ranges.get(index)[1], versionToken), queriesSent, i);
+            Optional<Message> messageOptional = receiveMessage();
+            if (!messageOptional.isPresent()) {
+                throw new IOException("Server closed the connection");
+            }
+            FtpGetResponse response = FtpMessageCodec.decode(messageOptional.get(), FtpGetResponse.class);
+            if (!response.isFound()) {
+                isChanged = true;
+                continue;
+            }
+            // a changed file is sent whole, which is received anyway to keep the connection usable
+            if (response.getVersionToken() != versionToken || response.getOffset() != ranges.get(i)[0]
+                    || response.getContentLength() != ranges.get(i)[1]) {
+                isChanged = true;
+            }
+            long contentReceived = receiveContent(fileChannel, response);
+            bytesReceived += contentReceived;
+            if (contentReceived != response.getContentLength()) {
+                throw new IOException("Server closed the connection");
+            }
+        }
+        return isChanged ? -1 : bytesReceived;
+    }
+
+    /**
+     * Verifies the fetched chunks of a file against their hashes and adds them to the store,
+     * then copies the repeated ones to their places.
+     * @param chunkSizes the sizes of the chunks of the file
+     * @param chunkHashes the hashes of the chunks concatenated
+     * @param offsets the offsets of the chunks
+     * @param sources the index of the first occurrence of each missing chunk or {@link #STORED_CHUNK}
+     * @param fileChannel the channel of the assembled file
+     * @param store the chunk store
+     * @return whether all the fetched chunks match their hashes
+     * @throws IOException if an I/O error occurs
+     */
+    private static boolean verifyFetchedChunks(@NotNull int[] chunkSizes, @NotNull byte[] chunkHashes,
+                                               @NotNull long[] offsets, @NotNull int[] sources,
+                                               @NotNull FileChannel fileChannel, @NotNull ChunkStore store)
+            throws IOException {
+        MessageDigest digest = ContentChunker.newChunkHash();
+        byte[] content = new byte[ContentChunker.MAX_CHUNK_SIZE];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (sources[i] == STORED_CHUNK) {
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(content, 0, chunkSizes[i]);
+            long sourceOffset = offsets[sources[i]];
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, sourceOffset + buffer.position()) == -1) {
+                    return false;
+                }
+            }
+            if (sources[i] != i) {
+                writeFully(fileChannel, ByteBuffer.wrap(content, 0, chunkSizes[i]), offsets[i]);
+                continue;
+            }
+            digest.update(content, 0, chunkSizes[i]);
+            byte[] hash = getChunkHash(chunkHashes, i);
+            if (!MessageDigest.isEqual(digest.digest(), hash)) {
+                return false;
+            }
+            store.write(hash, content, 0, chunkSizes[i]);
+        }
+        return true;
+    }
+
+    private static @NotNull byte[] getChunkHash(@NotNull byte[] chunkHashes, int chunk) {
+        return Arrays.copyOfRange(chunkHashes, chunk * ContentChunker.HASH_LENGTH,
+                (chunk + 1) * ContentChunker.HASH_LENGTH);
+    }
+
+    private static void writeFully(@NotNull FileChannel fileChannel, @NotNull ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Sends the queries of a batch so that at most {@link #PIPELINE_WINDOW} of them are awaiting responses.
+     * Bounding the number of outstanding queries guarantees that sending never blocks
+     * while the server waits for the client to read the responses.
+     * @param type the type of the queries
+     * @param paths the path arguments of all the queries of the batch
+     * @param queriesSent the number of queries sent so far
+     * @param responsesReceived the number of responses received so far
+     * @return the number of queries sent after the call
+     * @throws IOException if an I/O error occurs
+     */
+    private int sendQueries(@NotNull FtpQueryType type, @NotNull List<String> paths,
+                            int queriesSent, int responsesReceived) throws IOException {
+        return sendQueries(paths.size(), index -> new FtpQuery(type, paths.get(index)), queriesSent,
+                responsesReceived);
+    }
+
+    /**
+     * Sends the queries of a batch so that at most {@link #PIPELINE_WINDOW} of them are awaiting responses.
+     * @param queriesNumber the number of queries of the batch
+     * @param queries the function creating the query with the given index
+     * @param queriesSent the number of queries sent so far
+     * @param responsesReceived the number of responses received so far
+     * @return the number of queries sent after the call
+     * @throws IOException if an I/O error occurs
+     */
+    private int sendQueries(int queriesNumber, @NotNull IntFunction<FtpQuery> queries,
+                            int queriesSent, int responsesReceived) throws IOException {
+        if (writer == null) {
+            throw new IOException("Client is not connected");
+        }
+        while (queriesSent < queriesNumber && queriesSent - responsesReceived < PIPELINE_WINDOW) {
+            writer.startNewMessage(FtpMessageCodec.toMessage(queries.apply(queriesSent)));
+            queriesSent++;
+        }
+        while (!writer.write()) {
+            // the channel is blocking, so each call makes progress
+        }
+        return queriesSent;
+    }
+
+    /**
+     * Receives the response to a list query.
+     * @return the response
+     * @throws IOException if an I/O error occurs
+     */
+    private @NotNull FtpListResponse receiveListResponse() throws IOException {
+        Optional<Message> messageOptional = receiveMessage();
         if (!messageOptional.isPresent()) {
             logger.error("Unable to receive the response to list query");
+            return FtpListResponse.emptyResponse();
+        }
+        Message responseMessage = messageOptional.get();
+        return FtpMessageCodec.decode(responseMessage, FtpListResponse.class);
+    }
+
+    /**
+     * Receives a chunk of the response to a streaming list query.
+     * @return the chunk
+     * @throws IOException if an I/O error occurs or the server has disconnected
+     */
+    private @NotNull FtpListChunk receiveListChunk() throws IOException {
+        Optional<Message> messageOptional = receiveMessage();
+        if (!messageOptional.isPresent()) {
+            throw new IOException("Server closed the connection");
+        }
+        return FtpMessageCodec.decode(messageOptional.get(), FtpListChunk.class);
+    }
+
+    /**
+     * Receives the response to a get query and saves the file.
+     * Until the whole file is received, a record of the partial download is kept next to the file,
+     * so that an interrupted download can be resumed.
+     * @param path the path to the file on the server
+     * @param savePath the path where the file should be saved
+     * @throws IOException if an I/O error occurs
+     */
+    private void receiveGetResponse(@NotNull String path, @NotNull Path savePath) throws IOException {
+        if (channel == null) {
+            throw new IOException("Client is not connected");
+        }
+        Optional<Message> messageOptional = receiveMessage();
+        if (!messageOptional.isPresent()) {
+            logger.error("Unable to receive the response to get query");
             return;
         }
         Message responseMessage = messageOptional.get();
-        FtpGetResponse response = SerializationUtils.deserialize(responseMessage.getData());
-        long bytesReceived = fileChannel.transferFrom(channel, 0, response.getFileSize());
-        if (bytesReceived != response.getFileSize()) {
-            logger.error("Unable to receive the whole file: only {} out of {} bytes were received",
-                    bytesReceived, response.getFileSize());
+        saveFile(path, savePath, FtpMessageCodec.decode(responseMessage, FtpGetResponse.class));
+    }
+
+    /**
+     * Saves the file that follows a received get response.
+     * @param path the path to the file on the server
+     * @param savePath the path where the file should be saved
+     * @param response the get response
+     * @return whether the whole file has been saved
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean saveFile(@NotNull String path, @NotNull Path savePath, @NotNull FtpGetResponse response)
+            throws IOException {
+        if (!response.isFound()) {
+            logger.error("File {} was not found on the server", path);
+            return false;
+        }
+        if (response.getVersionToken() != FtpGetResponse.UNKNOWN_VERSION) {
+            new PartialDownload(response.getFileSize(), response.getVersionToken()).save(savePath);
+        }
+        try (FileChannel fileChannel = FileChannel.open(savePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(response.getOffset());
+            long bytesReceived = receiveContent(fileChannel, response);
+            if (bytesReceived != response.getContentLength()) {
+                logger.error("Unable to receive the whole file: only {} out of {} bytes were received",
+                        response.getOffset() + bytesReceived, response.getFileSize());
+                return false;
+            }
+        }
+        PartialDownload.delete(savePath);
+        return true;
+    }
+
+    /**
+     * Computes the hash of the content of a local file, which is compared to the file on the server.
+     * @param file the file
+     * @return the SHA-256 hash of the content
+     * @throws IOException if an I/O error occurs
+     */
+    private static @NotNull byte[] hashFile(@NotNull Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every platform supports SHA-256
+        }
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.lease(RECEIVE_BUFFER_SIZE);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Receives the file content that follows a get response.
+     * @param fileChannel the channel of the file to save the content to
+     * @param response the get response
+     * @return the number of bytes received, which is less than the content length only if the server has disconnected
+     * @throws IOException if an I/O error occurs
+     */
+    private long receiveContent(@NotNull FileChannel fileChannel, @NotNull FtpGetResponse response)
+            throws IOException {
+        if (response.getCompression() != FtpCompression.NONE) {
+            return receiveCompressedContent(fileChannel, response.getOffset(), response.getContentLength());
+        }
+        return receiveContent(fileChannel, response.getOffset(), response.getContentLength());
+    }
+
+    /**
+     * Receives the compressed file content that follows a get response, decompressing it message by message.
+     * @param fileChannel the channel of the file to save the content to
+     * @param position the position in the file to save the content at
+     * @param length the length of the decompressed content
+     * @return the number of bytes received, which is less than the length only if the server has disconnected
+     * @throws IOException if an I/O error occurs or the content is malformed
+     */
+    private long receiveCompressedContent(@NotNull FileChannel fileChannel, long position, long length)
+            throws IOException {
+        Inflater inflater = FtpCompression.newInflater();
+        byte[] output = new byte[(int) Math.min(length, RECEIVE_BUFFER_SIZE)];
+        long bytesReceived = 0;
+        try {
+            while (bytesReceived < length) {
+                Optional<Message> messageOptional = receiveMessage();
+                if (!messageOptional.isPresent()) {
+                    break;
+                }
+                Message message = messageOptional.get();
+                try {
+                    inflater.setInput(message.getData());
+                } finally {
+                    message.release();
+                }
+                while (!inflater.needsInput()) {
+                    int inflated = inflater.inflate(output);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                        throw new IOException("Malformed compressed content");
+                    }
+                    if (inflated > length - bytesReceived) {
+                        throw new IOException("Compressed content exceeds its length");
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(output, 0, inflated);
+                    while (buffer.hasRemaining()) {
+                        bytesReceived += fileChannel.write(buffer, position + bytesReceived);
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed content: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return bytesReceived;
+    }
+
+    /**
+     * Receives the raw file content that follows a get response.
+     * <tt>transferFrom</tt> transfers nothing to a position beyond the end of the file,
+     * so such content, e.g. a later segment of a file fetched in parallel, is copied through a pooled buffer.
+     * So is the content decrypted by the TLS channel, which <tt>transferFrom</tt> would read in small portions.
+     * @param fileChannel the channel of the file to save the content to
+     * @param position the position in the file to save the content at
+     * @param length the length of the content
+     * @return the number of bytes received, which is less than the length only if the server has disconnected
+     * @throws IOException if an I/O error occurs
+     */
+    private long receiveContent(@NotNull FileChannel fileChannel, long position, long length) throws IOException {
+        if (channel == null) {
+            throw new IOException("Client is not connected");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (position > fileChannel.size() || tlsChannel != null) {
+            return receiveContentBuffered(fileChannel, position, length);
+        }
+        long bytesReceived = 0;
+        while (bytesReceived < length) {
+            long bytesTransferred = fileChannel.transferFrom(dataChannel, position + bytesReceived, length - bytesReceived);
+            if (bytesTransferred == 0) {
+                break;
+            }
+            bytesReceived += bytesTransferred;
+        }
+        return bytesReceived;
+    }
+
+    private long receiveContentBuffered(@NotNull FileChannel fileChannel, long position, long length)
+            throws IOException {
+        if (dataChannel == null) {
+            throw new IOException("Client is not connected");
+        }
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.lease((int) Math.min(length, RECEIVE_BUFFER_SIZE));
+        try {
+            long bytesReceived = 0;
+            while (bytesReceived < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - bytesReceived));
+                if (dataChannel.read(buffer) == -1) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    bytesReceived += fileChannel.write(buffer, position + bytesReceived);
+                }
+            }
+            return bytesReceived;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Creates the engine for a connection to the server, which identifies the server by the host name
+     * or the address it is connected to.
+     * @param sslContext the context
+     * @param serverAddress the address of the server
+     * @return the engine in the client mode
+     */
+    private static @NotNull SSLEngine createEngine(@NotNull SSLContext sslContext,
+                                                   @NotNull SocketAddress serverAddress) {
+        SSLEngine engine;
+        if (serverAddress instanceof InetSocketAddress) {
+            InetSocketAddress inetAddress = (InetSocketAddress) serverAddress;
+            engine = sslContext.createSSLEngine(inetAddress.getHostString(), inetAddress.getPort());
+        } else {
+            engine = sslContext.createSSLEngine();
+        }
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Encodes the query and sends it to the server.
+     * @param query the query
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendQuery(@NotNull FtpQuery query) throws IOException {
+        if (writer == null) {
+            throw new IOException("Client is not connected");
+        }
+        writer.startNewMessage(FtpMessageCodec.toMessage(query));
+        while (!writer.write()) {
+            // the channel is blocking, so each call makes progress
+        }
+    }
+
+    /**
+     * Receives a whole message from the server.
+     * @return the received message or an empty optional if the server has disconnected
+     * @throws IOException if an I/O error occurs
+     */
+    private @NotNull Optional<Message> receiveMessage() throws IOException {
+        if (reader == null) {
+            throw new IOException("Client is not connected");
+        }
+        Optional<Message> messageOptional = reader.read();
+        while (!messageOptional.isPresent() && !reader.isClientDisconnected()) {
+            messageOptional = reader.read();
+        }
+        return messageOptional;
+    }
+
+    /**
+     * Iterates over the items of the response to a streaming list query, receiving the chunks on demand.
+     */
+    private class ListChunkIterator implements Iterator<FtpListResponseItem> {
+        private @NotNull Iterator<FtpListResponseItem> chunkIterator = Collections.emptyIterator();
+        private boolean isLastReceived = false;
+
+        @Override
+        public boolean hasNext() {
+            while (!chunkIterator.hasNext() && !isLastReceived) {
+                receiveNextChunk();
+            }
+            return chunkIterator.hasNext();
+        }
+
+        @Override
+        public @NotNull FtpListResponseItem next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunkIterator.next();
+        }
+
+        /**
+         * Receives the remaining chunks of the response, so that the connection can be used for the next query.
+         */
+        private void skipRemaining() {
+            while (!isLastReceived) {
+                receiveNextChunk();
+            }
+            chunkIterator = Collections.emptyIterator();
+        }
+
+        private void receiveNextChunk() {
+            FtpListChunk chunk;
+            try {
+                chunk = receiveListChunk();
+            } catch (IOException e) {
+                isLastReceived = true;
+                throw new UncheckedIOException(e);
+            }
+            chunkIterator = chunk.getItems().iterator();
+            isLastReceived = chunk.isLast();
         }
     }
 }
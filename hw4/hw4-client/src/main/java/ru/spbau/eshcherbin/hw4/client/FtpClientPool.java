@@ -0,0 +1,353 @@
+package ru.spbau.eshcherbin.hw4.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of FTP clients connected to the same server, which allows reusing connections between transfers.
+ * Borrowing is fair: threads waiting for a client get one in the order of arrival.
+ * The most recently returned client is borrowed first; a client that has been idle for a while
+ * is checked with a ping query before being handed out.
+ * Clients idle for longer than the idle timeout are disconnected in the background,
+ * as long as the pool keeps its minimum size.
+ */
+public class FtpClientPool {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(FtpClientPool.class);
+    private static final long VALIDATION_IDLE_TIME_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_MAINTENANCE_PERIOD_MILLIS = 10;
+    private final @NotNull SocketAddress serverAddress;
+    private final @Nullable SSLContext sslContext;
+    private final int minSize;
+    private final long idleTimeoutNanos;
+    private final @NotNull Semaphore permits;
+    private final @NotNull Deque<IdleClient> idleClients = new ArrayDeque<>();
+    private final @NotNull ScheduledExecutorService maintenanceExecutor;
+    private final @NotNull AtomicInteger borrowedNumber = new AtomicInteger();
+    private final @NotNull AtomicLong borrowsNumber = new AtomicLong();
+    private final @NotNull AtomicLong totalWaitTimeNanos = new AtomicLong();
+    private final @NotNull AtomicLong maxWaitTimeNanos = new AtomicLong();
+    private volatile boolean isClosed = false;
+
+    /**
+     * Creates the pool and starts connecting its minimum number of clients in the background.
+     * @param serverAddress the address of the server
+     * @param minSize the number of clients kept connected even if they are idle
+     * @param maxSize the maximum number of clients borrowed at once
+     * @param idleTimeoutMillis the time after which an idle client above the minimum size is disconnected
+     */
+    public FtpClientPool(@NotNull SocketAddress serverAddress, int minSize, int maxSize, long idleTimeoutMillis) {
+        this(serverAddress, minSize, maxSize, idleTimeoutMillis, null);
+    }
+
+    /**
+     * Creates the pool of the clients connecting over TLS if a context is given and starts connecting
+     * its minimum number of clients in the background. The clients share the context, so the new connections
+     * resume the TLS session of the previous ones.
+     * @param serverAddress the address of the server
+     * @param minSize the number of clients kept connected even if they are idle
+     * @param maxSize the maximum number of clients borrowed at once
+     * @param idleTimeoutMillis the time after which an idle client above the minimum size is disconnected
+     * @param sslContext the context of the clients or <tt>null</tt> to connect without TLS
+     */
+    public FtpClientPool(@NotNull SocketAddress serverAddress, int minSize, int maxSize, long idleTimeoutMillis,
+                         @Nullable SSLContext sslContext) {
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size bounds");
+        }
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        this.serverAddress = serverAddress;
+        this.sslContext = sslContext;
+        this.minSize = minSize;
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        permits = new Semaphore(maxSize, true);
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ftp-client-pool-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long maintenancePeriodMillis = Math.max(idleTimeoutMillis / 2, MIN_MAINTENANCE_PERIOD_MILLIS);
+        maintenanceExecutor.scheduleWithFixedDelay(this::maintain, 0, maintenancePeriodMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a client, waiting until one is available.
+     * The client should be given back with {@link #release(FtpClient)} or {@link #invalidate(FtpClient)}.
+     * @return the connected client
+     * @throws IOException if a new connection cannot be established
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public @NotNull FtpClient borrow() throws IOException, InterruptedException {
+        checkNotClosed();
+        long startTime = System.nanoTime();
+        permits.acquire();
+        return takeClient(startTime);
+    }
+
+    /**
+     * Borrows a client, waiting no longer than the timeout until one is available.
+     * The client should be given back with {@link #release(FtpClient)} or {@link #invalidate(FtpClient)}.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return the connected client
+     * @throws IOException if a new connection cannot be established
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws TimeoutException if no client became available in time
+     */
+    public @NotNull FtpClient borrow(long timeout, @NotNull TimeUnit unit)
+            throws IOException, InterruptedException, TimeoutException {
+        checkNotClosed();
+        long startTime = System.nanoTime();
+        if (!permits.tryAcquire(timeout, unit)) {
+            throw new TimeoutException("No client became available in " + timeout + " " + unit);
+        }
+        return takeClient(startTime);
+    }
+
+    /**
+     * Gives a borrowed client back to the pool.
+     * @param client the client that is no longer used by the borrower
+     */
+    public void release(@NotNull FtpClient client) {
+        try {
+            synchronized (idleClients) {
+                if (!isClosed && client.isConnected()) {
+                    idleClients.addLast(new IdleClient(client, System.nanoTime()));
+                    return;
+                }
+            }
+            disconnectQuietly(client);
+        } finally {
+            borrowedNumber.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    /**
+     * Gives a borrowed client back to the pool to be disconnected, e.g. after an I/O error.
+     * @param client the client that is no longer used by the borrower
+     */
+    public void invalidate(@NotNull FtpClient client) {
+        try {
+            disconnectQuietly(client);
+        } finally {
+            borrowedNumber.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    /**
+     * Disconnects the idle clients and stops the background maintenance.
+     * Clients that are borrowed at the moment are disconnected when they are given back.
+     */
+    public void close() {
+        isClosed = true;
+        maintenanceExecutor.shutdownNow();
+        List<FtpClient> clients = new ArrayList<>();
+        synchronized (idleClients) {
+            IdleClient idleClient;
+            while ((idleClient = idleClients.poll()) != null) {
+                clients.add(idleClient.client);
+            }
+        }
+        clients.forEach(FtpClientPool::disconnectQuietly);
+    }
+
+    /**
+     * Returns the number of clients borrowed at the moment.
+     * @return the number of clients borrowed at the moment
+     */
+    public int getBorrowedNumber() {
+        return borrowedNumber.get();
+    }
+
+    /**
+     * Returns the number of connected clients waiting to be borrowed.
+     * @return the number of idle clients
+     */
+    public int getIdleNumber() {
+        synchronized (idleClients) {
+            return idleClients.size();
+        }
+    }
+
+    /**
+     * Returns the approximate number of threads waiting for a client.
+     * @return the number of threads waiting for a client
+     */
+    public int getWaitingNumber() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Returns the number of successful borrows so far.
+     * @return the number of successful borrows
+     */
+    public long getBorrowsNumber() {
+        return borrowsNumber.get();
+    }
+
+    /**
+     * Returns the total time the borrowers have waited for a client, including validation and connecting.
+     * @param unit the unit of the result
+     * @return the total wait time
+     */
+    public long getTotalWaitTime(@NotNull TimeUnit unit) {
+        return unit.convert(totalWaitTimeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time a borrower has waited for a client, including validation and connecting.
+     * @param unit the unit of the result
+     * @return the maximum wait time
+     */
+    public long getMaxWaitTime(@NotNull TimeUnit unit) {
+        return unit.convert(maxWaitTimeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Hands out an idle client or connects a new one once the borrowing permit is acquired.
+     * @param startTime the time the borrower started waiting at
+     * @return the connected client
+     * @throws IOException if a new connection cannot be established
+     */
+    private @NotNull FtpClient takeClient(long startTime) throws IOException {
+        FtpClient client;
+        try {
+            client = pollValidIdleClient();
+            if (client == null) {
+                client = connectNewClient();
+            }
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        borrowedNumber.incrementAndGet();
+        long waitTime = System.nanoTime() - startTime;
+        borrowsNumber.incrementAndGet();
+        totalWaitTimeNanos.addAndGet(waitTime);
+        maxWaitTimeNanos.accumulateAndGet(waitTime, Math::max);
+        return client;
+    }
+
+    /**
+     * Takes the most recently returned idle client that is still alive.
+     * @return the client or <tt>null</tt> if there are no live idle clients
+     */
+    private @Nullable FtpClient pollValidIdleClient() {
+        while (true) {
+            IdleClient idleClient;
+            synchronized (idleClients) {
+                idleClient = idleClients.pollLast();
+            }
+            if (idleClient == null) {
+                return null;
+            }
+            if (System.nanoTime() - idleClient.returnTime < VALIDATION_IDLE_TIME_NANOS) {
+                return idleClient.client;
+            }
+            try {
+                idleClient.client.executePing();
+                return idleClient.client;
+            } catch (IOException | ClientNotConnectedException e) {
+                logger.info("Discarding a pooled connection to {}: {}", serverAddress, e.getMessage());
+                disconnectQuietly(idleClient.client);
+            }
+        }
+    }
+
+    private @NotNull FtpClient connectNewClient() throws IOException {
+        FtpClient client = new FtpClient(sslContext);
+        try {
+            client.connect(serverAddress);
+        } catch (ClientAlreadyConnectedException e) {
+            throw new IllegalStateException(e); // a new client is never connected
+        }
+        return client;
+    }
+
+    /**
+     * Disconnects the clients that have been idle for too long and tops the pool up to its minimum size.
+     * Performed periodically by the maintenance thread.
+     */
+    private void maintain() {
+        long now = System.nanoTime();
+        List<FtpClient> expiredClients = new ArrayList<>();
+        synchronized (idleClients) {
+            while (idleClients.size() + borrowedNumber.get() > minSize) {
+                IdleClient oldest = idleClients.peekFirst();
+                if (oldest == null || now - oldest.returnTime < idleTimeoutNanos) {
+                    break;
+                }
+                idleClients.pollFirst();
+                expiredClients.add(oldest.client);
+            }
+        }
+        expiredClients.forEach(FtpClientPool::disconnectQuietly);
+        while (!isClosed && getIdleNumber() + borrowedNumber.get() < minSize) {
+            FtpClient client;
+            try {
+                client = connectNewClient();
+            } catch (IOException e) {
+                logger.error("Unable to connect a pooled client to {}: {}", serverAddress, e.getMessage());
+                return;
+            }
+            synchronized (idleClients) {
+                if (!isClosed) {
+                    idleClients.addLast(new IdleClient(client, System.nanoTime()));
+                    continue;
+                }
+            }
+            disconnectQuietly(client);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (isClosed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+    }
+
+    private static void disconnectQuietly(@NotNull FtpClient client) {
+        if (!client.isConnected()) {
+            return;
+        }
+        try {
+            client.disconnect();
+        } catch (IOException | ClientNotConnectedException e) {
+            logger.error("Unable to disconnect a pooled client: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * A connected client waiting in the pool with the time it was returned at.
+     */
+    private static class IdleClient {
+        private final @NotNull FtpClient client;
+        private final long returnTime;
+
+        private IdleClient(@NotNull FtpClient client, long returnTime) {
+            this.client = client;
+            this.returnTime = returnTime;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ru.spbau.eshcherbin.hw4.client;
 import ru.spbau.eshcherbin.hw4.Config;
 import ru.spbau.eshcherbin.hw4.ftp.FtpListResponse;
 import ru.spbau.eshcherbin.hw4.ftp.FtpListResponseItem;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutResponse;
 
 import java.io.IOException;
 import java.net.ConnectException;
@@ -68,6 +69,19 @@ public class Main {
                     System.out.println("File received");
                     break;
                 }
+                case "put": {
+                    System.out.print("Enter path to the file to upload: ");
+                    Path localPath = Paths.get(scanner.nextLine());
+                    System.out.print("Enter path to save the file to: ");
+                    String path = scanner.nextLine();
+                    try {
+                        FtpPutResponse response = client.executePut(localPath, path);
+                        System.out.println(response.isStored() ? "File stored" : "File rejected: " + response.getStatus());
+                    } catch (ClientNotConnectedException | IOException e) {
+                        e.printStackTrace();
+                    }
+                    break;
+                }
                 case "exit":
                     isRunning = false;
                     break;
@@ -0,0 +1,89 @@
+package ru.spbau.eshcherbin.hw4.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The record of a download that has not been completed yet, which is kept in a file next to the downloaded one.
+ * It remembers the size and the version of the file on the server,
+ * so that the download can be resumed from the end of the partial file if the file has not changed.
+ */
+class PartialDownload {
+    private static final @NotNull String SUFFIX = ".ftp-partial";
+    private final long fileSize;
+    private final long versionToken;
+
+    public PartialDownload(long fileSize, long versionToken) {
+        this.fileSize = fileSize;
+        this.versionToken = versionToken;
+    }
+
+    /**
+     * Returns the size of the file on the server.
+     * @return the size of the file on the server
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the version token of the file on the server.
+     * @return the version token of the file on the server
+     */
+    public long getVersionToken() {
+        return versionToken;
+    }
+
+    /**
+     * Reads the record of the partial download of a file.
+     * @param savePath the path of the file being downloaded
+     * @return the record or <tt>null</tt> if there is no valid record
+     */
+    public static @Nullable PartialDownload load(@NotNull Path savePath) {
+        Path recordPath = getRecordPath(savePath);
+        if (!Files.exists(recordPath)) {
+            return null;
+        }
+        try (DataInputStream inputStream = new DataInputStream(Files.newInputStream(recordPath))) {
+            return new PartialDownload(inputStream.readLong(), inputStream.readLong());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the record of the partial download of a file.
+     * @param savePath the path of the file being downloaded
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(@NotNull Path savePath) throws IOException {
+        try (DataOutputStream outputStream = new DataOutputStream(Files.newOutputStream(getRecordPath(savePath)))) {
+            outputStream.writeLong(fileSize);
+            outputStream.writeLong(versionToken);
+        }
+    }
+
+    /**
+     * Deletes the record of the partial download of a file, if any.
+     * @param savePath the path of the downloaded file
+     * @throws IOException if an I/O error occurs
+     */
+    public static void delete(@NotNull Path savePath) throws IOException {
+        Files.deleteIfExists(getRecordPath(savePath));
+    }
+
+    /**
+     * Returns the path of the record of the partial download of a file.
+     * @param savePath the path of the file being downloaded
+     * @return the path of the record
+     */
+    public static @NotNull Path getRecordPath(@NotNull Path savePath) {
+        return savePath.resolveSibling(savePath.getFileName() + SUFFIX);
+    }
+}
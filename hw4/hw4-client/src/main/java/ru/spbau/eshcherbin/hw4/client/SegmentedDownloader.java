@@ -0,0 +1,157 @@
+package ru.spbau.eshcherbin.hw4.client;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads large files in segments fetched in parallel over several pooled connections,
+ * so that the transfer is not limited by the throughput of a single TCP stream.
+ * Each segment is a ranged get query whose content is written at its offset in the target file.
+ * The segments are requested for the version of the file the first one has come from,
+ * so that a file rewritten during the download is detected even if its size stays the same.
+ */
+public class SegmentedDownloader {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(SegmentedDownloader.class);
+    private final @NotNull FtpClientPool pool;
+    private final long segmentSize;
+    private final @NotNull ExecutorService executor;
+
+    /**
+     * Creates the downloader.
+     * @param pool the pool of clients connected to the server
+     * @param parallelism the maximum number of segments fetched at once
+     * @param segmentSize the size of a segment
+     */
+    public SegmentedDownloader(@NotNull FtpClientPool pool, int parallelism, long segmentSize) {
+        if (parallelism <= 0 || segmentSize <= 0) {
+            throw new IllegalArgumentException("Parallelism and segment size must be positive");
+        }
+        this.pool = pool;
+        this.segmentSize = segmentSize;
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "ftp-segment-download-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Downloads the file. The first segment is fetched alone as it tells the size of the file;
+     * the rest of the segments are fetched in parallel.
+     * @param path the path to the file on the server
+     * @param savePath the path where the file should be saved
+     * @return <tt>false</tt> if there is no such file on the server, <tt>true</tt> otherwise
+     * @throws IOException if an I/O error occurs or the file changes during the download
+     * @throws InterruptedException if the thread is interrupted while waiting for the segments
+     */
+    public boolean download(@NotNull String path, @NotNull Path savePath) throws IOException, InterruptedException {
+        boolean existed = Files.exists(savePath);
+        FtpGetResponse response;
+        try (FileChannel fileChannel = FileChannel.open(savePath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            response = fetchSegment(path, 0, FtpQuery.UNCONDITIONAL, fileChannel);
+            if (response.isFound()) {
+                long fileSize = response.getFileSize();
+                long versionToken = response.getVersionToken();
+                List<Future<FtpGetResponse>> futures = new ArrayList<>();
+                for (long offset = segmentSize; offset < fileSize; offset += segmentSize) {
+                    long segmentOffset = offset;
+                    futures.add(executor.submit(() -> fetchSegment(path, segmentOffset, versionToken, fileChannel)));
+                }
+                awaitSegments(futures, fileSize, versionToken);
+                fileChannel.truncate(fileSize);
+                logger.info("File {} of {} bytes downloaded in {} segments", path, fileSize, futures.size() + 1);
+            }
+        }
+        if (!response.isFound()) {
+            logger.error("File {} was not found on the server", path);
+            if (!existed) {
+                Files.deleteIfExists(savePath);
+            }
+        }
+        return response.isFound();
+    }
+
+    /**
+     * Stops the threads of the downloader.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Waits for all the segments to be fetched. If a segment fails, the segments not started yet are cancelled.
+     * @param futures the future responses to the segment queries
+     * @param fileSize the size of the file reported with the first segment
+     * @param versionToken the version token of the file reported with the first segment
+     * @throws IOException if a segment has failed or the file has changed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private void awaitSegments(@NotNull List<Future<FtpGetResponse>> futures, long fileSize, long versionToken)
+            throws IOException, InterruptedException {
+        try {
+            for (Future<FtpGetResponse> future : futures) {
+                FtpGetResponse response = future.get();
+                if (response.getFileSize() != fileSize || response.getVersionToken() != versionToken) {
+                    throw new IOException("File changed during the download");
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<FtpGetResponse> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Fetches a segment of the file with a borrowed client.
+     * @param path the path to the file on the server
+     * @param offset the offset of the segment
+     * @param versionToken the version token of the file or {@link FtpQuery#UNCONDITIONAL}
+     * @param fileChannel the channel of the file to save the segment to
+     * @return the response to the segment query
+     * @throws IOException if an I/O error occurs or the file has another version
+     * @throws InterruptedException if the thread is interrupted while waiting for a client
+     */
+    private @NotNull FtpGetResponse fetchSegment(@NotNull String path, long offset, long versionToken,
+                                                 @NotNull FileChannel fileChannel)
+            throws IOException, InterruptedException {
+        FtpClient client = pool.borrow();
+        boolean isSucceeded = false;
+        try {
+            FtpGetResponse response = client.executeGetRange(path, offset, segmentSize, versionToken, fileChannel);
+            isSucceeded = true;
+            return response;
+        } catch (ClientNotConnectedException e) {
+            throw new IOException("Pooled client is not connected", e);
+        } finally {
+            if (isSucceeded) {
+                pool.release(client);
+            } else {
+                pool.invalidate(client);
+            }
+        }
+    }
+}
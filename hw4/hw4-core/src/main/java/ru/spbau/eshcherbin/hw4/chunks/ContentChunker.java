@@ -0,0 +1,167 @@
+package ru.spbau.eshcherbin.hw4.chunks;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Splits content into chunks at boundaries defined by the content itself, so that an insertion or a deletion
+ * only changes the chunks around it and the same data yields the same chunks in any file at any offset.
+ * A gear hash of the last 64 bytes is rolled over the content, and a chunk ends where its highest bits are zero;
+ * a stricter condition is used before the average chunk size and a looser one after it, which keeps
+ * the chunk sizes close to the average, and the sizes are bounded by {@link #MIN_CHUNK_SIZE}
+ * and {@link #MAX_CHUNK_SIZE}. Each chunk is identified by its SHA-256 hash.
+ */
+public class ContentChunker {
+    /**
+     * The minimum size of a chunk other than the last one.
+     */
+    public static final int MIN_CHUNK_SIZE = 2 * 1024;
+    /**
+     * The average size of a chunk.
+     */
+    public static final int AVERAGE_CHUNK_SIZE = 8 * 1024;
+    /**
+     * The maximum size of a chunk.
+     */
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+    /**
+     * The algorithm of the chunk hashes.
+     */
+    public static final @NotNull String HASH_ALGORITHM = "SHA-256";
+    /**
+     * The length of a chunk hash.
+     */
+    public static final int HASH_LENGTH = 32;
+    // 15 and 11 highest bits around the 13 bits of the average size
+    private static final long STRICT_MASK = -1L << 49;
+    private static final long LOOSE_MASK = -1L << 53;
+    private static final int WINDOW_SIZE = 1024 * 1024;
+    private static final @NotNull long[] gear = new long[256];
+    private final @NotNull ReadableByteChannel content;
+    private final @NotNull MessageDigest chunkHash = newChunkHash();
+    private final @NotNull byte[] window = new byte[WINDOW_SIZE];
+    private int start = 0;
+    private int end = 0;
+    private boolean isEndOfContent = false;
+    private long contentLength = 0;
+
+    static {
+        // the seed is fixed, so that every peer splits the same content the same way
+        Random random = new Random(0x5EED_C0DE_CDC1L);
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Creates the chunker.
+     * @param content the channel of the content, which is read up to its end
+     */
+    public ContentChunker(@NotNull ReadableByteChannel content) {
+        this.content = content;
+    }
+
+    /**
+     * Reads the next chunk of the content and computes its hash.
+     * @param hashes the array to store the hash of the chunk in
+     * @param offset the offset in the array to store the hash at
+     * @return the size of the chunk or <tt>-1</tt> if the whole content has been read
+     * @throws IOException if an I/O error occurs
+     */
+    public int nextChunk(@NotNull byte[] hashes, int offset) throws IOException {
+        if (end - start < MAX_CHUNK_SIZE && !isEndOfContent) {
+            fillWindow();
+        }
+        if (start == end) {
+            return -1;
+        }
+        int length = findBoundary(window, start, end) - start;
+        chunkHash.update(window, start, length);
+        try {
+            chunkHash.digest(hashes, offset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e); // the array is too short
+        }
+        start += length;
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes of the content read so far, which is the length of the content once it is read.
+     * @return the number of bytes read
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Finds the end of the chunk starting at the given position.
+     * @param data the data
+     * @param from the start of the chunk
+     * @param to the end of the data; the chunk ends there if it is not longer than the minimum chunk size
+     * @return the end of the chunk
+     */
+    public static int findBoundary(@NotNull byte[] data, int from, int to) {
+        if (to - from <= MIN_CHUNK_SIZE) {
+            return to;
+        }
+        int normalEnd = Math.min(to, from + AVERAGE_CHUNK_SIZE);
+        int maxEnd = Math.min(to, from + MAX_CHUNK_SIZE);
+        long hash = 0;
+        int i = from + MIN_CHUNK_SIZE - 64;
+        for (; i < from + MIN_CHUNK_SIZE; i++) {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+        }
+        for (; i < normalEnd; i++) {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+            if ((hash & STRICT_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < maxEnd; i++) {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+            if ((hash & LOOSE_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return maxEnd;
+    }
+
+    /**
+     * Creates a digest computing the chunk hashes.
+     * @return the digest
+     */
+    public static @NotNull MessageDigest newChunkHash() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every platform supports SHA-256
+        }
+    }
+
+    /**
+     * Moves the unprocessed bytes to the start of the window and reads more content after them.
+     * @throws IOException if an I/O error occurs
+     */
+    private void fillWindow() throws IOException {
+        System.arraycopy(window, start, window, 0, end - start);
+        end -= start;
+        start = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(window, end, window.length - end);
+        while (buffer.hasRemaining()) {
+            if (content.read(buffer) == -1) {
+                isEndOfContent = true;
+                break;
+            }
+        }
+        contentLength += buffer.position() - end;
+        end = buffer.position();
+    }
+}
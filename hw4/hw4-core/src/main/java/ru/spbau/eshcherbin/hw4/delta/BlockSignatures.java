@@ -0,0 +1,119 @@
+package ru.spbau.eshcherbin.hw4.delta;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaQuery;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the block signatures of a file for a delta query.
+ * The blocks are independent, so they are signed in parallel: the file is split into ranges of blocks,
+ * each of which is read with positional reads and signed by a task of the common fork-join pool.
+ */
+public final class BlockSignatures {
+    /**
+     * The algorithm of the strong hashes of the blocks.
+     */
+    public static final @NotNull String STRONG_HASH_ALGORITHM = "MD5";
+    /**
+     * The length of the strong hash of a block.
+     */
+    public static final int STRONG_HASH_LENGTH = 16;
+    /**
+     * The maximum number of blocks a file is signed with, which bounds the length of a delta query.
+     */
+    public static final int MAX_BLOCKS_NUMBER = 1 << 20;
+    private static final int MIN_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int BYTES_PER_TASK = 4 * 1024 * 1024;
+
+    private BlockSignatures() {
+    }
+
+    /**
+     * Chooses the block size for a file: about the square root of its size, which balances the size
+     * of the signatures against the amount of data sent again around each change,
+     * but large enough for the file to consist of at most {@link #MAX_BLOCKS_NUMBER} blocks.
+     * @param fileSize the size of the file
+     * @return the block size, a power of two
+     */
+    public static int chooseBlockSize(long fileSize) {
+        long blockSize = Long.highestOneBit(Math.max((long) Math.sqrt(fileSize), 1));
+        blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(blockSize, MAX_BLOCK_SIZE));
+        while (fileSize / blockSize > MAX_BLOCKS_NUMBER && blockSize < (1 << 30)) {
+            blockSize *= 2;
+        }
+        return (int) blockSize;
+    }
+
+    /**
+     * Signs the complete blocks of a file; the last incomplete block is left out.
+     * @param path the path to the file on the server, which is the path of the query
+     * @param fileChannel the channel of the local copy of the file
+     * @param blockSize the block size
+     * @return the delta query carrying the signatures
+     * @throws IOException if an I/O error occurs
+     */
+    public static @NotNull FtpDeltaQuery sign(@NotNull String path, @NotNull FileChannel fileChannel, int blockSize)
+            throws IOException {
+        long blocksNumber = fileChannel.size() / blockSize;
+        if (blocksNumber > MAX_BLOCKS_NUMBER) {
+            throw new IOException("File is too large to be signed with blocks of " + blockSize + " bytes");
+        }
+        int[] weakChecksums = new int[(int) blocksNumber];
+        byte[] strongHashes = new byte[(int) blocksNumber * STRONG_HASH_LENGTH];
+        int blocksPerTask = Math.max(1, BYTES_PER_TASK / blockSize);
+        int tasksNumber = (int) ((blocksNumber + blocksPerTask - 1) / blocksPerTask);
+        try {
+            IntStream.range(0, tasksNumber).parallel().forEach(task -> {
+                int fromBlock = task * blocksPerTask;
+                int toBlock = (int) Math.min(fromBlock + (long) blocksPerTask, blocksNumber);
+                try {
+                    signBlocks(fileChannel, blockSize, fromBlock, toBlock, weakChecksums, strongHashes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new FtpDeltaQuery(path, blockSize, weakChecksums, strongHashes);
+    }
+
+    /**
+     * Creates a digest computing the strong hashes of the blocks.
+     * @return the digest
+     */
+    public static @NotNull MessageDigest newStrongHash() {
+        try {
+            return MessageDigest.getInstance(STRONG_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every platform supports MD5
+        }
+    }
+
+    private static void signBlocks(@NotNull FileChannel fileChannel, int blockSize, int fromBlock, int toBlock,
+                                   @NotNull int[] weakChecksums, @NotNull byte[] strongHashes) throws IOException {
+        MessageDigest strongHash = newStrongHash();
+        ByteBuffer buffer = ByteBuffer.allocate((toBlock - fromBlock) * blockSize);
+        long position = (long) fromBlock * blockSize;
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("File was truncated while being signed");
+            }
+        }
+        byte[] data = buffer.array();
+        for (int block = fromBlock; block < toBlock; block++) {
+            int offset = (block - fromBlock) * blockSize;
+            weakChecksums[block] = RollingChecksum.of(data, offset, blockSize);
+            strongHash.update(data, offset, blockSize);
+            System.arraycopy(strongHash.digest(), 0, strongHashes, block * STRONG_HASH_LENGTH, STRONG_HASH_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package ru.spbau.eshcherbin.hw4.delta;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaOperation;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaQuery;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Encodes the current content of a file as a delta against the client's copy described by its block signatures.
+ * A window of the block size is rolled over the content one byte at a time; wherever its weak checksum
+ * matches a block of the copy and the strong hashes agree, the block is referenced instead of being sent,
+ * and the bytes in between are sent as literals. Runs of consecutive blocks are merged into single operations,
+ * and the block following the previous match is preferred among the blocks with the same signature.
+ * The content is read sequentially through a bounded window, and the delta is produced a portion at a time.
+ * The SHA-256 hash of the whole content is computed along the way.
+ */
+public class DeltaEncoder {
+    private static final int MAX_LITERAL_LENGTH = 64 * 1024;
+    private static final int MIN_WINDOW_SIZE = 1024 * 1024;
+    private static final int EMPTY_SLOT = -1;
+    private final @NotNull ReadableByteChannel content;
+    private final int blockSize;
+    private final @NotNull int[] weakChecksums;
+    private final @NotNull byte[] strongHashes;
+    private final int strongHashLength;
+    private final @NotNull int[] table;
+    private final @NotNull MessageDigest strongHash = BlockSignatures.newStrongHash();
+    private final @NotNull MessageDigest contentDigest;
+    private @Nullable byte[] contentHash;
+    private final @NotNull RollingChecksum checksum = new RollingChecksum();
+    private final @NotNull byte[] window;
+    private int start = 0;
+    private int literalStart = 0;
+    private int end = 0;
+    private boolean isChecksumValid = false;
+    private boolean isEndOfContent = false;
+    private boolean isFinished = false;
+    private int runFirstBlock;
+    private int runLength = 0;
+    private long contentLength = 0;
+    private long literalBytes = 0;
+
+    /**
+     * Creates the encoder. Signatures with strong hashes longer than {@link BlockSignatures#STRONG_HASH_LENGTH}
+     * cannot be checked, so such blocks are never matched.
+     * @param content the channel of the current content of the file, which is read up to its end
+     * @param query the delta query carrying the block signatures of the client's copy
+     */
+    public DeltaEncoder(@NotNull ReadableByteChannel content, @NotNull FtpDeltaQuery query) {
+        this.content = content;
+        blockSize = query.getBlockSize();
+        weakChecksums = query.getWeakChecksums();
+        strongHashes = query.getStrongHashes();
+        strongHashLength = query.getStrongHashLength();
+        boolean isUsable = strongHashLength > 0 && strongHashLength <= BlockSignatures.STRONG_HASH_LENGTH;
+        int tableSize = Integer.highestOneBit(Math.max(2 * weakChecksums.length, 1)) * 2;
+        table = new int[isUsable ? tableSize : 1];
+        Arrays.fill(table, EMPTY_SLOT);
+        if (isUsable) {
+            for (int block = 0; block < weakChecksums.length; block++) {
+                int slot = slotOf(weakChecksums[block]);
+                while (table[slot] != EMPTY_SLOT) {
+                    slot = (slot + 1) & (table.length - 1);
+                }
+                table[slot] = block;
+            }
+        }
+        try {
+            contentDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every platform supports SHA-256
+        }
+        window = new byte[Math.max(MIN_WINDOW_SIZE, 4 * blockSize)];
+    }
+
+    /**
+     * Encodes the next portion of the content.
+     * @param maxBytes the number of bytes of the content after which the portion ends
+     * @return the operations describing the portion, possibly none if the portion only extends a run of blocks,
+     * which is added once the run ends
+     * @throws IOException if an I/O error occurs
+     */
+    public @NotNull ArrayList<FtpDeltaOperation> encodeNext(int maxBytes) throws IOException {
+        ArrayList<FtpDeltaOperation> operations = new ArrayList<>();
+        long describedBytes = 0;
+        while (!isFinished && describedBytes < maxBytes) {
+            if (end - start <= blockSize && !isEndOfContent) {
+                describedBytes += flushLiteral(operations);
+                fillWindow();
+                continue;
+            }
+            if (end - start < blockSize) {
+                start = end;
+                flushRun(operations);
+                describedBytes += flushLiteral(operations);
+                contentHash = contentDigest.digest();
+                isFinished = true;
+                break;
+            }
+            if (!isChecksumValid) {
+                checksum.reset(window, start, blockSize);
+                isChecksumValid = true;
+            }
+            int block = findBlock(checksum.getValue());
+            if (block >= 0) {
+                describedBytes += flushLiteral(operations);
+                if (runLength == 0 || block != runFirstBlock + runLength) {
+                    flushRun(operations);
+                    runFirstBlock = block;
+                }
+                runLength++;
+                describedBytes += blockSize;
+                start += blockSize;
+                literalStart = start;
+                isChecksumValid = false;
+                continue;
+            }
+            flushRun(operations);
+            if (start + blockSize < end) {
+                checksum.roll(window[start], window[start + blockSize]);
+            } else {
+                isChecksumValid = false;
+            }
+            start++;
+            if (start - literalStart >= MAX_LITERAL_LENGTH) {
+                describedBytes += flushLiteral(operations);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Returns whether the whole content has been encoded.
+     * @return whether the whole content has been encoded
+     */
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    /**
+     * Returns the number of bytes of the content read so far, which is the length of the content once it is encoded.
+     * @return the number of bytes read
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the number of bytes of the content sent as literals so far.
+     * @return the number of literal bytes
+     */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the content. Should only be called once the content is encoded.
+     * @return the hash of the content
+     */
+    public @NotNull byte[] getContentHash() {
+        if (contentHash == null) {
+            throw new IllegalStateException("Content is not encoded yet");
+        }
+        return contentHash;
+    }
+
+    /**
+     * Moves the unprocessed bytes to the start of the window and reads more content after them.
+     * @throws IOException if an I/O error occurs
+     */
+    private void fillWindow() throws IOException {
+        System.arraycopy(window, start, window, 0, end - start);
+        end -= start;
+        start = 0;
+        literalStart = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(window, end, window.length - end);
+        while (buffer.hasRemaining()) {
+            if (content.read(buffer) == -1) {
+                isEndOfContent = true;
+                break;
+            }
+        }
+        contentDigest.update(window, end, buffer.position() - end);
+        contentLength += buffer.position() - end;
+        end = buffer.position();
+    }
+
+    /**
+     * Finds a block of the client's copy equal to the window.
+     * @param weakChecksum the weak checksum of the window
+     * @return the index of the block or <tt>-1</tt> if there is no such block
+     */
+    private int findBlock(int weakChecksum) {
+        byte[] windowHash = null;
+        int result = -1;
+        for (int slot = slotOf(weakChecksum); table[slot] != EMPTY_SLOT; slot = (slot + 1) & (table.length - 1)) {
+            int block = table[slot];
+            if (weakChecksums[block] != weakChecksum) {
+                continue;
+            }
+            if (windowHash == null) {
+                strongHash.update(window, start, blockSize);
+                windowHash = strongHash.digest();
+            }
+            if (isStrongHashEqual(block, windowHash)) {
+                if (runLength > 0 && block == runFirstBlock + runLength) {
+                    return block;
+                }
+                if (result < 0) {
+                    result = block;
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isStrongHashEqual(int block, @NotNull byte[] windowHash) {
+        int offset = block * strongHashLength;
+        for (int i = 0; i < strongHashLength; i++) {
+            if (strongHashes[offset + i] != windowHash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slotOf(int weakChecksum) {
+        return (weakChecksum * 0x9E3779B9 >>> 7) & (table.length - 1);
+    }
+
+    private void flushRun(@NotNull ArrayList<FtpDeltaOperation> operations) {
+        if (runLength > 0) {
+            operations.add(FtpDeltaOperation.copy(runFirstBlock, runLength));
+            runLength = 0;
+        }
+    }
+
+    private long flushLiteral(@NotNull ArrayList<FtpDeltaOperation> operations) {
+        int length = start - literalStart;
+        if (length == 0) {
+            return 0;
+        }
+        operations.add(FtpDeltaOperation.literal(Arrays.copyOfRange(window, literalStart, start)));
+        literalStart = start;
+        literalBytes += length;
+        return length;
+    }
+}
@@ -0,0 +1,111 @@
+package ru.spbau.eshcherbin.hw4.delta;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaOperation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reconstructs the current content of a file from the client's copy and a delta against it.
+ * The content is written sequentially to the target, and its SHA-256 hash is computed along the way,
+ * so that it can be checked against the hash reported by the server.
+ */
+public class DeltaReconstructor {
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private final @NotNull FileChannel copy;
+    private final int blockSize;
+    private final long blocksNumber;
+    private final @NotNull FileChannel target;
+    private final @NotNull MessageDigest contentDigest;
+    private final @NotNull ByteBuffer buffer;
+    private long position = 0;
+    private long literalBytes = 0;
+
+    /**
+     * Creates the reconstructor.
+     * @param copy the channel of the client's copy the delta refers to
+     * @param blockSize the size of the blocks the copy has been signed with
+     * @param target the channel to write the content to from its start
+     * @throws IOException if an I/O error occurs
+     */
+    public DeltaReconstructor(@NotNull FileChannel copy, int blockSize, @NotNull FileChannel target)
+            throws IOException {
+        this.copy = copy;
+        this.blockSize = blockSize;
+        blocksNumber = copy.size() / blockSize;
+        this.target = target;
+        try {
+            contentDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every platform supports SHA-256
+        }
+        buffer = ByteBuffer.allocate(Math.max(COPY_BUFFER_SIZE, blockSize));
+    }
+
+    /**
+     * Applies the next operation of the delta.
+     * @param operation the operation
+     * @throws IOException if an I/O error occurs or the operation refers to a block the copy does not have
+     */
+    public void apply(@NotNull FtpDeltaOperation operation) throws IOException {
+        byte[] literal = operation.getLiteral();
+        if (literal != null) {
+            write(ByteBuffer.wrap(literal));
+            literalBytes += literal.length;
+            return;
+        }
+        if ((long) operation.getFirstBlock() + operation.getBlocksNumber() > blocksNumber) {
+            throw new IOException("Delta refers to block " + operation.getFirstBlock() + " the copy does not have");
+        }
+        long from = (long) operation.getFirstBlock() * blockSize;
+        long to = from + (long) operation.getBlocksNumber() * blockSize;
+        while (from < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - from));
+            while (buffer.hasRemaining()) {
+                int bytesRead = copy.read(buffer, from + buffer.position());
+                if (bytesRead == -1) {
+                    throw new IOException("Copy was truncated during reconstruction");
+                }
+            }
+            buffer.flip();
+            from += buffer.remaining();
+            write(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the content written so far.
+     * @return the number of bytes written
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of bytes of the content received as literals so far.
+     * @return the number of literal bytes
+     */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the written content. Should be called once, after the whole delta is applied.
+     * @return the hash of the content
+     */
+    public @NotNull byte[] getContentHash() {
+        return contentDigest.digest();
+    }
+
+    private void write(@NotNull ByteBuffer data) throws IOException {
+        contentDigest.update(data.duplicate());
+        while (data.hasRemaining()) {
+            position += target.write(data, position);
+        }
+    }
+}
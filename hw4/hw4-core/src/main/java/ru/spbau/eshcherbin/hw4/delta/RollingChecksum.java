@@ -0,0 +1,62 @@
+package ru.spbau.eshcherbin.hw4.delta;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The weak checksum of a window of bytes that can be rolled over the data one byte at a time in constant time.
+ * It consists of two 16-bit sums: the sum of the bytes and the sum of the bytes weighted by their distance
+ * from the end of the window, as in rsync.
+ */
+public class RollingChecksum {
+    private int length;
+    private int a;
+    private int b;
+
+    /**
+     * Computes the checksum of a window.
+     * @param data the data
+     * @param offset the start of the window
+     * @param length the length of the window
+     * @return the checksum
+     */
+    public static int of(@NotNull byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.getValue();
+    }
+
+    /**
+     * Starts a new window.
+     * @param data the data
+     * @param offset the start of the window
+     * @param length the length of the window
+     */
+    public void reset(@NotNull byte[] data, int offset, int length) {
+        this.length = length;
+        a = 0;
+        b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a += data[i] & 0xFF;
+            b += a;
+        }
+    }
+
+    /**
+     * Moves the window one byte forward.
+     * @param removed the first byte of the window, which leaves it
+     * @param added the byte following the window, which enters it
+     */
+    public void roll(byte removed, byte added) {
+        int removedValue = removed & 0xFF;
+        a += (added & 0xFF) - removedValue;
+        b += a - length * removedValue;
+    }
+
+    /**
+     * Returns the checksum of the current window.
+     * @return the checksum
+     */
+    public int getValue() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
@@ -0,0 +1,27 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FTP query carrying several paths, which is answered with the responses for all of them in a row.
+ * Its own path is empty.
+ */
+public class FtpBatchQuery extends FtpQuery {
+    private final @NotNull ArrayList<String> paths;
+
+    public FtpBatchQuery(@NotNull FtpQueryType type, @NotNull List<String> paths) {
+        super(type, "");
+        this.paths = new ArrayList<>(paths);
+    }
+
+    /**
+     * Returns the paths in query.
+     * @return the paths in query
+     */
+    public @NotNull ArrayList<String> getPaths() {
+        return paths;
+    }
+}
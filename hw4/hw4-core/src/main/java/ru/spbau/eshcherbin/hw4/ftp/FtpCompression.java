@@ -0,0 +1,92 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codec negotiated for a connection with the {@link FtpQueryType#NEGOTIATE_COMPRESSION} query.
+ * All the codecs produce raw deflate streams, so they differ only in the speed and the ratio of compression
+ * and share the same decompressor.
+ */
+public enum FtpCompression {
+    /**
+     * No compression.
+     */
+    NONE(Deflater.NO_COMPRESSION),
+    /**
+     * Deflate with the default balance of speed and ratio.
+     */
+    DEFLATE(Deflater.DEFAULT_COMPRESSION),
+    /**
+     * Deflate tuned for speed, which only looks for the nearest LZ77 matches.
+     */
+    DEFLATE_FAST(Deflater.BEST_SPEED);
+
+    private final int level;
+
+    FtpCompression(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns the name of the codec used in the negotiation query.
+     * @return the name of the codec
+     */
+    public @NotNull String getName() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    /**
+     * Creates a compressor producing a raw deflate stream.
+     * @return the compressor, which should be ended by the caller
+     * @throws IllegalStateException if this is {@link #NONE}
+     */
+    public @NotNull Deflater newDeflater() {
+        if (this == NONE) {
+            throw new IllegalStateException("No compression negotiated");
+        }
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Creates a decompressor of the streams produced by any of the codecs.
+     * @return the decompressor, which should be ended by the caller
+     */
+    public static @NotNull Inflater newInflater() {
+        return new Inflater(true);
+    }
+
+    /**
+     * Returns the codec with the given name.
+     * @param name the name of the codec
+     * @return the codec or <tt>null</tt> if there is no codec with such name
+     */
+    public static @Nullable FtpCompression forName(@NotNull String name) {
+        for (FtpCompression compression : values()) {
+            if (compression.getName().equals(name.trim())) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the codec for a connection: the first of the offered codecs that is known.
+     * @param offeredNames the names of the codecs offered by the client, in the order of preference
+     * @return the chosen codec or {@link #NONE} if none of the offered codecs is known
+     */
+    public static @NotNull FtpCompression negotiate(@NotNull List<String> offeredNames) {
+        for (String name : offeredNames) {
+            FtpCompression compression = forName(name);
+            if (compression != null) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,23 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * FTP response to the compression negotiation query.
+ * It tells the codec chosen by the server, which may compress any of the following responses on the connection.
+ */
+public class FtpCompressionResponse implements FtpResponse {
+    private final @NotNull FtpCompression compression;
+
+    public FtpCompressionResponse(@NotNull FtpCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the codec chosen by the server.
+     * @return the chosen codec, {@link FtpCompression#NONE} if the server does not compress the responses
+     */
+    public @NotNull FtpCompression getCompression() {
+        return compression;
+    }
+}
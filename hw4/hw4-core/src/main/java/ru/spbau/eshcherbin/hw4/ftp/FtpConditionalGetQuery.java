@@ -0,0 +1,33 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * FTP get query carrying the content hash of the client's copy of the file.
+ * If the file on the server has the same content, the query is answered with a {@link FtpNotModifiedResponse}
+ * only; otherwise it is answered as a plain get query.
+ */
+public class FtpConditionalGetQuery extends FtpQuery {
+    private final @NotNull byte[] contentHash;
+
+    /**
+     * Creates the query.
+     * @param path the path to the file on the server
+     * @param contentHash the SHA-256 hash of the content of the client's copy
+     */
+    public FtpConditionalGetQuery(@NotNull String path, @NotNull byte[] contentHash) {
+        super(FtpQueryType.GET_IF_HASH_DIFFERS, path);
+        if (contentHash.length == 0) {
+            throw new IllegalArgumentException("Content hash must not be empty");
+        }
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Returns the content hash of the client's copy of the file.
+     * @return the content hash
+     */
+    public @NotNull byte[] getContentHash() {
+        return contentHash;
+    }
+}
@@ -0,0 +1,93 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * A chunk of the response to a delta query, carrying the next operations of the delta.
+ * The response consists of a number of chunks, the last of which is marked as such and carries the size,
+ * the version and the SHA-256 hash of the whole file, so that the client can verify the reconstructed file.
+ * If the file is not found, the response is a single last chunk without operations and with the size <tt>-1</tt>.
+ */
+public class FtpDeltaChunk implements FtpResponse {
+    private final @NotNull ArrayList<FtpDeltaOperation> operations;
+    private final boolean isLast;
+    private final long fileSize;
+    private final long versionToken;
+    private final @Nullable byte[] contentHash;
+
+    /**
+     * Creates a chunk that is not the last one.
+     * @param operations the operations of the chunk
+     */
+    public FtpDeltaChunk(@NotNull ArrayList<FtpDeltaOperation> operations) {
+        this(operations, false, 0, FtpGetResponse.UNKNOWN_VERSION, null);
+    }
+
+    public FtpDeltaChunk(@NotNull ArrayList<FtpDeltaOperation> operations, boolean isLast, long fileSize,
+                         long versionToken, @Nullable byte[] contentHash) {
+        this.operations = operations;
+        this.isLast = isLast;
+        this.fileSize = fileSize;
+        this.versionToken = versionToken;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Returns the operations of the chunk.
+     * @return the operations of the chunk
+     */
+    public @NotNull ArrayList<FtpDeltaOperation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Returns whether this chunk is the last one of the response.
+     * @return whether this chunk is the last one
+     */
+    public boolean isLast() {
+        return isLast;
+    }
+
+    /**
+     * Returns the size of the file. Only meaningful for the last chunk.
+     * @return the size of the file or <tt>-1</tt> if the file was not found
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the version token of the file. Only meaningful for the last chunk.
+     * @return the version token of the file
+     */
+    public long getVersionToken() {
+        return versionToken;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the whole file. Only meaningful for the last chunk.
+     * @return the hash of the file or <tt>null</tt> if the file was not found
+     */
+    public @Nullable byte[] getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Returns whether the requested file was found. Only meaningful for the last chunk.
+     * @return whether the requested file was found
+     */
+    public boolean isFound() {
+        return fileSize >= 0;
+    }
+
+    /**
+     * Returns a response telling that the requested file was not found.
+     * @return a response telling that the requested file was not found
+     */
+    public static @NotNull FtpDeltaChunk notFoundResponse() {
+        return new FtpDeltaChunk(new ArrayList<>(), true, -1, FtpGetResponse.UNKNOWN_VERSION, null);
+    }
+}
@@ -0,0 +1,76 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+
+/**
+ * An operation of a delta: either a run of consecutive blocks of the client's copy of the file
+ * or literal bytes that are not found in the copy.
+ */
+public class FtpDeltaOperation implements Serializable {
+    private final int firstBlock;
+    private final int blocksNumber;
+    private final @Nullable byte[] literal;
+
+    private FtpDeltaOperation(int firstBlock, int blocksNumber, @Nullable byte[] literal) {
+        this.firstBlock = firstBlock;
+        this.blocksNumber = blocksNumber;
+        this.literal = literal;
+    }
+
+    /**
+     * Creates an operation copying a run of consecutive blocks of the client's copy.
+     * @param firstBlock the index of the first block
+     * @param blocksNumber the number of blocks
+     * @return the operation
+     */
+    public static @NotNull FtpDeltaOperation copy(int firstBlock, int blocksNumber) {
+        if (firstBlock < 0 || blocksNumber <= 0) {
+            throw new IllegalArgumentException("Invalid block run");
+        }
+        return new FtpDeltaOperation(firstBlock, blocksNumber, null);
+    }
+
+    /**
+     * Creates an operation inserting literal bytes.
+     * @param literal the bytes
+     * @return the operation
+     */
+    public static @NotNull FtpDeltaOperation literal(@NotNull byte[] literal) {
+        return new FtpDeltaOperation(0, 0, literal);
+    }
+
+    /**
+     * Returns whether the operation inserts literal bytes rather than copies blocks.
+     * @return whether the operation inserts literal bytes
+     */
+    public boolean isLiteral() {
+        return literal != null;
+    }
+
+    /**
+     * Returns the index of the first copied block.
+     * @return the index of the first block, meaningful only for a copying operation
+     */
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    /**
+     * Returns the number of copied blocks.
+     * @return the number of blocks, 0 for a literal operation
+     */
+    public int getBlocksNumber() {
+        return blocksNumber;
+    }
+
+    /**
+     * Returns the literal bytes.
+     * @return the literal bytes or <tt>null</tt> for a copying operation
+     */
+    public @Nullable byte[] getLiteral() {
+        return literal;
+    }
+}
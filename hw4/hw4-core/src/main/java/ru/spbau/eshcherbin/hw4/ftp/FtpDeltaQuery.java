@@ -0,0 +1,76 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * FTP query for the changes of a file, which carries the signatures of the blocks of the client's copy of the file.
+ * The copy is split into blocks of the same size, the last incomplete block being left out;
+ * each block is signed with a weak rolling checksum and a strong hash, so that the server can find the blocks
+ * in the current file at any offsets.
+ */
+public class FtpDeltaQuery extends FtpQuery {
+    private final int blockSize;
+    private final @NotNull int[] weakChecksums;
+    private final @NotNull byte[] strongHashes;
+
+    /**
+     * Creates the query.
+     * @param path the path to the file on the server
+     * @param blockSize the size of the blocks of the client's copy
+     * @param weakChecksums the weak checksums of the blocks
+     * @param strongHashes the strong hashes of the blocks concatenated, all of the same length
+     */
+    public FtpDeltaQuery(@NotNull String path, int blockSize, @NotNull int[] weakChecksums,
+                         @NotNull byte[] strongHashes) {
+        super(FtpQueryType.GET_DELTA, path);
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        if (weakChecksums.length == 0 ? strongHashes.length != 0 : strongHashes.length % weakChecksums.length != 0) {
+            throw new IllegalArgumentException("Strong hashes do not match the blocks");
+        }
+        this.blockSize = blockSize;
+        this.weakChecksums = weakChecksums;
+        this.strongHashes = strongHashes;
+    }
+
+    /**
+     * Returns the size of the blocks of the client's copy.
+     * @return the block size
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the number of signed blocks.
+     * @return the number of blocks
+     */
+    public int getBlocksNumber() {
+        return weakChecksums.length;
+    }
+
+    /**
+     * Returns the weak checksums of the blocks.
+     * @return the weak checksums
+     */
+    public @NotNull int[] getWeakChecksums() {
+        return weakChecksums;
+    }
+
+    /**
+     * Returns the strong hashes of the blocks concatenated.
+     * @return the strong hashes
+     */
+    public @NotNull byte[] getStrongHashes() {
+        return strongHashes;
+    }
+
+    /**
+     * Returns the length of the strong hash of a block.
+     * @return the length of a strong hash or 0 if there are no blocks
+     */
+    public int getStrongHashLength() {
+        return weakChecksums.length == 0 ? 0 : strongHashes.length / weakChecksums.length;
+    }
+}
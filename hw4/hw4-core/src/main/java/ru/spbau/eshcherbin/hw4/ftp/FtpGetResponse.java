@@ -1,14 +1,44 @@
 package ru.spbau.eshcherbin.hw4.ftp;
 
+import org.jetbrains.annotations.NotNull;
+
 /**
  * FTP get response.
- * During standard communication it should be followed with raw file content.
+ * During standard communication it should be followed with raw file content unless the file was not found.
+ * The content starts at the offset of the response and is of the content length of the response;
+ * it is the whole file unless a range was requested.
+ * If the content is compressed, it is sent as a sequence of messages, each containing the next portion
+ * of a single deflate stream that is flushed at the end of the message; the content length is the length
+ * of the decompressed content.
  */
 public class FtpGetResponse implements FtpResponse {
+    private static final long serialVersionUID = -8146715456179511357L;
+    /**
+     * The version token reported when the version of the file is unknown.
+     */
+    public static final long UNKNOWN_VERSION = 0;
     private final long fileSize;
+    private final long versionToken;
+    private final long offset;
+    private final long contentLength;
+    // the ordinal of the codec, so that legacy clients without the codec class can still deserialize the response
+    private final byte compression;
 
     public FtpGetResponse(long fileSize) {
+        this(fileSize, UNKNOWN_VERSION, 0, Math.max(fileSize, 0));
+    }
+
+    public FtpGetResponse(long fileSize, long versionToken, long offset, long contentLength) {
+        this(fileSize, versionToken, offset, contentLength, FtpCompression.NONE);
+    }
+
+    public FtpGetResponse(long fileSize, long versionToken, long offset, long contentLength,
+                          @NotNull FtpCompression compression) {
         this.fileSize = fileSize;
+        this.versionToken = versionToken;
+        this.offset = offset;
+        this.contentLength = contentLength;
+        this.compression = (byte) compression.ordinal();
     }
 
     /**
@@ -18,4 +48,63 @@ public class FtpGetResponse implements FtpResponse {
     public long getFileSize() {
         return fileSize;
     }
+
+    /**
+     * Returns the token identifying the version of the file, which changes whenever the file is modified.
+     * @return the version token or {@link #UNKNOWN_VERSION}
+     */
+    public long getVersionToken() {
+        return versionToken;
+    }
+
+    /**
+     * Returns the position in the file of the first byte of the content that follows the response.
+     * @return the position of the first byte of the content
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of bytes of the content that follows the response.
+     * @return the number of bytes of the content
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the codec the content that follows the response is compressed with.
+     * @return the codec or {@link FtpCompression#NONE} if the content is sent raw
+     */
+    public @NotNull FtpCompression getCompression() {
+        return FtpCompression.values()[compression];
+    }
+
+    /**
+     * Returns whether the requested file was found.
+     * @return whether the requested file was found
+     */
+    public boolean isFound() {
+        return fileSize >= 0;
+    }
+
+    /**
+     * Returns a response telling that the requested file was not found.
+     * @return a response telling that the requested file was not found
+     */
+    public static @NotNull FtpGetResponse notFoundResponse() {
+        return new FtpGetResponse(-1);
+    }
+
+    /**
+     * Computes the version token of a file from its size and modification time.
+     * @param fileSize the size of the file
+     * @param lastModified the modification time of the file in milliseconds
+     * @return the version token, which is never {@link #UNKNOWN_VERSION}
+     */
+    public static long versionToken(long fileSize, long lastModified) {
+        long token = (lastModified * 0x9E3779B97F4A7C15L) ^ fileSize;
+        return token == UNKNOWN_VERSION ? 1 : token;
+    }
 }
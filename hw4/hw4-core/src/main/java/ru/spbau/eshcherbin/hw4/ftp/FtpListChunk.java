@@ -0,0 +1,35 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+
+/**
+ * A chunk of the response to a streaming list query.
+ * The response consists of a number of chunks, the last of which is marked as such.
+ */
+public class FtpListChunk implements FtpResponse {
+    private final @NotNull ArrayList<FtpListResponseItem> items;
+    private final boolean isLast;
+
+    public FtpListChunk(@NotNull ArrayList<FtpListResponseItem> items, boolean isLast) {
+        this.items = items;
+        this.isLast = isLast;
+    }
+
+    /**
+     * Returns items of the chunk.
+     * @return items of the chunk
+     */
+    public @NotNull ArrayList<FtpListResponseItem> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns whether this chunk is the last one of the response.
+     * @return whether this chunk is the last one
+     */
+    public boolean isLast() {
+        return isLast;
+    }
+}
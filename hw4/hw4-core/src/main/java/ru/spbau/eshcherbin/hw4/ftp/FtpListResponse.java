@@ -8,6 +8,7 @@ import java.util.ArrayList;
  * FTP list response.
  */
 public class FtpListResponse implements FtpResponse {
+    private static final long serialVersionUID = 9017210158030818458L;
     private final @NotNull ArrayList<FtpListResponseItem> responseItems;
 
     public FtpListResponse(@NotNull ArrayList<FtpListResponseItem> responseItems) {
@@ -1,6 +1,7 @@
 package ru.spbau.eshcherbin.hw4.ftp;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
 
@@ -8,12 +9,24 @@ import java.io.Serializable;
  * An item of list response.
  */
 public class FtpListResponseItem implements Serializable {
+    private static final long serialVersionUID = 7483360154301245955L;
     private final @NotNull String fileName;
     private final boolean isDirectory;
+    private final long size;
+    private final long lastModified;
+    private final @Nullable byte[] contentHash;
 
     public FtpListResponseItem(@NotNull String fileName, boolean isDirectory) {
+        this(fileName, isDirectory, 0, 0, null);
+    }
+
+    public FtpListResponseItem(@NotNull String fileName, boolean isDirectory, long size, long lastModified,
+                               @Nullable byte[] contentHash) {
         this.fileName = fileName;
         this.isDirectory = isDirectory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
     }
 
     /**
@@ -31,4 +44,28 @@ public class FtpListResponseItem implements Serializable {
     public boolean isDirectory() {
         return isDirectory;
     }
+
+    /**
+     * Returns the size of the file. Not reported for directories.
+     * @return the size of the file in bytes or zero if it is unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the last modification time of the file. Not reported for directories.
+     * @return the last modification time in milliseconds since the epoch or zero if it is unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the content of the file, which is reported only if it has been requested.
+     * @return the hash or <tt>null</tt> if it is not reported
+     */
+    public @Nullable byte[] getContentHash() {
+        return contentHash;
+    }
 }
@@ -0,0 +1,1016 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbau.eshcherbin.hw4.messages.Message;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of the FTP messages.
+ * An encoded message starts with the protocol version byte followed by the message type tag.
+ * Integers are encoded as unsigned varints, strings as a varint byte length followed by UTF-8 bytes;
+ * an unpaired surrogate is encoded as <tt>?</tt>, as {@link String#getBytes} does.
+ * Java serialization streams start with a byte that is never a valid protocol version,
+ * which allows detecting clients that still use the legacy Java serialization.
+ * Version 2 adds the byte range to the queries; version 3 adds the conditional range to the queries
+ * and the file version and the content range to the get responses;
+ * version 4 adds the size, the modification time and the optional content hash to the list items;
+ * version 5 adds the compression negotiated for the connection, which applies both to the get response content
+ * and to the messages themselves: a large message may be sent compressed inside a compressed message,
+ * which carries the codec, the length of the encoded message and the raw deflate stream of it;
+ * version 6 adds the delta queries carrying the block signatures of a file and the delta chunks answering them;
+ * version 7 adds the chunked get queries answered with the recipe parts listing the content-defined chunks of a file;
+ * version 8 adds the conditional get queries carrying the content hash of the client's copy of a file,
+ * which are answered with the not modified responses if the content matches;
+ * version 9 adds the put queries carrying the size of the uploaded file, which is sent raw after the query,
+ * and the put responses.
+ * Messages are encoded in the version used by the peer.
+ */
+public final class FtpMessageCodec {
+    /**
+     * The latest version of the protocol supported by this codec.
+     */
+    public static final int PROTOCOL_VERSION = 9;
+
+    /**
+     * The first version of the protocol that supports ranged get queries.
+     */
+    public static final int RANGED_QUERY_PROTOCOL_VERSION = 2;
+
+    /**
+     * The first version of the protocol that supports conditional ranges and file versions.
+     */
+    public static final int CONDITIONAL_RANGE_PROTOCOL_VERSION = 3;
+
+    /**
+     * The first version of the protocol that supports the metadata of the list items.
+     */
+    public static final int LIST_METADATA_PROTOCOL_VERSION = 4;
+
+    /**
+     * The first version of the protocol that supports compression.
+     */
+    public static final int COMPRESSION_PROTOCOL_VERSION = 5;
+
+    /**
+     * The first version of the protocol that supports delta queries.
+     */
+    public static final int DELTA_PROTOCOL_VERSION = 6;
+
+    /**
+     * The first version of the protocol that supports chunked get queries.
+     */
+    public static final int CHUNKED_PROTOCOL_VERSION = 7;
+
+    /**
+     * The first version of the protocol that supports conditional get queries.
+     */
+    public static final int CONDITIONAL_GET_PROTOCOL_VERSION = 8;
+
+    /**
+     * The first version of the protocol that supports put queries.
+     */
+    public static final int PUT_PROTOCOL_VERSION = 9;
+
+    /**
+     * Pseudo-version of the protocol used by the legacy clients that send Java-serialized messages.
+     */
+    public static final int LEGACY_PROTOCOL_VERSION = 0;
+
+    private static final byte QUERY_TAG = 1;
+    private static final byte LIST_RESPONSE_TAG = 2;
+    private static final byte GET_RESPONSE_TAG = 3;
+    private static final byte PING_RESPONSE_TAG = 4;
+    private static final byte LIST_CHUNK_TAG = 5;
+    private static final byte TREE_CHUNK_TAG = 6;
+    private static final byte BATCH_QUERY_TAG = 7;
+    private static final byte COMPRESSION_RESPONSE_TAG = 8;
+    private static final byte COMPRESSED_TAG = 9;
+    private static final byte DELTA_QUERY_TAG = 10;
+    private static final byte DELTA_CHUNK_TAG = 11;
+    private static final byte RECIPE_PART_TAG = 12;
+    private static final byte CONDITIONAL_GET_QUERY_TAG = 13;
+    private static final byte NOT_MODIFIED_RESPONSE_TAG = 14;
+    private static final byte PUT_QUERY_TAG = 15;
+    private static final byte PUT_RESPONSE_TAG = 16;
+    private static final byte LAST_CHUNK_FLAG = 1;
+    private static final byte TRUNCATED_FLAG = 2;
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+    private static final int MIN_COMPRESSED_MESSAGE_SIZE = 1024;
+    private static final int MAX_DECOMPRESSED_MESSAGE_SIZE = 64 * 1024 * 1024;
+    private static final int INITIAL_DECOMPRESSION_BUFFER_SIZE = 64 * 1024;
+    private static final @NotNull FtpQueryType[] queryTypes = FtpQueryType.values();
+    private static final @NotNull FtpCompression[] compressions = FtpCompression.values();
+    private static final @NotNull FtpPutStatus[] putStatuses = FtpPutStatus.values();
+    private static final @NotNull ThreadLocal<CharsetEncoder> utf8Encoder = ThreadLocal.withInitial(
+            () -> StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE));
+
+    private FtpMessageCodec() {
+    }
+
+    /**
+     * Determines the protocol version used by an encoded message without consuming it.
+     * @param buffer the buffer positioned at the start of the message
+     * @return the protocol version or {@link #LEGACY_PROTOCOL_VERSION} for a Java-serialized message
+     * @throws FtpProtocolException if the message is empty
+     */
+    public static int getProtocolVersion(@NotNull ByteBuffer buffer) throws FtpProtocolException {
+        if (buffer.remaining() >= 2
+                && (buffer.getShort(buffer.position()) & 0xFFFF) == JAVA_SERIALIZATION_MAGIC) {
+            return LEGACY_PROTOCOL_VERSION;
+        }
+        if (!buffer.hasRemaining()) {
+            throw new FtpProtocolException("Empty message");
+        }
+        return buffer.get(buffer.position());
+    }
+
+    /**
+     * Returns the number of bytes taken by the message encoded in the latest version.
+     * @param message the message
+     * @return the size of the encoded message
+     */
+    public static int encodedSize(@NotNull FtpMessage message) {
+        return encodedSize(message, PROTOCOL_VERSION);
+    }
+
+    /**
+     * Returns the number of bytes taken by the encoded message.
+     * @param message the message
+     * @param protocolVersion the version of the protocol to encode the message in
+     * @return the size of the encoded message
+     */
+    public static int encodedSize(@NotNull FtpMessage message, int protocolVersion) {
+        int size = 2;
+        if (message instanceof FtpBatchQuery) {
+            ArrayList<String> paths = ((FtpBatchQuery) message).getPaths();
+            size += 1 + varIntSize(paths.size());
+            for (String path : paths) {
+                size += stringSize(path);
+            }
+        } else if (message instanceof FtpDeltaQuery) {
+            FtpDeltaQuery query = (FtpDeltaQuery) message;
+            size += stringSize(query.getPath()) + varIntSize(query.getBlockSize())
+                    + varIntSize(query.getBlocksNumber()) + varIntSize(query.getStrongHashLength())
+                    + 4 * query.getBlocksNumber() + query.getStrongHashes().length;
+        } else if (message instanceof FtpPutQuery) {
+            FtpPutQuery query = (FtpPutQuery) message;
+            size += stringSize(query.getPath()) + varLongSize(query.getFileSize());
+        } else if (message instanceof FtpConditionalGetQuery) {
+            FtpConditionalGetQuery query = (FtpConditionalGetQuery) message;
+            size += stringSize(query.getPath()) + varIntSize(query.getContentHash().length)
+                    + query.getContentHash().length;
+        } else if (message instanceof FtpQuery) {
+            FtpQuery query = (FtpQuery) message;
+            size += 1 + stringSize(query.getPath());
+            if (protocolVersion >= RANGED_QUERY_PROTOCOL_VERSION) {
+                size += varLongSize(query.getOffset()) + varLongSize(query.getLength());
+            }
+            if (protocolVersion >= CONDITIONAL_RANGE_PROTOCOL_VERSION) {
+                size += varLongSize(query.getIfRangeVersionToken());
+            }
+        } else if (message instanceof FtpListResponse) {
+            size += itemsSize(((FtpListResponse) message).getResponseItems(), protocolVersion);
+        } else if (message instanceof FtpListChunk) {
+            size += itemsSize(((FtpListChunk) message).getItems(), protocolVersion) + 1;
+        } else if (message instanceof FtpTreeChunk) {
+            ArrayList<FtpTreeItem> items = ((FtpTreeChunk) message).getItems();
+            size += varIntSize(items.size()) + 1;
+            for (FtpTreeItem item : items) {
+                size += stringSize(item.getRelativePath()) + 1 + varLongSize(item.getSize())
+                        + varLongSize(item.getLastModified());
+            }
+        } else if (message instanceof FtpDeltaChunk) {
+            FtpDeltaChunk chunk = (FtpDeltaChunk) message;
+            size += varIntSize(chunk.getOperations().size()) + 1;
+            for (FtpDeltaOperation operation : chunk.getOperations()) {
+                byte[] literal = operation.getLiteral();
+                if (literal != null) {
+                    size += varLongSize(2L * literal.length + 1) + literal.length;
+                } else {
+                    size += varLongSize(2L * operation.getBlocksNumber()) + varIntSize(operation.getFirstBlock());
+                }
+            }
+            if (chunk.isLast()) {
+                byte[] contentHash = chunk.getContentHash();
+                int hashLength = contentHash == null ? 0 : contentHash.length;
+                size += varLongSize(chunk.getFileSize() + 1) + varLongSize(chunk.getVersionToken())
+                        + varIntSize(hashLength) + hashLength;
+            }
+        } else if (message instanceof FtpRecipePart) {
+            FtpRecipePart part = (FtpRecipePart) message;
+            size += varIntSize(part.getChunksNumber()) + varIntSize(part.getHashLength())
+                    + part.getChunkHashes().length + 1;
+            for (int chunkSize : part.getChunkSizes()) {
+                size += varIntSize(chunkSize);
+            }
+            if (part.isLast()) {
+                size += varLongSize(part.getFileSize() + 1) + varLongSize(part.getVersionToken());
+            }
+        } else if (message instanceof FtpGetResponse) {
+            FtpGetResponse response = (FtpGetResponse) message;
+            size += varLongSize(response.getFileSize() + 1);
+            if (protocolVersion >= CONDITIONAL_RANGE_PROTOCOL_VERSION) {
+                size += varLongSize(response.getVersionToken()) + varLongSize(response.getOffset())
+                        + varLongSize(response.getContentLength());
+            }
+            if (protocolVersion >= COMPRESSION_PROTOCOL_VERSION) {
+                size += 1;
+            }
+        } else if (message instanceof FtpPutResponse) {
+            FtpPutResponse response = (FtpPutResponse) message;
+            size += 1 + varLongSize(response.getFileSize() + 1) + varLongSize(response.getVersionToken());
+        } else if (message instanceof FtpNotModifiedResponse) {
+            FtpNotModifiedResponse response = (FtpNotModifiedResponse) message;
+            size += varLongSize(response.getFileSize()) + varLongSize(response.getVersionToken());
+        } else if (message instanceof FtpCompressionResponse) {
+            size += 1;
+        } else if (!(message instanceof FtpPingResponse)) {
+            throw new IllegalArgumentException("Unknown message class " + message.getClass());
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the message into the buffer in the latest version.
+     * @param message the message
+     * @param buffer the buffer with at least {@link #encodedSize(FtpMessage)} bytes remaining
+     */
+    public static void encode(@NotNull FtpMessage message, @NotNull ByteBuffer buffer) {
+        encode(message, buffer, PROTOCOL_VERSION);
+    }
+
+    /**
+     * Encodes the message into the buffer.
+     * @param message the message
+     * @param buffer the buffer with at least {@link #encodedSize(FtpMessage, int)} bytes remaining
+     * @param protocolVersion the version of the protocol to encode the message in
+     */
+    public static void encode(@NotNull FtpMessage message, @NotNull ByteBuffer buffer, int protocolVersion) {
+        if (protocolVersion <= LEGACY_PROTOCOL_VERSION || protocolVersion > PROTOCOL_VERSION) {
+            throw new IllegalArgumentException("Unsupported protocol version " + protocolVersion);
+        }
+        if ((message instanceof FtpDeltaQuery || message instanceof FtpDeltaChunk)
+                && protocolVersion < DELTA_PROTOCOL_VERSION) {
+            throw new IllegalArgumentException("Delta queries are not supported by version " + protocolVersion);
+        }
+        if (protocolVersion < CHUNKED_PROTOCOL_VERSION && (message instanceof FtpRecipePart
+                || message instanceof FtpQuery && ((FtpQuery) message).getType() == FtpQueryType.GET_CHUNKED)) {
+            throw new IllegalArgumentException("Chunked get queries are not supported by version " + protocolVersion);
+        }
+        if (protocolVersion < CONDITIONAL_GET_PROTOCOL_VERSION && (message instanceof FtpNotModifiedResponse
+                || message instanceof FtpQuery
+                && ((FtpQuery) message).getType() == FtpQueryType.GET_IF_HASH_DIFFERS)) {
+            throw new IllegalArgumentException("Conditional get queries are not supported by version "
+                    + protocolVersion);
+        }
+        if (protocolVersion < PUT_PROTOCOL_VERSION && (message instanceof FtpPutResponse
+                || message instanceof FtpQuery && ((FtpQuery) message).getType() == FtpQueryType.PUT)) {
+            throw new IllegalArgumentException("Put queries are not supported by version " + protocolVersion);
+        }
+        buffer.put((byte) protocolVersion);
+        if (message instanceof FtpBatchQuery) {
+            FtpBatchQuery query = (FtpBatchQuery) message;
+            buffer.put(BATCH_QUERY_TAG);
+            buffer.put((byte) query.getType().ordinal());
+            putVarInt(buffer, query.getPaths().size());
+            for (String path : query.getPaths()) {
+                putString(buffer, path);
+            }
+        } else if (message instanceof FtpDeltaQuery) {
+            FtpDeltaQuery query = (FtpDeltaQuery) message;
+            buffer.put(DELTA_QUERY_TAG);
+            putString(buffer, query.getPath());
+            putVarInt(buffer, query.getBlockSize());
+            putVarInt(buffer, query.getBlocksNumber());
+            putVarInt(buffer, query.getStrongHashLength());
+            for (int weakChecksum : query.getWeakChecksums()) {
+                buffer.putInt(weakChecksum);
+            }
+            buffer.put(query.getStrongHashes());
+        } else if (message instanceof FtpPutQuery) {
+            FtpPutQuery query = (FtpPutQuery) message;
+            buffer.put(PUT_QUERY_TAG);
+            putString(buffer, query.getPath());
+            putVarLong(buffer, query.getFileSize());
+        } else if (message instanceof FtpConditionalGetQuery) {
+            FtpConditionalGetQuery query = (FtpConditionalGetQuery) message;
+            buffer.put(CONDITIONAL_GET_QUERY_TAG);
+            putString(buffer, query.getPath());
+            putVarInt(buffer, query.getContentHash().length);
+            buffer.put(query.getContentHash());
+        } else if (message instanceof FtpQuery) {
+            FtpQuery query = (FtpQuery) message;
+            buffer.put(QUERY_TAG);
+            buffer.put((byte) query.getType().ordinal());
+            putString(buffer, query.getPath());
+            if (protocolVersion >= RANGED_QUERY_PROTOCOL_VERSION) {
+                putVarLong(buffer, query.getOffset());
+                putVarLong(buffer, query.getLength());
+            } else if (query.isRanged()) {
+                throw new IllegalArgumentException("Ranged queries are not supported by version " + protocolVersion);
+            }
+            if (protocolVersion >= CONDITIONAL_RANGE_PROTOCOL_VERSION) {
+                putVarLong(buffer, query.getIfRangeVersionToken());
+            } else if (query.getIfRangeVersionToken() != FtpQuery.UNCONDITIONAL) {
+                throw new IllegalArgumentException("Conditional ranges are not supported by version "
+                        + protocolVersion);
+            }
+        } else if (message instanceof FtpListResponse) {
+            buffer.put(LIST_RESPONSE_TAG);
+            putItems(buffer, ((FtpListResponse) message).getResponseItems(), protocolVersion);
+        } else if (message instanceof FtpListChunk) {
+            FtpListChunk chunk = (FtpListChunk) message;
+            buffer.put(LIST_CHUNK_TAG);
+            putItems(buffer, chunk.getItems(), protocolVersion);
+            buffer.put((byte) (chunk.isLast() ? 1 : 0));
+        } else if (message instanceof FtpTreeChunk) {
+            FtpTreeChunk chunk = (FtpTreeChunk) message;
+            buffer.put(TREE_CHUNK_TAG);
+            putVarInt(buffer, chunk.getItems().size());
+            for (FtpTreeItem item : chunk.getItems()) {
+                putString(buffer, item.getRelativePath());
+                buffer.put((byte) (item.isDirectory() ? 1 : 0));
+                putVarLong(buffer, item.getSize());
+                putVarLong(buffer, item.getLastModified());
+            }
+            buffer.put((byte) ((chunk.isLast() ? LAST_CHUNK_FLAG : 0) | (chunk.isTruncated() ? TRUNCATED_FLAG : 0)));
+        } else if (message instanceof FtpDeltaChunk) {
+            FtpDeltaChunk chunk = (FtpDeltaChunk) message;
+            buffer.put(DELTA_CHUNK_TAG);
+            putVarInt(buffer, chunk.getOperations().size());
+            for (FtpDeltaOperation operation : chunk.getOperations()) {
+                // the lowest bit tells a literal from a run of blocks
+                byte[] literal = operation.getLiteral();
+                if (literal != null) {
+                    putVarLong(buffer, 2L * literal.length + 1);
+                    buffer.put(literal);
+                } else {
+                    putVarLong(buffer, 2L * operation.getBlocksNumber());
+                    putVarInt(buffer, operation.getFirstBlock());
+                }
+            }
+            buffer.put(chunk.isLast() ? LAST_CHUNK_FLAG : 0);
+            if (chunk.isLast()) {
+                putVarLong(buffer, chunk.getFileSize() + 1);
+                putVarLong(buffer, chunk.getVersionToken());
+                byte[] contentHash = chunk.getContentHash();
+                if (contentHash == null) {
+                    putVarInt(buffer, 0);
+                } else {
+                    putVarInt(buffer, contentHash.length);
+                    buffer.put(contentHash);
+                }
+            }
+        } else if (message instanceof FtpRecipePart) {
+            FtpRecipePart part = (FtpRecipePart) message;
+            buffer.put(RECIPE_PART_TAG);
+            putVarInt(buffer, part.getChunksNumber());
+            putVarInt(buffer, part.getHashLength());
+            for (int chunkSize : part.getChunkSizes()) {
+                putVarInt(buffer, chunkSize);
+            }
+            buffer.put(part.getChunkHashes());
+            buffer.put(part.isLast() ? LAST_CHUNK_FLAG : 0);
+            if (part.isLast()) {
+                putVarLong(buffer, part.getFileSize() + 1);
+                putVarLong(buffer, part.getVersionToken());
+            }
+        } else if (message instanceof FtpGetResponse) {
+            buffer.put(GET_RESPONSE_TAG);
+            // shifted by one so that the "not found" size -1 is encoded as well
+            FtpGetResponse response = (FtpGetResponse) message;
+            putVarLong(buffer, response.getFileSize() + 1);
+            if (protocolVersion >= CONDITIONAL_RANGE_PROTOCOL_VERSION) {
+                putVarLong(buffer, response.getVersionToken());
+                putVarLong(buffer, response.getOffset());
+                putVarLong(buffer, response.getContentLength());
+            }
+            if (protocolVersion >= COMPRESSION_PROTOCOL_VERSION) {
+                buffer.put((byte) response.getCompression().ordinal());
+            } else if (response.getCompression() != FtpCompression.NONE) {
+                throw new IllegalArgumentException("Compression is not supported by version " + protocolVersion);
+            }
+        } else if (message instanceof FtpPutResponse) {
+            FtpPutResponse response = (FtpPutResponse) message;
+            buffer.put(PUT_RESPONSE_TAG);
+            buffer.put((byte) response.getStatus().ordinal());
+            putVarLong(buffer, response.getFileSize() + 1);
+            putVarLong(buffer, response.getVersionToken());
+        } else if (message instanceof FtpNotModifiedResponse) {
+            FtpNotModifiedResponse response = (FtpNotModifiedResponse) message;
+            buffer.put(NOT_MODIFIED_RESPONSE_TAG);
+            putVarLong(buffer, response.getFileSize());
+            putVarLong(buffer, response.getVersionToken());
+        } else if (message instanceof FtpCompressionResponse) {
+            buffer.put(COMPRESSION_RESPONSE_TAG);
+            buffer.put((byte) ((FtpCompressionResponse) message).getCompression().ordinal());
+        } else if (message instanceof FtpPingResponse) {
+            buffer.put(PING_RESPONSE_TAG);
+        } else {
+            throw new IllegalArgumentException("Unknown message class " + message.getClass());
+        }
+    }
+
+    /**
+     * Encodes the message in the latest version into a communication message backed by a pooled buffer.
+     * @param message the message
+     * @return the communication message containing the encoded message
+     */
+    public static @NotNull Message toMessage(@NotNull FtpMessage message) {
+        return toMessage(message, PROTOCOL_VERSION);
+    }
+
+    /**
+     * Encodes the message into a communication message backed by a pooled buffer.
+     * @param message the message
+     * @param protocolVersion the version of the protocol to encode the message in
+     * @return the communication message containing the encoded message
+     */
+    public static @NotNull Message toMessage(@NotNull FtpMessage message, int protocolVersion) {
+        Message result = Message.allocate(encodedSize(message, protocolVersion));
+        encode(message, result.getBuffer(), protocolVersion);
+        return result;
+    }
+
+    /**
+     * Encodes the message into a communication message, compressing it if it is large enough.
+     * @param message the message
+     * @param protocolVersion the version of the protocol to encode the message in
+     * @param compression the codec negotiated for the connection
+     * @return the communication message containing the encoded message
+     */
+    public static @NotNull Message toMessage(@NotNull FtpMessage message, int protocolVersion,
+                                             @NotNull FtpCompression compression) {
+        if (compression == FtpCompression.NONE || protocolVersion < COMPRESSION_PROTOCOL_VERSION) {
+            return toMessage(message, protocolVersion);
+        }
+        byte[] encodedMessage = new byte[encodedSize(message, protocolVersion)];
+        encode(message, ByteBuffer.wrap(encodedMessage), protocolVersion);
+        return compress(encodedMessage, compression);
+    }
+
+    /**
+     * Wraps an encoded message into a compressed message, unless it is too small
+     * or compression does not make it smaller, in which case it is sent as is.
+     * @param encodedMessage the encoded message
+     * @param compression the codec negotiated for the connection
+     * @return the communication message containing the compressed or the original message
+     */
+    public static @NotNull Message compress(@NotNull byte[] encodedMessage, @NotNull FtpCompression compression) {
+        if (compression == FtpCompression.NONE || encodedMessage.length < MIN_COMPRESSED_MESSAGE_SIZE
+                || encodedMessage[0] < COMPRESSION_PROTOCOL_VERSION) {
+            return new Message(encodedMessage);
+        }
+        int headerSize = 3 + varIntSize(encodedMessage.length);
+        byte[] compressed = new byte[encodedMessage.length];
+        int compressedSize = 0;
+        Deflater deflater = compression.newDeflater();
+        try {
+            deflater.setInput(encodedMessage);
+            deflater.finish();
+            while (!deflater.finished() && compressedSize < compressed.length - headerSize) {
+                compressedSize += deflater.deflate(compressed, compressedSize,
+                        compressed.length - headerSize - compressedSize);
+            }
+            if (!deflater.finished()) {
+                return new Message(encodedMessage);
+            }
+        } finally {
+            deflater.end();
+        }
+        Message result = Message.allocate(headerSize + compressedSize);
+        ByteBuffer buffer = result.getBuffer();
+        buffer.put(encodedMessage[0]);
+        buffer.put(COMPRESSED_TAG);
+        buffer.put((byte) compression.ordinal());
+        putVarInt(buffer, encodedMessage.length);
+        buffer.put(compressed, 0, compressedSize);
+        return result;
+    }
+
+    /**
+     * Decodes a message of the expected class from a communication message and releases the latter.
+     * @param message the communication message
+     * @param messageClass the expected class of the message
+     * @param <T> the expected type of the message
+     * @return the decoded message
+     * @throws FtpProtocolException if the communication message does not contain a valid message of the expected class
+     */
+    public static @NotNull <T extends FtpMessage> T decode(@NotNull Message message,
+                                                           @NotNull Class<T> messageClass)
+            throws FtpProtocolException {
+        try {
+            return decode(message.getBuffer(), messageClass);
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Decodes a message from the buffer.
+     * @param buffer the buffer positioned at the start of the message
+     * @return the decoded message
+     * @throws FtpProtocolException if the buffer does not contain a valid message of a supported version
+     */
+    public static @NotNull FtpMessage decode(@NotNull ByteBuffer buffer) throws FtpProtocolException {
+        return decode(buffer, true);
+    }
+
+    /**
+     * Decodes a message from the buffer.
+     * @param buffer the buffer positioned at the start of the message
+     * @param isCompressionAllowed whether the message may be compressed
+     * @return the decoded message
+     * @throws FtpProtocolException if the buffer does not contain a valid message of a supported version
+     */
+    private static @NotNull FtpMessage decode(@NotNull ByteBuffer buffer, boolean isCompressionAllowed)
+            throws FtpProtocolException {
+        int version = getProtocolVersion(buffer);
+        if (version == LEGACY_PROTOCOL_VERSION) {
+            throw new FtpProtocolException("Legacy Java-serialized message");
+        }
+        if (version < 0 || version > PROTOCOL_VERSION) {
+            throw new FtpProtocolException("Unsupported protocol version " + version);
+        }
+        try {
+            buffer.get();
+            byte tag = buffer.get();
+            switch (tag) {
+                case QUERY_TAG: {
+                    int typeIndex = buffer.get();
+                    if (typeIndex < 0 || typeIndex >= queryTypes.length) {
+                        throw new FtpProtocolException("Unknown query type " + typeIndex);
+                    }
+                    if (queryTypes[typeIndex] == FtpQueryType.GET_CHUNKED && version < CHUNKED_PROTOCOL_VERSION) {
+                        throw new FtpProtocolException("Chunked get queries are not supported by version " + version);
+                    }
+                    if (queryTypes[typeIndex] == FtpQueryType.GET_IF_HASH_DIFFERS) {
+                        // only sent as a conditional get query, which carries the hash
+                        throw new FtpProtocolException("Conditional get query without content hash");
+                    }
+                    if (queryTypes[typeIndex] == FtpQueryType.PUT) {
+                        // only sent as a put query, which carries the size of the content that follows
+                        throw new FtpProtocolException("Put query without file size");
+                    }
+                    String path = getString(buffer);
+                    if (version < RANGED_QUERY_PROTOCOL_VERSION) {
+                        return new FtpQuery(queryTypes[typeIndex], path);
+                    }
+                    long offset = getVarLong(buffer);
+                    long length = getVarLong(buffer);
+                    if (offset < 0 || length < 0) {
+                        throw new FtpProtocolException("Invalid range");
+                    }
+                    long ifRangeVersionToken = version < CONDITIONAL_RANGE_PROTOCOL_VERSION
+                            ? FtpQuery.UNCONDITIONAL : getVarLong(buffer);
+                    return new FtpQuery(queryTypes[typeIndex], path, offset, length, ifRangeVersionToken);
+                }
+                case BATCH_QUERY_TAG: {
+                    int typeIndex = buffer.get();
+                    if (typeIndex < 0 || typeIndex >= queryTypes.length) {
+                        throw new FtpProtocolException("Unknown query type " + typeIndex);
+                    }
+                    int pathsNumber = getVarInt(buffer);
+                    List<String> paths = new ArrayList<>(Math.min(pathsNumber, buffer.remaining()));
+                    for (int i = 0; i < pathsNumber; i++) {
+                        paths.add(getString(buffer));
+                    }
+                    return new FtpBatchQuery(queryTypes[typeIndex], paths);
+                }
+                case DELTA_QUERY_TAG: {
+                    checkDeltaSupported(version);
+                    String path = getString(buffer);
+                    int blockSize = getVarInt(buffer);
+                    int blocksNumber = getVarInt(buffer);
+                    int strongHashLength = getVarInt(buffer);
+                    if (blockSize <= 0 || (long) blocksNumber * (4 + strongHashLength) > buffer.remaining()) {
+                        throw new FtpProtocolException("Invalid block signatures");
+                    }
+                    int[] weakChecksums = new int[blocksNumber];
+                    for (int i = 0; i < blocksNumber; i++) {
+                        weakChecksums[i] = buffer.getInt();
+                    }
+                    byte[] strongHashes = new byte[blocksNumber * strongHashLength];
+                    buffer.get(strongHashes);
+                    return new FtpDeltaQuery(path, blockSize, weakChecksums, strongHashes);
+                }
+                case DELTA_CHUNK_TAG: {
+                    checkDeltaSupported(version);
+                    int operationsNumber = getVarInt(buffer);
+                    ArrayList<FtpDeltaOperation> operations =
+                            new ArrayList<>(Math.min(operationsNumber, buffer.remaining()));
+                    for (int i = 0; i < operationsNumber; i++) {
+                        long header = getVarLong(buffer);
+                        if ((header & 1) != 0) {
+                            long literalLength = header >>> 1;
+                            if (literalLength > buffer.remaining()) {
+                                throw new FtpProtocolException("Truncated message");
+                            }
+                            byte[] literal = new byte[(int) literalLength];
+                            buffer.get(literal);
+                            operations.add(FtpDeltaOperation.literal(literal));
+                        } else {
+                            long blocksNumber = header >>> 1;
+                            int firstBlock = getVarInt(buffer);
+                            if (blocksNumber == 0 || blocksNumber > Integer.MAX_VALUE) {
+                                throw new FtpProtocolException("Invalid block run");
+                            }
+                            operations.add(FtpDeltaOperation.copy(firstBlock, (int) blocksNumber));
+                        }
+                    }
+                    if ((buffer.get() & LAST_CHUNK_FLAG) == 0) {
+                        return new FtpDeltaChunk(operations);
+                    }
+                    long fileSize = getVarLong(buffer) - 1;
+                    long versionToken = getVarLong(buffer);
+                    int hashLength = getVarInt(buffer);
+                    if (hashLength > buffer.remaining()) {
+                        throw new FtpProtocolException("Truncated message");
+                    }
+                    byte[] contentHash = null;
+                    if (hashLength > 0) {
+                        contentHash = new byte[hashLength];
+                        buffer.get(contentHash);
+                    }
+                    return new FtpDeltaChunk(operations, true, fileSize, versionToken, contentHash);
+                }
+                case RECIPE_PART_TAG: {
+                    if (version < CHUNKED_PROTOCOL_VERSION) {
+                        throw new FtpProtocolException("Chunked get queries are not supported by version " + version);
+                    }
+                    int chunksNumber = getVarInt(buffer);
+                    int hashLength = getVarInt(buffer);
+                    if ((long) chunksNumber * (1 + hashLength) > buffer.remaining()) {
+                        throw new FtpProtocolException("Truncated message");
+                    }
+                    int[] chunkSizes = new int[chunksNumber];
+                    for (int i = 0; i < chunksNumber; i++) {
+                        chunkSizes[i] = getVarInt(buffer);
+                        if (chunkSizes[i] <= 0) {
+                            throw new FtpProtocolException("Invalid chunk size");
+                        }
+                    }
+                    byte[] chunkHashes = new byte[chunksNumber * hashLength];
+                    buffer.get(chunkHashes);
+                    if ((buffer.get() & LAST_CHUNK_FLAG) == 0) {
+                        return new FtpRecipePart(chunkSizes, chunkHashes);
+                    }
+                    long fileSize = getVarLong(buffer) - 1;
+                    long versionToken = getVarLong(buffer);
+                    return new FtpRecipePart(chunkSizes, chunkHashes, true, fileSize, versionToken);
+                }
+                case CONDITIONAL_GET_QUERY_TAG: {
+                    checkConditionalGetSupported(version);
+                    String path = getString(buffer);
+                    int hashLength = getVarInt(buffer);
+                    if (hashLength <= 0 || hashLength > buffer.remaining()) {
+                        throw new FtpProtocolException("Invalid content hash");
+                    }
+                    byte[] contentHash = new byte[hashLength];
+                    buffer.get(contentHash);
+                    return new FtpConditionalGetQuery(path, contentHash);
+                }
+                case PUT_QUERY_TAG: {
+                    checkPutSupported(version);
+                    String path = getString(buffer);
+                    long fileSize = getVarLong(buffer);
+                    if (fileSize < 0) {
+                        throw new FtpProtocolException("Invalid file size");
+                    }
+                    return new FtpPutQuery(path, fileSize);
+                }
+                case PUT_RESPONSE_TAG: {
+                    checkPutSupported(version);
+                    int statusIndex = buffer.get();
+                    if (statusIndex < 0 || statusIndex >= putStatuses.length) {
+                        throw new FtpProtocolException("Unknown put status " + statusIndex);
+                    }
+                    long fileSize = getVarLong(buffer) - 1;
+                    long versionToken = getVarLong(buffer);
+                    return new FtpPutResponse(putStatuses[statusIndex], fileSize, versionToken);
+                }
+                case NOT_MODIFIED_RESPONSE_TAG: {
+                    checkConditionalGetSupported(version);
+                    long fileSize = getVarLong(buffer);
+                    long versionToken = getVarLong(buffer);
+                    return new FtpNotModifiedResponse(fileSize, versionToken);
+                }
+                case LIST_RESPONSE_TAG:
+                    return new FtpListResponse(getItems(buffer, version));
+                case LIST_CHUNK_TAG: {
+                    ArrayList<FtpListResponseItem> items = getItems(buffer, version);
+                    return new FtpListChunk(items, buffer.get() != 0);
+                }
+                case TREE_CHUNK_TAG: {
+                    int itemsNumber = getVarInt(buffer);
+                    ArrayList<FtpTreeItem> items = new ArrayList<>(Math.min(itemsNumber, buffer.remaining()));
+                    for (int i = 0; i < itemsNumber; i++) {
+                        String relativePath = getString(buffer);
+                        boolean isDirectory = buffer.get() != 0;
+                        long size = getVarLong(buffer);
+                        long lastModified = getVarLong(buffer);
+                        items.add(new FtpTreeItem(relativePath, isDirectory, size, lastModified));
+                    }
+                    byte flags = buffer.get();
+                    return new FtpTreeChunk(items, (flags & LAST_CHUNK_FLAG) != 0, (flags & TRUNCATED_FLAG) != 0);
+                }
+                case GET_RESPONSE_TAG: {
+                    long fileSize = getVarLong(buffer) - 1;
+                    if (version < CONDITIONAL_RANGE_PROTOCOL_VERSION) {
+                        return new FtpGetResponse(fileSize);
+                    }
+                    long versionToken = getVarLong(buffer);
+                    long offset = getVarLong(buffer);
+                    long contentLength = getVarLong(buffer);
+                    if (version < COMPRESSION_PROTOCOL_VERSION) {
+                        return new FtpGetResponse(fileSize, versionToken, offset, contentLength);
+                    }
+                    return new FtpGetResponse(fileSize, versionToken, offset, contentLength, getCompression(buffer));
+                }
+                case COMPRESSION_RESPONSE_TAG:
+                    return new FtpCompressionResponse(getCompression(buffer));
+                case COMPRESSED_TAG:
+                    if (!isCompressionAllowed) {
+                        throw new FtpProtocolException("Unexpected compressed message");
+                    }
+                    return decode(ByteBuffer.wrap(decompress(buffer)));
+                case PING_RESPONSE_TAG:
+                    return FtpPingResponse.getInstance();
+                default:
+                    throw new FtpProtocolException("Unknown message tag " + tag);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new FtpProtocolException("Truncated message");
+        }
+    }
+
+    /**
+     * Decodes a message of the expected class from the buffer.
+     * Only responses are ever compressed, so an expected query is rejected if it is compressed
+     * without being decompressed, which spares the server inflating whatever a client sends.
+     * @param buffer the buffer positioned at the start of the message
+     * @param messageClass the expected class of the message
+     * @param <T> the expected type of the message
+     * @return the decoded message
+     * @throws FtpProtocolException if the buffer does not contain a valid message of the expected class
+     */
+    public static @NotNull <T extends FtpMessage> T decode(@NotNull ByteBuffer buffer,
+                                                           @NotNull Class<T> messageClass)
+            throws FtpProtocolException {
+        FtpMessage message = decode(buffer, !FtpQuery.class.isAssignableFrom(messageClass));
+        if (!messageClass.isInstance(message)) {
+            throw new FtpProtocolException("Expected " + messageClass.getSimpleName()
+                    + " but received " + message.getClass().getSimpleName());
+        }
+        return messageClass.cast(message);
+    }
+
+    /**
+     * Decompresses the encoded message contained in a compressed message.
+     * The declared length is not trusted: the message is inflated into a buffer growing with the inflated data.
+     * @param buffer the buffer positioned after the tag of the compressed message
+     * @return the encoded message, which is never a compressed message itself
+     * @throws FtpProtocolException if the compressed message is malformed
+     */
+    private static @NotNull byte[] decompress(@NotNull ByteBuffer buffer) throws FtpProtocolException {
+        FtpCompression compression = getCompression(buffer);
+        if (compression == FtpCompression.NONE) {
+            throw new FtpProtocolException("Compressed message without codec");
+        }
+        int length = getVarInt(buffer);
+        if (length < 2 || length > MAX_DECOMPRESSED_MESSAGE_SIZE) {
+            throw new FtpProtocolException("Invalid length of compressed message " + length);
+        }
+        byte[] compressed = new byte[buffer.remaining()];
+        buffer.get(compressed);
+        byte[] result = new byte[Math.min(length, INITIAL_DECOMPRESSION_BUFFER_SIZE)];
+        Inflater inflater = FtpCompression.newInflater();
+        try {
+            inflater.setInput(compressed);
+            int resultSize = 0;
+            while (resultSize < length) {
+                if (resultSize == result.length) {
+                    result = Arrays.copyOf(result, (int) Math.min(length, 2L * result.length));
+                }
+                int inflated = inflater.inflate(result, resultSize, result.length - resultSize);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                resultSize += inflated;
+            }
+            if (resultSize != length) {
+                throw new FtpProtocolException("Compressed message does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new FtpProtocolException("Malformed compressed message: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        if (result[1] == COMPRESSED_TAG) {
+            throw new FtpProtocolException("Nested compressed message");
+        }
+        return result;
+    }
+
+    private static void checkDeltaSupported(int version) throws FtpProtocolException {
+        if (version < DELTA_PROTOCOL_VERSION) {
+            throw new FtpProtocolException("Delta queries are not supported by version " + version);
+        }
+    }
+
+    private static void checkConditionalGetSupported(int version) throws FtpProtocolException {
+        if (version < CONDITIONAL_GET_PROTOCOL_VERSION) {
+            throw new FtpProtocolException("Conditional get queries are not supported by version " + version);
+        }
+    }
+
+    private static void checkPutSupported(int version) throws FtpProtocolException {
+        if (version < PUT_PROTOCOL_VERSION) {
+            throw new FtpProtocolException("Put queries are not supported by version " + version);
+        }
+    }
+
+    private static @NotNull FtpCompression getCompression(@NotNull ByteBuffer buffer) throws FtpProtocolException {
+        int compressionIndex = buffer.get();
+        if (compressionIndex < 0 || compressionIndex >= compressions.length) {
+            throw new FtpProtocolException("Unknown compression " + compressionIndex);
+        }
+        return compressions[compressionIndex];
+    }
+
+    private static int itemsSize(@NotNull ArrayList<FtpListResponseItem> items, int protocolVersion) {
+        int size = varIntSize(items.size());
+        for (FtpListResponseItem item : items) {
+            size += stringSize(item.getFileName()) + 1;
+            if (protocolVersion >= LIST_METADATA_PROTOCOL_VERSION) {
+                byte[] contentHash = item.getContentHash();
+                int hashLength = contentHash == null ? 0 : contentHash.length;
+                size += varLongSize(item.getSize()) + varLongSize(item.getLastModified())
+                        + varIntSize(hashLength) + hashLength;
+            }
+        }
+        return size;
+    }
+
+    private static void putItems(@NotNull ByteBuffer buffer, @NotNull ArrayList<FtpListResponseItem> items,
+                                 int protocolVersion) {
+        putVarInt(buffer, items.size());
+        for (FtpListResponseItem item : items) {
+            putString(buffer, item.getFileName());
+            buffer.put((byte) (item.isDirectory() ? 1 : 0));
+            if (protocolVersion >= LIST_METADATA_PROTOCOL_VERSION) {
+                putVarLong(buffer, item.getSize());
+                putVarLong(buffer, item.getLastModified());
+                byte[] contentHash = item.getContentHash();
+                if (contentHash == null) {
+                    putVarInt(buffer, 0);
+                } else {
+                    putVarInt(buffer, contentHash.length);
+                    buffer.put(contentHash);
+                }
+            }
+        }
+    }
+
+    private static @NotNull ArrayList<FtpListResponseItem> getItems(@NotNull ByteBuffer buffer, int version)
+            throws FtpProtocolException {
+        int itemsNumber = getVarInt(buffer);
+        ArrayList<FtpListResponseItem> items = new ArrayList<>(Math.min(itemsNumber, buffer.remaining()));
+        for (int i = 0; i < itemsNumber; i++) {
+            String fileName = getString(buffer);
+            boolean isDirectory = buffer.get() != 0;
+            if (version < LIST_METADATA_PROTOCOL_VERSION) {
+                items.add(new FtpListResponseItem(fileName, isDirectory));
+                continue;
+            }
+            long size = getVarLong(buffer);
+            long lastModified = getVarLong(buffer);
+            int hashLength = getVarInt(buffer);
+            if (hashLength > buffer.remaining()) {
+                throw new FtpProtocolException("Truncated message");
+            }
+            byte[] contentHash = null;
+            if (hashLength > 0) {
+                contentHash = new byte[hashLength];
+                buffer.get(contentHash);
+            }
+            items.add(new FtpListResponseItem(fileName, isDirectory, size, lastModified, contentHash));
+        }
+        return items;
+    }
+
+    private static int varIntSize(int value) {
+        return varLongSize(value & 0xFFFFFFFFL);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarInt(@NotNull ByteBuffer buffer, int value) {
+        putVarLong(buffer, value & 0xFFFFFFFFL);
+    }
+
+    private static void putVarLong(@NotNull ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(@NotNull ByteBuffer buffer) throws FtpProtocolException {
+        long value = getVarLong(buffer);
+        if (value > Integer.MAX_VALUE) {
+            throw new FtpProtocolException("Varint is out of range");
+        }
+        return (int) value;
+    }
+
+    private static long getVarLong(@NotNull ByteBuffer buffer) throws FtpProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte current = buffer.get();
+            value |= (long) (current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new FtpProtocolException("Malformed varint");
+    }
+
+    private static int utf8Length(@NotNull String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1; // replaced with '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int stringSize(@NotNull String string) {
+        int length = utf8Length(string);
+        return varIntSize(length) + length;
+    }
+
+    private static void putString(@NotNull ByteBuffer buffer, @NotNull String string) {
+        putVarInt(buffer, utf8Length(string));
+        CharsetEncoder encoder = utf8Encoder.get();
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(string), buffer, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(buffer);
+        }
+        if (!result.isUnderflow()) {
+            throw new IllegalStateException("Unable to encode a string: " + result);
+        }
+    }
+
+    private static @NotNull String getString(@NotNull ByteBuffer buffer) throws FtpProtocolException {
+        int length = getVarInt(buffer);
+        if (length > buffer.remaining()) {
+            throw new FtpProtocolException("Truncated string");
+        }
+        String result;
+        if (buffer.hasArray()) {
+            result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,32 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+/**
+ * FTP response to a conditional get query telling that the content of the file matches the client's copy.
+ * It is not followed by the content of the file.
+ */
+public class FtpNotModifiedResponse implements FtpResponse {
+    private final long fileSize;
+    private final long versionToken;
+
+    public FtpNotModifiedResponse(long fileSize, long versionToken) {
+        this.fileSize = fileSize;
+        this.versionToken = versionToken;
+    }
+
+    /**
+     * Returns the size of the file.
+     * @return the size of the file
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the token identifying the version of the file, which allows the following ranged get queries
+     * to be conditional on it.
+     * @return the version token of the file
+     */
+    public long getVersionToken() {
+        return versionToken;
+    }
+}
@@ -0,0 +1,25 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * FTP ping response. Carries no data: receiving it means that the connection is alive.
+ */
+public class FtpPingResponse implements FtpResponse {
+    private static final @NotNull FtpPingResponse instance = new FtpPingResponse();
+
+    private FtpPingResponse() {
+    }
+
+    /**
+     * Returns the ping response.
+     * @return the ping response
+     */
+    public static @NotNull FtpPingResponse getInstance() {
+        return instance;
+    }
+
+    private @NotNull Object readResolve() {
+        return instance;
+    }
+}
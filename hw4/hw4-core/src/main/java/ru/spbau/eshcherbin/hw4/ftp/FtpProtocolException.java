@@ -0,0 +1,14 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a received message does not conform to the FTP protocol.
+ */
+public class FtpProtocolException extends IOException {
+    public FtpProtocolException(@NotNull String message) {
+        super(message);
+    }
+}
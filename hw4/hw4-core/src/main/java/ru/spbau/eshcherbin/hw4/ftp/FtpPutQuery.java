@@ -0,0 +1,32 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * FTP query uploading a file. During standard communication it is followed with the raw content of the file
+ * of the given length, which the server consumes even if it rejects the upload.
+ */
+public class FtpPutQuery extends FtpQuery {
+    private final long fileSize;
+
+    /**
+     * Creates the query.
+     * @param path the path on the server to save the file to
+     * @param fileSize the size of the file
+     */
+    public FtpPutQuery(@NotNull String path, long fileSize) {
+        super(FtpQueryType.PUT, path);
+        if (fileSize < 0) {
+            throw new IllegalArgumentException("File size must not be negative");
+        }
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Returns the size of the uploaded file, which is the number of bytes of the content that follows the query.
+     * @return the size of the uploaded file
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+}
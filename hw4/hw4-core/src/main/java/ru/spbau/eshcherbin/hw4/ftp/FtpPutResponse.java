@@ -0,0 +1,60 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * FTP response to a put query, which is sent once the content of the file has been received and stored,
+ * or as soon as the upload is rejected.
+ */
+public class FtpPutResponse implements FtpResponse {
+    private final @NotNull FtpPutStatus status;
+    private final long fileSize;
+    private final long versionToken;
+
+    public FtpPutResponse(@NotNull FtpPutStatus status, long fileSize, long versionToken) {
+        this.status = status;
+        this.fileSize = fileSize;
+        this.versionToken = versionToken;
+    }
+
+    /**
+     * Returns the outcome of the upload.
+     * @return the status of the upload
+     */
+    public @NotNull FtpPutStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns whether the file has been stored.
+     * @return whether the file has been stored
+     */
+    public boolean isStored() {
+        return status == FtpPutStatus.STORED;
+    }
+
+    /**
+     * Returns the size of the stored file.
+     * @return the size of the file or <tt>-1</tt> if it has not been stored
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the version token of the stored file, which the following get queries report for it.
+     * @return the version token of the file or {@link FtpGetResponse#UNKNOWN_VERSION} if it has not been stored
+     */
+    public long getVersionToken() {
+        return versionToken;
+    }
+
+    /**
+     * Returns a response telling that the upload has been rejected or has failed.
+     * @param status the reason the file has not been stored
+     * @return a response telling that the file has not been stored
+     */
+    public static @NotNull FtpPutResponse rejectedResponse(@NotNull FtpPutStatus status) {
+        return new FtpPutResponse(status, -1, FtpGetResponse.UNKNOWN_VERSION);
+    }
+}
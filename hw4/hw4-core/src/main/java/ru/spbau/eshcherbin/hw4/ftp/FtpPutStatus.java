@@ -0,0 +1,23 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+/**
+ * Outcome of a put query.
+ */
+public enum FtpPutStatus {
+    /**
+     * The file has been stored.
+     */
+    STORED,
+    /**
+     * The file has been rejected because it exceeds the server's upload quota or the free space on the disk.
+     */
+    QUOTA_EXCEEDED,
+    /**
+     * The file could not be stored, e.g. because its directory does not exist.
+     */
+    FAILED,
+    /**
+     * The file has been rejected because the server does not accept uploads or its path is outside the upload root.
+     */
+    FORBIDDEN,
+}
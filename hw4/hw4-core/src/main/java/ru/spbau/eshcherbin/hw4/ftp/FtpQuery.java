@@ -4,14 +4,45 @@ import org.jetbrains.annotations.NotNull;
 
 /**
  * FTP query.
+ * A get query may ask for a byte range of the file only.
+ * The range may be conditional: it is served only if the file still has the given version,
+ * otherwise the whole file is served, which allows resuming interrupted downloads safely.
  */
 public class FtpQuery implements FtpMessage {
+    private static final long serialVersionUID = 4910612131017247160L;
+    /**
+     * The range length meaning that the range extends to the end of the file.
+     * Queries of the legacy clients are deserialized with this length.
+     */
+    public static final long TO_END_OF_FILE = 0;
+    /**
+     * The version token meaning that the range is served regardless of the version of the file.
+     */
+    public static final long UNCONDITIONAL = FtpGetResponse.UNKNOWN_VERSION;
     private final @NotNull FtpQueryType type;
     private final @NotNull String path;
+    private final long offset;
+    private final long length;
+    private final long ifRangeVersionToken;
 
     public FtpQuery(@NotNull FtpQueryType type, @NotNull String path) {
+        this(type, path, 0, TO_END_OF_FILE);
+    }
+
+    public FtpQuery(@NotNull FtpQueryType type, @NotNull String path, long offset, long length) {
+        this(type, path, offset, length, UNCONDITIONAL);
+    }
+
+    public FtpQuery(@NotNull FtpQueryType type, @NotNull String path, long offset, long length,
+                    long ifRangeVersionToken) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range");
+        }
         this.type = type;
         this.path = path;
+        this.offset = offset;
+        this.length = length;
+        this.ifRangeVersionToken = ifRangeVersionToken;
     }
 
     /**
@@ -29,4 +60,56 @@ public class FtpQuery implements FtpMessage {
     public @NotNull String getPath() {
         return path;
     }
+
+    /**
+     * Returns the position of the first requested byte of the file.
+     * @return the position of the first requested byte
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the maximum number of requested bytes of the file.
+     * @return the maximum number of requested bytes or {@link #TO_END_OF_FILE}
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the version of the file the range is requested for.
+     * @return the version token of the file or {@link #UNCONDITIONAL}
+     */
+    public long getIfRangeVersionToken() {
+        return ifRangeVersionToken;
+    }
+
+    /**
+     * Returns whether the range should be served for a file of the given version.
+     * @param versionToken the version token of the file
+     * @return whether the range should be served rather than the whole file
+     */
+    public boolean isRangeApplicable(long versionToken) {
+        return ifRangeVersionToken == UNCONDITIONAL || ifRangeVersionToken == versionToken;
+    }
+
+    /**
+     * Returns whether the query asks for a part of the file only.
+     * @return whether the query asks for a part of the file only
+     */
+    public boolean isRanged() {
+        return offset != 0 || length != TO_END_OF_FILE;
+    }
+
+    /**
+     * Returns the number of bytes of the requested range that exist in a file of the given size.
+     * This is the number of bytes that follow the response to a get query.
+     * @param fileSize the size of the file
+     * @return the number of bytes in the requested range
+     */
+    public long getContentLength(long fileSize) {
+        long available = Math.max(fileSize - offset, 0);
+        return length == TO_END_OF_FILE ? available : Math.min(length, available);
+    }
 }
@@ -12,4 +12,54 @@ public enum FtpQueryType {
      * Get query
      */
     GET,
+    /**
+     * Ping query, a no-op that is answered immediately and is used to check that a connection is alive.
+     */
+    PING,
+    /**
+     * List query answered with a sequence of chunks, so that huge directories are listed incrementally.
+     */
+    LIST_STREAM,
+    /**
+     * Recursive list query answered with a sequence of chunks listing the whole tree under a directory.
+     */
+    LIST_RECURSIVE,
+    /**
+     * List query answered with the content hashes of the listed files in addition to their sizes and times.
+     */
+    LIST_WITH_HASHES,
+    /**
+     * Get query for several files at once, sent as {@link FtpBatchQuery}.
+     * It is answered with the get responses for all the files back to back, each followed by the file.
+     */
+    GET_BATCH,
+    /**
+     * Query negotiating the compression of the following responses on the connection.
+     * Its path is the comma-separated list of the names of the offered {@link FtpCompression} codecs
+     * in the order of preference; it is answered with {@link FtpCompressionResponse}.
+     */
+    NEGOTIATE_COMPRESSION,
+    /**
+     * Get query for the changes of a file the client has an older copy of, sent as {@link FtpDeltaQuery}
+     * with the signatures of the blocks of the copy. It is answered with a sequence of {@link FtpDeltaChunk}s
+     * describing the file as the blocks of the copy and the literal bytes in between.
+     */
+    GET_DELTA,
+    /**
+     * Get query for the recipe of a file, the hashes of its content-defined chunks, which is answered
+     * with a sequence of {@link FtpRecipePart}s. The client then fetches only the chunks it does not have
+     * with ranged get queries.
+     */
+    GET_CHUNKED,
+    /**
+     * Get query carrying the content hash of the client's copy of a file, sent as {@link FtpConditionalGetQuery}.
+     * It is answered with {@link FtpNotModifiedResponse} if the content of the file matches the hash
+     * and as a plain get query otherwise.
+     */
+    GET_IF_HASH_DIFFERS,
+    /**
+     * Put query uploading a file, sent as {@link FtpPutQuery} with the size of the file and followed
+     * by the raw content of the file. It is answered with {@link FtpPutResponse}.
+     */
+    PUT,
 }
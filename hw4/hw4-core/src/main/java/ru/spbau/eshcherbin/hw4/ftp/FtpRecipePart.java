@@ -0,0 +1,112 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A part of the response to a chunked get query, carrying the next chunks of the recipe of the file:
+ * the sizes and the hashes of the content-defined chunks the file consists of, in the order of the file.
+ * The response consists of a number of parts, the last of which is marked as such and carries the size
+ * and the version of the file, which allows the client to fetch the chunks it does not have with ranged get queries
+ * for the same version. If the file is not found, the response is a single last part without chunks
+ * and with the size <tt>-1</tt>.
+ */
+public class FtpRecipePart implements FtpResponse {
+    private final @NotNull int[] chunkSizes;
+    private final @NotNull byte[] chunkHashes;
+    private final boolean isLast;
+    private final long fileSize;
+    private final long versionToken;
+
+    /**
+     * Creates a part that is not the last one.
+     * @param chunkSizes the sizes of the chunks
+     * @param chunkHashes the hashes of the chunks concatenated, all of the same length
+     */
+    public FtpRecipePart(@NotNull int[] chunkSizes, @NotNull byte[] chunkHashes) {
+        this(chunkSizes, chunkHashes, false, 0, FtpGetResponse.UNKNOWN_VERSION);
+    }
+
+    public FtpRecipePart(@NotNull int[] chunkSizes, @NotNull byte[] chunkHashes, boolean isLast, long fileSize,
+                         long versionToken) {
+        if (chunkSizes.length == 0 ? chunkHashes.length != 0 : chunkHashes.length % chunkSizes.length != 0) {
+            throw new IllegalArgumentException("Chunk hashes do not match the chunks");
+        }
+        this.chunkSizes = chunkSizes;
+        this.chunkHashes = chunkHashes;
+        this.isLast = isLast;
+        this.fileSize = fileSize;
+        this.versionToken = versionToken;
+    }
+
+    /**
+     * Returns the number of chunks in the part.
+     * @return the number of chunks
+     */
+    public int getChunksNumber() {
+        return chunkSizes.length;
+    }
+
+    /**
+     * Returns the sizes of the chunks.
+     * @return the sizes of the chunks
+     */
+    public @NotNull int[] getChunkSizes() {
+        return chunkSizes;
+    }
+
+    /**
+     * Returns the hashes of the chunks concatenated.
+     * @return the hashes of the chunks
+     */
+    public @NotNull byte[] getChunkHashes() {
+        return chunkHashes;
+    }
+
+    /**
+     * Returns the length of the hash of a chunk.
+     * @return the length of a hash or 0 if there are no chunks
+     */
+    public int getHashLength() {
+        return chunkSizes.length == 0 ? 0 : chunkHashes.length / chunkSizes.length;
+    }
+
+    /**
+     * Returns whether this part is the last one of the response.
+     * @return whether this part is the last one
+     */
+    public boolean isLast() {
+        return isLast;
+    }
+
+    /**
+     * Returns the size of the file. Only meaningful for the last part.
+     * @return the size of the file or <tt>-1</tt> if the file was not found
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the version token of the file the recipe was computed for. Only meaningful for the last part.
+     * @return the version token of the file
+     */
+    public long getVersionToken() {
+        return versionToken;
+    }
+
+    /**
+     * Returns whether the requested file was found. Only meaningful for the last part.
+     * @return whether the requested file was found
+     */
+    public boolean isFound() {
+        return fileSize >= 0;
+    }
+
+    /**
+     * Returns a response telling that the requested file was not found.
+     * @return a response telling that the requested file was not found
+     */
+    public static @NotNull FtpRecipePart notFoundResponse() {
+        return new FtpRecipePart(new int[0], new byte[0], true, -1, FtpGetResponse.UNKNOWN_VERSION);
+    }
+}
@@ -0,0 +1,47 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+
+/**
+ * A chunk of the response to a recursive list query.
+ * The response consists of a number of chunks, the last of which is marked as such
+ * and tells whether the listing has been cut short by the limits of the server.
+ */
+public class FtpTreeChunk implements FtpResponse {
+    private final @NotNull ArrayList<FtpTreeItem> items;
+    private final boolean isLast;
+    private final boolean isTruncated;
+
+    public FtpTreeChunk(@NotNull ArrayList<FtpTreeItem> items, boolean isLast, boolean isTruncated) {
+        this.items = items;
+        this.isLast = isLast;
+        this.isTruncated = isTruncated;
+    }
+
+    /**
+     * Returns items of the chunk.
+     * @return items of the chunk
+     */
+    public @NotNull ArrayList<FtpTreeItem> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns whether this chunk is the last one of the response.
+     * @return whether this chunk is the last one
+     */
+    public boolean isLast() {
+        return isLast;
+    }
+
+    /**
+     * Returns whether some of the tree has not been listed because of the depth or the entry limit of the server.
+     * Only meaningful for the last chunk.
+     * @return whether the listing is incomplete
+     */
+    public boolean isTruncated() {
+        return isTruncated;
+    }
+}
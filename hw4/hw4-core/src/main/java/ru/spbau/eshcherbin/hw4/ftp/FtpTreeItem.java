@@ -0,0 +1,54 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+
+/**
+ * An item of recursive list response.
+ */
+public class FtpTreeItem implements Serializable {
+    private final @NotNull String relativePath;
+    private final boolean isDirectory;
+    private final long size;
+    private final long lastModified;
+
+    public FtpTreeItem(@NotNull String relativePath, boolean isDirectory, long size, long lastModified) {
+        this.relativePath = relativePath;
+        this.isDirectory = isDirectory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the path of the file relative to the listed directory, with names separated by slashes.
+     * @return the relative path of the file
+     */
+    public @NotNull String getRelativePath() {
+        return relativePath;
+    }
+
+    /**
+     * Returns whether the file is a directory.
+     * @return whether the file is a directory
+     */
+    public boolean isDirectory() {
+        return isDirectory;
+    }
+
+    /**
+     * Returns the size of the file.
+     * @return the size of the file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the last modification time of the file.
+     * @return the last modification time in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+}
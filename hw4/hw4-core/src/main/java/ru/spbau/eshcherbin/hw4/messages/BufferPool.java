@@ -0,0 +1,156 @@
+package ru.spbau.eshcherbin.hw4.messages;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of direct byte buffers.
+ * Buffers are grouped into size classes that are powers of two; a lease is served by the smallest class
+ * that fits. Requests larger than the largest class are served with unpooled heap buffers.
+ * Every class keeps a bounded number of released buffers, the rest are left to the garbage collector.
+ */
+public class BufferPool {
+    private static final int DEFAULT_MIN_BUFFER_SIZE = 512;
+    private static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final long DEFAULT_MAX_POOLED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+    private static final @NotNull BufferPool defaultPool = new BufferPool(
+            DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_POOLED_BYTES_PER_CLASS);
+
+    private final int minBufferSizeShift;
+    private final int maxBufferSize;
+    private final @NotNull SizeClass[] sizeClasses;
+    private final @NotNull AtomicLong hits = new AtomicLong();
+    private final @NotNull AtomicLong misses = new AtomicLong();
+    private final @NotNull AtomicLong unpooledLeases = new AtomicLong();
+
+    /**
+     * Creates a pool.
+     * @param minBufferSize the size of the smallest class, rounded up to a power of two
+     * @param maxBufferSize the size of the largest class, rounded up to a power of two
+     * @param maxPooledBytesPerClass the maximum total size of the idle buffers kept by each class
+     */
+    public BufferPool(int minBufferSize, int maxBufferSize, long maxPooledBytesPerClass) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize || maxBufferSize > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid buffer sizes");
+        }
+        minBufferSizeShift = ceilLog2(minBufferSize);
+        int maxBufferSizeShift = ceilLog2(maxBufferSize);
+        this.maxBufferSize = 1 << maxBufferSizeShift;
+        sizeClasses = new SizeClass[maxBufferSizeShift - minBufferSizeShift + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            int bufferSize = 1 << (minBufferSizeShift + i);
+            sizeClasses[i] = new SizeClass(bufferSize, (int) Math.max(1, maxPooledBytesPerClass / bufferSize));
+        }
+    }
+
+    /**
+     * Returns the pool shared by the message readers and writers.
+     * @return the default pool
+     */
+    public static @NotNull BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Leases a buffer. The buffer should be given back with {@link #release(ByteBuffer)} when no longer needed.
+     * @param size the required size
+     * @return a cleared buffer with position 0 and limit <tt>size</tt>
+     */
+    public @NotNull ByteBuffer lease(int size) {
+        if (size > maxBufferSize) {
+            unpooledLeases.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        SizeClass sizeClass = sizeClasses[classIndex(size)];
+        ByteBuffer buffer = sizeClass.buffers.poll();
+        if (buffer != null) {
+            sizeClass.buffersNumber.decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sizeClass.bufferSize);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a leased buffer back to the pool. The buffer must not be used afterwards.
+     * @param buffer the buffer
+     */
+    public void release(@NotNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > maxBufferSize || Integer.bitCount(capacity) != 1
+                || capacity < (1 << minBufferSizeShift)) {
+            return;
+        }
+        SizeClass sizeClass = sizeClasses[classIndex(capacity)];
+        if (sizeClass.buffersNumber.incrementAndGet() > sizeClass.maxBuffersNumber) {
+            sizeClass.buffersNumber.decrementAndGet();
+            return;
+        }
+        sizeClass.buffers.add(buffer);
+    }
+
+    /**
+     * Returns the number of leases served with a pooled buffer.
+     * @return the number of leases served with a pooled buffer
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of leases that required allocation of a new direct buffer.
+     * @return the number of leases that required allocation of a new direct buffer
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of leases that were too large for the pool and were served with heap buffers.
+     * @return the number of unpooled leases
+     */
+    public long getUnpooledLeases() {
+        return unpooledLeases.get();
+    }
+
+    /**
+     * Returns the total size of the idle buffers kept by the pool.
+     * @return the total size of the idle buffers in bytes
+     */
+    public long getPooledBytes() {
+        long result = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            result += (long) sizeClass.buffersNumber.get() * sizeClass.bufferSize;
+        }
+        return result;
+    }
+
+    private int classIndex(int size) {
+        return Math.max(0, ceilLog2(size) - minBufferSizeShift);
+    }
+
+    private static int ceilLog2(int value) {
+        return value <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+
+    private static class SizeClass {
+        private final int bufferSize;
+        private final int maxBuffersNumber;
+        private final @NotNull Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final @NotNull AtomicInteger buffersNumber = new AtomicInteger();
+
+        private SizeClass(int bufferSize, int maxBuffersNumber) {
+            this.bufferSize = bufferSize;
+            this.maxBuffersNumber = maxBuffersNumber;
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package ru.spbau.eshcherbin.hw4.messages;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
 
 /**
  * A unit of server-client communication.
+ * The content is a view over a byte buffer which may be leased from a {@link BufferPool};
+ * such a message should be released once its content is no longer needed.
  */
 public class Message {
     /**
@@ -12,16 +17,19 @@ public class Message {
     public static final int LENGTH_BYTES = 4;
 
     /**
-     * Content of the message.
+     * Content of the message, from position 0 to the limit.
      */
-    protected final @NotNull byte[] data;
+    protected final @NotNull ByteBuffer buffer;
+
+    private final @Nullable BufferPool pool;
+    private boolean isReleased = false;
 
     /**
      * Creates an empty message of given length.
      * @param length length of the message
      */
     public Message(int length) {
-        data = new byte[length];
+        this(ByteBuffer.allocate(length), null);
     }
 
     /**
@@ -29,14 +37,82 @@ public class Message {
      * @param data the content of the message
      */
     public Message(@NotNull byte[] data) {
-        this.data = data;
+        this(ByteBuffer.wrap(data), null);
+    }
+
+    /**
+     * Creates a message that is a view of the buffer's content from position 0 to the limit.
+     * The buffer is not copied and must not be modified while the message is in use.
+     * @param buffer the content of the message
+     */
+    public Message(@NotNull ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    private Message(@NotNull ByteBuffer buffer, @Nullable BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * Creates an empty message of given length backed by a buffer leased from the pool.
+     * @param length length of the message
+     * @param pool the pool to lease the buffer from
+     * @return the message
+     */
+    public static @NotNull Message allocate(int length, @NotNull BufferPool pool) {
+        return new Message(pool.lease(length), pool);
+    }
+
+    /**
+     * Creates an empty message of given length backed by a buffer leased from the default pool.
+     * @param length length of the message
+     * @return the message
+     */
+    public static @NotNull Message allocate(int length) {
+        return allocate(length, BufferPool.getDefault());
+    }
+
+    /**
+     * Returns the length of the message.
+     * @return the length of the message
+     */
+    public int getLength() {
+        return buffer.limit();
+    }
+
+    /**
+     * Returns a view of the message's content, positioned at its start. The content is not copied.
+     * @return a view of the message's content
+     */
+    public @NotNull ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        return view;
     }
 
     /**
      * Returns the content of the message.
+     * The content is copied unless the message is backed by an array of the same length.
      * @return the content of the message
      */
     public @NotNull byte[] getData() {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.limit()) {
+            return buffer.array();
+        }
+        byte[] data = new byte[buffer.limit()];
+        ByteBuffer view = getBuffer();
+        view.get(data);
         return data;
     }
+
+    /**
+     * Gives the underlying buffer back to its pool, if any. The message must not be used afterwards.
+     */
+    public void release() {
+        if (pool != null && !isReleased) {
+            isReleased = true;
+            pool.release(buffer);
+        }
+    }
 }
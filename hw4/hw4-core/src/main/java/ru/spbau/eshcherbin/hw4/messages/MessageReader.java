@@ -10,28 +10,55 @@ import java.util.Optional;
 
 /**
  * Utility class that is used to read messages from a non-blocking channel.
+ * Messages are read into buffers leased from a {@link BufferPool} and should be released by the caller.
+ * The buffer of a message is allocated as soon as its length is read, so a reader of an untrusted peer
+ * should be limited to the longest legitimate message.
  */
 public class MessageReader {
-    private int length;
     private @NotNull ByteBuffer lengthBuffer = ByteBuffer.allocate(Message.LENGTH_BYTES);
-    private @Nullable ByteBuffer dataBuffer;
+    private @Nullable Message message;
     private @NotNull ReadableByteChannel channel;
+    private final @NotNull BufferPool pool;
+    private final int maxMessageLength;
     private boolean clientDisconnected = false;
 
     /**
-     * Constructs a message reader for a specific channel.
+     * Constructs a message reader for a specific channel that uses the default buffer pool.
      * The channel should be in a non-blocking mode.
      * @param channel the channel to read the messages from
      */
     public MessageReader(@NotNull ReadableByteChannel channel) {
-        dataBuffer = null;
+        this(channel, BufferPool.getDefault());
+    }
+
+    /**
+     * Constructs a message reader for a specific channel.
+     * The channel should be in a non-blocking mode.
+     * @param channel the channel to read the messages from
+     * @param pool the pool to lease message buffers from
+     */
+    public MessageReader(@NotNull ReadableByteChannel channel, @NotNull BufferPool pool) {
+        this(channel, pool, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a message reader for a specific channel that refuses the messages longer than the given length.
+     * The channel should be in a non-blocking mode.
+     * @param channel the channel to read the messages from
+     * @param pool the pool to lease message buffers from
+     * @param maxMessageLength the maximum length of a message
+     */
+    public MessageReader(@NotNull ReadableByteChannel channel, @NotNull BufferPool pool, int maxMessageLength) {
+        message = null;
         this.channel = channel;
+        this.pool = pool;
+        this.maxMessageLength = maxMessageLength;
     }
 
     /**
      * Starts or continues reading a message from the channel.
      * @return an empty optional if the message is not fully read yet or the newly read message otherwise
-     * @throws IOException if an I/O error occurs
+     * @throws IOException if an I/O error occurs or the message is longer than the maximum length
      */
     public @NotNull Optional<Message> read() throws IOException {
         if (lengthBuffer.hasRemaining()) {
@@ -44,23 +71,27 @@ public class MessageReader {
                 return Optional.empty();
             }
             lengthBuffer.flip();
-            length = lengthBuffer.getInt();
-            dataBuffer = ByteBuffer.allocate(length);
+            int length = lengthBuffer.getInt();
+            if (length < 0 || length > maxMessageLength) {
+                reset();
+                throw new IOException("Invalid message length " + length);
+            }
+            message = Message.allocate(length, pool);
         }
-        if (dataBuffer == null) { // should not happen
+        if (message == null) { // should not happen
             return Optional.empty();
         }
-        if (channel.read(dataBuffer) == -1) {
+        if (message.buffer.hasRemaining() && channel.read(message.buffer) == -1) {
             reset();
             clientDisconnected = true;
             return Optional.empty();
         }
-        if (dataBuffer.hasRemaining()) {
+        if (message.buffer.hasRemaining()) {
             return Optional.empty();
         }
-        Message result = new Message(length);
-        dataBuffer.flip();
-        dataBuffer.get(result.data);
+        Message result = message;
+        result.buffer.flip();
+        message = null;
         reset();
         return Optional.of(result);
     }
@@ -69,8 +100,26 @@ public class MessageReader {
         return clientDisconnected;
     }
 
+    /**
+     * Returns whether a message has been started but not completely read yet.
+     * @return whether a message is partially read
+     */
+    public boolean isReadingMessage() {
+        return lengthBuffer.position() > 0 || message != null;
+    }
+
+    /**
+     * Discards the partially read message, if any, and releases its buffer.
+     */
+    public void discard() {
+        reset();
+    }
+
     private void reset() {
         lengthBuffer.clear();
-        dataBuffer = null;
+        if (message != null) {
+            message.release();
+            message = null;
+        }
     }
 }
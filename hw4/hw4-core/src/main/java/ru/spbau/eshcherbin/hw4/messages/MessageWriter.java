@@ -5,15 +5,28 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 /**
  * Utility class that is used to write messages to a non-blocking channel.
+ * Several messages may be queued; their length blocks and contents are sent with a single vectored write
+ * when the channel supports it. The content of a message is written directly from its buffer;
+ * the writer releases the message once it has been completely written.
  */
 public class MessageWriter {
-    private @NotNull ByteBuffer lengthBuffer = ByteBuffer.allocate(Message.LENGTH_BYTES);
-    private @Nullable ByteBuffer dataBuffer;
+    private static final int MAX_GATHERED_MESSAGES = 16;
+    private final @NotNull ByteBuffer[] lengthBuffers = new ByteBuffer[MAX_GATHERED_MESSAGES];
+    private final @NotNull ByteBuffer[] outgoingBuffers = new ByteBuffer[2 * MAX_GATHERED_MESSAGES];
+    private final @NotNull Message[] outgoingMessages = new Message[MAX_GATHERED_MESSAGES];
+    private final @NotNull Queue<Message> queuedMessages = new ArrayDeque<>();
+    private int outgoingOffset = 0;
+    private int outgoingLength = 0;
+    private long bytesWritten = 0;
     private @NotNull WritableByteChannel channel;
+    private final @Nullable GatheringByteChannel gatheringChannel;
 
     /**
      * Constructs a message writer for a specific channel.
@@ -22,38 +35,109 @@ public class MessageWriter {
      */
     public MessageWriter(@NotNull WritableByteChannel channel) {
         this.channel = channel;
+        gatheringChannel = channel instanceof GatheringByteChannel ? (GatheringByteChannel) channel : null;
+        ByteBuffer lengthBlocks = ByteBuffer.allocateDirect(Message.LENGTH_BYTES * MAX_GATHERED_MESSAGES);
+        for (int i = 0; i < MAX_GATHERED_MESSAGES; i++) {
+            lengthBlocks.limit((i + 1) * Message.LENGTH_BYTES);
+            lengthBlocks.position(i * Message.LENGTH_BYTES);
+            lengthBuffers[i] = lengthBlocks.slice();
+        }
     }
 
     /**
-     * Starts writing a new message to the channel. No writing is performed until a <tt>write</tt> call.
+     * Queues a new message to be written to the channel after the previously queued ones.
+     * No writing is performed until a <tt>write</tt> call. The writer takes ownership of the message.
      * @param message the message to be written
      */
     public void startNewMessage(@NotNull Message message) {
-        lengthBuffer.clear();
-        lengthBuffer.putInt(message.data.length);
-        lengthBuffer.flip();
-        dataBuffer = ByteBuffer.allocate(message.data.length);
-        dataBuffer.put(message.data);
-        dataBuffer.flip();
+        queuedMessages.add(message);
     }
 
     /**
-     * Writes current message to the channel.
-     * @return true if current message has been completely written or no message is currently being written, <tt>false</tt> otherwise
+     * Writes queued messages to the channel.
+     * @return true if all the queued messages have been completely written, <tt>false</tt> otherwise
      * @throws IOException if an I/O Error occurs
      */
     public boolean write() throws IOException {
-        if (dataBuffer == null) {
-            return true;
-        }
-        channel.write(lengthBuffer);
-        if (!lengthBuffer.hasRemaining()) {
-            channel.write(dataBuffer);
-            if (!dataBuffer.hasRemaining()) {
-                dataBuffer = null;
+        while (true) {
+            if (outgoingOffset == outgoingLength && !prepareOutgoingBuffers()) {
                 return true;
             }
+            if (gatheringChannel != null) {
+                bytesWritten += gatheringChannel.write(outgoingBuffers, outgoingOffset,
+                        outgoingLength - outgoingOffset);
+            } else {
+                for (int i = outgoingOffset; i < outgoingLength; i++) {
+                    bytesWritten += channel.write(outgoingBuffers[i]);
+                    if (outgoingBuffers[i].hasRemaining()) {
+                        break;
+                    }
+                }
+            }
+            while (outgoingOffset < outgoingLength && !outgoingBuffers[outgoingOffset].hasRemaining()) {
+                if (outgoingOffset % 2 == 1) {
+                    int messageIndex = outgoingOffset / 2;
+                    outgoingMessages[messageIndex].release();
+                    outgoingMessages[messageIndex] = null;
+                }
+                outgoingBuffers[outgoingOffset] = null;
+                outgoingOffset++;
+            }
+            if (outgoingOffset < outgoingLength) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the total number of bytes written to the channel, including the length blocks.
+     * @return the number of bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Discards all the messages that have not been completely written yet and releases their buffers.
+     */
+    public void discard() {
+        for (int i = 0; i < MAX_GATHERED_MESSAGES; i++) {
+            if (outgoingMessages[i] != null) {
+                outgoingMessages[i].release();
+                outgoingMessages[i] = null;
+            }
+        }
+        for (int i = 0; i < outgoingBuffers.length; i++) {
+            outgoingBuffers[i] = null;
+        }
+        outgoingOffset = 0;
+        outgoingLength = 0;
+        Message message;
+        while ((message = queuedMessages.poll()) != null) {
+            message.release();
+        }
+    }
+
+    /**
+     * Takes the next batch of queued messages and sets up the buffers to be written.
+     * @return <tt>false</tt> if there are no queued messages, <tt>true</tt> otherwise
+     */
+    private boolean prepareOutgoingBuffers() {
+        outgoingOffset = 0;
+        outgoingLength = 0;
+        int messagesNumber = 0;
+        Message message;
+        while (messagesNumber < MAX_GATHERED_MESSAGES && (message = queuedMessages.poll()) != null) {
+            ByteBuffer dataBuffer = message.getBuffer();
+            ByteBuffer lengthBuffer = lengthBuffers[messagesNumber];
+            lengthBuffer.clear();
+            lengthBuffer.putInt(dataBuffer.remaining());
+            lengthBuffer.flip();
+            outgoingMessages[messagesNumber] = message;
+            outgoingBuffers[outgoingLength++] = lengthBuffer;
+            outgoingBuffers[outgoingLength++] = dataBuffer;
+            messagesNumber++;
         }
-        return false;
+        return messagesNumber > 0;
     }
 }
@@ -0,0 +1,579 @@
+package ru.spbau.eshcherbin.hw4.tls;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbau.eshcherbin.hw4.messages.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A channel that protects the data sent over a socket channel with TLS, driven by an {@link SSLEngine}.
+ * It works with the socket in both modes: in the non-blocking one, each operation does as much as the socket allows
+ * and returns, so the channel may be served by a selector loop, which should take into account that the channel
+ * may hold decrypted input the socket will not signal readiness for (see {@link #hasBufferedInput()})
+ * and encrypted output that is still to be written (see {@link #hasPendingOutput()}).
+ * The network and application buffers are direct buffers leased from a {@link BufferPool} only while they hold data,
+ * so an idle connection holds no buffers.
+ * The delegated tasks of the engine, which do the expensive cryptography of the handshake, are run by the given
+ * executor, so that they do not hold up the thread serving the channel; the channel does nothing
+ * until they are done (see {@link #isTaskRunning()}), and the task listener is notified then.
+ * Without an executor, the tasks are run in place.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final int MIN_NET_BUFFER_SIZE = 64 * 1024;
+    private static final @NotNull ByteBuffer[] NO_DATA = new ByteBuffer[] {ByteBuffer.allocate(0)};
+    private final @NotNull SocketChannel channel;
+    private final @NotNull SSLEngine engine;
+    private final @NotNull BufferPool pool;
+    private final @Nullable Executor taskExecutor;
+    private volatile @Nullable Runnable taskListener;
+    private volatile boolean isTaskRunning = false;
+    // the buffers hold data between their position and limit
+    private @Nullable ByteBuffer netIn;
+    private @Nullable ByteBuffer netOut;
+    private @Nullable ByteBuffer appIn;
+    private boolean isUnderflow = false;
+    private long handshakeStartMillis;
+    private boolean isHandshakeStarted = false;
+    private boolean isHandshakeComplete = false;
+    private boolean isInboundDone = false;
+    private boolean isClosed = false;
+
+    /**
+     * Creates a channel using the default buffer pool and running the delegated tasks in place.
+     * @param channel the connected socket channel
+     * @param engine the engine, set up for the client or the server mode
+     */
+    public TlsChannel(@NotNull SocketChannel channel, @NotNull SSLEngine engine) {
+        this(channel, engine, BufferPool.getDefault(), null);
+    }
+
+    /**
+     * Creates a channel.
+     * @param channel the connected socket channel
+     * @param engine the engine, set up for the client or the server mode
+     * @param pool the pool to lease the buffers from
+     * @param taskExecutor the executor to run the delegated tasks of the engine or <tt>null</tt> to run them in place
+     */
+    public TlsChannel(@NotNull SocketChannel channel, @NotNull SSLEngine engine, @NotNull BufferPool pool,
+                      @Nullable Executor taskExecutor) {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Sets the listener notified by the executor's thread once the delegated tasks are done.
+     * @param taskListener the listener
+     */
+    public void setTaskListener(@Nullable Runnable taskListener) {
+        this.taskListener = taskListener;
+    }
+
+    /**
+     * Advances the handshake as far as possible. A blocking channel completes the handshake in a single call.
+     * The messages of a flight are written to the socket together once the peer's reply is awaited,
+     * as writing them one by one delays the later ones until the peer acknowledges the earlier ones.
+     * @return whether the handshake is complete
+     * @throws IOException if an I/O error occurs, the handshake fails or the peer closes the connection
+     */
+    public boolean handshake() throws IOException {
+        ensureOpen();
+        if (!isHandshakeStarted) {
+            isHandshakeStarted = true;
+            handshakeStartMillis = System.currentTimeMillis();
+            engine.beginHandshake();
+        }
+        while (!isHandshakeComplete) {
+            if (isTaskRunning) {
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    if (netOut != null && netOut.capacity() - netOut.remaining()
+                            < engine.getSession().getPacketBufferSize() && !flush()) {
+                        return false;
+                    }
+                    wrap(NO_DATA, 0, 1);
+                    break;
+                case NEED_UNWRAP:
+                    if (!flush() || !unwrapToBuffer()) {
+                        return false;
+                    }
+                    break;
+                default:
+                    isHandshakeComplete = true;
+                    break;
+            }
+        }
+        return flush();
+    }
+
+    /**
+     * Returns whether the initial handshake is complete.
+     * @return whether the handshake is complete
+     */
+    public boolean isHandshakeComplete() {
+        return isHandshakeComplete;
+    }
+
+    /**
+     * Returns whether the handshake has resumed a session established by an earlier handshake,
+     * i.e. the session is older than the handshake. A session established within the same millisecond
+     * as the handshake started is not told from a new one.
+     * @return whether the session has been resumed
+     */
+    public boolean isSessionResumed() {
+        return isHandshakeComplete && engine.getSession().getCreationTime() < handshakeStartMillis;
+    }
+
+    /**
+     * Returns the session negotiated by the handshake.
+     * @return the session
+     */
+    public @NotNull SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Returns whether the delegated tasks of the engine are being run by the executor,
+     * in which case the channel makes no progress until the task listener is notified.
+     * @return whether the delegated tasks are running
+     */
+    public boolean isTaskRunning() {
+        return isTaskRunning;
+    }
+
+    /**
+     * Returns whether the channel holds input that may be read without the socket becoming readable:
+     * decrypted data, whole records not decrypted yet or the end of the stream.
+     * @return whether there is buffered input
+     */
+    public boolean hasBufferedInput() {
+        return appIn != null || (netIn != null && !isUnderflow) || isInboundDone;
+    }
+
+    /**
+     * Returns whether the channel holds encrypted data not written to the socket yet, which is written
+     * by the next operation or by {@link #flush()}.
+     * @return whether there is pending output
+     */
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    /**
+     * Writes the pending encrypted data to the socket.
+     * @return whether all the pending data has been written
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean flush() throws IOException {
+        while (netOut != null) {
+            int bytesWritten = channel.write(netOut);
+            if (!netOut.hasRemaining()) {
+                pool.release(netOut);
+                netOut = null;
+            } else if (bytesWritten == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read(@NotNull ByteBuffer dst) throws IOException {
+        ensureOpen();
+        while (true) {
+            if (appIn != null) {
+                return drainApplicationInput(dst);
+            }
+            if (isInboundDone) {
+                return -1;
+            }
+            if (!dst.hasRemaining() || isTaskRunning) {
+                return 0;
+            }
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(NO_DATA, 0, 1);
+                if (!flush()) {
+                    return 0;
+                }
+                continue;
+            }
+            if (netIn == null || isUnderflow) {
+                int bytesRead = readNetwork();
+                if (bytesRead == -1) {
+                    closeInbound();
+                    continue;
+                }
+                if (bytesRead == 0) {
+                    return 0;
+                }
+            }
+            int bytesProduced = unwrap(dst);
+            if (bytesProduced > 0) {
+                // the whole records received already are decrypted as long as they fit
+                int applicationSize = engine.getSession().getApplicationBufferSize();
+                while (netIn != null && !isUnderflow && !isInboundDone && dst.remaining() >= applicationSize) {
+                    int bytesDecrypted = unwrap(dst);
+                    if (bytesDecrypted <= 0) {
+                        break;
+                    }
+                    bytesProduced += bytesDecrypted;
+                }
+                return bytesProduced;
+            }
+        }
+    }
+
+    @Override
+    public int write(@NotNull ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    @Override
+    public long write(@NotNull ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts the data and writes it to the socket. The data is consumed as soon as it is encrypted,
+     * so a non-blocking channel may keep some of it as the pending output.
+     * @param srcs the buffers containing the data
+     * @param offset the index of the first buffer
+     * @param length the number of buffers
+     * @return the number of bytes consumed
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public long write(@NotNull ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ensureOpen();
+        long bytesConsumed = 0;
+        while (true) {
+            if (!flush() || isTaskRunning) {
+                return bytesConsumed;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(NO_DATA, 0, 1);
+                    break;
+                case NEED_UNWRAP:
+                    if (!unwrapToBuffer()) {
+                        return bytesConsumed;
+                    }
+                    break;
+                default:
+                    if (!hasRemaining(srcs, offset, length)) {
+                        return bytesConsumed;
+                    }
+                    bytesConsumed += wrap(srcs, offset, length);
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !isClosed && channel.isOpen();
+    }
+
+    /**
+     * Sends the closure alert, as far as the socket accepts it without blocking, closes the socket
+     * and gives back the buffers.
+     * @throws IOException if an I/O error occurs while closing the socket
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            engine.closeOutbound();
+            if (isHandshakeStarted && channel.isOpen()) {
+                wrap(NO_DATA, 0, 1);
+                flush();
+            }
+        } catch (IOException ignored) {
+            // the peer does not need the alert if the connection is broken
+        } finally {
+            channel.close();
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * Runs the delegated tasks of the engine with the executor or in place.
+     */
+    private void runDelegatedTasks() {
+        if (taskExecutor != null) {
+            isTaskRunning = true;
+            try {
+                taskExecutor.execute(() -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    isTaskRunning = false;
+                    Runnable listener = taskListener;
+                    if (listener != null) {
+                        listener.run();
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                isTaskRunning = false;
+            }
+        }
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Encrypts the data into the network output buffer, as many records as fit in it.
+     * @param srcs the buffers containing the data
+     * @param offset the index of the first buffer
+     * @param length the number of buffers
+     * @return the number of bytes consumed
+     * @throws IOException if the engine fails or has been closed
+     */
+    private long wrap(@NotNull ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int packetSize = engine.getSession().getPacketBufferSize();
+        ByteBuffer buffer = netOut == null ? leaseBuffer(Math.max(packetSize, MIN_NET_BUFFER_SIZE))
+                : netOut.compact();
+        long bytesConsumed = 0;
+        try {
+            while (buffer.remaining() >= packetSize) {
+                SSLEngineResult result = engine.wrap(srcs, offset, length, buffer);
+                bytesConsumed += result.bytesConsumed();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    if (result.bytesProduced() == 0 && hasRemaining(srcs, offset, length)) {
+                        throw new ClosedChannelException();
+                    }
+                    break;
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    break;
+                }
+                if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP
+                        && !hasRemaining(srcs, offset, length)) {
+                    break;
+                }
+            }
+        } finally {
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                netOut = buffer;
+            } else {
+                pool.release(buffer);
+                netOut = null;
+            }
+        }
+        return bytesConsumed;
+    }
+
+    /**
+     * Decrypts the next record from the network input buffer, straight into the destination if it is large enough
+     * to hold a whole record, or into the application input buffer otherwise.
+     * @param dst the destination buffer or <tt>null</tt> if the data should be buffered
+     * @return the number of bytes decrypted into the destination
+     * @throws IOException if the engine fails
+     */
+    private int unwrap(@Nullable ByteBuffer dst) throws IOException {
+        if (netIn == null) {
+            return 0;
+        }
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+        boolean isDirect = dst != null && dst.remaining() >= applicationSize;
+        ByteBuffer target;
+        if (isDirect) {
+            target = dst;
+        } else {
+            target = appIn == null ? leaseBuffer(applicationSize) : appIn.compact();
+            if (target.remaining() < applicationSize) {
+                // the buffered data has to be read first
+                target.flip();
+                return 0;
+            }
+        }
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, target);
+        } finally {
+            if (!netIn.hasRemaining()) {
+                pool.release(netIn);
+                netIn = null;
+            }
+            if (!isDirect) {
+                target.flip();
+                if (target.hasRemaining()) {
+                    appIn = target;
+                } else {
+                    pool.release(target);
+                    appIn = null;
+                }
+            }
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                isUnderflow = true;
+                return 0;
+            case BUFFER_OVERFLOW:
+                throw new SSLException("Record does not fit the application buffer");
+            case CLOSED:
+                isInboundDone = true;
+                return isDirect ? result.bytesProduced() : 0;
+            default:
+                return isDirect ? result.bytesProduced() : 0;
+        }
+    }
+
+    /**
+     * Reads the next record from the socket and decrypts it into the application input buffer,
+     * which is needed to advance the handshake.
+     * @return whether any progress has been made
+     * @throws IOException if an I/O error occurs or the peer has closed the connection
+     */
+    private boolean unwrapToBuffer() throws IOException {
+        if (netIn == null || isUnderflow) {
+            int bytesRead = readNetwork();
+            if (bytesRead == -1) {
+                throw new EOFException("Connection closed by the peer during the TLS handshake");
+            }
+            if (bytesRead == 0) {
+                return false;
+            }
+        }
+        unwrap(null);
+        return true;
+    }
+
+    /**
+     * Reads the encrypted data from the socket into the network input buffer.
+     * @return the number of bytes read or <tt>-1</tt> if the peer has closed the connection
+     * @throws IOException if an I/O error occurs
+     */
+    private int readNetwork() throws IOException {
+        int bufferSize = Math.max(engine.getSession().getPacketBufferSize(), MIN_NET_BUFFER_SIZE);
+        ByteBuffer buffer;
+        if (netIn == null) {
+            buffer = leaseBuffer(bufferSize);
+        } else if (netIn.capacity() < bufferSize) {
+            buffer = leaseBuffer(bufferSize);
+            buffer.put(netIn);
+            pool.release(netIn);
+        } else {
+            buffer = netIn.compact();
+        }
+        int bytesRead;
+        try {
+            bytesRead = channel.read(buffer);
+        } finally {
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                netIn = buffer;
+            } else {
+                pool.release(buffer);
+                netIn = null;
+            }
+        }
+        if (bytesRead > 0) {
+            isUnderflow = false;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Handles the end of the stream, which the peer should have preceded with the closure alert.
+     * A connection cut without the alert is treated as closed as well, since the messages sent over it
+     * carry their lengths and a truncated message is detected anyway.
+     */
+    private void closeInbound() {
+        isInboundDone = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException ignored) {
+            // the peer has not sent the closure alert
+        }
+    }
+
+    private int drainApplicationInput(@NotNull ByteBuffer dst) {
+        if (appIn == null) {
+            return 0;
+        }
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        dst.put(appIn);
+        appIn.limit(limit);
+        if (!appIn.hasRemaining()) {
+            pool.release(appIn);
+            appIn = null;
+        }
+        return count;
+    }
+
+    private @NotNull ByteBuffer leaseBuffer(int size) {
+        ByteBuffer buffer = pool.lease(size);
+        buffer.limit(buffer.capacity());
+        return buffer;
+    }
+
+    private void releaseBuffers() {
+        if (netIn != null) {
+            pool.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            pool.release(netOut);
+            netOut = null;
+        }
+        if (appIn != null) {
+            pool.release(appIn);
+            appIn = null;
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (isClosed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static boolean hasRemaining(@NotNull ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,93 @@
+package ru.spbau.eshcherbin.hw4.chunks;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ContentChunkerTest {
+    private static final @NotNull Random random = new Random();
+
+    @Test
+    public void chunkSizesTest() throws Exception {
+        final byte[] content = new byte[5 * 1024 * 1024 + 77];
+        random.nextBytes(content);
+        final List<byte[]> hashes = new ArrayList<>();
+        final List<Integer> sizes = chunk(content, hashes);
+        long offset = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            final int size = sizes.get(i);
+            assertThat(size <= ContentChunker.MAX_CHUNK_SIZE, is(true));
+            assertThat(size >= ContentChunker.MIN_CHUNK_SIZE || i == sizes.size() - 1, is(true));
+            assertThat(hashes.get(i), is(MessageDigest.getInstance("SHA-256")
+                    .digest(Arrays.copyOfRange(content, (int) offset, (int) offset + size))));
+            offset += size;
+        }
+        assertThat(offset, is((long) content.length));
+        final double averageSize = (double) content.length / sizes.size();
+        assertThat(averageSize > ContentChunker.AVERAGE_CHUNK_SIZE / 2, is(true));
+        assertThat(averageSize < ContentChunker.AVERAGE_CHUNK_SIZE * 2, is(true));
+    }
+
+    @Test
+    public void insertionTest() throws Exception {
+        final byte[] content = new byte[2 * 1024 * 1024];
+        random.nextBytes(content);
+        final byte[] inserted = new byte[10];
+        random.nextBytes(inserted);
+        final byte[] changed = new byte[content.length + inserted.length];
+        System.arraycopy(content, 0, changed, 0, 1000000);
+        System.arraycopy(inserted, 0, changed, 1000000, inserted.length);
+        System.arraycopy(content, 1000000, changed, 1000000 + inserted.length, content.length - 1000000);
+
+        final List<byte[]> hashes = new ArrayList<>();
+        chunk(content, hashes);
+        final Set<String> known = new HashSet<>();
+        for (byte[] hash : hashes) {
+            known.add(Arrays.toString(hash));
+        }
+        final List<byte[]> changedHashes = new ArrayList<>();
+        final List<Integer> changedSizes = chunk(changed, changedHashes);
+        long newBytes = 0;
+        for (int i = 0; i < changedHashes.size(); i++) {
+            if (!known.contains(Arrays.toString(changedHashes.get(i)))) {
+                newBytes += changedSizes.get(i);
+            }
+        }
+        // only the chunks around the insertion change
+        assertThat(newBytes <= 2 * ContentChunker.MAX_CHUNK_SIZE, is(true));
+    }
+
+    @Test
+    public void emptyContentTest() throws Exception {
+        assertThat(chunk(new byte[0], new ArrayList<>()).isEmpty(), is(true));
+    }
+
+    private static @NotNull List<Integer> chunk(@NotNull byte[] content, @NotNull List<byte[]> hashes)
+            throws Exception {
+        final ContentChunker chunker = new ContentChunker(Channels.newChannel(new ByteArrayInputStream(content)));
+        final List<Integer> sizes = new ArrayList<>();
+        while (true) {
+            final byte[] hash = new byte[ContentChunker.HASH_LENGTH];
+            final int size = chunker.nextChunk(hash, 0);
+            if (size == -1) {
+                break;
+            }
+            sizes.add(size);
+            hashes.add(hash);
+        }
+        assertThat(chunker.getContentLength(), is((long) content.length));
+        return sizes;
+    }
+}
@@ -0,0 +1,120 @@
+package ru.spbau.eshcherbin.hw4.delta;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaOperation;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaQuery;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class DeltaTest {
+    private static final @NotNull Random random = new Random();
+
+    public final @Rule TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void rollingChecksumTest() throws Exception {
+        final byte[] data = new byte[5000];
+        random.nextBytes(data);
+        final RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, 0, 1024);
+        for (int offset = 1; offset + 1024 <= data.length; offset++) {
+            checksum.roll(data[offset - 1], data[offset + 1023]);
+            assertThat(checksum.getValue(), is(RollingChecksum.of(data, offset, 1024)));
+        }
+    }
+
+    @Test
+    public void blockSizeTest() throws Exception {
+        assertThat(BlockSignatures.chooseBlockSize(0), is(1024));
+        assertThat(BlockSignatures.chooseBlockSize(1L << 30), is(32 * 1024));
+        for (long fileSize : new long[] {1L << 37, (1L << 40) + 1, Long.MAX_VALUE / 2}) {
+            final int blockSize = BlockSignatures.chooseBlockSize(fileSize);
+            assertThat(fileSize / blockSize <= BlockSignatures.MAX_BLOCKS_NUMBER || blockSize == 1 << 30, is(true));
+        }
+        assertThat(BlockSignatures.chooseBlockSize((1L << 40) + 1), is(1024 * 1024));
+    }
+
+    @Test
+    public void changedFileTest() throws Exception {
+        final byte[] copy = new byte[3 * 1024 * 1024 + 123];
+        random.nextBytes(copy);
+        final byte[] inserted = new byte[777];
+        random.nextBytes(inserted);
+        final byte[] current = new byte[copy.length + inserted.length - 5000];
+        // an insertion near the start, a deletion in the middle and a modification near the end
+        System.arraycopy(copy, 0, current, 0, 100000);
+        System.arraycopy(inserted, 0, current, 100000, inserted.length);
+        System.arraycopy(copy, 100000, current, 100000 + inserted.length, 1500000 - 100000);
+        System.arraycopy(copy, 1505000, current, 1500000 + inserted.length, copy.length - 1505000);
+        current[current.length - 300000] ^= 1;
+
+        final int blockSize = BlockSignatures.chooseBlockSize(copy.length);
+        final long literalBytes = transferDelta(copy, current, blockSize);
+        assertThat(literalBytes < inserted.length + 4L * blockSize, is(true));
+    }
+
+    @Test
+    public void sameFileTest() throws Exception {
+        final byte[] content = new byte[1024 * 1024];
+        random.nextBytes(content);
+        assertThat(transferDelta(content, content, 4096), is(0L));
+    }
+
+    @Test
+    public void unrelatedFileTest() throws Exception {
+        final byte[] copy = new byte[200000];
+        random.nextBytes(copy);
+        final byte[] current = new byte[300000];
+        random.nextBytes(current);
+        assertThat(transferDelta(copy, current, 2048), is((long) current.length));
+        assertThat(transferDelta(new byte[0], current, 2048), is((long) current.length));
+        assertThat(transferDelta(copy, new byte[0], 2048), is(0L));
+    }
+
+    /**
+     * Signs the copy, encodes the current content against it, reconstructs the content from the copy
+     * and checks that it matches.
+     * @return the number of bytes sent as literals
+     */
+    private long transferDelta(@NotNull byte[] copy, @NotNull byte[] current, int blockSize) throws Exception {
+        final Path copyPath = temporaryFolder.newFile().toPath();
+        Files.write(copyPath, copy);
+        final Path currentPath = temporaryFolder.newFile().toPath();
+        Files.write(currentPath, current);
+        final Path targetPath = temporaryFolder.newFile().toPath();
+        final long literalBytes;
+        try (FileChannel copyChannel = FileChannel.open(copyPath, StandardOpenOption.READ);
+             FileChannel currentChannel = FileChannel.open(currentPath, StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(targetPath, StandardOpenOption.WRITE)) {
+            final FtpDeltaQuery query = BlockSignatures.sign("file", copyChannel, blockSize);
+            assertThat(query.getBlocksNumber(), is(copy.length / blockSize));
+            final DeltaEncoder encoder = new DeltaEncoder(currentChannel, query);
+            final DeltaReconstructor reconstructor = new DeltaReconstructor(copyChannel, blockSize, targetChannel);
+            while (!encoder.isFinished()) {
+                final ArrayList<FtpDeltaOperation> operations = encoder.encodeNext(64 * 1024);
+                for (FtpDeltaOperation operation : operations) {
+                    reconstructor.apply(operation);
+                }
+            }
+            assertThat(encoder.getContentLength(), is((long) current.length));
+            assertThat(encoder.getContentHash(), is(MessageDigest.getInstance("SHA-256").digest(current)));
+            assertThat(reconstructor.getContentHash(), is(encoder.getContentHash()));
+            assertThat(reconstructor.getLiteralBytes(), is(encoder.getLiteralBytes()));
+            literalBytes = encoder.getLiteralBytes();
+        }
+        assertThat(Files.readAllBytes(targetPath), is(current));
+        return literalBytes;
+    }
+}
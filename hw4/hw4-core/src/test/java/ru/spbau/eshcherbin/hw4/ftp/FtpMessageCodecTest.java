@@ -0,0 +1,448 @@
+package ru.spbau.eshcherbin.hw4.ftp;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class FtpMessageCodecTest {
+    private static final @NotNull Random random = new Random();
+
+    @Test
+    public void queryTest() throws Exception {
+        final FtpQuery query = new FtpQuery(FtpQueryType.GET, "/tmp/\u0444\u0430\u0439\u043b.txt");
+        final ByteBuffer buffer = ByteBuffer.allocate(FtpMessageCodec.encodedSize(query));
+        FtpMessageCodec.encode(query, buffer);
+        assertThat(buffer.hasRemaining(), is(false));
+        buffer.flip();
+        assertThat(FtpMessageCodec.getProtocolVersion(buffer), is(FtpMessageCodec.PROTOCOL_VERSION));
+        final FtpQuery decodedQuery = FtpMessageCodec.decode(buffer, FtpQuery.class);
+        assertThat(decodedQuery.getType(), is(FtpQueryType.GET));
+        assertThat(decodedQuery.getPath(), is("/tmp/\u0444\u0430\u0439\u043b.txt"));
+    }
+
+    @Test
+    public void unpairedSurrogateTest() throws Exception {
+        final String path = "a\uD800b";
+        final FtpQuery query = new FtpQuery(FtpQueryType.GET, path, 123, 456, 789);
+        final ByteBuffer buffer = ByteBuffer.allocate(FtpMessageCodec.encodedSize(query));
+        FtpMessageCodec.encode(query, buffer);
+        assertThat(buffer.hasRemaining(), is(false));
+        buffer.flip();
+        final FtpQuery decodedQuery = FtpMessageCodec.decode(buffer, FtpQuery.class);
+        assertThat(decodedQuery.getPath(), is(new String(path.getBytes(StandardCharsets.UTF_8),
+                StandardCharsets.UTF_8)));
+        assertThat(decodedQuery.getPath(), is("a?b"));
+        assertThat(decodedQuery.getOffset(), is(123L));
+        assertThat(decodedQuery.getLength(), is(456L));
+        assertThat(decodedQuery.getIfRangeVersionToken(), is(789L));
+
+        final FtpBatchQuery batchQuery = (FtpBatchQuery) FtpMessageCodec.decode(ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpBatchQuery(FtpQueryType.GET_BATCH,
+                        Arrays.asList("\uDC00", "x\uD800", "\uD83D\uDE00"))).getData()), FtpQuery.class);
+        assertThat(batchQuery.getPaths(), is(Arrays.asList("?", "x?", "\uD83D\uDE00")));
+    }
+
+    @Test
+    public void batchQueryTest() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpBatchQuery(FtpQueryType.GET_BATCH, Arrays.asList("file1", "dir/file2", ""))
+        ).getData());
+        final FtpQuery query = FtpMessageCodec.decode(buffer, FtpQuery.class);
+        assertThat(query.getType(), is(FtpQueryType.GET_BATCH));
+        assertThat(((FtpBatchQuery) query).getPaths(), is(Arrays.asList("file1", "dir/file2", "")));
+    }
+
+    @Test
+    public void listResponseTest() throws Exception {
+        final ArrayList<FtpListResponseItem> items = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            items.add(new FtpListResponseItem("file" + i, i % 3 == 0));
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(new FtpListResponse(items)).getData());
+        final FtpListResponse response = FtpMessageCodec.decode(buffer, FtpListResponse.class);
+        assertThat(response.getResponseItems().size(), is(300));
+        for (int i = 0; i < 300; i++) {
+            assertThat(response.getResponseItems().get(i).getFileName(), is("file" + i));
+            assertThat(response.getResponseItems().get(i).isDirectory(), is(i % 3 == 0));
+        }
+    }
+
+    @Test
+    public void listItemMetadataTest() throws Exception {
+        final byte[] contentHash = new byte[32];
+        contentHash[0] = 42;
+        final ArrayList<FtpListResponseItem> items = new ArrayList<>();
+        items.add(new FtpListResponseItem("file", false, 5L * 1024 * 1024 * 1024, 1500000000000L, contentHash));
+        items.add(new FtpListResponseItem("folder", true));
+        final FtpListResponse response = FtpMessageCodec.decode(ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpListResponse(items)).getData()
+        ), FtpListResponse.class);
+        final FtpListResponseItem file = response.getResponseItems().get(0);
+        assertThat(file.getSize(), is(5L * 1024 * 1024 * 1024));
+        assertThat(file.getLastModified(), is(1500000000000L));
+        assertThat(file.getContentHash(), is(contentHash));
+        assertThat(response.getResponseItems().get(1).getContentHash() == null, is(true));
+
+        final FtpListResponse previousVersionResponse = FtpMessageCodec.decode(ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpListResponse(items), 3).getData()
+        ), FtpListResponse.class);
+        final FtpListResponseItem previousVersionFile = previousVersionResponse.getResponseItems().get(0);
+        assertThat(previousVersionFile.getFileName(), is("file"));
+        assertThat(previousVersionFile.getSize(), is(0L));
+        assertThat(previousVersionFile.getContentHash() == null, is(true));
+    }
+
+    @Test
+    public void listChunkTest() throws Exception {
+        final ArrayList<FtpListResponseItem> items = new ArrayList<>();
+        items.add(new FtpListResponseItem("file", false));
+        items.add(new FtpListResponseItem("folder", true));
+        final ByteBuffer buffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(new FtpListChunk(items, true)).getData());
+        final FtpListChunk chunk = FtpMessageCodec.decode(buffer, FtpListChunk.class);
+        assertThat(chunk.isLast(), is(true));
+        assertThat(chunk.getItems().size(), is(2));
+        assertThat(chunk.getItems().get(1).getFileName(), is("folder"));
+        assertThat(chunk.getItems().get(1).isDirectory(), is(true));
+        final ByteBuffer emptyBuffer = ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpListChunk(new ArrayList<>(), false)).getData()
+        );
+        final FtpListChunk emptyChunk = FtpMessageCodec.decode(emptyBuffer, FtpListChunk.class);
+        assertThat(emptyChunk.isLast(), is(false));
+        assertThat(emptyChunk.getItems().isEmpty(), is(true));
+    }
+
+    @Test
+    public void treeChunkTest() throws Exception {
+        final ArrayList<FtpTreeItem> items = new ArrayList<>();
+        items.add(new FtpTreeItem("folder", true, 4096, 1500000000000L));
+        items.add(new FtpTreeItem("folder/file", false, 5L * 1024 * 1024 * 1024, -1000L));
+        final ByteBuffer buffer = ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpTreeChunk(items, true, true)).getData()
+        );
+        final FtpTreeChunk chunk = FtpMessageCodec.decode(buffer, FtpTreeChunk.class);
+        assertThat(chunk.isLast(), is(true));
+        assertThat(chunk.isTruncated(), is(true));
+        assertThat(chunk.getItems().size(), is(2));
+        assertThat(chunk.getItems().get(0).isDirectory(), is(true));
+        assertThat(chunk.getItems().get(0).getLastModified(), is(1500000000000L));
+        assertThat(chunk.getItems().get(1).getRelativePath(), is("folder/file"));
+        assertThat(chunk.getItems().get(1).getSize(), is(5L * 1024 * 1024 * 1024));
+        assertThat(chunk.getItems().get(1).getLastModified(), is(-1000L));
+    }
+
+    @Test
+    public void getResponseTest() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpGetResponse(5L * 1024 * 1024 * 1024)).getData()
+        );
+        assertThat(FtpMessageCodec.decode(buffer, FtpGetResponse.class).getFileSize(), is(5L * 1024 * 1024 * 1024));
+        final ByteBuffer notFoundBuffer = ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(FtpGetResponse.notFoundResponse()).getData()
+        );
+        assertThat(FtpMessageCodec.decode(notFoundBuffer, FtpGetResponse.class).isFound(), is(false));
+    }
+
+    @Test
+    public void rangedQueryTest() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpQuery(FtpQueryType.GET, "file", 5L * 1024 * 1024 * 1024, 1024)).getData()
+        );
+        final FtpQuery query = FtpMessageCodec.decode(buffer, FtpQuery.class);
+        assertThat(query.getOffset(), is(5L * 1024 * 1024 * 1024));
+        assertThat(query.getLength(), is(1024L));
+        assertThat(query.getContentLength(5L * 1024 * 1024 * 1024 + 100), is(100L));
+        assertThat(new FtpQuery(FtpQueryType.GET, "file").getContentLength(100), is(100L));
+    }
+
+    @Test
+    public void conditionalRangeTest() throws Exception {
+        final long versionToken = FtpGetResponse.versionToken(1024, 1500000000000L);
+        final ByteBuffer queryBuffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpQuery(FtpQueryType.GET, "file", 100, FtpQuery.TO_END_OF_FILE, versionToken)
+        ).getData());
+        final FtpQuery query = FtpMessageCodec.decode(queryBuffer, FtpQuery.class);
+        assertThat(query.getIfRangeVersionToken(), is(versionToken));
+        assertThat(query.isRangeApplicable(versionToken), is(true));
+        assertThat(query.isRangeApplicable(FtpGetResponse.versionToken(1024, 1500000000001L)), is(false));
+
+        final ByteBuffer responseBuffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpGetResponse(1024, versionToken, 100, 924)
+        ).getData());
+        final FtpGetResponse response = FtpMessageCodec.decode(responseBuffer, FtpGetResponse.class);
+        assertThat(response.getVersionToken(), is(versionToken));
+        assertThat(response.getOffset(), is(100L));
+        assertThat(response.getContentLength(), is(924L));
+
+        final ByteBuffer previousVersionBuffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpGetResponse(1024, versionToken, 0, 1024), 2
+        ).getData());
+        final FtpGetResponse previousVersionResponse =
+                FtpMessageCodec.decode(previousVersionBuffer, FtpGetResponse.class);
+        assertThat(previousVersionResponse.getVersionToken(), is(FtpGetResponse.UNKNOWN_VERSION));
+        assertThat(previousVersionResponse.getContentLength(), is(1024L));
+    }
+
+    @Test
+    public void previousVersionQueryTest() throws Exception {
+        final FtpQuery query = new FtpQuery(FtpQueryType.LIST, "dir");
+        final ByteBuffer buffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(query, 1).getData());
+        assertThat(FtpMessageCodec.getProtocolVersion(buffer), is(1));
+        final FtpQuery decodedQuery = FtpMessageCodec.decode(buffer, FtpQuery.class);
+        assertThat(decodedQuery.getPath(), is("dir"));
+        assertThat(decodedQuery.isRanged(), is(false));
+    }
+
+    @Test
+    public void pingTest() throws Exception {
+        final ByteBuffer queryBuffer = ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(new FtpQuery(FtpQueryType.PING, "")).getData()
+        );
+        assertThat(FtpMessageCodec.decode(queryBuffer, FtpQuery.class).getType(), is(FtpQueryType.PING));
+        final ByteBuffer responseBuffer = ByteBuffer.wrap(
+                FtpMessageCodec.toMessage(FtpPingResponse.getInstance()).getData()
+        );
+        assertThat(responseBuffer.remaining(), is(2));
+        assertThat(FtpMessageCodec.decode(responseBuffer, FtpPingResponse.class), is(FtpPingResponse.getInstance()));
+    }
+
+    @Test
+    public void compressedMessageTest() throws Exception {
+        final ArrayList<FtpListResponseItem> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(new FtpListResponseItem("file" + i, false, i, 1500000000000L, null));
+        }
+        final FtpListResponse listResponse = new FtpListResponse(items);
+        final byte[] compressed = FtpMessageCodec.toMessage(listResponse, FtpMessageCodec.PROTOCOL_VERSION,
+                FtpCompression.DEFLATE).getData();
+        assertThat(compressed.length < FtpMessageCodec.encodedSize(listResponse) / 2, is(true));
+        final FtpListResponse response = FtpMessageCodec.decode(ByteBuffer.wrap(compressed), FtpListResponse.class);
+        assertThat(response.getResponseItems().size(), is(1000));
+        assertThat(response.getResponseItems().get(999).getFileName(), is("file999"));
+        assertThat(response.getResponseItems().get(999).getSize(), is(999L));
+
+        final FtpGetResponse getResponse = new FtpGetResponse(100000, 1, 0, 100000, FtpCompression.DEFLATE_FAST);
+        final byte[] small = FtpMessageCodec.toMessage(getResponse, FtpMessageCodec.PROTOCOL_VERSION,
+                FtpCompression.DEFLATE).getData();
+        assertThat(small.length, is(FtpMessageCodec.encodedSize(getResponse)));
+        assertThat(FtpMessageCodec.decode(ByteBuffer.wrap(small), FtpGetResponse.class).getCompression(),
+                is(FtpCompression.DEFLATE_FAST));
+    }
+
+    @Test
+    public void compressionNegotiationTest() throws Exception {
+        assertThat(FtpCompression.negotiate(Arrays.asList("lz4", "deflate-fast", "deflate")),
+                is(FtpCompression.DEFLATE_FAST));
+        assertThat(FtpCompression.negotiate(Arrays.asList("lz4", "")), is(FtpCompression.NONE));
+        final ByteBuffer buffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpCompressionResponse(FtpCompression.DEFLATE)).getData());
+        assertThat(FtpMessageCodec.decode(buffer, FtpCompressionResponse.class).getCompression(),
+                is(FtpCompression.DEFLATE));
+    }
+
+    @Test(expected = FtpProtocolException.class)
+    public void corruptedCompressedMessageTest() throws Exception {
+        final ArrayList<FtpListResponseItem> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(new FtpListResponseItem("file" + i, false));
+        }
+        final byte[] compressed = FtpMessageCodec.toMessage(new FtpListResponse(items),
+                FtpMessageCodec.PROTOCOL_VERSION, FtpCompression.DEFLATE).getData();
+        FtpMessageCodec.decode(ByteBuffer.wrap(Arrays.copyOf(compressed, compressed.length / 2)));
+    }
+
+    @Test(expected = FtpProtocolException.class)
+    public void compressedQueryTest() throws Exception {
+        final char[] path = new char[4096];
+        Arrays.fill(path, 'a');
+        final byte[] compressed = FtpMessageCodec.toMessage(new FtpQuery(FtpQueryType.LIST, new String(path)),
+                FtpMessageCodec.PROTOCOL_VERSION, FtpCompression.DEFLATE).getData();
+        assertThat(compressed.length < path.length / 2, is(true));
+        FtpMessageCodec.decode(ByteBuffer.wrap(compressed), FtpQuery.class);
+    }
+
+    @Test(expected = FtpProtocolException.class)
+    public void compressedMessageLongerThanDeclaredTest() throws Exception {
+        final byte[] encoded = FtpMessageCodec.toMessage(new FtpListResponse(new ArrayList<>()),
+                FtpMessageCodec.PROTOCOL_VERSION).getData();
+        final Deflater deflater = new Deflater();
+        deflater.setInput(encoded);
+        deflater.finish();
+        final byte[] deflated = new byte[64];
+        final int deflatedSize = deflater.deflate(deflated);
+        deflater.end();
+        // a few bytes declaring a message of almost 64 MiB
+        final ByteBuffer buffer = ByteBuffer.allocate(8 + deflatedSize);
+        buffer.put(encoded[0]).put((byte) 9 /* compressed */).put((byte) FtpCompression.DEFLATE.ordinal());
+        buffer.put((byte) 0xFF).put((byte) 0xFF).put((byte) 0xFF).put((byte) 0x1F);
+        buffer.put(deflated, 0, deflatedSize);
+        buffer.flip();
+        FtpMessageCodec.decode(buffer);
+    }
+
+    @Test
+    public void deltaQueryTest() throws Exception {
+        final int[] weakChecksums = {1, -2, Integer.MAX_VALUE};
+        final byte[] strongHashes = new byte[3 * 16];
+        random.nextBytes(strongHashes);
+        final ByteBuffer buffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpDeltaQuery("dir/file", 4096, weakChecksums, strongHashes)).getData());
+        final FtpQuery query = FtpMessageCodec.decode(buffer, FtpQuery.class);
+        assertThat(query.getType(), is(FtpQueryType.GET_DELTA));
+        assertThat(query.getPath(), is("dir/file"));
+        final FtpDeltaQuery deltaQuery = (FtpDeltaQuery) query;
+        assertThat(deltaQuery.getBlockSize(), is(4096));
+        assertThat(deltaQuery.getWeakChecksums(), is(weakChecksums));
+        assertThat(deltaQuery.getStrongHashes(), is(strongHashes));
+        assertThat(deltaQuery.getStrongHashLength(), is(16));
+    }
+
+    @Test
+    public void deltaChunkTest() throws Exception {
+        final byte[] literal = new byte[300];
+        random.nextBytes(literal);
+        final ArrayList<FtpDeltaOperation> operations = new ArrayList<>();
+        operations.add(FtpDeltaOperation.copy(0, 10));
+        operations.add(FtpDeltaOperation.literal(literal));
+        operations.add(FtpDeltaOperation.copy(1000000, 1));
+        final byte[] contentHash = new byte[32];
+        random.nextBytes(contentHash);
+        final FtpDeltaChunk chunk = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpDeltaChunk(operations, true, 5000000000L, 42, contentHash)).getData()), FtpDeltaChunk.class);
+        assertThat(chunk.isLast(), is(true));
+        assertThat(chunk.getFileSize(), is(5000000000L));
+        assertThat(chunk.getVersionToken(), is(42L));
+        assertThat(chunk.getContentHash(), is(contentHash));
+        assertThat(chunk.getOperations().size(), is(3));
+        assertThat(chunk.getOperations().get(0).isLiteral(), is(false));
+        assertThat(chunk.getOperations().get(0).getBlocksNumber(), is(10));
+        assertThat(chunk.getOperations().get(1).getLiteral(), is(literal));
+        assertThat(chunk.getOperations().get(2).getFirstBlock(), is(1000000));
+
+        final FtpDeltaChunk notFound = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                FtpDeltaChunk.notFoundResponse()).getData()), FtpDeltaChunk.class);
+        assertThat(notFound.isLast(), is(true));
+        assertThat(notFound.isFound(), is(false));
+        final FtpDeltaChunk middle = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpDeltaChunk(operations)).getData()), FtpDeltaChunk.class);
+        assertThat(middle.isLast(), is(false));
+        assertThat(middle.getOperations().size(), is(3));
+    }
+
+    @Test
+    public void recipePartTest() throws Exception {
+        final int[] chunkSizes = {2048, 70000, 1};
+        final byte[] chunkHashes = new byte[3 * 32];
+        random.nextBytes(chunkHashes);
+        final FtpRecipePart part = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpRecipePart(chunkSizes, chunkHashes, true, 72049, 17)).getData()), FtpRecipePart.class);
+        assertThat(part.isLast(), is(true));
+        assertThat(part.isFound(), is(true));
+        assertThat(part.getChunkSizes(), is(chunkSizes));
+        assertThat(part.getChunkHashes(), is(chunkHashes));
+        assertThat(part.getHashLength(), is(32));
+        assertThat(part.getFileSize(), is(72049L));
+        assertThat(part.getVersionToken(), is(17L));
+
+        final FtpRecipePart middle = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpRecipePart(chunkSizes, chunkHashes)).getData()), FtpRecipePart.class);
+        assertThat(middle.isLast(), is(false));
+        assertThat(middle.getChunkSizes(), is(chunkSizes));
+        final FtpRecipePart notFound = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                FtpRecipePart.notFoundResponse()).getData()), FtpRecipePart.class);
+        assertThat(notFound.isLast(), is(true));
+        assertThat(notFound.isFound(), is(false));
+    }
+
+    @Test
+    public void conditionalGetTest() throws Exception {
+        final byte[] contentHash = new byte[32];
+        random.nextBytes(contentHash);
+        final FtpQuery query = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpConditionalGetQuery("dir/file", contentHash)).getData()), FtpQuery.class);
+        assertThat(query.getType(), is(FtpQueryType.GET_IF_HASH_DIFFERS));
+        assertThat(query.getPath(), is("dir/file"));
+        assertThat(query.isRanged(), is(false));
+        assertThat(((FtpConditionalGetQuery) query).getContentHash(), is(contentHash));
+
+        final FtpNotModifiedResponse response = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpNotModifiedResponse(123456, 789)).getData()), FtpNotModifiedResponse.class);
+        assertThat(response.getFileSize(), is(123456L));
+        assertThat(response.getVersionToken(), is(789L));
+    }
+
+    @Test
+    public void putTest() throws Exception {
+        final FtpQuery query = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpPutQuery("dir/file", 1L << 40)).getData()), FtpQuery.class);
+        assertThat(query.getType(), is(FtpQueryType.PUT));
+        assertThat(query.getPath(), is("dir/file"));
+        assertThat(((FtpPutQuery) query).getFileSize(), is(1L << 40));
+
+        final FtpPutResponse response = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                new FtpPutResponse(FtpPutStatus.STORED, 123456, 789)).getData()), FtpPutResponse.class);
+        assertThat(response.isStored(), is(true));
+        assertThat(response.getFileSize(), is(123456L));
+        assertThat(response.getVersionToken(), is(789L));
+
+        final FtpPutResponse rejectedResponse = FtpMessageCodec.decode(ByteBuffer.wrap(FtpMessageCodec.toMessage(
+                FtpPutResponse.rejectedResponse(FtpPutStatus.QUOTA_EXCEEDED)).getData()), FtpPutResponse.class);
+        assertThat(rejectedResponse.getStatus(), is(FtpPutStatus.QUOTA_EXCEEDED));
+        assertThat(rejectedResponse.isStored(), is(false));
+        assertThat(rejectedResponse.getFileSize(), is(-1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putPreviousVersionTest() throws Exception {
+        FtpMessageCodec.toMessage(new FtpPutQuery("file", 0), FtpMessageCodec.CONDITIONAL_GET_PROTOCOL_VERSION);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void conditionalGetPreviousVersionTest() throws Exception {
+        FtpMessageCodec.toMessage(new FtpNotModifiedResponse(0, 0), FtpMessageCodec.CHUNKED_PROTOCOL_VERSION);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunkedQueryPreviousVersionTest() throws Exception {
+        FtpMessageCodec.toMessage(new FtpQuery(FtpQueryType.GET_CHUNKED, "file"),
+                FtpMessageCodec.DELTA_PROTOCOL_VERSION);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deltaPreviousVersionTest() throws Exception {
+        FtpMessageCodec.toMessage(FtpDeltaChunk.notFoundResponse(), FtpMessageCodec.COMPRESSION_PROTOCOL_VERSION);
+    }
+
+    @Test
+    public void legacyMessageDetectionTest() throws Exception {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        final ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
+        objectStream.writeObject(new FtpQuery(FtpQueryType.LIST, "."));
+        objectStream.close();
+        final ByteBuffer buffer = ByteBuffer.wrap(byteStream.toByteArray());
+        assertThat(FtpMessageCodec.getProtocolVersion(buffer), is(FtpMessageCodec.LEGACY_PROTOCOL_VERSION));
+    }
+
+    @Test(expected = FtpProtocolException.class)
+    public void unsupportedVersionTest() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {(byte) (FtpMessageCodec.PROTOCOL_VERSION + 1), 1, 0, 0});
+        FtpMessageCodec.decode(buffer);
+    }
+
+    @Test(expected = FtpProtocolException.class)
+    public void truncatedMessageTest() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(FtpMessageCodec.toMessage(new FtpQuery(FtpQueryType.LIST, "abc")).getData());
+        buffer.limit(buffer.limit() - 1);
+        FtpMessageCodec.decode(buffer);
+    }
+}
@@ -0,0 +1,63 @@
+package ru.spbau.eshcherbin.hw4.messages;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class BufferPoolTest {
+    @Test
+    public void leaseTest() throws Exception {
+        final BufferPool pool = new BufferPool(512, 4096, 8192);
+        final ByteBuffer buffer = pool.lease(1000);
+        assertThat(buffer.isDirect(), is(true));
+        assertThat(buffer.capacity(), is(1024));
+        assertThat(buffer.position(), is(0));
+        assertThat(buffer.limit(), is(1000));
+        final ByteBuffer largeBuffer = pool.lease(5000);
+        assertThat(largeBuffer.isDirect(), is(false));
+        assertThat(largeBuffer.limit(), is(5000));
+        assertThat(pool.getMisses(), is(1L));
+        assertThat(pool.getUnpooledLeases(), is(1L));
+    }
+
+    @Test
+    public void reuseTest() throws Exception {
+        final BufferPool pool = new BufferPool(512, 4096, 8192);
+        final ByteBuffer buffer = pool.lease(100);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertThat(pool.getPooledBytes(), is(512L));
+        final ByteBuffer secondBuffer = pool.lease(200);
+        assertThat(secondBuffer == buffer, is(true));
+        assertThat(secondBuffer.position(), is(0));
+        assertThat(secondBuffer.limit(), is(200));
+        assertThat(pool.getHits(), is(1L));
+        assertThat(pool.getMisses(), is(1L));
+        assertThat(pool.getPooledBytes(), is(0L));
+    }
+
+    @Test
+    public void boundTest() throws Exception {
+        final BufferPool pool = new BufferPool(512, 4096, 4096);
+        final ByteBuffer buffer1 = pool.lease(4096);
+        final ByteBuffer buffer2 = pool.lease(4096);
+        pool.release(buffer1);
+        pool.release(buffer2);
+        assertThat(pool.getPooledBytes(), is(4096L));
+    }
+
+    @Test
+    public void messageTest() throws Exception {
+        final BufferPool pool = new BufferPool(512, 4096, 8192);
+        final Message message = Message.allocate(3, pool);
+        message.getBuffer().put(new byte[] {1, 2, 3});
+        assertThat(message.getLength(), is(3));
+        assertThat(message.getData(), is(new byte[] {1, 2, 3}));
+        message.release();
+        message.release();
+        assertThat(pool.getPooledBytes(), is(512L));
+    }
+}
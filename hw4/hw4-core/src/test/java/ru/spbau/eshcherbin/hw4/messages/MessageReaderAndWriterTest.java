@@ -5,8 +5,12 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Optional;
@@ -45,6 +49,21 @@ public class MessageReaderAndWriterTest {
         assertThat(secondMessageOptional.isPresent(), is(false));
     }
 
+    @Test(expected = IOException.class)
+    public void tooLongMessageReaderTest() throws Exception {
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(Message.LENGTH_BYTES + 100);
+        byteBuffer.putInt(Integer.MAX_VALUE);
+        byteBuffer.put(new byte[100]);
+        byteBuffer.flip();
+        final Path temporaryFilePath = temporaryFolder.newFile().toPath();
+        try (FileChannel fileChannel = FileChannel.open(temporaryFilePath, StandardOpenOption.WRITE)) {
+            fileChannel.write(byteBuffer);
+        }
+        try (FileChannel fileChannel = FileChannel.open(temporaryFilePath, StandardOpenOption.READ)) {
+            new MessageReader(fileChannel, BufferPool.getDefault(), 1024).read();
+        }
+    }
+
     @Test
     public void writerTest() throws Exception {
         byte[] bytes = new byte[1024];
@@ -55,6 +74,7 @@ public class MessageReaderAndWriterTest {
         final MessageWriter writer = new MessageWriter(fileChannel);
         writer.startNewMessage(message);
         assertThat(writer.write(), is(true));
+        assertThat(writer.getBytesWritten(), is((long) Message.LENGTH_BYTES + 1024));
         fileChannel.close();
 
         final ByteBuffer byteBuffer = ByteBuffer.allocate(2032);
@@ -67,4 +87,43 @@ public class MessageReaderAndWriterTest {
         assertThat(bytes1, is(bytes));
         assertThat(byteBuffer.hasRemaining(), is(false));
     }
+
+    @Test
+    public void severalMessagesWriterTest() throws Exception {
+        final Path temporaryFilePath = temporaryFolder.newFile().toPath();
+        FileChannel fileChannel = FileChannel.open(temporaryFilePath, StandardOpenOption.WRITE);
+        final MessageWriter writer = new MessageWriter(fileChannel);
+        writeAndReadSeveralMessages(writer, temporaryFilePath);
+        fileChannel.close();
+    }
+
+    @Test
+    public void severalMessagesNonGatheringWriterTest() throws Exception {
+        final Path temporaryFilePath = temporaryFolder.newFile().toPath();
+        final OutputStream outputStream = Files.newOutputStream(temporaryFilePath);
+        final MessageWriter writer = new MessageWriter(Channels.newChannel(outputStream));
+        writeAndReadSeveralMessages(writer, temporaryFilePath);
+        outputStream.close();
+    }
+
+    private void writeAndReadSeveralMessages(@NotNull MessageWriter writer, @NotNull Path temporaryFilePath)
+            throws Exception {
+        final byte[][] messages = new byte[40][];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new byte[random.nextInt(100)];
+            random.nextBytes(messages[i]);
+            writer.startNewMessage(new Message(messages[i]));
+        }
+        assertThat(writer.write(), is(true));
+
+        final FileChannel fileChannel = FileChannel.open(temporaryFilePath, StandardOpenOption.READ);
+        final MessageReader reader = new MessageReader(fileChannel);
+        for (byte[] message : messages) {
+            final Optional<Message> messageOptional = reader.read();
+            assertThat(messageOptional.isPresent(), is(true));
+            assertThat(messageOptional.get().getData(), is(message));
+        }
+        assertThat(reader.read().isPresent(), is(false));
+        fileChannel.close();
+    }
 }
\ No newline at end of file
@@ -2,26 +2,77 @@ package ru.spbau.eshcherbin.hw4.server;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpMessageCodec;
+import ru.spbau.eshcherbin.hw4.messages.Message;
 import ru.spbau.eshcherbin.hw4.messages.MessageReader;
 import ru.spbau.eshcherbin.hw4.messages.MessageWriter;
+import ru.spbau.eshcherbin.hw4.tls.TlsChannel;
 
-import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
- * A helper class that contains all the information that should be attached to client's socket clientChannel client's socket clientChannel.
+ * A helper class that contains all the information that should be attached to client's socket channel.
  */
 class ClientHandlingSuite {
+    private static final int INITIAL_TRANSMIT_UNIT = 64 * 1024;
+    private final @NotNull ByteChannel channel;
     private final @NotNull MessageReader reader;
     private final @NotNull MessageWriter writer;
-    private @Nullable FileChannel fileChannel;
-    private @NotNull ClientHandlingStatus status;
+    private final @NotNull OutboundBudget outboundBudget;
+    private final @NotNull Deque<PendingResponse> responses = new ArrayDeque<>();
+    private @Nullable ResponseBody currentBody;
+    private int protocolVersion = FtpMessageCodec.PROTOCOL_VERSION;
+    private int transmitUnit = INITIAL_TRANSMIT_UNIT;
+    private @NotNull FtpCompression compression = FtpCompression.NONE;
+    private long bufferedBytes = 0;
+    private long accountedBytesWritten = 0;
+    private boolean isReleased = false;
+    private @Nullable TimerWheel.Timer<SelectionKey> timer;
+    private long connectedNanos;
+    private long lastActivityNanos;
+    private long lastWriteProgressNanos;
+    private long messageStartNanos;
+    private boolean isMessageStarted = false;
+    private @Nullable IncomingUpload upload;
+    private int backloggedTasksNumber = 0;
 
-    public ClientHandlingSuite(@NotNull MessageReader reader,
-                               @NotNull MessageWriter writer) {
+    public ClientHandlingSuite(@NotNull ByteChannel channel,
+                               @NotNull MessageReader reader,
+                               @NotNull MessageWriter writer,
+                               @NotNull OutboundBudget outboundBudget) {
+        this.channel = channel;
         this.reader = reader;
         this.writer = writer;
-        status = ClientHandlingStatus.RECEIVING;
+        this.outboundBudget = outboundBudget;
+    }
+
+    /**
+     * Returns the channel the client's data goes through, which is either the socket channel
+     * or the TLS channel over it.
+     * @return the client's data channel
+     */
+    public @NotNull ByteChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the TLS channel of the client.
+     * @return the TLS channel or <tt>null</tt> if the client is served without TLS
+     */
+    public @Nullable TlsChannel getTlsChannel() {
+        return channel instanceof TlsChannel ? (TlsChannel) channel : null;
+    }
+
+    /**
+     * Returns whether the client's data channel holds input that the socket will not signal readiness for.
+     * @return whether there is buffered input
+     */
+    public boolean hasBufferedInput() {
+        return channel instanceof TlsChannel && ((TlsChannel) channel).hasBufferedInput();
     }
 
     /**
@@ -41,41 +92,267 @@ class ClientHandlingSuite {
     }
 
     /**
-     * Returns current handling status.
-     * @return current handling status
+     * Returns the responses to the received queries that are not completely sent yet, in the order of the queries.
+     * @return the pending responses
+     */
+    public @NotNull Deque<PendingResponse> getResponses() {
+        return responses;
+    }
+
+    /**
+     * Adds a ready part to a pending response and accounts for its message as buffered
+     * until the writer writes it.
+     * @param response the response
+     * @param part the part
+     */
+    public void addPart(@NotNull PendingResponse response, @NotNull ResponsePart part) {
+        response.addPart(part);
+        long partBytes = Message.LENGTH_BYTES + part.getMessage().getLength();
+        bufferedBytes += partBytes;
+        outboundBudget.acquire(partBytes);
+    }
+
+    /**
+     * Returns the number of bytes of the ready response messages that have not been written to the socket yet,
+     * both those queued in the writer and those waiting in the pending responses.
+     * The raw content of the files is not counted as it is read from the disk as it is sent.
+     * @return the number of buffered bytes
      */
-    public @NotNull ClientHandlingStatus getStatus() {
-        return status;
+    public long getOutboundBytes() {
+        return bufferedBytes - writer.getBytesWritten();
     }
 
     /**
-     * Sets new handling status.
-     * @param status new handling status
+     * Gives the bytes written since the previous call back to the server's outbound budget.
      */
-    public void setStatus(@NotNull ClientHandlingStatus status) {
-        this.status = status;
+    public void accountWrittenBytes() {
+        if (isReleased) {
+            return;
+        }
+        long bytesWritten = writer.getBytesWritten();
+        outboundBudget.release(bytesWritten - accountedBytesWritten);
+        accountedBytesWritten = bytesWritten;
     }
 
     /**
-     * Returns the file channel which content is to be transferred to the client if present.
-     * @return the file channel
+     * Returns the raw content being transferred to the client after the last written message if present.
+     * @return the raw content being transferred
      */
-    public @Nullable FileChannel getFileChannel() {
-        return fileChannel;
+    public @Nullable ResponseBody getCurrentBody() {
+        return currentBody;
     }
 
     /**
-     * Sets a file channel which content is to be transferred to the client.
-     * @param fileChannel the file channel
+     * Sets the raw content to be transferred to the client after the messages queued in the writer.
+     * @param currentBody the raw content or <tt>null</tt> if there is no content to transfer
      */
-    public void setFileChannel(@NotNull FileChannel fileChannel) {
-        if (this.fileChannel != null && this.fileChannel.isOpen()) {
-            try {
-                this.fileChannel.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    public void setCurrentBody(@Nullable ResponseBody currentBody) {
+        this.currentBody = currentBody;
+    }
+
+    /**
+     * Returns the protocol version used by the client.
+     * @return the protocol version used by the client
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Sets the protocol version used by the client, as detected from its latest query.
+     * @param protocolVersion the protocol version used by the client
+     */
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * Returns the maximum number of bytes of file content transferred to the client at once,
+     * which adapts to how much the client's socket accepts.
+     * @return the maximum number of bytes transferred at once
+     */
+    public int getTransmitUnit() {
+        return transmitUnit;
+    }
+
+    /**
+     * Sets the maximum number of bytes of file content transferred to the client at once.
+     * @param transmitUnit the maximum number of bytes transferred at once
+     */
+    public void setTransmitUnit(int transmitUnit) {
+        this.transmitUnit = transmitUnit;
+    }
+
+    /**
+     * Returns the compression negotiated with the client.
+     * @return the negotiated compression or {@link FtpCompression#NONE} if the client has not asked for it
+     */
+    public @NotNull FtpCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets the compression negotiated with the client, which applies to the responses to the following queries.
+     * @param compression the negotiated compression
+     */
+    public void setCompression(@NotNull FtpCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the timer checking the client's timeouts.
+     * @return the timer or <tt>null</tt> if it is not created yet
+     */
+    public @Nullable TimerWheel.Timer<SelectionKey> getTimer() {
+        return timer;
+    }
+
+    /**
+     * Sets the timer checking the client's timeouts.
+     * @param timer the timer
+     */
+    public void setTimer(@NotNull TimerWheel.Timer<SelectionKey> timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Returns the time the client has connected.
+     * @return the time in nanoseconds as returned by {@link System#nanoTime()}
+     */
+    public long getConnectedNanos() {
+        return connectedNanos;
+    }
+
+    /**
+     * Remembers the time the client has connected.
+     * @param nowNanos the current time in nanoseconds
+     */
+    public void markConnected(long nowNanos) {
+        connectedNanos = nowNanos;
+    }
+
+    /**
+     * Returns the time of the latest read event or write progress on the client's channel.
+     * @return the time of the latest activity in nanoseconds as returned by {@link System#nanoTime()}
+     */
+    public long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    /**
+     * Remembers that the client's channel has been active.
+     * @param nowNanos the current time in nanoseconds
+     */
+    public void markActivity(long nowNanos) {
+        lastActivityNanos = nowNanos;
+    }
+
+    /**
+     * Returns the time since which the data to send to the client has been waiting for the socket:
+     * the latest write progress or the moment the data became ready, whichever is later.
+     * @return the time of the latest write progress in nanoseconds
+     */
+    public long getLastWriteProgressNanos() {
+        return lastWriteProgressNanos;
+    }
+
+    /**
+     * Remembers that the data to send to the client has been written or has become ready.
+     * @param nowNanos the current time in nanoseconds
+     */
+    public void markWriteProgress(long nowNanos) {
+        lastWriteProgressNanos = nowNanos;
+        lastActivityNanos = nowNanos;
+    }
+
+    /**
+     * Returns the time when the first byte of the partially read message arrived.
+     * @return the start time of the message in nanoseconds, meaningful only while {@link #isMessageStarted()}
+     */
+    public long getMessageStartNanos() {
+        return messageStartNanos;
+    }
+
+    /**
+     * Returns whether a query from the client is partially read.
+     * @return whether a query is partially read
+     */
+    public boolean isMessageStarted() {
+        return isMessageStarted;
+    }
+
+    /**
+     * Updates the start time of the partially read message after a read from the client's channel.
+     * @param nowNanos the current time in nanoseconds
+     */
+    public void updateMessageStart(long nowNanos) {
+        boolean isReadingMessage = reader.isReadingMessage();
+        if (isReadingMessage && !isMessageStarted) {
+            messageStartNanos = nowNanos;
+        }
+        isMessageStarted = isReadingMessage;
+    }
+
+    /**
+     * Returns the upload whose content is being received from the client.
+     * @return the upload or <tt>null</tt> if there is none
+     */
+    public @Nullable IncomingUpload getUpload() {
+        return upload;
+    }
+
+    /**
+     * Sets the upload whose content is being received from the client.
+     * @param upload the upload or <tt>null</tt> if its content has been received
+     */
+    public void setUpload(@Nullable IncomingUpload upload) {
+        this.upload = upload;
+    }
+
+    /**
+     * Returns whether filesystem tasks of the client are waiting in the worker's backlog.
+     * @return whether there are backlogged tasks
+     */
+    public boolean hasBackloggedTasks() {
+        return backloggedTasksNumber > 0;
+    }
+
+    /**
+     * Remembers that a filesystem task of the client has been put into the worker's backlog.
+     */
+    public void addBackloggedTask() {
+        backloggedTasksNumber++;
+    }
+
+    /**
+     * Remembers that a filesystem task of the client has left the worker's backlog.
+     */
+    public void removeBackloggedTask() {
+        backloggedTasksNumber--;
+    }
+
+    /**
+     * Releases all the buffers and files held on behalf of the client.
+     * An upload being opened is aborted once it is opened instead, as it is still in the filesystem executor's hands.
+     */
+    public void release() {
+        if (!isReleased) {
+            isReleased = true;
+            outboundBudget.release(bufferedBytes - accountedBytesWritten);
+        }
+        reader.discard();
+        writer.discard();
+        if (currentBody != null) {
+            currentBody.close();
+            currentBody = null;
+        }
+        if (upload != null && !upload.isOpening()) {
+            upload.abort();
+        }
+        upload = null;
+        PendingResponse response;
+        while ((response = responses.poll()) != null) {
+            response.discard();
         }
-        this.fileChannel = fileChannel;
     }
 }
@@ -0,0 +1,170 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.messages.Message;
+import ru.spbau.eshcherbin.hw4.messages.MessageWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * A response body that compresses another body on the fly.
+ * The content is compressed a unit at a time into a single deflate stream, which is flushed at the end of each unit,
+ * and each compressed unit is framed as a message in the same way as {@link MessageWriter} frames them,
+ * so that the client can decompress the content as it arrives.
+ */
+class CompressedResponseBody implements ResponseBody {
+    private static final int COMPRESSION_UNIT = 64 * 1024;
+    private static final long MIN_COMPRESSED_CONTENT_LENGTH = 4 * 1024;
+    private static final @NotNull Set<String> compressedFormatExtensions = new HashSet<>(Arrays.asList(
+            "7z", "avi", "br", "bz2", "docx", "flac", "gif", "gz", "jar", "jpeg", "jpg", "lz4", "lzma", "mkv", "mov",
+            "mp3", "mp4", "ogg", "pdf", "png", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst"));
+    private final @NotNull ResponseBody source;
+    private final @NotNull Deflater deflater;
+    private final @NotNull ByteBuffer input = ByteBuffer.allocate(COMPRESSION_UNIT);
+    private @NotNull ByteBuffer frame = ByteBuffer.allocate(COMPRESSION_UNIT + COMPRESSION_UNIT / 8);
+    private boolean isClosed = false;
+
+    /**
+     * Creates a body consisting of the compressed content of the source body.
+     * @param source the body providing the content, which is closed together with this body
+     * @param compression the codec to compress the content with
+     */
+    public CompressedResponseBody(@NotNull ResponseBody source, @NotNull FtpCompression compression) {
+        this.source = source;
+        deflater = compression.newDeflater();
+        frame.limit(0);
+    }
+
+    /**
+     * Returns whether the content of a file is worth compressing: it should not be too small
+     * and should not be in a format that is compressed already.
+     * @param path the path to the file
+     * @param contentLength the length of the content to send
+     * @return whether the content should be compressed
+     */
+    public static boolean isWorthCompressing(@NotNull Path path, long contentLength) {
+        if (contentLength < MIN_COMPRESSED_CONTENT_LENGTH) {
+            return false;
+        }
+        Path fileName = path.getFileName();
+        if (fileName == null) {
+            return true;
+        }
+        String name = fileName.toString();
+        int dotIndex = name.lastIndexOf('.');
+        return dotIndex < 0
+                || !compressedFormatExtensions.contains(name.substring(dotIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public long transferTo(@NotNull WritableByteChannel channel, long maxBytes) throws IOException {
+        long bytesSent = 0;
+        while (bytesSent < maxBytes) {
+            if (!frame.hasRemaining()) {
+                if (source.getRemaining() == 0) {
+                    break;
+                }
+                compressNextUnit();
+            }
+            int limit = frame.limit();
+            frame.limit((int) Math.min(limit, frame.position() + maxBytes - bytesSent));
+            int written;
+            try {
+                written = channel.write(frame);
+            } finally {
+                frame.limit(limit);
+            }
+            bytesSent += written;
+            if (written == 0) {
+                break;
+            }
+        }
+        return bytesSent;
+    }
+
+    /**
+     * Returns the number of bytes that are still to be written, counting the content that is not compressed yet
+     * at its original size.
+     * @return the approximate number of bytes that are still to be written
+     */
+    @Override
+    public long getRemaining() {
+        return frame.remaining() + source.getRemaining();
+    }
+
+    @Override
+    public void close() {
+        if (!isClosed) {
+            isClosed = true;
+            deflater.end();
+            source.close();
+        }
+    }
+
+    /**
+     * Reads the next unit of the content and compresses it into a new frame.
+     * @throws IOException if an I/O error occurs
+     */
+    private void compressNextUnit() throws IOException {
+        input.clear();
+        input.limit((int) Math.min(COMPRESSION_UNIT, source.getRemaining()));
+        while (input.hasRemaining()) {
+            if (source.transferTo(new BufferChannel(input), input.remaining()) == 0) {
+                throw new IOException("Content ended unexpectedly");
+            }
+        }
+        deflater.setInput(input.array(), 0, input.position());
+        frame.clear();
+        frame.position(Message.LENGTH_BYTES);
+        while (true) {
+            int compressedSize = deflater.deflate(frame.array(), frame.position(), frame.remaining(),
+                    Deflater.SYNC_FLUSH);
+            frame.position(frame.position() + compressedSize);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            frame = ByteBuffer.allocate(2 * frame.capacity()).put(frame.array());
+        }
+        frame.flip();
+        frame.putInt(0, frame.limit() - Message.LENGTH_BYTES);
+    }
+
+    /**
+     * A channel writing into a buffer, which lets the source body put its content into the compression unit.
+     */
+    private static class BufferChannel implements WritableByteChannel {
+        private final @NotNull ByteBuffer buffer;
+
+        private BufferChannel(@NotNull ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int write(@NotNull ByteBuffer source) {
+            int length = Math.min(source.remaining(), buffer.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + length);
+            buffer.put(source);
+            source.limit(limit);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.messages.BufferPool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An LRU index of the SHA-256 hashes of the files' content keyed by the absolute normalized paths of the files.
+ * Each entry records the size and the modification time of the file it was computed for, and is used only
+ * while they match. Hashes are computed lazily by a pool of background threads, the large files being
+ * memory-mapped, and each file is hashed at most once at a time however many requests need it.
+ * The directories of the indexed files are watched with a {@link WatchService}, and an entry is dropped as soon as
+ * its file changes, which catches the changes keeping the size and the modification time; a hash is indexed only
+ * if no change has been observed while it was being computed. The index may be saved to a file
+ * and loaded back, in which case the loaded entries are validated by the size and the modification time only.
+ */
+class ContentHashIndex {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(ContentHashIndex.class);
+    private static final @NotNull String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_LENGTH = 32;
+    private static final int INDEX_MAGIC = 0x48494458;
+    private static final int MAX_HASH_ATTEMPTS = 3;
+    private static final long MIN_MAPPED_SIZE = 1024 * 1024;
+    private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private final int maxEntries;
+    private final @NotNull ExecutorService hashPool;
+    private final @Nullable WatchService watchService;
+    private final @NotNull LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final @NotNull Map<Path, CompletableFuture<Entry>> computations = new HashMap<>();
+    private final @NotNull Map<Path, WatchKey> watchKeys = new HashMap<>();
+    // the number of the entries and the computations in progress in each watched directory
+    private final @NotNull Map<Path, Integer> watchUsers = new HashMap<>();
+    private long hitsNumber = 0;
+    private long computationsNumber = 0;
+    private long invalidationsNumber = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Creates the index, starts the hashing threads and the thread watching the directories of the indexed files.
+     * If watching is not supported, the entries are validated by the size and the modification time only.
+     * @param threadsNumber the number of threads computing the hashes
+     * @param maxEntries the maximum number of indexed files
+     */
+    public ContentHashIndex(int threadsNumber, int maxEntries) {
+        this.maxEntries = maxEntries;
+        AtomicInteger threadsCounter = new AtomicInteger();
+        hashPool = Executors.newFixedThreadPool(threadsNumber, runnable -> {
+            Thread thread = new Thread(runnable, "ftp-server-hasher-" + threadsCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.error("Unable to watch directories, content hashes are validated by file times only: {}",
+                    e.getMessage());
+        }
+        watchService = service;
+        if (watchService != null) {
+            Thread watcherThread = new Thread(this::watch, "ftp-server-hash-index-watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        }
+    }
+
+    /**
+     * Returns the indexed hash of a file, waiting for it to be computed if it is not indexed.
+     * @param path the path to the file
+     * @return the entry of the file or <tt>null</tt> if it is not a regular file or it kept changing while hashed
+     * @throws java.nio.file.NoSuchFileException if the file does not exist
+     * @throws IOException if an I/O error occurs
+     */
+    public @Nullable Entry get(@NotNull Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        return await(request(path, attributes));
+    }
+
+    /**
+     * Requests the hash of a regular file without waiting for it, so that several files are hashed in parallel.
+     * @param path the path to the file
+     * @param attributes the current attributes of the file
+     * @return the entry of the file, which is <tt>null</tt> if the file kept changing while hashed
+     */
+    public @NotNull CompletableFuture<Entry> request(@NotNull Path path, @NotNull BasicFileAttributes attributes) {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.matches(attributes)) {
+                hitsNumber++;
+                return CompletableFuture.completedFuture(entry);
+            }
+            CompletableFuture<Entry> computation = computations.get(key);
+            if (computation != null) {
+                return computation;
+            }
+            CompletableFuture<Entry> newComputation = new CompletableFuture<>();
+            if (isClosed) {
+                newComputation.completeExceptionally(new IOException("Content hash index is closed"));
+                return newComputation;
+            }
+            Path directory = key.getParent();
+            boolean isWatched = acquireWatch(directory);
+            long stamp = invalidationsNumber;
+            computations.put(key, newComputation);
+            try {
+                hashPool.execute(() -> compute(key, newComputation, isWatched, stamp));
+            } catch (RejectedExecutionException e) {
+                computations.remove(key);
+                if (isWatched) {
+                    releaseWatch(directory);
+                }
+                newComputation.completeExceptionally(new IOException("Content hash index is closed"));
+            }
+            return newComputation;
+        }
+    }
+
+    /**
+     * Waits for a requested hash.
+     * @param computation the computation returned by {@link #request(Path, BasicFileAttributes)}
+     * @return the entry of the file or <tt>null</tt> if it kept changing while hashed
+     * @throws IOException if the file could not be hashed
+     */
+    public static @Nullable Entry await(@NotNull CompletableFuture<Entry> computation) throws IOException {
+        try {
+            return computation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a content hash");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Loads the entries saved by {@link #save(Path)}, keeping the entries of the files that are indexed already.
+     * @param file the file the index was saved to
+     * @throws IOException if an I/O error occurs or the file is not a saved index
+     */
+    public void load(@NotNull Path file) throws IOException {
+        ArrayList<Path> paths = new ArrayList<>();
+        ArrayList<Entry> loadedEntries = new ArrayList<>();
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (inputStream.readInt() != INDEX_MAGIC) {
+                throw new IOException("Unknown content hash index format");
+            }
+            int entriesNumber = inputStream.readInt();
+            for (int i = 0; i < entriesNumber; i++) {
+                Path path = Paths.get(inputStream.readUTF());
+                long size = inputStream.readLong();
+                long lastModified = inputStream.readLong();
+                byte[] hash = new byte[HASH_LENGTH];
+                inputStream.readFully(hash);
+                paths.add(path);
+                loadedEntries.add(new Entry(size, lastModified, hash));
+            }
+        }
+        synchronized (this) {
+            // in the order of use, so that the most recently used entries stay
+            for (int i = 0; i < paths.size(); i++) {
+                Path path = paths.get(i);
+                if (path.isAbsolute() && path.getParent() != null && !entries.containsKey(path)
+                        && acquireWatch(path.getParent())) {
+                    store(path, loadedEntries.get(i));
+                }
+            }
+        }
+        logger.info("Content hash index loaded from {}: {} entries", file, entries.size());
+    }
+
+    /**
+     * Saves the entries in the order of their use, replacing the previous index atomically.
+     * @param file the file to save the index to
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void save(@NotNull Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporaryPath = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream outputStream = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporaryPath)))) {
+                outputStream.writeInt(INDEX_MAGIC);
+                outputStream.writeInt(entries.size());
+                for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+                    outputStream.writeUTF(entry.getKey().toString());
+                    outputStream.writeLong(entry.getValue().size);
+                    outputStream.writeLong(entry.getValue().lastModified);
+                    outputStream.write(entry.getValue().hash);
+                }
+            }
+            try {
+                Files.move(temporaryPath, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+        logger.info("Content hash index saved to {}: {} entries", file, entries.size());
+    }
+
+    /**
+     * Stops the hashing threads and the watching thread and fails the computations that have not started yet.
+     * The entries are kept, so that the index can still be saved.
+     */
+    public void close() {
+        hashPool.shutdownNow();
+        ArrayList<CompletableFuture<Entry>> pendingComputations;
+        synchronized (this) {
+            isClosed = true;
+            pendingComputations = new ArrayList<>(computations.values());
+            watchKeys.clear();
+            watchUsers.clear();
+        }
+        for (CompletableFuture<Entry> computation : pendingComputations) {
+            computation.completeExceptionally(new IOException("Content hash index is closed"));
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of hashes served from the index.
+     * @return the number of index hits
+     */
+    public synchronized long getHitsNumber() {
+        return hitsNumber;
+    }
+
+    /**
+     * Returns the number of hashes computed.
+     * @return the number of computations
+     */
+    public synchronized long getComputationsNumber() {
+        return computationsNumber;
+    }
+
+    /**
+     * Returns the number of changes observed in the directories of the indexed files.
+     * @return the number of invalidations
+     */
+    public synchronized long getInvalidationsNumber() {
+        return invalidationsNumber;
+    }
+
+    /**
+     * Returns the number of indexed files.
+     * @return the number of entries
+     */
+    public synchronized int getEntriesNumber() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the hash of a file and indexes it unless the file may have changed meanwhile.
+     * Performed by the hashing threads.
+     * @param key the absolute normalized path to the file
+     * @param computation the computation to complete
+     * @param isWatched whether the directory of the file has been watched for the computation
+     * @param stamp the number of the invalidations before the computation started
+     */
+    private void compute(@NotNull Path key, @NotNull CompletableFuture<Entry> computation, boolean isWatched,
+                         long stamp) {
+        Entry entry = null;
+        IOException exception = null;
+        try {
+            entry = hash(key);
+        } catch (IOException e) {
+            exception = e;
+        }
+        synchronized (this) {
+            computations.remove(key);
+            computationsNumber++;
+            if (entry != null && isWatched && stamp == invalidationsNumber && !isClosed) {
+                store(key, entry);
+            } else if (isWatched) {
+                releaseWatch(key.getParent());
+            }
+        }
+        if (exception != null) {
+            computation.completeExceptionally(exception);
+        } else {
+            computation.complete(entry);
+        }
+    }
+
+    /**
+     * Indexes an entry whose directory is watched for it, evicting the least recently used entries.
+     * @param key the absolute normalized path to the file
+     * @param entry the entry of the file
+     */
+    private void store(@NotNull Path key, @NotNull Entry entry) {
+        if (entries.put(key, entry) != null) {
+            releaseWatch(key.getParent());
+        }
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            Path eldestKey = iterator.next().getKey();
+            iterator.remove();
+            releaseWatch(eldestKey.getParent());
+        }
+    }
+
+    /**
+     * Starts watching the directory for an entry or a computation unless it is watched already.
+     * @param directory the directory
+     * @return whether changes of the files in the directory are observed or watching is not supported at all
+     */
+    private boolean acquireWatch(@NotNull Path directory) {
+        if (watchService == null) {
+            return true;
+        }
+        if (!watchKeys.containsKey(directory)) {
+            try {
+                watchKeys.put(directory, directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+                return false;
+            }
+        }
+        watchUsers.merge(directory, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Stops watching the directory once it has no entries and no computations in progress.
+     * @param directory the directory
+     */
+    private void releaseWatch(@NotNull Path directory) {
+        if (watchService == null) {
+            return;
+        }
+        Integer users = watchUsers.computeIfPresent(directory, (path, count) -> count > 1 ? count - 1 : null);
+        if (users == null) {
+            WatchKey watchKey = watchKeys.remove(directory);
+            if (watchKey != null) {
+                watchKey.cancel();
+            }
+        }
+    }
+
+    /**
+     * Drops the entries of the changed files.
+     * @param directory the directory the changes happened in
+     * @param fileNames the names of the changed files or <tt>null</tt> if any file in the directory may have changed
+     */
+    private synchronized void invalidate(@NotNull Path directory, @Nullable ArrayList<Path> fileNames) {
+        invalidationsNumber++;
+        if (fileNames != null) {
+            for (Path fileName : fileNames) {
+                if (entries.remove(directory.resolve(fileName)) != null) {
+                    releaseWatch(directory);
+                }
+            }
+            return;
+        }
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Path key = iterator.next().getKey();
+            if (directory.equals(key.getParent())) {
+                iterator.remove();
+                releaseWatch(directory);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the entries of the changed files until the watch service is closed.
+     */
+    private void watch() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                Path directory = (Path) watchKey.watchable();
+                ArrayList<Path> fileNames = new ArrayList<>();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        fileNames = null;
+                        break;
+                    }
+                    fileNames.add((Path) event.context());
+                }
+                invalidate(directory, fileNames);
+                if (!watchKey.reset()) {
+                    synchronized (this) {
+                        if (watchKeys.get(directory) == watchKey) {
+                            watchKeys.remove(directory);
+                        }
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Computes the hash of a file, retrying if the file changes while it is being read.
+     * @param file the file
+     * @return the entry of the file or <tt>null</tt> if it kept changing
+     * @throws IOException if an I/O error occurs
+     */
+    private static @Nullable Entry hash(@NotNull Path file) throws IOException {
+        for (int attempt = 0; attempt < MAX_HASH_ATTEMPTS; attempt++) {
+            BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+            byte[] hash = hashContent(file);
+            BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+            if (hash != null && before.size() == after.size()
+                    && before.lastModifiedTime().equals(after.lastModifiedTime())) {
+                return new Entry(after.size(), after.lastModifiedTime().toMillis(), hash);
+            }
+        }
+        logger.info("File {} kept changing while being hashed", file);
+        return null;
+    }
+
+    /**
+     * Computes the hash of the content of a file. The small files are read through a pooled buffer
+     * and the large ones are mapped region by region.
+     * @param file the file
+     * @return the hash or <tt>null</tt> if the file was truncated while being read
+     * @throws IOException if an I/O error occurs
+     */
+    private static @Nullable byte[] hashContent(@NotNull Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every platform supports SHA-256
+        }
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            if (size >= MIN_MAPPED_SIZE) {
+                try {
+                    for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+                        digest.update(fileChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                                Math.min(MAPPED_REGION_SIZE, size - position)));
+                    }
+                } catch (InternalError e) {
+                    return null; // the mapped pages past the new end of the file cannot be accessed
+                }
+                return digest.digest();
+            }
+            BufferPool pool = BufferPool.getDefault();
+            ByteBuffer buffer = pool.lease(READ_BUFFER_SIZE);
+            try {
+                while (fileChannel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                pool.release(buffer);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * The hash of a file along with the size and the modification time of the file it was computed for.
+     */
+    static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final @NotNull byte[] hash;
+
+        private Entry(long size, long lastModified, @NotNull byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        /**
+         * Returns the size of the file.
+         * @return the size of the file
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the version token of the file.
+         * @return the version token of the file
+         */
+        public long getVersionToken() {
+            return FtpGetResponse.versionToken(size, lastModified);
+        }
+
+        /**
+         * Returns the SHA-256 hash of the content of the file.
+         * @return the hash of the content
+         */
+        public @NotNull byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         * Returns whether the entry was computed for the file with the given attributes.
+         * @param attributes the attributes of the file
+         * @return whether the size and the modification time match
+         */
+        private boolean matches(@NotNull BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.delta.DeltaEncoder;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaChunk;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaOperation;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Produces the chunks of the response to a delta query, encoding the file against the client's block signatures
+ * as it is read. Each chunk describes a bounded part of the file, so that the literals are sent
+ * while the rest of the file is still being scanned.
+ */
+class DeltaProducer implements ResponseProducer {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(DeltaProducer.class);
+    private static final int BYTES_PER_CHUNK = 256 * 1024;
+    private static final int CHUNKS_PER_PORTION = 4;
+    private static final long MAX_SCANNED_BYTES_PER_PORTION = 64 * 1024 * 1024;
+    private final @NotNull Path path;
+    private final @NotNull FtpDeltaQuery query;
+    private final int protocolVersion;
+    private final @NotNull FtpCompression compression;
+    private @Nullable FileChannel fileChannel;
+    private @Nullable DeltaEncoder encoder;
+    private long versionToken;
+    private boolean isFinished = false;
+
+    /**
+     * Creates the producer. The file is opened by the first {@link #produce()} call.
+     * @param path the path to the file
+     * @param query the delta query carrying the block signatures of the client's copy
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client, which applies to the chunks
+     */
+    public DeltaProducer(@NotNull Path path, @NotNull FtpDeltaQuery query, int protocolVersion,
+                         @NotNull FtpCompression compression) {
+        this.path = path;
+        this.query = query;
+        this.protocolVersion = protocolVersion;
+        this.compression = compression;
+    }
+
+    @Override
+    public @NotNull List<ResponsePart> produce() throws IOException {
+        List<ResponsePart> parts = new ArrayList<>(CHUNKS_PER_PORTION);
+        if (isFinished) {
+            return parts;
+        }
+        if (encoder == null) {
+            try {
+                long lastModified = Files.getLastModifiedTime(path).toMillis();
+                fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                versionToken = FtpGetResponse.versionToken(fileChannel.size(), lastModified);
+            } catch (NoSuchFileException e) {
+                isFinished = true;
+                parts.add(encodeChunk(FtpDeltaChunk.notFoundResponse()));
+                return parts;
+            }
+            encoder = new DeltaEncoder(fileChannel, query);
+        }
+        long scanEnd = encoder.getContentLength() + MAX_SCANNED_BYTES_PER_PORTION;
+        while (parts.size() < CHUNKS_PER_PORTION && !isFinished && encoder.getContentLength() < scanEnd) {
+            ArrayList<FtpDeltaOperation> operations = encoder.encodeNext(BYTES_PER_CHUNK);
+            if (encoder.isFinished()) {
+                isFinished = true;
+                logger.info("Delta of {} encoded: {} of {} bytes sent as literals", path, encoder.getLiteralBytes(),
+                        encoder.getContentLength());
+                parts.add(encodeChunk(new FtpDeltaChunk(operations, true, encoder.getContentLength(), versionToken,
+                        encoder.getContentHash())));
+            } else if (!operations.isEmpty()) {
+                parts.add(encodeChunk(new FtpDeltaChunk(operations)));
+            }
+        }
+        return parts;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    @Override
+    public void close() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            fileChannel = null;
+        }
+    }
+
+    private @NotNull ResponsePart encodeChunk(@NotNull FtpDeltaChunk chunk) {
+        return new ResponsePart(FtpServerWorker.encodeResponse(chunk, protocolVersion, compression));
+    }
+}
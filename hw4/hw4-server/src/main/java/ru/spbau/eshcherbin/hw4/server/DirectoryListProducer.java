@@ -0,0 +1,102 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListChunk;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListResponseItem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Produces the chunks of the response to a streaming list query,
+ * reading the directory incrementally with a {@link DirectoryStream}.
+ */
+class DirectoryListProducer implements ResponseProducer {
+    private static final int ITEMS_PER_CHUNK = 1024;
+    private static final int CHUNKS_PER_PORTION = 4;
+    private final @NotNull Path path;
+    private final int protocolVersion;
+    private final @NotNull FtpCompression compression;
+    private @Nullable DirectoryStream<Path> directoryStream;
+    private @Nullable Iterator<Path> iterator;
+    private boolean isFinished = false;
+
+    /**
+     * Creates the producer. The directory is opened by the first {@link #produce()} call.
+     * @param path the path of the directory
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     */
+    public DirectoryListProducer(@NotNull Path path, int protocolVersion, @NotNull FtpCompression compression) {
+        this.path = path;
+        this.protocolVersion = protocolVersion;
+        this.compression = compression;
+    }
+
+    @Override
+    public @NotNull List<ResponsePart> produce() throws IOException {
+        List<ResponsePart> parts = new ArrayList<>(CHUNKS_PER_PORTION);
+        if (isFinished) {
+            return parts;
+        }
+        if (iterator == null) {
+            try {
+                directoryStream = Files.newDirectoryStream(path);
+                iterator = directoryStream.iterator();
+            } catch (NoSuchFileException | NotDirectoryException e) {
+                parts.add(encodeChunk(new ArrayList<>(), true));
+                return parts;
+            }
+        }
+        try {
+            while (parts.size() < CHUNKS_PER_PORTION && !isFinished) {
+                ArrayList<FtpListResponseItem> items = new ArrayList<>(ITEMS_PER_CHUNK);
+                while (items.size() < ITEMS_PER_CHUNK && iterator.hasNext()) {
+                    items.add(ListItemReader.readItem(iterator.next()));
+                }
+                parts.add(encodeChunk(items, !iterator.hasNext()));
+            }
+        } catch (DirectoryIteratorException e) {
+            for (ResponsePart part : parts) {
+                part.discard();
+            }
+            throw e.getCause();
+        }
+        return parts;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    @Override
+    public void close() {
+        if (directoryStream != null) {
+            try {
+                directoryStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            directoryStream = null;
+        }
+    }
+
+    private @NotNull ResponsePart encodeChunk(@NotNull ArrayList<FtpListResponseItem> items, boolean isLast) {
+        FtpListChunk chunk = new FtpListChunk(items, isLast);
+        if (isLast) {
+            isFinished = true;
+        }
+        return new ResponsePart(FtpServerWorker.encodeResponse(chunk, protocolVersion, compression));
+    }
+}
@@ -0,0 +1,89 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbau.eshcherbin.hw4.messages.BufferPool;
+import ru.spbau.eshcherbin.hw4.tls.TlsChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body that is transferred from a file channel with zero-copy <tt>transferTo</tt>.
+ * The content sent over TLS has to be encrypted, so it is read into a pooled direct buffer and written from there:
+ * <tt>transferTo</tt> would copy it through a small temporary buffer, producing a record and a system call
+ * per few kilobytes.
+ */
+class FileResponseBody implements ResponseBody {
+    private static final int TLS_BUFFER_SIZE = 256 * 1024;
+    private final @NotNull FileChannel fileChannel;
+    private long position;
+    private final long end;
+
+    /**
+     * Creates a body consisting of the file content between the given positions.
+     * @param fileChannel the file channel, which is closed together with the body
+     * @param position the position of the first byte to transfer
+     * @param end the position after the last byte to transfer
+     */
+    public FileResponseBody(@NotNull FileChannel fileChannel, long position, long end) {
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.end = end;
+    }
+
+    @Override
+    public long transferTo(@NotNull WritableByteChannel channel, long maxBytes) throws IOException {
+        long count = Math.min(maxBytes, end - position);
+        long bytesSent = channel instanceof TlsChannel ? transferThroughBuffer((TlsChannel) channel, count)
+                : fileChannel.transferTo(position, count, channel);
+        position += bytesSent;
+        return bytesSent;
+    }
+
+    @Override
+    public long getRemaining() {
+        return end - position;
+    }
+
+    /**
+     * Writes the content to a TLS channel through a pooled buffer. The content the channel does not accept is read
+     * again by the next call.
+     * @param channel the channel
+     * @param count the maximum number of bytes to write
+     * @return the number of bytes written
+     * @throws IOException if an I/O error occurs
+     */
+    private long transferThroughBuffer(@NotNull TlsChannel channel, long count) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        long bytesSent = 0;
+        while (bytesSent < count) {
+            ByteBuffer buffer = pool.lease((int) Math.min(count - bytesSent, TLS_BUFFER_SIZE));
+            try {
+                int bytesRead = fileChannel.read(buffer, position + bytesSent);
+                if (bytesRead <= 0) {
+                    return bytesSent;
+                }
+                buffer.flip();
+                int bytesWritten = channel.write(buffer);
+                bytesSent += bytesWritten;
+                if (bytesWritten < bytesRead) {
+                    return bytesSent;
+                }
+            } finally {
+                pool.release(buffer);
+            }
+        }
+        return bytesSent;
+    }
+
+    @Override
+    public void close() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool that performs blocking filesystem work on behalf of the server workers,
+ * so that a slow filesystem operation does not stall the selector loops.
+ * When the queue is full the task is rejected rather than run by the submitting thread,
+ * which is a selector thread that must not block: the submitter keeps it to resubmit later.
+ */
+class FilesystemExecutor {
+    private final @NotNull ThreadPoolExecutor executor;
+    private final @NotNull AtomicInteger peakQueueDepth = new AtomicInteger();
+    private final @NotNull AtomicLong rejectedTasksNumber = new AtomicLong();
+
+    /**
+     * Creates the executor.
+     * @param threadsNumber the number of threads performing the filesystem work
+     * @param queueCapacity the maximum number of tasks waiting for a thread
+     */
+    public FilesystemExecutor(int threadsNumber, int queueCapacity) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "ftp-server-filesystem-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(threadsNumber, threadsNumber, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Submits a task to be performed by the pool unless its queue is full or it has been stopped.
+     * @param task the task
+     * @return whether the task has been accepted
+     */
+    public boolean tryExecute(@NotNull Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejectedTasksNumber.incrementAndGet();
+            return false;
+        }
+        int queueDepth = executor.getQueue().size();
+        peakQueueDepth.accumulateAndGet(queueDepth, Math::max);
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the largest number of tasks that have simultaneously waited for a thread.
+     * @return the largest observed queue depth
+     */
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of tasks being performed right now.
+     * @return the number of tasks being performed right now
+     */
+    public int getActiveTasksNumber() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of completed tasks.
+     * @return the number of completed tasks
+     */
+    public long getCompletedTasksNumber() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Returns the number of submissions rejected because the queue was full.
+     * @return the number of rejected submissions
+     */
+    public long getRejectedTasksNumber() {
+        return rejectedTasksNumber.get();
+    }
+
+    /**
+     * Stops the pool. Tasks that are not started yet are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
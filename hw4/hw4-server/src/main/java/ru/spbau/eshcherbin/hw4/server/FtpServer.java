@@ -1,43 +1,222 @@
 package ru.spbau.eshcherbin.hw4.server;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
-import ru.spbau.eshcherbin.hw4.ftp.FtpListResponse;
-import ru.spbau.eshcherbin.hw4.ftp.FtpListResponseItem;
-import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
-import ru.spbau.eshcherbin.hw4.messages.Message;
-import ru.spbau.eshcherbin.hw4.messages.MessageReader;
-import ru.spbau.eshcherbin.hw4.messages.MessageWriter;
-
-import java.io.File;
+
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The FTP server.
+ * One acceptor thread accepts new clients and hands them off to a number of workers,
+ * each of which serves its clients with its own selector.
  */
 public class FtpServer implements Server {
     private static final @NotNull Logger logger = LoggerFactory.getLogger(FtpServer.class);
-    private @NotNull Thread serverThread;
+    private static final int FILESYSTEM_THREADS_NUMBER = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final int FILESYSTEM_QUEUE_CAPACITY = 1024;
+    private static final int LISTING_CACHE_MAX_ENTRIES = 1024;
+    private static final long LISTING_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_HOT_FILE_CACHE_MAX_BYTES = 0;
+    private static final long HOT_FILE_MAX_SIZE = 64 * 1024 * 1024;
+    private static final int TREE_WALK_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final long OUTBOUND_BUDGET_MAX_BYTES = 256 * 1024 * 1024;
+    private static final int DEFAULT_MAX_CONNECTIONS = 4096;
+    private static final int HASH_THREADS_NUMBER = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int HASH_INDEX_MAX_ENTRIES = 64 * 1024;
+    private static final int TLS_THREADS_NUMBER = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final long DEFAULT_MAX_UPLOAD_FILE_SIZE = 4L * 1024 * 1024 * 1024;
+    private static final long DEFAULT_MAX_UPLOADING_BYTES = 16L * 1024 * 1024 * 1024;
+    private final @NotNull Thread serverThread;
+    private final @NotNull FtpServerWorker[] workers;
+    private final @NotNull Thread[] workerThreads;
+    private final @NotNull WorkerSelectionStrategy workerSelectionStrategy;
+    private final @NotNull FilesystemExecutor filesystemExecutor;
+    private final @NotNull ListingCache listingCache;
+    private final @NotNull ForkJoinPool treeWalkPool;
+    private final @NotNull HotFileCache hotFileCache;
+    private final @NotNull ContentHashIndex hashIndex;
+    private final @NotNull UploadQuota uploadQuota;
+    private final @NotNull OutboundBudget outboundBudget;
+    private final @NotNull AtomicLong rejectedConnectionsNumber = new AtomicLong();
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private @Nullable Path hashIndexPath;
+    private @Nullable ExecutorService tlsTaskPool;
+    private int nextWorkerIndex = 0;
     private volatile boolean isRunning = false;
 
     /**
-     * Creates and configures the server.
+     * Creates and configures the server with a worker per available processor.
      * @param bindingAddress the address to which this server is bound.
      */
     public FtpServer(@NotNull SocketAddress bindingAddress) {
-        serverThread = new Thread(new FtpServerConnectionHandler(bindingAddress));
+        this(bindingAddress, Runtime.getRuntime().availableProcessors(), WorkerSelectionStrategy.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates and configures the server without the cache of the frequently requested files.
+     * @param bindingAddress the address to which this server is bound.
+     * @param workersNumber the number of worker threads serving the clients
+     * @param workerSelectionStrategy the strategy used to hand new clients off to the workers
+     */
+    public FtpServer(@NotNull SocketAddress bindingAddress, int workersNumber,
+                     @NotNull WorkerSelectionStrategy workerSelectionStrategy) {
+        this(bindingAddress, workersNumber, workerSelectionStrategy, DEFAULT_HOT_FILE_CACHE_MAX_BYTES);
+    }
+
+    /**
+     * Creates and configures the server.
+     * @param bindingAddress the address to which this server is bound.
+     * @param workersNumber the number of worker threads serving the clients
+     * @param workerSelectionStrategy the strategy used to hand new clients off to the workers
+     * @param hotFileCacheMaxBytes the maximum total size of the frequently requested files kept memory-mapped,
+     * zero to disable the cache
+     */
+    public FtpServer(@NotNull SocketAddress bindingAddress, int workersNumber,
+                     @NotNull WorkerSelectionStrategy workerSelectionStrategy, long hotFileCacheMaxBytes) {
+        if (workersNumber <= 0) {
+            throw new IllegalArgumentException("Number of workers must be positive");
+        }
+        this.workerSelectionStrategy = workerSelectionStrategy;
+        filesystemExecutor = new FilesystemExecutor(FILESYSTEM_THREADS_NUMBER, FILESYSTEM_QUEUE_CAPACITY);
+        listingCache = new ListingCache(LISTING_CACHE_MAX_ENTRIES, LISTING_CACHE_MAX_BYTES);
+        treeWalkPool = new ForkJoinPool(TREE_WALK_PARALLELISM);
+        hotFileCache = new HotFileCache(hotFileCacheMaxBytes, HOT_FILE_MAX_SIZE);
+        hashIndex = new ContentHashIndex(HASH_THREADS_NUMBER, HASH_INDEX_MAX_ENTRIES);
+        uploadQuota = new UploadQuota(DEFAULT_MAX_UPLOAD_FILE_SIZE, DEFAULT_MAX_UPLOADING_BYTES);
+        outboundBudget = new OutboundBudget(OUTBOUND_BUDGET_MAX_BYTES);
+        workers = new FtpServerWorker[workersNumber];
+        workerThreads = new Thread[workersNumber];
+        try {
+            for (int i = 0; i < workersNumber; i++) {
+                workers[i] = new FtpServerWorker(filesystemExecutor, listingCache, treeWalkPool, hotFileCache,
+                        hashIndex, uploadQuota, outboundBudget);
+                workerThreads[i] = new Thread(workers[i], "ftp-server-worker-" + i);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create server workers", e);
+        }
+        serverThread = new Thread(new FtpServerConnectionHandler(bindingAddress), "ftp-server-acceptor");
+    }
+
+    /**
+     * Sets the maximum number of simultaneously connected clients; the clients connecting above it
+     * are disconnected right after being accepted. Should be called before the server is started.
+     * @param maxConnections the maximum number of connected clients
+     * @throws IllegalStateException if the server is running
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (isRunning) {
+            throw new IllegalStateException("Server is running");
+        }
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Maximum number of connections must be positive");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets the timeouts after which the clients are disconnected. Should be called before the server is started.
+     * By default, an idle client is disconnected after 5 minutes, a client that does not complete a query
+     * it has started sending after 30 seconds and a client that does not accept ready data after 60 seconds.
+     * @param idleTimeoutMillis the time a client may stay connected without sending queries or receiving responses
+     * @param readTimeoutMillis the time a client may take to send a single query once it has started
+     * @param writeTimeoutMillis the time a client may stay without accepting data while there is data to send to it
+     * @throws IllegalStateException if the server is running
+     */
+    public void setTimeouts(long idleTimeoutMillis, long readTimeoutMillis, long writeTimeoutMillis) {
+        if (isRunning) {
+            throw new IllegalStateException("Server is running");
+        }
+        if (idleTimeoutMillis <= 0 || readTimeoutMillis <= 0 || writeTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeouts must be positive");
+        }
+        for (FtpServerWorker worker : workers) {
+            worker.setTimeouts(idleTimeoutMillis, readTimeoutMillis, writeTimeoutMillis);
+        }
+    }
+
+    /**
+     * Sets the file the index of the content hashes of the files is kept in between the runs of the server:
+     * it is loaded when the server is started and saved when it is stopped. By default the index is kept
+     * in memory only. Should be called before the server is started.
+     * @param hashIndexPath the file to keep the index in
+     * @throws IllegalStateException if the server is running
+     */
+    public void setHashIndexPath(@NotNull Path hashIndexPath) {
+        if (isRunning) {
+            throw new IllegalStateException("Server is running");
+        }
+        this.hashIndexPath = hashIndexPath;
+    }
+
+    /**
+     * Makes the server serve the clients over TLS only. The handshakes are driven by the workers,
+     * while their expensive cryptography is done by a separate pool of threads. The sessions are cached
+     * by the context, so the clients reconnecting with the same context resume them with abbreviated handshakes.
+     * Should be called before the server is started.
+     * @param sslContext the initialized context with the server's key
+     * @throws IllegalStateException if the server is running
+     */
+    public void setTls(@NotNull SSLContext sslContext) {
+        if (isRunning) {
+            throw new IllegalStateException("Server is running");
+        }
+        if (tlsTaskPool == null) {
+            AtomicInteger threadsCounter = new AtomicInteger();
+            tlsTaskPool = Executors.newFixedThreadPool(TLS_THREADS_NUMBER, runnable -> {
+                Thread thread = new Thread(runnable, "ftp-server-tls-" + threadsCounter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (FtpServerWorker worker : workers) {
+            worker.setTls(sslContext, tlsTaskPool);
+        }
+    }
+
+    /**
+     * Sets the quota of the uploads: the maximum size of an uploaded file and the maximum total size of the files
+     * being uploaded at once. An upload is also rejected if its file does not fit the free space on the disk.
+     * By default, a file may take up to 4 GiB and the uploads up to 16 GiB at once.
+     * Should be called before the server is started.
+     * @param maxFileSize the maximum size of an uploaded file in bytes
+     * @param maxUploadingBytes the maximum total size of the files being uploaded at once in bytes
+     * @throws IllegalStateException if the server is running
+     */
+    public void setUploadQuota(long maxFileSize, long maxUploadingBytes) {
+        if (isRunning) {
+            throw new IllegalStateException("Server is running");
+        }
+        uploadQuota.setLimits(maxFileSize, maxUploadingBytes);
+    }
+
+    /**
+     * Sets the directory the uploads are confined to. The path of a put query is resolved against the root,
+     * and the upload is forbidden unless the real path of the file's directory lies within the root.
+     * By default there is no root and every put query is forbidden. Should be called before the server is started.
+     * @param uploadRoot the upload root or <tt>null</tt> to forbid the uploads
+     * @throws IllegalStateException if the server is running
+     */
+    public void setUploadRoot(@Nullable Path uploadRoot) {
+        if (isRunning) {
+            throw new IllegalStateException("Server is running");
+        }
+        for (FtpServerWorker worker : workers) {
+            worker.setUploadRoot(uploadRoot == null ? null : uploadRoot.toAbsolutePath());
+        }
     }
 
     /**
@@ -45,9 +224,19 @@ public class FtpServer implements Server {
      */
     @Override
     public void start() throws IOException {
+        if (hashIndexPath != null && Files.exists(hashIndexPath)) {
+            try {
+                hashIndex.load(hashIndexPath);
+            } catch (IOException e) {
+                logger.error("Unable to load the content hash index from {}: {}", hashIndexPath, e.getMessage());
+            }
+        }
         isRunning = true;
+        for (Thread workerThread : workerThreads) {
+            workerThread.start();
+        }
         serverThread.start();
-        logger.info("Server started");
+        logger.info("Server started with {} workers", workers.length);
     }
 
     /**
@@ -62,28 +251,370 @@ public class FtpServer implements Server {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        for (FtpServerWorker worker : workers) {
+            worker.stop();
+        }
+        for (Thread workerThread : workerThreads) {
+            try {
+                workerThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        filesystemExecutor.shutdown();
+        if (tlsTaskPool != null) {
+            tlsTaskPool.shutdown();
+        }
+        listingCache.close();
+        treeWalkPool.shutdown();
+        hotFileCache.clear();
+        hashIndex.close();
+        if (hashIndexPath != null) {
+            try {
+                hashIndex.save(hashIndexPath);
+            } catch (IOException e) {
+                logger.error("Unable to save the content hash index to {}: {}", hashIndexPath, e.getMessage());
+            }
+        }
         logger.info("Server stopped");
     }
 
+    /**
+     * Returns the number of filesystem tasks waiting for a thread of the filesystem pool.
+     * @return the number of waiting filesystem tasks
+     */
+    public int getFilesystemQueueDepth() {
+        return filesystemExecutor.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of filesystem tasks kept by the workers because the filesystem pool's queue was full.
+     * @return the number of filesystem tasks waiting to be resubmitted
+     */
+    public int getFilesystemBacklogDepth() {
+        int result = 0;
+        for (FtpServerWorker worker : workers) {
+            result += worker.getFilesystemBacklogDepth();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the largest number of filesystem tasks that have simultaneously waited for a thread.
+     * @return the largest observed filesystem queue depth
+     */
+    public int getFilesystemPeakQueueDepth() {
+        return filesystemExecutor.getPeakQueueDepth();
+    }
+
+    /**
+     * Returns the number of filesystem tasks being performed right now.
+     * @return the number of active filesystem tasks
+     */
+    public int getFilesystemActiveTasksNumber() {
+        return filesystemExecutor.getActiveTasksNumber();
+    }
+
+    /**
+     * Returns the number of completed filesystem tasks.
+     * @return the number of completed filesystem tasks
+     */
+    public long getFilesystemCompletedTasksNumber() {
+        return filesystemExecutor.getCompletedTasksNumber();
+    }
+
+    /**
+     * Returns the number of submissions of filesystem tasks rejected because the pool was saturated;
+     * the rejected tasks are kept in the workers' backlogs and resubmitted.
+     * @return the number of rejected submissions of filesystem tasks
+     */
+    public long getFilesystemRejectedTasksNumber() {
+        return filesystemExecutor.getRejectedTasksNumber();
+    }
+
+    /**
+     * Returns the number of completed filesystem tasks waiting to be handed back to the workers.
+     * @return the number of completed filesystem tasks waiting for the workers
+     */
+    public int getCompletionQueueDepth() {
+        int result = 0;
+        for (FtpServerWorker worker : workers) {
+            result += worker.getCompletedTasksQueueDepth();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of list queries served from the listing cache.
+     * @return the number of listing cache hits
+     */
+    public long getListingCacheHitsNumber() {
+        return listingCache.getHitsNumber();
+    }
+
+    /**
+     * Returns the number of list queries that required reading the directory from the disk.
+     * @return the number of listing cache misses
+     */
+    public long getListingCacheMissesNumber() {
+        return listingCache.getMissesNumber();
+    }
+
+    /**
+     * Returns the share of list queries served from the listing cache.
+     * @return the listing cache hit ratio or 0 if there were no list queries
+     */
+    public double getListingCacheHitRatio() {
+        long hitsNumber = listingCache.getHitsNumber();
+        long queriesNumber = hitsNumber + listingCache.getMissesNumber();
+        return queriesNumber == 0 ? 0 : (double) hitsNumber / queriesNumber;
+    }
+
+    /**
+     * Returns the number of listings dropped from the cache to respect its bounds.
+     * @return the number of listing cache evictions
+     */
+    public long getListingCacheEvictionsNumber() {
+        return listingCache.getEvictionsNumber();
+    }
+
+    /**
+     * Returns the number of changes of the watched directories that invalidated the cached listings.
+     * @return the number of listing cache invalidations
+     */
+    public long getListingCacheInvalidationsNumber() {
+        return listingCache.getInvalidationsNumber();
+    }
+
+    /**
+     * Returns the number of cached listings.
+     * @return the number of cached listings
+     */
+    public int getListingCacheEntriesNumber() {
+        return listingCache.getEntriesNumber();
+    }
+
+    /**
+     * Returns the total size of the cached listings.
+     * @return the total size of the cached listings in bytes
+     */
+    public long getListingCacheBytes() {
+        return listingCache.getBytes();
+    }
+
+    /**
+     * Returns the number of get queries served from the hot file cache.
+     * @return the number of hot file cache hits
+     */
+    public long getHotFileCacheHitsNumber() {
+        return hotFileCache.getHitsNumber();
+    }
+
+    /**
+     * Returns the number of get queries that required opening the file.
+     * @return the number of hot file cache misses
+     */
+    public long getHotFileCacheMissesNumber() {
+        return hotFileCache.getMissesNumber();
+    }
+
+    /**
+     * Returns the number of files dropped from the hot file cache to respect its bound.
+     * @return the number of hot file cache evictions
+     */
+    public long getHotFileCacheEvictionsNumber() {
+        return hotFileCache.getEvictionsNumber();
+    }
+
+    /**
+     * Returns the number of files dropped from the hot file cache because they changed.
+     * @return the number of hot file cache invalidations
+     */
+    public long getHotFileCacheInvalidationsNumber() {
+        return hotFileCache.getInvalidationsNumber();
+    }
+
+    /**
+     * Returns the number of files kept memory-mapped by the hot file cache.
+     * @return the number of cached files
+     */
+    public int getHotFileCacheEntriesNumber() {
+        return hotFileCache.getEntriesNumber();
+    }
+
+    /**
+     * Returns the total size of the memory-mapped files, including the dropped ones that are still being sent.
+     * @return the total size of the mapped files in bytes
+     */
+    public long getHotFileCacheBytes() {
+        return hotFileCache.getBytes();
+    }
+
+    /**
+     * Returns the number of content hashes served from the index.
+     * @return the number of content hash index hits
+     */
+    public long getHashIndexHitsNumber() {
+        return hashIndex.getHitsNumber();
+    }
+
+    /**
+     * Returns the number of content hashes computed.
+     * @return the number of content hash computations
+     */
+    public long getHashIndexComputationsNumber() {
+        return hashIndex.getComputationsNumber();
+    }
+
+    /**
+     * Returns the number of changes observed in the directories of the indexed files.
+     * @return the number of content hash index invalidations
+     */
+    public long getHashIndexInvalidationsNumber() {
+        return hashIndex.getInvalidationsNumber();
+    }
+
+    /**
+     * Returns the number of files in the content hash index.
+     * @return the number of content hash index entries
+     */
+    public int getHashIndexEntriesNumber() {
+        return hashIndex.getEntriesNumber();
+    }
+
+    /**
+     * Returns the number of TLS handshakes completed by the server.
+     * @return the number of completed handshakes
+     */
+    public long getTlsHandshakesNumber() {
+        long result = 0;
+        for (FtpServerWorker worker : workers) {
+            result += worker.getTlsHandshakesNumber();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of TLS handshakes completed by the server that have resumed earlier sessions.
+     * @return the number of abbreviated handshakes
+     */
+    public long getTlsResumedHandshakesNumber() {
+        long result = 0;
+        for (FtpServerWorker worker : workers) {
+            result += worker.getTlsResumedHandshakesNumber();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of TLS handshakes failed by the server, after which the clients have been disconnected.
+     * @return the number of failed handshakes
+     */
+    public long getTlsFailedHandshakesNumber() {
+        long result = 0;
+        for (FtpServerWorker worker : workers) {
+            result += worker.getTlsFailedHandshakesNumber();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total size of the files being uploaded to the server.
+     * @return the number of bytes reserved by the uploads in progress
+     */
+    public long getUploadingBytes() {
+        return uploadQuota.getReservedBytes();
+    }
+
+    /**
+     * Returns the total size of the encoded responses buffered for the clients and not written to their sockets yet.
+     * @return the number of buffered bytes
+     */
+    public long getOutboundBytes() {
+        return outboundBudget.getUsedBytes();
+    }
+
+    /**
+     * Returns the number of clients currently connected to the server.
+     * @return the number of connected clients
+     */
+    public int getConnectionsNumber() {
+        int result = 0;
+        for (FtpServerWorker worker : workers) {
+            result += worker.getClientsNumber();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of clients disconnected right after being accepted because of the connection limit.
+     * @return the number of rejected connections
+     */
+    public long getRejectedConnectionsNumber() {
+        return rejectedConnectionsNumber.get();
+    }
+
+    /**
+     * Returns the number of clients disconnected for exceeding the idle, read or write timeout.
+     * @return the number of evicted clients
+     */
+    public long getEvictedClientsNumber() {
+        long result = 0;
+        for (FtpServerWorker worker : workers) {
+            result += worker.getEvictedClientsNumber();
+        }
+        return result;
+    }
+
+    /**
+     * Chooses the worker to serve a newly accepted client. The workers whose threads have ended are skipped,
+     * as they would never register the client.
+     * @return the chosen worker or <tt>null</tt> if no worker is running
+     */
+    private @Nullable FtpServerWorker chooseWorker() {
+        switch (workerSelectionStrategy) {
+            case LEAST_LOADED: {
+                FtpServerWorker result = null;
+                for (int i = 0; i < workers.length; i++) {
+                    if (workerThreads[i].isAlive()
+                            && (result == null || workers[i].getClientsNumber() < result.getClientsNumber())) {
+                        result = workers[i];
+                    }
+                }
+                return result;
+            }
+            case ROUND_ROBIN:
+            default: {
+                for (int i = 0; i < workers.length; i++) {
+                    int index = nextWorkerIndex;
+                    nextWorkerIndex = (nextWorkerIndex + 1) % workers.length;
+                    if (workerThreads[index].isAlive()) {
+                        return workers[index];
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
     private class FtpServerConnectionHandler implements Runnable {
-        private static final int MAX_FILE_TRANSMIT_UNIT = 1024 * 1024;
         private @NotNull SocketAddress bindingAddress;
-        
+
         public FtpServerConnectionHandler(@NotNull SocketAddress bindingAddress) {
             this.bindingAddress = bindingAddress;
         }
 
         /**
-         * Performs all the server logic.
+         * Accepts new clients and hands them off to the workers.
          */
         @Override
         public void run() {
-            try (Selector selector = Selector.open()) {
-                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try (Selector selector = Selector.open();
+                 ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
                 serverChannel.bind(bindingAddress);
                 serverChannel.configureBlocking(false);
                 serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-                
+
                 while (isRunning) {
                     selector.select();
                     Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
@@ -91,152 +622,20 @@ public class FtpServer implements Server {
                         SelectionKey selectionKey = keyIterator.next();
                         if (selectionKey.isAcceptable()) {
                             handleAccept(selectionKey);
-                        } else {
-                            if (!selectionKey.isValid()) {
-                                SocketChannel channel = (SocketChannel) selectionKey.channel();
-                                SocketAddress clientAddress = channel.getRemoteAddress();
-                                channel.close();
-                                logger.info("Client from {} disconnected", clientAddress);
-                                continue;
-                            }
-                            if (selectionKey.isReadable()) {
-                                handleIncoming(selectionKey);
-                            } else if (selectionKey.isWritable()) {
-                                handleOutgoing(selectionKey);
-                            }
                         }
                         keyIterator.remove();
                     }
                 }
-                
+
             } catch (IOException e) {
                 logger.error("I/O error while running server: {}", e.getMessage());
                 e.printStackTrace();
             }
         }
 
-        /**
-         * Does the necessary work with a channel ready for writing.
-         * @param selectionKey the channel's selection key
-         * @throws IOException if an I/O error occurs
-         */
-        private void handleOutgoing(@NotNull SelectionKey selectionKey) throws IOException {
-            SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
-            ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
-            try {
-                MessageWriter messageWriter = clientHandlingSuite.getWriter();
-                switch (clientHandlingSuite.getStatus()) {
-                    case SENDING_LIST:
-                        if (messageWriter.write()) {
-                            logger.info("List response sent to {}", clientChannel.getRemoteAddress());
-                            clientHandlingSuite.setStatus(ClientHandlingStatus.RECEIVING);
-                            selectionKey.channel().register(
-                                    selectionKey.selector(),
-                                    SelectionKey.OP_READ,
-                                    clientHandlingSuite
-                            );
-                        }
-                        break;
-                    case SENDING_GET:
-                        if (messageWriter.write()) {
-                            FileChannel fileChannel = clientHandlingSuite.getFileChannel();
-                            if (fileChannel != null) {
-                                long bytesSent = fileChannel.transferTo(fileChannel.position(),
-                                        MAX_FILE_TRANSMIT_UNIT, clientChannel);
-                                fileChannel.position(fileChannel.position() + bytesSent);
-                            }
-                            if (fileChannel == null || fileChannel.position() == fileChannel.size()) {
-                                if (fileChannel != null) {
-                                    try {
-                                        fileChannel.close();
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                                logger.info("Get response sent to {}", clientChannel.getRemoteAddress());
-                                clientHandlingSuite.setStatus(ClientHandlingStatus.RECEIVING);
-                                selectionKey.channel().register(
-                                        selectionKey.selector(),
-                                        SelectionKey.OP_READ,
-                                        clientHandlingSuite
-                                );
-                            }
-                        }
-                        break;
-                }
-            } catch (IOException e) {
-                SocketAddress address = clientChannel.getRemoteAddress();
-                FileChannel fileChannel = clientHandlingSuite.getFileChannel();
-                if (fileChannel != null && !fileChannel.isOpen()) {
-                    try {
-                        fileChannel.close();
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                    }
-                }
-                clientChannel.close();
-                logger.info("Client from {} disconnected", address);
-            }
-        }
-
-        /**
-         * Does the necessary work with a channel ready for reading.
-         * @param selectionKey the channel's selection key
-         * @throws IOException if an I/O error occurs
-         */
-        private void handleIncoming(@NotNull SelectionKey selectionKey) throws IOException {
-            SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
-            ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
-            MessageReader messageReader = clientHandlingSuite.getReader();
-            Optional<Message> messageOptional = messageReader.read();
-            if (messageOptional.isPresent()) {
-                Message message = messageOptional.get();
-                FtpQuery query = SerializationUtils.deserialize(message.getData());
-                Path path = Paths.get(query.getPath());
-                switch (query.getType()) {
-                    case LIST: {
-                        logger.info("List query received from {}",
-                                clientChannel.getRemoteAddress());
-                        ArrayList<FtpListResponseItem> responseItems = new ArrayList<>();
-                        if (Files.exists(path)) {
-                            File file = path.toRealPath().toFile();
-                            File[] files = file.listFiles();
-                            if (files != null) {
-                                for (File item : files) {
-                                    responseItems.add(new FtpListResponseItem(item.getName(), item.isDirectory()));
-                                }
-                            }
-                        }
-                        MessageWriter writer = clientHandlingSuite.getWriter();
-                        writer.startNewMessage(
-                                new Message(SerializationUtils.serialize(new FtpListResponse(responseItems)))
-                        );
-                        clientHandlingSuite.setStatus(ClientHandlingStatus.SENDING_LIST);
-                        break;
-                    }
-                    case GET: {
-                        logger.info("Get query received from {}",
-                                clientChannel.getRemoteAddress());
-                        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
-                        clientHandlingSuite.setFileChannel(fileChannel);
-                        MessageWriter writer = clientHandlingSuite.getWriter();
-                        writer.startNewMessage(
-                                new Message(SerializationUtils.serialize(new FtpGetResponse(fileChannel.size())))
-                        );
-                        clientHandlingSuite.setStatus(ClientHandlingStatus.SENDING_GET);
-                        break;
-                    }
-                }
-                selectionKey.channel().register(selectionKey.selector(), SelectionKey.OP_WRITE, clientHandlingSuite);
-            } else if (messageReader.isClientDisconnected()) {
-                SocketAddress address = clientChannel.getRemoteAddress();
-                clientChannel.close();
-                logger.info("Client from {} disconnected", address);
-            }
-        }
-
         /**
          * Does the necessary work with a channel ready for accepting.
+         * The new client is disconnected at once if the maximum number of clients is connected already.
          * @param selectionKey the channel's selection key
          * @throws IOException if an I/O error occurs
          */
@@ -244,15 +643,22 @@ public class FtpServer implements Server {
             ServerSocketChannel serverChannel = (ServerSocketChannel) selectionKey.channel();
             SocketChannel socketChannel = serverChannel.accept();
             if (socketChannel != null) {
+                if (getConnectionsNumber() >= maxConnections) {
+                    logger.info("Rejected client from {}: {} clients connected",
+                            socketChannel.getRemoteAddress(), maxConnections);
+                    rejectedConnectionsNumber.incrementAndGet();
+                    socketChannel.close();
+                    return;
+                }
+                FtpServerWorker worker = chooseWorker();
+                if (worker == null) {
+                    logger.error("Rejected client from {}: no worker is running", socketChannel.getRemoteAddress());
+                    rejectedConnectionsNumber.incrementAndGet();
+                    socketChannel.close();
+                    return;
+                }
                 logger.info("Accepted new client from {}", socketChannel.getRemoteAddress());
-                socketChannel.configureBlocking(false);
-                SelectionKey clientSelectionKey = socketChannel.register(selectionKey.selector(), SelectionKey.OP_READ);
-                clientSelectionKey.attach(
-                        new ClientHandlingSuite(
-                                new MessageReader(socketChannel),
-                                new MessageWriter(socketChannel)
-                        )
-                );
+                worker.addClient(socketChannel);
             }
         }
     }
@@ -0,0 +1,1478 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.delta.BlockSignatures;
+import ru.spbau.eshcherbin.hw4.ftp.FtpBatchQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompressionResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpConditionalGetQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpDeltaQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListResponseItem;
+import ru.spbau.eshcherbin.hw4.ftp.FtpMessageCodec;
+import ru.spbau.eshcherbin.hw4.ftp.FtpNotModifiedResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPingResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutStatus;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpResponse;
+import ru.spbau.eshcherbin.hw4.messages.BufferPool;
+import ru.spbau.eshcherbin.hw4.messages.Message;
+import ru.spbau.eshcherbin.hw4.messages.MessageReader;
+import ru.spbau.eshcherbin.hw4.messages.MessageWriter;
+import ru.spbau.eshcherbin.hw4.tls.TlsChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A worker of the FTP server that serves its share of clients with its own selector.
+ * New clients are handed off to the worker by the server's acceptor thread.
+ */
+class FtpServerWorker implements Runnable {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(FtpServerWorker.class);
+    private static final int MIN_FILE_TRANSMIT_UNIT = 16 * 1024;
+    private static final int MAX_FILE_TRANSMIT_UNIT = 1024 * 1024;
+    private static final long WRITE_BUDGET_PER_ITERATION = 512 * 1024;
+    private static final long LARGE_BODY_THRESHOLD = 64 * 1024;
+    private static final int MAX_QUERIES_PER_READ = 64;
+    // the longest query is a delta query carrying the signatures of the most blocks, plus room for its path
+    private static final int MAX_QUERY_LENGTH =
+            BlockSignatures.MAX_BLOCKS_NUMBER * (Integer.BYTES + BlockSignatures.STRONG_HASH_LENGTH) + 1024 * 1024;
+    private static final long UPLOAD_BUDGET_PER_ITERATION = 1024 * 1024;
+    private static final long MAX_OUTBOUND_BYTES_PER_CLIENT = 4 * 1024 * 1024;
+    private static final int MAX_PENDING_RESPONSES_PER_CLIENT = 64;
+    private static final int MAX_TREE_DEPTH = 64;
+    private static final int MAX_TREE_ENTRIES = 1000000;
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int TIMER_SLOTS_NUMBER = 512;
+    private static final long BACKLOG_RETRY_MILLIS = 10;
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long DEFAULT_READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long DEFAULT_WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private final @NotNull Selector selector;
+    private final @NotNull FilesystemExecutor filesystemExecutor;
+    private final @NotNull ListingCache listingCache;
+    private final @NotNull ForkJoinPool treeWalkPool;
+    private final @NotNull HotFileCache hotFileCache;
+    private final @NotNull ContentHashIndex hashIndex;
+    private final @NotNull UploadQuota uploadQuota;
+    private final @NotNull OutboundBudget outboundBudget;
+    private final @NotNull Queue<SocketChannel> newClients = new ConcurrentLinkedQueue<>();
+    private final @NotNull Queue<Runnable> completedTasks = new ConcurrentLinkedQueue<>();
+    private final @NotNull Deque<BackloggedTask> filesystemBacklog = new ArrayDeque<>();
+    private final @NotNull AtomicInteger filesystemBacklogDepth = new AtomicInteger();
+    private final @NotNull AtomicInteger clientsNumber = new AtomicInteger();
+    private final @NotNull List<SelectionKey> deferredWrites = new ArrayList<>();
+    private final @NotNull Set<SelectionKey> bufferedReads = new LinkedHashSet<>();
+    private final @NotNull TimerWheel<SelectionKey> timerWheel =
+            new TimerWheel<>(TIMER_TICK_NANOS, TIMER_SLOTS_NUMBER, System.nanoTime());
+    private final @NotNull AtomicLong evictedClientsNumber = new AtomicLong();
+    private final @NotNull AtomicLong tlsHandshakesNumber = new AtomicLong();
+    private final @NotNull AtomicLong tlsResumedHandshakesNumber = new AtomicLong();
+    private final @NotNull AtomicLong tlsFailedHandshakesNumber = new AtomicLong();
+    private @Nullable SSLContext sslContext;
+    private @Nullable Executor tlsTaskExecutor;
+    private @Nullable Path uploadRoot;
+    private long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private long readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_READ_TIMEOUT_MILLIS);
+    private long writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WRITE_TIMEOUT_MILLIS);
+    private long iterationNanos = System.nanoTime();
+    private volatile boolean isRunning = true;
+
+    /**
+     * Creates a worker with a newly opened selector.
+     * @param filesystemExecutor the executor performing blocking filesystem work
+     * @param listingCache the cache of directory listings shared by the workers
+     * @param treeWalkPool the pool listing directories in parallel for the recursive list queries
+     * @param hotFileCache the cache of the frequently requested files shared by the workers
+     * @param hashIndex the index of the content hashes of the files shared by the workers
+     * @param uploadQuota the quota of the uploads shared by the workers
+     * @param outboundBudget the memory budget for the buffered responses shared by the workers
+     * @throws IOException if an I/O error occurs
+     */
+    public FtpServerWorker(@NotNull FilesystemExecutor filesystemExecutor, @NotNull ListingCache listingCache,
+                           @NotNull ForkJoinPool treeWalkPool, @NotNull HotFileCache hotFileCache,
+                           @NotNull ContentHashIndex hashIndex, @NotNull UploadQuota uploadQuota,
+                           @NotNull OutboundBudget outboundBudget) throws IOException {
+        this.filesystemExecutor = filesystemExecutor;
+        this.listingCache = listingCache;
+        this.treeWalkPool = treeWalkPool;
+        this.hotFileCache = hotFileCache;
+        this.hashIndex = hashIndex;
+        this.uploadQuota = uploadQuota;
+        this.outboundBudget = outboundBudget;
+        selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted client off to this worker.
+     * The client is registered with the worker's selector by the worker's own thread.
+     * @param socketChannel the client's channel
+     */
+    public void addClient(@NotNull SocketChannel socketChannel) {
+        clientsNumber.incrementAndGet();
+        newClients.add(socketChannel);
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules an action to be performed by the worker's own thread, e.g. completion of a filesystem task.
+     * @param action the action
+     */
+    private void runInSelectorThread(@NotNull Runnable action) {
+        completedTasks.add(action);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the number of completed tasks waiting to be handled by the worker's thread.
+     * @return the number of completed tasks waiting to be handled
+     */
+    public int getCompletedTasksQueueDepth() {
+        return completedTasks.size();
+    }
+
+    /**
+     * Returns the number of filesystem tasks waiting in the worker's backlog to be resubmitted.
+     * @return the number of backlogged filesystem tasks
+     */
+    public int getFilesystemBacklogDepth() {
+        return filesystemBacklogDepth.get();
+    }
+
+    /**
+     * Returns the number of clients currently served by this worker.
+     * @return the number of clients currently served by this worker
+     */
+    public int getClientsNumber() {
+        return clientsNumber.get();
+    }
+
+    /**
+     * Returns the number of clients disconnected by this worker for exceeding a timeout.
+     * @return the number of evicted clients
+     */
+    public long getEvictedClientsNumber() {
+        return evictedClientsNumber.get();
+    }
+
+    /**
+     * Sets the timeouts after which the clients are disconnected. Should be called before the worker is started.
+     * @param idleTimeoutMillis the time a client may stay connected without sending queries or receiving responses
+     * @param readTimeoutMillis the time a client may take to send a single query once it has started
+     * @param writeTimeoutMillis the time a client may stay without accepting data while there is data to send to it
+     */
+    public void setTimeouts(long idleTimeoutMillis, long readTimeoutMillis, long writeTimeoutMillis) {
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    }
+
+    /**
+     * Sets the directory the uploads are confined to. Should be called before the worker is started.
+     * @param uploadRoot the upload root or <tt>null</tt> to forbid the uploads
+     */
+    public void setUploadRoot(@Nullable Path uploadRoot) {
+        this.uploadRoot = uploadRoot;
+    }
+
+    /**
+     * Makes the worker serve the clients over TLS. Should be called before the worker is started.
+     * @param sslContext the context to create the engines from
+     * @param tlsTaskExecutor the executor to run the delegated tasks of the handshakes
+     */
+    public void setTls(@NotNull SSLContext sslContext, @NotNull Executor tlsTaskExecutor) {
+        this.sslContext = sslContext;
+        this.tlsTaskExecutor = tlsTaskExecutor;
+    }
+
+    /**
+     * Returns the number of TLS handshakes completed by this worker.
+     * @return the number of completed handshakes
+     */
+    public long getTlsHandshakesNumber() {
+        return tlsHandshakesNumber.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes completed by this worker that have resumed earlier sessions.
+     * @return the number of abbreviated handshakes
+     */
+    public long getTlsResumedHandshakesNumber() {
+        return tlsResumedHandshakesNumber.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes failed by this worker.
+     * @return the number of failed handshakes
+     */
+    public long getTlsFailedHandshakesNumber() {
+        return tlsFailedHandshakesNumber.get();
+    }
+
+    /**
+     * Makes the worker stop after the current iteration.
+     */
+    public void stop() {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Serves the clients until stopped.
+     * The selector waits no longer than until the next tick of the timer wheel, which is advanced
+     * after the ready keys have been handled. The clients whose TLS channels hold input the sockets
+     * will not signal readiness for are served in each iteration as if they were readable, without waiting.
+     * While filesystem tasks are backlogged, the selector waits no longer than {@link #BACKLOG_RETRY_MILLIS},
+     * so that they are resubmitted soon after the filesystem pool catches up.
+     */
+    @Override
+    public void run() {
+        try {
+            while (isRunning) {
+                long timeoutNanos = timerWheel.getNanosUntilNextTick(System.nanoTime());
+                if (!bufferedReads.isEmpty()) {
+                    selector.selectNow();
+                } else if (timeoutNanos < 0 && filesystemBacklog.isEmpty()) {
+                    selector.select();
+                } else {
+                    long nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+                    long timeoutMillis = timeoutNanos < 0 ? Long.MAX_VALUE
+                            : (timeoutNanos + nanosPerMilli - 1) / nanosPerMilli;
+                    if (!filesystemBacklog.isEmpty()) {
+                        timeoutMillis = Math.min(timeoutMillis, BACKLOG_RETRY_MILLIS);
+                    }
+                    selector.select(timeoutMillis);
+                }
+                iterationNanos = System.nanoTime();
+                registerNewClients();
+                runCompletedTasks();
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey selectionKey = keyIterator.next();
+                    keyIterator.remove();
+                    if (!selectionKey.isValid()) {
+                        closeClient(selectionKey);
+                        continue;
+                    }
+                    try {
+                        if (selectionKey.isReadable()) {
+                            bufferedReads.remove(selectionKey);
+                            handleIncoming(selectionKey);
+                            checkBufferedInput(selectionKey);
+                        }
+                        if (selectionKey.isValid() && selectionKey.isWritable()) {
+                            if (isSendingLargeBody(selectionKey)) {
+                                deferredWrites.add(selectionKey);
+                            } else {
+                                handleOutgoing(selectionKey);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        closeFailedClient(selectionKey, e);
+                    }
+                }
+                for (SelectionKey selectionKey : deferredWrites) {
+                    if (selectionKey.isValid()) {
+                        try {
+                            handleOutgoing(selectionKey);
+                        } catch (RuntimeException e) {
+                            closeFailedClient(selectionKey, e);
+                        }
+                    }
+                }
+                deferredWrites.clear();
+                handleBufferedReads();
+                timerWheel.advance(System.nanoTime(), this::checkTimeouts);
+            }
+        } catch (IOException e) {
+            logger.error("I/O error while running server worker: {}", e.getMessage());
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey selectionKey : selector.keys()) {
+                try {
+                    selectionKey.channel().close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (SocketChannel socketChannel : newClients) {
+                try {
+                    socketChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Serves the clients whose TLS channels hold buffered input as if their channels were readable,
+     * as long as they may be read from.
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleBufferedReads() throws IOException {
+        if (bufferedReads.isEmpty()) {
+            return;
+        }
+        List<SelectionKey> selectionKeys = new ArrayList<>(bufferedReads);
+        bufferedReads.clear();
+        for (SelectionKey selectionKey : selectionKeys) {
+            if (selectionKey.isValid() && (selectionKey.interestOps() & SelectionKey.OP_READ) != 0) {
+                try {
+                    handleIncoming(selectionKey);
+                    checkBufferedInput(selectionKey);
+                } catch (RuntimeException e) {
+                    closeFailedClient(selectionKey, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remembers to serve the client in the next iteration if its TLS channel holds buffered input
+     * and the client may be read from.
+     * @param selectionKey the client channel's selection key
+     */
+    private void checkBufferedInput(@NotNull SelectionKey selectionKey) {
+        if (selectionKey.isValid() && (selectionKey.interestOps() & SelectionKey.OP_READ) != 0
+                && ((ClientHandlingSuite) selectionKey.attachment()).hasBufferedInput()) {
+            bufferedReads.add(selectionKey);
+        }
+    }
+
+    /**
+     * Registers the clients handed off since the last iteration with the selector.
+     * With TLS, the clients start with the handshake, which is driven by the same handlers as the queries.
+     */
+    private void registerNewClients() {
+        SocketChannel socketChannel;
+        while ((socketChannel = newClients.poll()) != null) {
+            try {
+                socketChannel.configureBlocking(false);
+                ByteChannel channel = socketChannel;
+                TlsChannel tlsChannel = null;
+                if (sslContext != null) {
+                    SSLEngine engine = sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    // the handshake and the session tickets are small writes followed by more ones,
+                    // which Nagle's algorithm would hold back until the client's delayed acknowledgements
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    tlsChannel = new TlsChannel(socketChannel, engine, BufferPool.getDefault(), tlsTaskExecutor);
+                    channel = tlsChannel;
+                }
+                ClientHandlingSuite clientHandlingSuite = new ClientHandlingSuite(
+                        channel,
+                        new MessageReader(channel, BufferPool.getDefault(), MAX_QUERY_LENGTH),
+                        new MessageWriter(channel),
+                        outboundBudget
+                );
+                SelectionKey selectionKey = socketChannel.register(selector, SelectionKey.OP_READ,
+                        clientHandlingSuite);
+                if (tlsChannel != null) {
+                    tlsChannel.setTaskListener(() -> runInSelectorThread(() -> resumeTls(selectionKey)));
+                }
+                TimerWheel.Timer<SelectionKey> timer = timerWheel.newTimer(selectionKey);
+                clientHandlingSuite.setTimer(timer);
+                clientHandlingSuite.markConnected(iterationNanos);
+                clientHandlingSuite.markActivity(iterationNanos);
+                timerWheel.schedule(timer, iterationNanos + getMinTimeoutNanos());
+            } catch (IOException e) {
+                logger.error("Unable to register a client: {}", e.getMessage());
+                clientsNumber.decrementAndGet();
+                try {
+                    socketChannel.close();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs the actions scheduled by the filesystem executor since the last iteration
+     * and resubmits the backlogged filesystem tasks.
+     */
+    private void runCompletedTasks() {
+        Runnable action;
+        while ((action = completedTasks.poll()) != null) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error while completing a task", e);
+            }
+        }
+        resubmitBacklog();
+    }
+
+    /**
+     * Submits a task to the filesystem executor. If the executor's queue is full, or earlier tasks
+     * are still backlogged, the task is put into the worker's backlog instead of being run by the worker's thread,
+     * and no more queries are read from the client until its backlogged tasks are submitted.
+     * Performed by the worker's thread.
+     * @param selectionKey the selection key of the client the task is performed for
+     * @param task the task
+     */
+    private void submitFilesystemTask(@NotNull SelectionKey selectionKey, @NotNull Runnable task) {
+        if (filesystemBacklog.isEmpty() && filesystemExecutor.tryExecute(task)) {
+            return;
+        }
+        filesystemBacklog.add(new BackloggedTask(selectionKey, task));
+        filesystemBacklogDepth.incrementAndGet();
+        ((ClientHandlingSuite) selectionKey.attachment()).addBackloggedTask();
+    }
+
+    /**
+     * Resubmits the backlogged filesystem tasks in order while the executor accepts them,
+     * resuming reading from the clients whose tasks have all been submitted. The tasks of the disconnected clients
+     * are submitted as well, as they release the resources they hold on completion.
+     * Performed by the worker's thread.
+     */
+    private void resubmitBacklog() {
+        BackloggedTask backloggedTask;
+        while ((backloggedTask = filesystemBacklog.peek()) != null
+                && filesystemExecutor.tryExecute(backloggedTask.task)) {
+            filesystemBacklog.poll();
+            filesystemBacklogDepth.decrementAndGet();
+            SelectionKey selectionKey = backloggedTask.selectionKey;
+            ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+            clientHandlingSuite.removeBackloggedTask();
+            if (selectionKey.isValid() && !clientHandlingSuite.hasBackloggedTasks()) {
+                try {
+                    updateInterestOps(selectionKey);
+                } catch (RuntimeException e) {
+                    closeFailedClient(selectionKey, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Disconnects a client whose handling has failed unexpectedly, so that the worker goes on serving the others.
+     * @param selectionKey the client channel's selection key
+     * @param e the failure
+     */
+    private void closeFailedClient(@NotNull SelectionKey selectionKey, @NotNull RuntimeException e) {
+        logger.error("Unexpected error while serving a client", e);
+        closeClient(selectionKey);
+    }
+
+    /**
+     * Closes the client's channel and releases all the resources associated with it.
+     * @param selectionKey the client channel's selection key
+     */
+    private void closeClient(@NotNull SelectionKey selectionKey) {
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
+        ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+        if (clientHandlingSuite != null) {
+            clientHandlingSuite.release();
+            if (clientHandlingSuite.getTimer() != null) {
+                timerWheel.cancel(clientHandlingSuite.getTimer());
+            }
+        }
+        if (!clientChannel.isOpen()) {
+            return;
+        }
+        SocketAddress address = null;
+        try {
+            address = clientChannel.getRemoteAddress();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (clientHandlingSuite != null) {
+                clientHandlingSuite.getChannel().close();
+            } else {
+                clientChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        bufferedReads.remove(selectionKey);
+        clientsNumber.decrementAndGet();
+        logger.info("Client from {} disconnected", address);
+    }
+
+    /**
+     * Returns the shortest of the timeouts, which is the longest interval between the checks of a client's timeouts.
+     * @return the shortest timeout in nanoseconds
+     */
+    private long getMinTimeoutNanos() {
+        return Math.min(idleTimeoutNanos, Math.min(readTimeoutNanos, writeTimeoutNanos));
+    }
+
+    /**
+     * Checks the timeouts of a client whose timer has expired. Performed by the worker's thread.
+     * The events on the channel only update the timestamps in the client's suite, and the deadline is computed
+     * from them here: the TLS handshake and a partially received query must be completed within the read timeout,
+     * the content of an upload must make progress within the read timeout,
+     * ready data must make progress within the write timeout, and a client with nothing in progress
+     * is disconnected after the idle timeout. If no deadline has passed, the timer is scheduled again
+     * for the nearest deadline, but no later than the shortest timeout from now, as the state may change meanwhile.
+     * @param selectionKey the client channel's selection key
+     */
+    private void checkTimeouts(@NotNull SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            closeClient(selectionKey);
+            return;
+        }
+        ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+        long nowNanos = System.nanoTime();
+        long deadlineNanos = nowNanos + getMinTimeoutNanos();
+        String reason = null;
+        boolean isBusy = false;
+        TlsChannel tlsChannel = clientHandlingSuite.getTlsChannel();
+        if (tlsChannel != null && !tlsChannel.isHandshakeComplete()) {
+            isBusy = true;
+            long handshakeDeadlineNanos = clientHandlingSuite.getConnectedNanos() + readTimeoutNanos;
+            if (handshakeDeadlineNanos - deadlineNanos < 0) {
+                deadlineNanos = handshakeDeadlineNanos;
+                reason = "TLS handshake not completed within the read timeout";
+            }
+        }
+        if (clientHandlingSuite.isMessageStarted() && (selectionKey.interestOps() & SelectionKey.OP_READ) != 0) {
+            isBusy = true;
+            long readDeadlineNanos = clientHandlingSuite.getMessageStartNanos() + readTimeoutNanos;
+            if (readDeadlineNanos - deadlineNanos < 0) {
+                deadlineNanos = readDeadlineNanos;
+                reason = "query not completed within the read timeout";
+            }
+        }
+        IncomingUpload upload = clientHandlingSuite.getUpload();
+        if (upload != null && !upload.isOpening()) {
+            isBusy = true;
+            long uploadDeadlineNanos = upload.getLastProgressNanos() + readTimeoutNanos;
+            if (uploadDeadlineNanos - deadlineNanos < 0) {
+                deadlineNanos = uploadDeadlineNanos;
+                reason = "no upload progress within the read timeout";
+            }
+        }
+        if ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            isBusy = true;
+            long writeDeadlineNanos = clientHandlingSuite.getLastWriteProgressNanos() + writeTimeoutNanos;
+            if (writeDeadlineNanos - deadlineNanos < 0) {
+                deadlineNanos = writeDeadlineNanos;
+                reason = "no write progress within the write timeout";
+            }
+        }
+        if (!isBusy && clientHandlingSuite.getResponses().isEmpty()) {
+            long idleDeadlineNanos = clientHandlingSuite.getLastActivityNanos() + idleTimeoutNanos;
+            if (idleDeadlineNanos - deadlineNanos < 0) {
+                deadlineNanos = idleDeadlineNanos;
+                reason = "idle timeout";
+            }
+        }
+        if (reason != null && deadlineNanos - nowNanos <= 0) {
+            SocketAddress address = null;
+            try {
+                address = ((SocketChannel) selectionKey.channel()).getRemoteAddress();
+            } catch (IOException ignored) {
+            }
+            logger.info("Evicting client from {}: {}", address, reason);
+            evictedClientsNumber.incrementAndGet();
+            closeClient(selectionKey);
+            return;
+        }
+        TimerWheel.Timer<SelectionKey> timer = clientHandlingSuite.getTimer();
+        if (timer != null) {
+            timerWheel.schedule(timer, deadlineNanos);
+        }
+    }
+
+    /**
+     * Returns whether the client is in the middle of receiving a large file.
+     * Such clients are served after the others in each iteration, so that small responses are not delayed
+     * behind large transfers.
+     * @param selectionKey the channel's selection key
+     * @return whether the client is receiving a large file
+     */
+    private static boolean isSendingLargeBody(@NotNull SelectionKey selectionKey) {
+        ResponseBody body = ((ClientHandlingSuite) selectionKey.attachment()).getCurrentBody();
+        return body != null && body.getRemaining() > LARGE_BODY_THRESHOLD;
+    }
+
+    /**
+     * Does the necessary work with a channel ready for writing.
+     * Ready responses are sent in the order of the queries while the socket accepts data,
+     * but no more than {@link #WRITE_BUDGET_PER_ITERATION} bytes per iteration, so that a single client
+     * cannot monopolize the worker. The rest is sent in the next iterations, as the key stays interested in writing.
+     * File content is transferred in units that adapt to how much the socket accepts at once.
+     * Once the buffered responses drain, reading the client's queries is resumed.
+     * @param selectionKey the channel's selection key
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleOutgoing(@NotNull SelectionKey selectionKey) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
+        ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+        TlsChannel tlsChannel = clientHandlingSuite.getTlsChannel();
+        if (tlsChannel != null && !progressHandshake(selectionKey, tlsChannel)) {
+            return;
+        }
+        MessageWriter messageWriter = clientHandlingSuite.getWriter();
+        long bytesWrittenBefore = messageWriter.getBytesWritten();
+        long budgetEnd = bytesWrittenBefore + WRITE_BUDGET_PER_ITERATION;
+        long bodyBytesSent = 0;
+        try {
+            if (tlsChannel != null && !tlsChannel.flush()) {
+                return;
+            }
+            while (true) {
+                if (!messageWriter.write()) {
+                    return;
+                }
+                long budget = budgetEnd - messageWriter.getBytesWritten() - bodyBytesSent;
+                if (budget <= 0) {
+                    return;
+                }
+                ResponseBody body = clientHandlingSuite.getCurrentBody();
+                if (body != null) {
+                    int transmitUnit = clientHandlingSuite.getTransmitUnit();
+                    long maxBytes = Math.min(transmitUnit, budget);
+                    long bytesSent = body.transferTo(clientHandlingSuite.getChannel(), maxBytes);
+                    bodyBytesSent += bytesSent;
+                    if (bytesSent < maxBytes) {
+                        clientHandlingSuite.setTransmitUnit((int) Math.max(bytesSent, MIN_FILE_TRANSMIT_UNIT));
+                    } else if (maxBytes == transmitUnit) {
+                        clientHandlingSuite.setTransmitUnit(Math.min(2 * transmitUnit, MAX_FILE_TRANSMIT_UNIT));
+                    }
+                    if (body.getRemaining() > 0) {
+                        if (bytesSent < maxBytes) {
+                            return; // the socket buffer is full
+                        }
+                        continue;
+                    }
+                    body.close();
+                    clientHandlingSuite.setCurrentBody(null);
+                }
+                if (!queueReadyParts(selectionKey, clientHandlingSuite, clientChannel)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            closeClient(selectionKey);
+        } finally {
+            if (bodyBytesSent > 0 || messageWriter.getBytesWritten() > bytesWrittenBefore) {
+                clientHandlingSuite.markWriteProgress(iterationNanos);
+            }
+            clientHandlingSuite.accountWrittenBytes();
+            updateInterestOps(selectionKey);
+        }
+    }
+
+    /**
+     * Queues the messages of the ready response parts to the writer, up to the first part with raw content,
+     * which becomes the current body. Once all the produced parts of a response have been queued,
+     * the next portion of them is requested from its producer.
+     * @param selectionKey the client channel's selection key
+     * @param clientHandlingSuite the client's handling suite
+     * @param clientChannel the client's channel
+     * @return whether anything has been queued
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean queueReadyParts(@NotNull SelectionKey selectionKey,
+                                    @NotNull ClientHandlingSuite clientHandlingSuite,
+                                    @NotNull SocketChannel clientChannel) throws IOException {
+        boolean isQueued = false;
+        Deque<PendingResponse> responses = clientHandlingSuite.getResponses();
+        PendingResponse response;
+        while ((response = responses.peek()) != null) {
+            ResponsePart part = response.pollPart();
+            if (part != null) {
+                isQueued = true;
+                clientHandlingSuite.getWriter().startNewMessage(part.getMessage());
+                if (part.getBody() != null) {
+                    clientHandlingSuite.setCurrentBody(part.getBody());
+                    break;
+                }
+            } else if (response.isSent()) {
+                responses.poll();
+                logger.info("Response to {} query sent to {}", response.getQueryType(),
+                        clientChannel.getRemoteAddress());
+            } else {
+                scheduleProduction(selectionKey, response);
+                break;
+            }
+        }
+        return isQueued;
+    }
+
+    /**
+     * Sets the interest ops of the client's key: writing is wanted if there is something ready to be sent,
+     * reading unless the client has too many responses waiting to be sent. While an upload is in progress,
+     * reading is wanted only once the upload is opened and its content may be received.
+     * The write timeout of the client is counted from the moment the data becomes ready.
+     * @param selectionKey the channel's selection key
+     */
+    private void updateInterestOps(@NotNull SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+        TlsChannel tlsChannel = clientHandlingSuite.getTlsChannel();
+        if (tlsChannel != null && (tlsChannel.isTaskRunning() || !tlsChannel.isHandshakeComplete())) {
+            selectionKey.interestOps(tlsChannel.isTaskRunning() ? 0
+                    : tlsChannel.hasPendingOutput() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            return;
+        }
+        PendingResponse response = clientHandlingSuite.getResponses().peek();
+        boolean hasDataToSend = clientHandlingSuite.getCurrentBody() != null
+                || clientHandlingSuite.getOutboundBytes() > 0
+                || (response != null && response.isSent())
+                || (tlsChannel != null && tlsChannel.hasPendingOutput());
+        if (hasDataToSend && (selectionKey.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            clientHandlingSuite.markWriteProgress(iterationNanos);
+        }
+        IncomingUpload upload = clientHandlingSuite.getUpload();
+        boolean isReading = upload != null ? !upload.isOpening() : isReadingAllowed(clientHandlingSuite);
+        selectionKey.interestOps((isReading ? SelectionKey.OP_READ : 0)
+                | (hasDataToSend ? SelectionKey.OP_WRITE : 0));
+        checkBufferedInput(selectionKey);
+    }
+
+    /**
+     * Returns whether new queries may be read from the client. Reading stops while the client has
+     * too many responses pending or too many bytes of them buffered, so that a client sending queries faster
+     * than it reads the responses is held back by TCP flow control instead of making the server buffer
+     * the responses. Once the server's outbound budget is exhausted, only the clients that have nothing buffered
+     * may send queries, so that the budget recovers as the buffered responses are written
+     * while the clients that do not overload the server are still served.
+     * No queries are read while the content of an upload is being received
+     * or filesystem tasks of the client wait in the worker's backlog.
+     * @param clientHandlingSuite the client's handling suite
+     * @return whether new queries may be read
+     */
+    private boolean isReadingAllowed(@NotNull ClientHandlingSuite clientHandlingSuite) {
+        long outboundBytes = clientHandlingSuite.getOutboundBytes();
+        return clientHandlingSuite.getUpload() == null
+                && !clientHandlingSuite.hasBackloggedTasks()
+                && clientHandlingSuite.getResponses().size() < MAX_PENDING_RESPONSES_PER_CLIENT
+                && outboundBytes < MAX_OUTBOUND_BYTES_PER_CLIENT
+                && (outboundBytes == 0 || !outboundBudget.isExhausted());
+    }
+
+    /**
+     * Does the necessary work with a channel ready for reading.
+     * All the queries that have been completely received are taken into processing,
+     * without waiting for the responses to the previous ones, until reading is no longer allowed.
+     * If the content of an upload is being received, it is received first, and the queries following it
+     * are read once it is complete.
+     * @param selectionKey the channel's selection key
+     * @throws IOException if an I/O error occurs
+     */
+    private void handleIncoming(@NotNull SelectionKey selectionKey) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
+        ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+        MessageReader messageReader = clientHandlingSuite.getReader();
+        clientHandlingSuite.markActivity(iterationNanos);
+        TlsChannel tlsChannel = clientHandlingSuite.getTlsChannel();
+        if (tlsChannel != null && !progressHandshake(selectionKey, tlsChannel)) {
+            return;
+        }
+        IncomingUpload currentUpload = clientHandlingSuite.getUpload();
+        if (currentUpload != null && !receiveUpload(selectionKey, currentUpload)) {
+            return;
+        }
+        for (int i = 0; i < MAX_QUERIES_PER_READ; i++) {
+            if (!isReadingAllowed(clientHandlingSuite)) {
+                updateInterestOps(selectionKey);
+                return;
+            }
+            Optional<Message> messageOptional;
+            try {
+                messageOptional = messageReader.read();
+            } catch (IOException e) {
+                closeClient(selectionKey);
+                return;
+            }
+            clientHandlingSuite.updateMessageStart(iterationNanos);
+            if (!messageOptional.isPresent()) {
+                if (messageReader.isClientDisconnected()) {
+                    closeClient(selectionKey);
+                }
+                return;
+            }
+            FtpQuery query;
+            Path path;
+            try {
+                query = decodeQuery(clientHandlingSuite, messageOptional.get());
+                path = Paths.get(query.getPath());
+            } catch (IOException | ClassCastException | InvalidPathException e) {
+                logger.error("Invalid query received from {}: {}", clientChannel.getRemoteAddress(), e.getMessage());
+                closeClient(selectionKey);
+                return;
+            }
+            int protocolVersion = clientHandlingSuite.getProtocolVersion();
+            FtpCompression compression = clientHandlingSuite.getCompression();
+            PendingResponse response = new PendingResponse(query.getType());
+            clientHandlingSuite.getResponses().add(response);
+            switch (query.getType()) {
+                case LIST:
+                    logger.info("List query received from {}",
+                            clientChannel.getRemoteAddress());
+                    submitFilesystemTask(selectionKey, () -> processList(selectionKey, response, path,
+                            protocolVersion, compression, false));
+                    break;
+                case LIST_WITH_HASHES:
+                    logger.info("List query with hashes received from {}",
+                            clientChannel.getRemoteAddress());
+                    submitFilesystemTask(selectionKey, () -> processList(selectionKey, response, path,
+                            protocolVersion, compression, true));
+                    break;
+                case GET:
+                    logger.info("Get query received from {}",
+                            clientChannel.getRemoteAddress());
+                    submitFilesystemTask(selectionKey, () -> processGet(selectionKey, response, path, query,
+                            protocolVersion, compression));
+                    break;
+                case GET_IF_HASH_DIFFERS:
+                    if (!(query instanceof FtpConditionalGetQuery)) {
+                        logger.error("Conditional get query without content hash received from {}",
+                                clientChannel.getRemoteAddress());
+                        closeClient(selectionKey);
+                        return;
+                    }
+                    logger.info("Conditional get query received from {}",
+                            clientChannel.getRemoteAddress());
+                    submitFilesystemTask(selectionKey, () -> processConditionalGet(selectionKey, response, path,
+                            (FtpConditionalGetQuery) query, protocolVersion, compression));
+                    break;
+                case PUT:
+                    if (!(query instanceof FtpPutQuery)) {
+                        logger.error("Put query without file size received from {}",
+                                clientChannel.getRemoteAddress());
+                        closeClient(selectionKey);
+                        return;
+                    }
+                    logger.info("Put query for {} bytes received from {}", ((FtpPutQuery) query).getFileSize(),
+                            clientChannel.getRemoteAddress());
+                    IncomingUpload upload = new IncomingUpload(path, uploadRoot, ((FtpPutQuery) query).getFileSize(),
+                            response, uploadQuota);
+                    clientHandlingSuite.setUpload(upload);
+                    submitFilesystemTask(selectionKey, () -> {
+                        upload.open();
+                        runInSelectorThread(() -> startUpload(selectionKey, upload, protocolVersion));
+                    });
+                    break;
+                case PING:
+                    completeResponse(selectionKey, response,
+                            new ResponsePart(encodeResponse(FtpPingResponse.getInstance(), protocolVersion)));
+                    break;
+                case LIST_STREAM:
+                    logger.info("Streaming list query received from {}",
+                            clientChannel.getRemoteAddress());
+                    response.setProducer(new DirectoryListProducer(path, protocolVersion, compression));
+                    scheduleProduction(selectionKey, response);
+                    break;
+                case GET_BATCH:
+                    if (!(query instanceof FtpBatchQuery)) {
+                        logger.error("Batch query without paths received from {}", clientChannel.getRemoteAddress());
+                        closeClient(selectionKey);
+                        return;
+                    }
+                    logger.info("Batch get query for {} files received from {}",
+                            ((FtpBatchQuery) query).getPaths().size(), clientChannel.getRemoteAddress());
+                    response.setProducer(new GetBatchProducer(((FtpBatchQuery) query).getPaths(), protocolVersion,
+                            compression, hotFileCache));
+                    scheduleProduction(selectionKey, response);
+                    break;
+                case GET_DELTA:
+                    if (!(query instanceof FtpDeltaQuery)) {
+                        logger.error("Delta query without signatures received from {}",
+                                clientChannel.getRemoteAddress());
+                        closeClient(selectionKey);
+                        return;
+                    }
+                    logger.info("Delta query with {} block signatures received from {}",
+                            ((FtpDeltaQuery) query).getBlocksNumber(), clientChannel.getRemoteAddress());
+                    response.setProducer(new DeltaProducer(path, (FtpDeltaQuery) query, protocolVersion,
+                            compression));
+                    scheduleProduction(selectionKey, response);
+                    break;
+                case GET_CHUNKED:
+                    logger.info("Chunked get query received from {}",
+                            clientChannel.getRemoteAddress());
+                    response.setProducer(new RecipeProducer(path, protocolVersion, compression));
+                    scheduleProduction(selectionKey, response);
+                    break;
+                case LIST_RECURSIVE:
+                    logger.info("Recursive list query received from {}",
+                            clientChannel.getRemoteAddress());
+                    response.setProducer(new TreeListProducer(path, protocolVersion, compression, treeWalkPool,
+                            MAX_TREE_DEPTH, MAX_TREE_ENTRIES));
+                    scheduleProduction(selectionKey, response);
+                    break;
+                case NEGOTIATE_COMPRESSION:
+                    FtpCompression negotiatedCompression = FtpCompression.NONE;
+                    if (protocolVersion >= FtpMessageCodec.COMPRESSION_PROTOCOL_VERSION) {
+                        negotiatedCompression = FtpCompression.negotiate(Arrays.asList(query.getPath().split(",")));
+                    }
+                    logger.info("Compression {} negotiated with {}", negotiatedCompression.getName(),
+                            clientChannel.getRemoteAddress());
+                    clientHandlingSuite.setCompression(negotiatedCompression);
+                    completeResponse(selectionKey, response, new ResponsePart(
+                            encodeResponse(new FtpCompressionResponse(negotiatedCompression), protocolVersion)));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Advances the TLS handshake of the client as far as possible. Performed by the worker's thread.
+     * @param selectionKey the client channel's selection key
+     * @param tlsChannel the client's TLS channel
+     * @return whether the handshake is complete, so that the client may be served
+     */
+    private boolean progressHandshake(@NotNull SelectionKey selectionKey, @NotNull TlsChannel tlsChannel) {
+        if (tlsChannel.isHandshakeComplete()) {
+            return true;
+        }
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
+        try {
+            if (tlsChannel.handshake()) {
+                tlsHandshakesNumber.incrementAndGet();
+                if (tlsChannel.isSessionResumed()) {
+                    tlsResumedHandshakesNumber.incrementAndGet();
+                }
+                logger.info("TLS handshake with {} completed: {}, {}{}", clientChannel.getRemoteAddress(),
+                        tlsChannel.getSession().getProtocol(), tlsChannel.getSession().getCipherSuite(),
+                        tlsChannel.isSessionResumed() ? ", resumed" : "");
+                updateInterestOps(selectionKey);
+                return true;
+            }
+        } catch (IOException e) {
+            SocketAddress address = null;
+            try {
+                address = clientChannel.getRemoteAddress();
+            } catch (IOException ignored) {
+            }
+            logger.error("TLS handshake with {} failed: {}", address, e.getMessage());
+            tlsFailedHandshakesNumber.incrementAndGet();
+            closeClient(selectionKey);
+            return false;
+        }
+        updateInterestOps(selectionKey);
+        return false;
+    }
+
+    /**
+     * Resumes serving the client once the delegated tasks of its TLS channel are done. Performed by the worker's thread.
+     * @param selectionKey the client channel's selection key
+     */
+    private void resumeTls(@NotNull SelectionKey selectionKey) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        TlsChannel tlsChannel = ((ClientHandlingSuite) selectionKey.attachment()).getTlsChannel();
+        if (tlsChannel != null && progressHandshake(selectionKey, tlsChannel)) {
+            updateInterestOps(selectionKey);
+        }
+    }
+
+    /**
+     * Starts receiving the content of an opened upload. Performed by the worker's thread.
+     * A rejected upload is answered right away, and its content is discarded as it is received.
+     * @param selectionKey the client channel's selection key
+     * @param upload the upload
+     * @param protocolVersion the protocol version used by the client
+     */
+    private void startUpload(@NotNull SelectionKey selectionKey, @NotNull IncomingUpload upload,
+                             int protocolVersion) {
+        upload.setOpened();
+        if (!selectionKey.isValid()) {
+            upload.abort();
+            return;
+        }
+        upload.markProgress(iterationNanos);
+        FtpPutStatus rejection = upload.getRejection();
+        if (rejection != null) {
+            logger.info("Upload to {} rejected: {}", upload.getPath(), rejection);
+            completeResponse(selectionKey, upload.getResponse(), new ResponsePart(
+                    encodeResponse(FtpPutResponse.rejectedResponse(rejection), protocolVersion)));
+        }
+        if (upload.getRemaining() == 0) {
+            finishUpload(selectionKey, upload, protocolVersion);
+        }
+        updateInterestOps(selectionKey);
+    }
+
+    /**
+     * Receives the next portion of the content of an upload from a channel ready for reading,
+     * but no more than {@link #UPLOAD_BUDGET_PER_ITERATION} bytes per iteration, so that a single client
+     * cannot monopolize the worker.
+     * Performed by the worker's thread.
+     * @param selectionKey the channel's selection key
+     * @param upload the upload
+     * @return whether the whole content has been received, so that the following queries may be read
+     */
+    private boolean receiveUpload(@NotNull SelectionKey selectionKey, @NotNull IncomingUpload upload) {
+        if (upload.isOpening()) {
+            return false;
+        }
+        SocketChannel clientChannel = (SocketChannel) selectionKey.channel();
+        ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+        long budget = UPLOAD_BUDGET_PER_ITERATION;
+        try {
+            while (budget > 0 && upload.getRemaining() > 0) {
+                long bytesReceived = upload.receive(clientHandlingSuite.getChannel(), budget);
+                if (bytesReceived == -1) {
+                    closeClient(selectionKey);
+                    return false;
+                }
+                if (bytesReceived == 0) {
+                    break;
+                }
+                budget -= bytesReceived;
+                upload.markProgress(iterationNanos);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to receive the upload to {}: {}", upload.getPath(), e.getMessage());
+            closeClient(selectionKey);
+            return false;
+        }
+        if (upload.getRemaining() > 0) {
+            return false;
+        }
+        finishUpload(selectionKey, upload, clientHandlingSuite.getProtocolVersion());
+        updateInterestOps(selectionKey);
+        return true;
+    }
+
+    /**
+     * Detaches an upload whose content has been received from the client and, unless it has been rejected,
+     * has it stored by the filesystem executor. Performed by the worker's thread.
+     * @param selectionKey the client channel's selection key
+     * @param upload the upload
+     * @param protocolVersion the protocol version used by the client
+     */
+    private void finishUpload(@NotNull SelectionKey selectionKey, @NotNull IncomingUpload upload,
+                              int protocolVersion) {
+        ((ClientHandlingSuite) selectionKey.attachment()).setUpload(null);
+        if (upload.getRejection() != null) {
+            return;
+        }
+        submitFilesystemTask(selectionKey, () -> {
+            FtpPutResponse putResponse = upload.store();
+            if (putResponse.isStored()) {
+                logger.info("Upload of {} bytes to {} stored", putResponse.getFileSize(), upload.getPath());
+            }
+            ResponsePart part = new ResponsePart(encodeResponse(putResponse, protocolVersion));
+            runInSelectorThread(() -> completeResponse(selectionKey, upload.getResponse(), part));
+        });
+    }
+
+    /**
+     * Adds a part to the response and completes it. Performed by the worker's thread.
+     * @param selectionKey the client channel's selection key
+     * @param response the response
+     * @param part the only part of the response
+     */
+    private void completeResponse(@NotNull SelectionKey selectionKey, @NotNull PendingResponse response,
+                                  @NotNull ResponsePart part) {
+        if (!selectionKey.isValid()) {
+            part.discard();
+            return;
+        }
+        ((ClientHandlingSuite) selectionKey.attachment()).addPart(response, part);
+        response.complete();
+        updateInterestOps(selectionKey);
+    }
+
+    /**
+     * Requests the next portion of the response's parts from its producer, unless there is nothing more to produce
+     * or a portion is being produced already. Performed by the worker's thread.
+     * @param selectionKey the client channel's selection key
+     * @param response the response
+     */
+    private void scheduleProduction(@NotNull SelectionKey selectionKey, @NotNull PendingResponse response) {
+        ResponseProducer producer = response.getProducer();
+        if (producer == null || response.isProducing() || response.isDiscarded()) {
+            return;
+        }
+        response.setProducing(true);
+        submitFilesystemTask(selectionKey, () -> produceParts(selectionKey, response, producer));
+    }
+
+    /**
+     * Produces a portion of the response's parts. Performed by the filesystem executor.
+     * @param selectionKey the client channel's selection key
+     * @param response the response to fill
+     * @param producer the producer of the response's parts
+     */
+    private void produceParts(@NotNull SelectionKey selectionKey, @NotNull PendingResponse response,
+                              @NotNull ResponseProducer producer) {
+        List<ResponsePart> parts;
+        try {
+            parts = producer.produce();
+        } catch (IOException e) {
+            logger.error("Unable to produce the response to {} query: {}", response.getQueryType(), e.getMessage());
+            runInSelectorThread(() -> {
+                response.setProducing(false);
+                closeClient(selectionKey);
+                producer.close();
+            });
+            return;
+        }
+        runInSelectorThread(() -> completeProduction(selectionKey, response, producer, parts));
+    }
+
+    /**
+     * Adds a produced portion of parts to the response and completes it if nothing more is to be produced.
+     * If the response has been discarded meanwhile, the parts are released instead. Performed by the worker's thread.
+     * @param selectionKey the client channel's selection key
+     * @param response the response
+     * @param producer the producer of the response's parts
+     * @param parts the produced parts
+     */
+    private void completeProduction(@NotNull SelectionKey selectionKey, @NotNull PendingResponse response,
+                                    @NotNull ResponseProducer producer, @NotNull List<ResponsePart> parts) {
+        response.setProducing(false);
+        if (!selectionKey.isValid() || response.isDiscarded()) {
+            parts.forEach(ResponsePart::discard);
+            producer.close();
+            response.setProducer(null);
+            return;
+        }
+        ClientHandlingSuite clientHandlingSuite = (ClientHandlingSuite) selectionKey.attachment();
+        parts.forEach(part -> clientHandlingSuite.addPart(response, part));
+        if (producer.isFinished()) {
+            producer.close();
+            response.setProducer(null);
+            response.complete();
+        }
+        updateInterestOps(selectionKey);
+    }
+
+    /**
+     * Prepares the list response. Performed by the filesystem executor.
+     * @param selectionKey the client channel's selection key
+     * @param response the response to fill
+     * @param path the path argument of the query
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     * @param isHashed whether the content hashes of the files are requested
+     */
+    private void processList(@NotNull SelectionKey selectionKey, @NotNull PendingResponse response,
+                             @NotNull Path path, int protocolVersion, @NotNull FtpCompression compression,
+                             boolean isHashed) {
+        Message message;
+        try {
+            message = listDirectory(path, protocolVersion, compression, isHashed);
+        } catch (IOException e) {
+            logger.error("Unable to list {}: {}", path, e.getMessage());
+            runInSelectorThread(() -> closeClient(selectionKey));
+            return;
+        }
+        ResponsePart part = new ResponsePart(message);
+        runInSelectorThread(() -> completeResponse(selectionKey, response, part));
+    }
+
+    /**
+     * Lists the directory and encodes the list response. The listing is served from the cache if possible;
+     * otherwise it is read from the disk and cached encoded in the latest protocol version.
+     * Listings with content hashes are never cached. The listings are cached uncompressed.
+     * @param path the path argument of the query
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     * @param isHashed whether the content hashes of the files are requested
+     * @return the message containing the encoded response
+     * @throws IOException if an I/O error occurs
+     */
+    private @NotNull Message listDirectory(@NotNull Path path, int protocolVersion,
+                                           @NotNull FtpCompression compression, boolean isHashed)
+            throws IOException {
+        if (!Files.exists(path)) {
+            return encodeResponse(FtpListResponse.emptyResponse(), protocolVersion);
+        }
+        Path realPath = path.toRealPath();
+        if (isHashed) {
+            ArrayList<FtpListResponseItem> responseItems = ListItemReader.readDirectory(realPath, hashIndex);
+            return encodeResponse(responseItems == null ? FtpListResponse.emptyResponse()
+                    : new FtpListResponse(responseItems), protocolVersion, compression);
+        }
+        byte[] cachedListing = listingCache.get(realPath);
+        if (cachedListing != null) {
+            if (protocolVersion == FtpMessageCodec.PROTOCOL_VERSION) {
+                return FtpMessageCodec.compress(cachedListing, compression);
+            }
+            return encodeResponse(FtpMessageCodec.decode(ByteBuffer.wrap(cachedListing), FtpListResponse.class),
+                    protocolVersion, compression);
+        }
+        long stamp = listingCache.startListing(realPath);
+        byte[] encodedListing = null;
+        try {
+            ArrayList<FtpListResponseItem> responseItems = ListItemReader.readDirectory(realPath, null);
+            FtpListResponse listResponse = responseItems == null ? FtpListResponse.emptyResponse()
+                    : new FtpListResponse(responseItems);
+            if (stamp >= 0 && responseItems != null) {
+                encodedListing = new byte[FtpMessageCodec.encodedSize(listResponse)];
+                FtpMessageCodec.encode(listResponse, ByteBuffer.wrap(encodedListing));
+            }
+            if (encodedListing != null && protocolVersion == FtpMessageCodec.PROTOCOL_VERSION) {
+                return FtpMessageCodec.compress(encodedListing, compression);
+            }
+            return encodeResponse(listResponse, protocolVersion, compression);
+        } finally {
+            listingCache.finishListing(realPath, encodedListing, stamp);
+        }
+    }
+
+    /**
+     * Opens the requested file and prepares the get response. Performed by the filesystem executor.
+     * The response carries the size and the version of the whole file and is followed by the requested range of it,
+     * or by the whole file if the range was requested for another version of the file.
+     * @param selectionKey the client channel's selection key
+     * @param response the response to fill
+     * @param path the path argument of the query
+     * @param query the query, which may request a byte range of the file
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     */
+    private void processGet(@NotNull SelectionKey selectionKey, @NotNull PendingResponse response,
+                            @NotNull Path path, @NotNull FtpQuery query, int protocolVersion,
+                            @NotNull FtpCompression compression) {
+        ResponsePart part;
+        try {
+            part = openFile(path, query, protocolVersion, compression, hotFileCache);
+        } catch (NoSuchFileException e) {
+            if (protocolVersion == FtpMessageCodec.LEGACY_PROTOCOL_VERSION) {
+                logger.error("File {} not found, disconnecting the legacy client", path);
+                runInSelectorThread(() -> closeClient(selectionKey));
+                return;
+            }
+            part = new ResponsePart(encodeResponse(FtpGetResponse.notFoundResponse(), protocolVersion));
+        } catch (IOException e) {
+            logger.error("Unable to open {}: {}", path, e.getMessage());
+            runInSelectorThread(() -> closeClient(selectionKey));
+            return;
+        }
+        ResponsePart readyPart = part;
+        runInSelectorThread(() -> completeResponse(selectionKey, response, readyPart));
+    }
+
+    /**
+     * Answers a conditional get query. Performed by the filesystem executor, which only requests the content hash
+     * of the file: the hash of a file not indexed yet is computed by the hash index's threads, and the query
+     * is answered once it is done, so that the executor does not wait for a large file to be hashed.
+     * If the content matches the client's copy, only the not modified response is sent;
+     * otherwise the query is answered as a plain get query.
+     * @param selectionKey the client channel's selection key
+     * @param response the response to fill
+     * @param path the path argument of the query
+     * @param query the query carrying the content hash of the client's copy
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     */
+    private void processConditionalGet(@NotNull SelectionKey selectionKey, @NotNull PendingResponse response,
+                                       @NotNull Path path, @NotNull FtpConditionalGetQuery query,
+                                       int protocolVersion, @NotNull FtpCompression compression) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            processGet(selectionKey, response, path, query, protocolVersion, compression);
+            return;
+        } catch (IOException e) {
+            logger.error("Unable to hash {}: {}", path, e.getMessage());
+            processGet(selectionKey, response, path, query, protocolVersion, compression);
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            processGet(selectionKey, response, path, query, protocolVersion, compression);
+            return;
+        }
+        hashIndex.request(path, attributes).whenComplete((entry, e) -> {
+            if (e != null) {
+                logger.error("Unable to hash {}: {}", path, e.getMessage());
+            }
+            if (entry == null || !MessageDigest.isEqual(entry.getHash(), query.getContentHash())) {
+                runInSelectorThread(() -> submitFilesystemTask(selectionKey, () -> processGet(selectionKey, response,
+                        path, query, protocolVersion, compression)));
+                return;
+            }
+            ResponsePart part = new ResponsePart(encodeResponse(
+                    new FtpNotModifiedResponse(entry.getSize(), entry.getVersionToken()), protocolVersion));
+            runInSelectorThread(() -> completeResponse(selectionKey, response, part));
+        });
+    }
+
+    /**
+     * Opens the requested file and prepares the get response followed by the requested range of the file.
+     * A frequently requested file is served from its shared mapping instead of being opened;
+     * the mapping is checked for changes of the file first if the range is requested for a version of the file.
+     * If compression has been negotiated, the content is compressed on the fly unless it is not worth it;
+     * otherwise it is sent with zero-copy <tt>transferTo</tt>.
+     * @param path the path to the file
+     * @param query the get query, which may request a byte range of the file
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     * @param hotFileCache the cache of the frequently requested files
+     * @return the response part consisting of the response and the file content
+     * @throws IOException if the file cannot be opened
+     */
+    static @NotNull ResponsePart openFile(@NotNull Path path, @NotNull FtpQuery query, int protocolVersion,
+                                          @NotNull FtpCompression compression, @NotNull HotFileCache hotFileCache)
+            throws IOException {
+        HotFileCache.Entry entry = hotFileCache.acquire(path,
+                query.getIfRangeVersionToken() != FtpQuery.UNCONDITIONAL);
+        if (entry != null) {
+            FtpGetResponse response = prepareGetResponse(path, entry.getFileSize(), entry.getVersionToken(), query,
+                    compression);
+            long position = Math.min(response.getOffset(), response.getFileSize());
+            return new ResponsePart(encodeResponse(response, protocolVersion), compressBody(new MappedResponseBody(
+                    hotFileCache, entry, position, position + response.getContentLength()), response));
+        }
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        long fileSize = fileChannel.size();
+        FtpGetResponse response = prepareGetResponse(path, fileSize,
+                FtpGetResponse.versionToken(fileSize, lastModified), query, compression);
+        long position = Math.min(response.getOffset(), fileSize);
+        return new ResponsePart(encodeResponse(response, protocolVersion), compressBody(
+                new FileResponseBody(fileChannel, position, position + response.getContentLength()), response));
+    }
+
+    /**
+     * Prepares the get response for a file of the given version: the requested range is served
+     * unless it was requested for another version of the file, in which case the whole file is served.
+     * @param path the path to the file
+     * @param fileSize the size of the file
+     * @param versionToken the version token of the file
+     * @param query the get query
+     * @param compression the compression negotiated with the client
+     * @return the get response
+     */
+    private static @NotNull FtpGetResponse prepareGetResponse(@NotNull Path path, long fileSize, long versionToken,
+                                                              @NotNull FtpQuery query,
+                                                              @NotNull FtpCompression compression) {
+        long offset = 0;
+        long contentLength = fileSize;
+        if (query.isRangeApplicable(versionToken)) {
+            offset = query.getOffset();
+            contentLength = query.getContentLength(fileSize);
+        }
+        FtpCompression contentCompression = CompressedResponseBody.isWorthCompressing(path, contentLength)
+                ? compression : FtpCompression.NONE;
+        return new FtpGetResponse(fileSize, versionToken, offset, contentLength, contentCompression);
+    }
+
+    /**
+     * Wraps the file content into a compressing body if the response tells that it is compressed.
+     * @param body the file content
+     * @param response the get response
+     * @return the body to send
+     */
+    private static @NotNull ResponseBody compressBody(@NotNull ResponseBody body, @NotNull FtpGetResponse response) {
+        if (response.getCompression() == FtpCompression.NONE) {
+            return body;
+        }
+        return new CompressedResponseBody(body, response.getCompression());
+    }
+
+    /**
+     * Decodes a query and remembers the protocol version used by the client.
+     * Legacy clients that send Java-serialized queries are detected and answered in the same way;
+     * their queries are read by a stream resolving the query classes only.
+     * @param clientHandlingSuite the client's handling suite
+     * @param message the message containing the query
+     * @return the decoded query
+     * @throws IOException if the message is not a valid query
+     */
+    private @NotNull FtpQuery decodeQuery(@NotNull ClientHandlingSuite clientHandlingSuite, @NotNull Message message)
+            throws IOException {
+        try {
+            ByteBuffer buffer = message.getBuffer();
+            int protocolVersion = FtpMessageCodec.getProtocolVersion(buffer);
+            if (protocolVersion != clientHandlingSuite.getProtocolVersion()) {
+                logger.info("Client uses protocol version {}", protocolVersion);
+                clientHandlingSuite.setProtocolVersion(protocolVersion);
+            }
+            if (protocolVersion == FtpMessageCodec.LEGACY_PROTOCOL_VERSION) {
+                try (LegacyQueryInputStream inputStream = new LegacyQueryInputStream(message.getData())) {
+                    return inputStream.readQuery();
+                }
+            }
+            return FtpMessageCodec.decode(buffer, FtpQuery.class);
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Encodes a response using the protocol version of the client.
+     * @param response the response
+     * @param protocolVersion the protocol version used by the client
+     * @return the message containing the encoded response
+     */
+    static @NotNull Message encodeResponse(@NotNull FtpResponse response, int protocolVersion) {
+        return encodeResponse(response, protocolVersion, FtpCompression.NONE);
+    }
+
+    /**
+     * Encodes a response using the protocol version of the client, compressing it if it is large enough.
+     * @param response the response
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     * @return the message containing the encoded response
+     */
+    static @NotNull Message encodeResponse(@NotNull FtpResponse response, int protocolVersion,
+                                           @NotNull FtpCompression compression) {
+        if (protocolVersion == FtpMessageCodec.LEGACY_PROTOCOL_VERSION) {
+            return new Message(SerializationUtils.serialize(response));
+        }
+        return FtpMessageCodec.toMessage(response, protocolVersion, compression);
+    }
+
+    /**
+     * A filesystem task rejected by the full executor, waiting to be resubmitted.
+     */
+    private static class BackloggedTask {
+        private final @NotNull SelectionKey selectionKey;
+        private final @NotNull Runnable task;
+
+        private BackloggedTask(@NotNull SelectionKey selectionKey, @NotNull Runnable task) {
+            this.selectionKey = selectionKey;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQueryType;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Produces the response to a batch get query: the get responses for all the files back to back,
+ * each followed by the content of the file, which is sent with zero-copy <tt>transferTo</tt> unless it is compressed.
+ * The files are opened a portion at a time, so that a huge batch does not exhaust the file descriptors.
+ * A file that cannot be opened is reported as not found without interrupting the batch.
+ */
+class GetBatchProducer implements ResponseProducer {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(GetBatchProducer.class);
+    private static final int FILES_PER_PORTION = 64;
+    private final @NotNull List<String> paths;
+    private final int protocolVersion;
+    private final @NotNull FtpCompression compression;
+    private final @NotNull HotFileCache hotFileCache;
+    private int nextPathIndex = 0;
+
+    /**
+     * Creates the producer.
+     * @param paths the paths to the requested files
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     * @param hotFileCache the cache of the frequently requested files
+     */
+    public GetBatchProducer(@NotNull List<String> paths, int protocolVersion, @NotNull FtpCompression compression,
+                            @NotNull HotFileCache hotFileCache) {
+        this.paths = paths;
+        this.protocolVersion = protocolVersion;
+        this.compression = compression;
+        this.hotFileCache = hotFileCache;
+    }
+
+    @Override
+    public @NotNull List<ResponsePart> produce() {
+        List<ResponsePart> parts = new ArrayList<>(FILES_PER_PORTION);
+        while (parts.size() < FILES_PER_PORTION && nextPathIndex < paths.size()) {
+            String path = paths.get(nextPathIndex++);
+            ResponsePart part;
+            try {
+                part = FtpServerWorker.openFile(Paths.get(path), new FtpQuery(FtpQueryType.GET, path),
+                        protocolVersion, compression, hotFileCache);
+            } catch (NoSuchFileException | InvalidPathException e) {
+                part = new ResponsePart(FtpServerWorker.encodeResponse(FtpGetResponse.notFoundResponse(),
+                        protocolVersion));
+            } catch (IOException e) {
+                logger.error("Unable to open {}: {}", path, e.getMessage());
+                part = new ResponsePart(FtpServerWorker.encodeResponse(FtpGetResponse.notFoundResponse(),
+                        protocolVersion));
+            }
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return nextPathIndex == paths.size();
+    }
+
+    @Override
+    public void close() {
+    }
+}
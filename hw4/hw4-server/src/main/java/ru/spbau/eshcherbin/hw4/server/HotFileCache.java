@@ -0,0 +1,293 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of memory-mapped files that are requested often, shared by all the connections. It is disabled by default.
+ * Note that the mapping shows the current content of the file, even if the file is rewritten in place.
+ * A file is mapped once it has been requested {@link #ADMISSION_REQUESTS_NUMBER} times, and then it is served
+ * from the mapping without being opened again. The cache is bounded by the total size of the mapped files
+ * and evicts the least recently used ones.
+ * A cached file is checked for changes of its size and modification time at most once per
+ * {@link #REVALIDATION_INTERVAL_NANOS}, so a changed file may still be served for that long,
+ * unless the request is pinned to a version of the file, in which case the file is always checked.
+ * Entries are reference counted: an entry that is evicted or invalidated while being sent
+ * keeps its size accounted until the last lease is released.
+ */
+class HotFileCache {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(HotFileCache.class);
+    private static final int ADMISSION_REQUESTS_NUMBER = 2;
+    private static final int MAX_TRACKED_FILES = 4096;
+    private static final long REVALIDATION_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final @NotNull LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final @NotNull LinkedHashMap<Path, Integer> requestsNumbers =
+            new LinkedHashMap<Path, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, Integer> eldest) {
+                    return size() > MAX_TRACKED_FILES;
+                }
+            };
+    private long bytes = 0;
+    private long hitsNumber = 0;
+    private long missesNumber = 0;
+    private long evictionsNumber = 0;
+    private long invalidationsNumber = 0;
+
+    /**
+     * Creates the cache.
+     * @param maxBytes the maximum total size of the mapped files, zero to disable the cache
+     * @param maxFileSize the maximum size of a cached file
+     */
+    public HotFileCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Leases the mapping of a file if it is cached or has become hot with this request.
+     * The lease should be given back with {@link #release(Entry)}.
+     * @param path the path to the file
+     * @param isRevalidationRequired whether the file is to be checked for changes even if it has been checked
+     * recently, so that the version of the entry is that of the file
+     * @return the leased entry or <tt>null</tt> if the file should be read from the disk
+     */
+    public @Nullable Entry acquire(@NotNull Path path, boolean isRevalidationRequired) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Path key = path.toAbsolutePath().normalize();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null) {
+                if (!isRevalidationRequired
+                        && System.nanoTime() - entry.validationTime < REVALIDATION_INTERVAL_NANOS) {
+                    return retain(entry);
+                }
+                entry.validationTime = System.nanoTime();
+            }
+        }
+        if (entry != null) {
+            boolean isValid;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+                isValid = attributes.size() == entry.fileSize
+                        && attributes.lastModifiedTime().toMillis() == entry.lastModified;
+            } catch (IOException e) {
+                isValid = false;
+            }
+            synchronized (this) {
+                if (isValid && entries.get(key) == entry) {
+                    return retain(entry);
+                }
+                if (!isValid && entries.get(key) == entry) {
+                    entries.remove(key);
+                    entry.isRetired = true;
+                    releaseIfUnused(entry);
+                    invalidationsNumber++;
+                }
+            }
+        }
+        synchronized (this) {
+            missesNumber++;
+            if (requestsNumbers.merge(key, 1, Integer::sum) < ADMISSION_REQUESTS_NUMBER) {
+                return null;
+            }
+            requestsNumbers.remove(key);
+        }
+        Entry mappedEntry = map(key);
+        if (mappedEntry == null) {
+            return null;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(key, mappedEntry);
+            if (previous != null) {
+                previous.isRetired = true;
+                releaseIfUnused(previous);
+            }
+            bytes += mappedEntry.fileSize;
+            mappedEntry.leasesNumber++;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                if (eldest == mappedEntry) {
+                    continue;
+                }
+                iterator.remove();
+                eldest.isRetired = true;
+                releaseIfUnused(eldest);
+                evictionsNumber++;
+            }
+            return mappedEntry;
+        }
+    }
+
+    /**
+     * Gives a lease back.
+     * @param entry the leased entry
+     */
+    public synchronized void release(@NotNull Entry entry) {
+        entry.leasesNumber--;
+        releaseIfUnused(entry);
+    }
+
+    /**
+     * Drops all the entries. The mappings being sent stay valid until they are released.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.isRetired = true;
+            releaseIfUnused(entry);
+        }
+        entries.clear();
+        requestsNumbers.clear();
+    }
+
+    /**
+     * Returns the number of get queries served from the cache.
+     * @return the number of cache hits
+     */
+    public synchronized long getHitsNumber() {
+        return hitsNumber;
+    }
+
+    /**
+     * Returns the number of get queries that were not served from the cache.
+     * @return the number of cache misses
+     */
+    public synchronized long getMissesNumber() {
+        return missesNumber;
+    }
+
+    /**
+     * Returns the number of entries dropped to respect the bound of the cache.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionsNumber() {
+        return evictionsNumber;
+    }
+
+    /**
+     * Returns the number of entries dropped because the file changed.
+     * @return the number of invalidations
+     */
+    public synchronized long getInvalidationsNumber() {
+        return invalidationsNumber;
+    }
+
+    /**
+     * Returns the number of cached files.
+     * @return the number of cached files
+     */
+    public synchronized int getEntriesNumber() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the mapped files, including the dropped ones that are still being sent.
+     * @return the total size of the mapped files in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private @NotNull Entry retain(@NotNull Entry entry) {
+        entry.leasesNumber++;
+        hitsNumber++;
+        return entry;
+    }
+
+    private void releaseIfUnused(@NotNull Entry entry) {
+        if (entry.isRetired && entry.leasesNumber == 0 && !entry.isReleased) {
+            entry.isReleased = true;
+            bytes -= entry.fileSize;
+        }
+    }
+
+    /**
+     * Maps the whole file into memory.
+     * @param path the path to the file
+     * @return the entry or <tt>null</tt> if the file cannot or should not be mapped
+     */
+    private @Nullable Entry map(@NotNull Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() || attributes.size() > maxFileSize || attributes.size() > maxBytes) {
+                return null;
+            }
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long fileSize = fileChannel.size();
+                if (fileSize != attributes.size()) {
+                    return null; // being written
+                }
+                MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                return new Entry(buffer, fileSize, attributes.lastModifiedTime().toMillis());
+            }
+        } catch (IOException e) {
+            logger.info("Unable to map {}: {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * A mapped file with its version, shared by all the connections it is sent to.
+     */
+    static class Entry {
+        private final @NotNull MappedByteBuffer buffer;
+        private final long fileSize;
+        private final long lastModified;
+        private long validationTime = System.nanoTime();
+        private int leasesNumber = 0;
+        private boolean isRetired = false;
+        private boolean isReleased = false;
+
+        private Entry(@NotNull MappedByteBuffer buffer, long fileSize, long lastModified) {
+            this.buffer = buffer;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns a read-only view of the mapped file, with its own position and limit.
+         * @return the view of the mapped file
+         */
+        public @NotNull ByteBuffer getContent() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the size of the file.
+         * @return the size of the file
+         */
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * Returns the version token of the mapped content of the file.
+         * @return the version token
+         */
+        public long getVersionToken() {
+            return FtpGetResponse.versionToken(fileSize, lastModified);
+        }
+    }
+}
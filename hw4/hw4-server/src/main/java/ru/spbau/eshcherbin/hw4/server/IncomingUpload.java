@@ -0,0 +1,286 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutStatus;
+import ru.spbau.eshcherbin.hw4.messages.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file being uploaded by a client with a put query. The content is received into a temporary file
+ * next to the target, which replaces the target atomically once the whole content has been received,
+ * so that the readers never see a partially uploaded file.
+ * The upload is opened and stored by the filesystem executor, while the content is received by the worker's thread,
+ * a bounded portion per readiness event. The content is read into a pooled direct buffer and written to the file
+ * at its position: <tt>FileChannel.transferFrom</tt> has no zero-copy path from a socket and copies
+ * through a small temporary buffer, which takes several times more system calls for the same copying.
+ * The uploads are confined to the upload root of the server: a path is resolved against the root,
+ * and the upload is forbidden unless the real path of its directory lies within the root.
+ * A rejected upload still consumes its content, which is discarded, so that the following queries
+ * on the connection are read correctly.
+ */
+class IncomingUpload {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(IncomingUpload.class);
+    private static final @NotNull String TEMPORARY_FILE_SUFFIX = ".upload";
+    private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+    private final @NotNull Path path;
+    private final @Nullable Path root;
+    private final long fileSize;
+    private final @NotNull PendingResponse response;
+    private final @NotNull UploadQuota quota;
+    private @Nullable Path target;
+    private @Nullable Path temporaryPath;
+    private @Nullable FileChannel fileChannel;
+    private @Nullable FtpPutStatus rejection;
+    private boolean isReserved = false;
+    private boolean isOpening = true;
+    private long position = 0;
+    private long lastProgressNanos;
+
+    /**
+     * Creates the upload, which is to be opened by {@link #open()}.
+     * @param path the path to save the file to
+     * @param root the upload root of the server or <tt>null</tt> if the server does not accept uploads
+     * @param fileSize the size of the file
+     * @param response the response to the put query
+     * @param quota the upload quota of the server
+     */
+    public IncomingUpload(@NotNull Path path, @Nullable Path root, long fileSize, @NotNull PendingResponse response,
+                          @NotNull UploadQuota quota) {
+        this.path = path;
+        this.root = root;
+        this.fileSize = fileSize;
+        this.response = response;
+        this.quota = quota;
+    }
+
+    /**
+     * Reserves the size of the file in the quota and creates the temporary file, or rejects the upload
+     * if its path is outside the upload root, it exceeds the quota or the free space on the disk
+     * or the file cannot be created.
+     * Performed by the filesystem executor.
+     */
+    public void open() {
+        Path directory;
+        try {
+            directory = resolveDirectory();
+        } catch (IOException e) {
+            logger.error("Unable to store {}: {}", path, e.getMessage());
+            rejection = FtpPutStatus.FAILED;
+            return;
+        }
+        if (directory == null) {
+            rejection = FtpPutStatus.FORBIDDEN;
+            return;
+        }
+        if (!quota.tryReserve(fileSize)) {
+            rejection = FtpPutStatus.QUOTA_EXCEEDED;
+            return;
+        }
+        isReserved = true;
+        try {
+            target = directory.resolve(path.getFileName());
+            if (Files.isDirectory(target)) {
+                throw new IOException("Not a file path");
+            }
+            if (Files.getFileStore(directory).getUsableSpace() < fileSize) {
+                rejection = FtpPutStatus.QUOTA_EXCEEDED;
+                abort();
+                return;
+            }
+            temporaryPath = Files.createTempFile(directory, "." + target.getFileName(), TEMPORARY_FILE_SUFFIX);
+            fileChannel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            logger.error("Unable to store {}: {}", path, e.getMessage());
+            rejection = FtpPutStatus.FAILED;
+            abort();
+        }
+    }
+
+    /**
+     * Resolves the path against the upload root and returns the real path of the directory of the file,
+     * so that neither <tt>..</tt> nor a symbolic link leads the upload outside the root.
+     * @return the real path of the directory or <tt>null</tt> if the upload is forbidden
+     * @throws IOException if the directory does not exist or an I/O error occurs
+     */
+    private @Nullable Path resolveDirectory() throws IOException {
+        if (root == null) {
+            return null;
+        }
+        Path realRoot = root.toRealPath();
+        Path resolvedPath = realRoot.resolve(path).normalize();
+        Path directory = resolvedPath.getParent();
+        if (directory == null || resolvedPath.getFileName() == null || !resolvedPath.startsWith(realRoot)) {
+            return null;
+        }
+        directory = directory.toRealPath();
+        return directory.startsWith(realRoot) ? directory : null;
+    }
+
+    /**
+     * Receives the next portion of the content from the client's channel, writing it to the file
+     * or discarding it if the upload has been rejected. Performed by the worker's thread.
+     * @param channel the client's channel
+     * @param maxBytes the maximum number of bytes to receive
+     * @return the number of bytes received or <tt>-1</tt> if the client has disconnected
+     * @throws IOException if an I/O error occurs
+     */
+    public long receive(@NotNull ReadableByteChannel channel, long maxBytes) throws IOException {
+        long count = Math.min(maxBytes, getRemaining());
+        if (count <= 0) {
+            return 0;
+        }
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.lease((int) Math.min(count, RECEIVE_BUFFER_SIZE));
+        try {
+            int bytesRead = channel.read(buffer);
+            if (bytesRead <= 0) {
+                return bytesRead;
+            }
+            if (fileChannel != null) {
+                buffer.flip();
+                long filePosition = position;
+                while (buffer.hasRemaining()) {
+                    filePosition += fileChannel.write(buffer, filePosition);
+                }
+            }
+            position += bytesRead;
+            return bytesRead;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Moves the received file in place of the target and gives back its reservation.
+     * Performed by the filesystem executor.
+     * @return the response to the put query
+     */
+    public @NotNull FtpPutResponse store() {
+        try {
+            if (fileChannel == null || temporaryPath == null || target == null) {
+                throw new IOException("Upload is not open");
+            }
+            fileChannel.close();
+            fileChannel = null;
+            try {
+                Files.move(temporaryPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryPath, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporaryPath = null;
+            BasicFileAttributes attributes = Files.readAttributes(target, BasicFileAttributes.class);
+            return new FtpPutResponse(FtpPutStatus.STORED, attributes.size(),
+                    FtpGetResponse.versionToken(attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } catch (IOException e) {
+            logger.error("Unable to store {}: {}", path, e.getMessage());
+            return FtpPutResponse.rejectedResponse(FtpPutStatus.FAILED);
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Closes and deletes the temporary file, if any, and gives back the reservation.
+     */
+    public void abort() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            fileChannel = null;
+        }
+        if (temporaryPath != null) {
+            try {
+                Files.deleteIfExists(temporaryPath);
+            } catch (IOException e) {
+                logger.error("Unable to delete {}: {}", temporaryPath, e.getMessage());
+            }
+            temporaryPath = null;
+        }
+        if (isReserved) {
+            quota.release(fileSize);
+            isReserved = false;
+        }
+    }
+
+    /**
+     * Returns the path the file is saved to.
+     * @return the path to the file
+     */
+    public @NotNull Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the response to the put query.
+     * @return the response
+     */
+    public @NotNull PendingResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Returns the reason the upload has been rejected, if it has.
+     * @return the status to answer with or <tt>null</tt> if the upload has been accepted
+     */
+    public @Nullable FtpPutStatus getRejection() {
+        return rejection;
+    }
+
+    /**
+     * Returns the number of bytes of the content that have not been received yet.
+     * @return the number of bytes to receive
+     */
+    public long getRemaining() {
+        return fileSize - position;
+    }
+
+    /**
+     * Returns whether the upload is being opened by the filesystem executor,
+     * in which case the content is not received yet and the upload is not to be touched by the worker's thread.
+     * @return whether the upload is being opened
+     */
+    public boolean isOpening() {
+        return isOpening;
+    }
+
+    /**
+     * Marks the upload as opened, so that its content is received.
+     */
+    public void setOpened() {
+        isOpening = false;
+    }
+
+    /**
+     * Returns the time of the latest progress of the upload.
+     * @return the time in nanoseconds as returned by {@link System#nanoTime()}
+     */
+    public long getLastProgressNanos() {
+        return lastProgressNanos;
+    }
+
+    /**
+     * Remembers that the upload has made progress.
+     * @param nowNanos the current time in nanoseconds
+     */
+    public void markProgress(long nowNanos) {
+        lastProgressNanos = nowNanos;
+    }
+}
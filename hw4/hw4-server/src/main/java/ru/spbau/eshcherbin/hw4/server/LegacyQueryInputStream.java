@@ -0,0 +1,61 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQueryType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * An object stream that reads the Java-serialized queries of the legacy clients.
+ * The data comes from the network, so only the classes a query consists of are resolved,
+ * and any other class is refused before an instance of it is created.
+ */
+class LegacyQueryInputStream extends ObjectInputStream {
+    /**
+     * Creates a stream reading the serialized data.
+     * @param data the serialized data
+     * @throws IOException if the data does not start with a valid stream header
+     */
+    public LegacyQueryInputStream(@NotNull byte[] data) throws IOException {
+        super(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Reads a query.
+     * @return the query
+     * @throws IOException if the data is not a valid serialized query
+     */
+    public @NotNull FtpQuery readQuery() throws IOException {
+        Object object;
+        try {
+            object = readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+        if (!(object instanceof FtpQuery)) {
+            throw new InvalidClassException("Not a query");
+        }
+        return (FtpQuery) object;
+    }
+
+    @Override
+    protected @NotNull Class<?> resolveClass(@NotNull ObjectStreamClass description)
+            throws IOException, ClassNotFoundException {
+        String name = description.getName();
+        if (!name.equals(FtpQuery.class.getName()) && !name.equals(FtpQueryType.class.getName())
+                && !name.equals(Enum.class.getName()) && !name.equals(String.class.getName())) {
+            throw new InvalidClassException(name, "Class not allowed in a query");
+        }
+        return super.resolveClass(description);
+    }
+
+    @Override
+    protected @NotNull Class<?> resolveProxyClass(@NotNull String[] interfaces) throws IOException {
+        throw new InvalidClassException("Proxy classes not allowed in a query");
+    }
+}
@@ -0,0 +1,124 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpListResponseItem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads the list items of directory entries. All the metadata of an entry is read with a single
+ * {@link Files#readAttributes(Path, Class, LinkOption...)} call.
+ * The size and the modification time are reported for files only: a directory's metadata changes
+ * without its parent changing, so it could not be kept up to date in the cached listings.
+ * The content hashes of the files are taken from the {@link ContentHashIndex}, which computes
+ * the missing ones in parallel.
+ */
+final class ListItemReader {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(ListItemReader.class);
+
+    private ListItemReader() {
+    }
+
+    /**
+     * Reads the list items of all the entries of the directory.
+     * @param directory the directory
+     * @param hashIndex the index to take the content hashes of the files from
+     * or <tt>null</tt> if the hashes are not needed
+     * @return the items or <tt>null</tt> if the directory cannot be listed
+     */
+    public static @Nullable ArrayList<FtpListResponseItem> readDirectory(@NotNull Path directory,
+                                                                         @Nullable ContentHashIndex hashIndex) {
+        ArrayList<Path> entries = new ArrayList<>();
+        ArrayList<BasicFileAttributes> entriesAttributes = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+            for (Path entry : directoryStream) {
+                entries.add(entry);
+                entriesAttributes.add(readAttributes(entry));
+            }
+        } catch (NotDirectoryException e) {
+            return null;
+        } catch (IOException | DirectoryIteratorException e) {
+            logger.error("Unable to list {}: {}", directory, e.getMessage());
+            return null;
+        }
+        // all the hashes are requested before waiting for any of them, so that they are computed in parallel
+        ArrayList<CompletableFuture<ContentHashIndex.Entry>> hashes = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            BasicFileAttributes attributes = entriesAttributes.get(i);
+            hashes.add(hashIndex != null && attributes != null && attributes.isRegularFile()
+                    ? hashIndex.request(entries.get(i), attributes) : null);
+        }
+        ArrayList<FtpListResponseItem> items = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            items.add(toItem(entries.get(i), entriesAttributes.get(i), hashes.get(i)));
+        }
+        return items;
+    }
+
+    /**
+     * Reads the list item of a directory entry without the content hash.
+     * @param entry the path of the entry
+     * @return the item
+     */
+    public static @NotNull FtpListResponseItem readItem(@NotNull Path entry) {
+        return toItem(entry, readAttributes(entry), null);
+    }
+
+    /**
+     * Reads the attributes of a directory entry. Symbolic links are followed unless they are broken.
+     * @param entry the path of the entry
+     * @return the attributes or <tt>null</tt> if the entry has been deleted meanwhile
+     */
+    private static @Nullable BasicFileAttributes readAttributes(@NotNull Path entry) {
+        try {
+            return Files.readAttributes(entry, BasicFileAttributes.class);
+        } catch (IOException e) {
+            try {
+                return Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ignored) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Makes the list item of a directory entry.
+     * @param entry the path of the entry
+     * @param attributes the attributes of the entry or <tt>null</tt> if it has been deleted
+     * @param hash the requested content hash of the file or <tt>null</tt> if it is not needed
+     * @return the item
+     */
+    private static @NotNull FtpListResponseItem toItem(@NotNull Path entry, @Nullable BasicFileAttributes attributes,
+                                                       @Nullable CompletableFuture<ContentHashIndex.Entry> hash) {
+        String fileName = entry.getFileName().toString();
+        if (attributes == null) {
+            return new FtpListResponseItem(fileName, false);
+        }
+        if (attributes.isDirectory()) {
+            return new FtpListResponseItem(fileName, true);
+        }
+        byte[] contentHash = null;
+        if (hash != null) {
+            try {
+                ContentHashIndex.Entry hashEntry = ContentHashIndex.await(hash);
+                contentHash = hashEntry == null ? null : hashEntry.getHash();
+            } catch (IOException e) {
+                logger.error("Unable to hash {}: {}", entry, e.getMessage());
+            }
+        }
+        return new FtpListResponseItem(fileName, false, attributes.size(),
+                attributes.lastModifiedTime().toMillis(), contentHash);
+    }
+}
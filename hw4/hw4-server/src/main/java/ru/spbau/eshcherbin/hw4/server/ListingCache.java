@@ -0,0 +1,261 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An LRU cache of encoded list responses keyed by the real paths of the listed directories.
+ * Each cached directory is watched with a {@link WatchService}, and its entry is dropped as soon as
+ * the directory changes. The cache is bounded both by the number of entries and by their total size.
+ * A listing is cached only if no change has been observed while it was being read:
+ * the directory is watched from {@link #startListing(Path)} to {@link #finishListing(Path, byte[], long)}.
+ */
+class ListingCache {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(ListingCache.class);
+    private final int maxEntries;
+    private final long maxBytes;
+    private final @Nullable WatchService watchService;
+    private final @NotNull LinkedHashMap<Path, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final @NotNull Map<Path, WatchKey> watchKeys = new HashMap<>();
+    private final @NotNull Map<Path, Integer> listingsInProgress = new HashMap<>();
+    private long bytes = 0;
+    private long invalidationsNumber = 0;
+    private long hitsNumber = 0;
+    private long missesNumber = 0;
+    private long evictionsNumber = 0;
+
+    /**
+     * Creates the cache and starts the thread watching the cached directories.
+     * If watching is not supported, the cache stays empty.
+     * @param maxEntries the maximum number of cached listings
+     * @param maxBytes the maximum total size of the cached listings
+     */
+    public ListingCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        WatchService service = null;
+        if (maxEntries > 0 && maxBytes > 0) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.error("Unable to watch directories, listings are not cached: {}", e.getMessage());
+            }
+        }
+        watchService = service;
+        if (watchService != null) {
+            Thread watcherThread = new Thread(this::watch, "ftp-server-listing-watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        }
+    }
+
+    /**
+     * Returns the cached encoded listing of the directory.
+     * @param realPath the real path of the directory
+     * @return the encoded listing or <tt>null</tt> if it is not cached
+     */
+    public synchronized @Nullable byte[] get(@NotNull Path realPath) {
+        byte[] result = entries.get(realPath);
+        if (result != null) {
+            hitsNumber++;
+        } else {
+            missesNumber++;
+        }
+        return result;
+    }
+
+    /**
+     * Starts watching the directory before it is listed, so that no change made while listing it is missed.
+     * @param realPath the real path of the directory
+     * @return the stamp to be passed to {@link #finishListing(Path, byte[], long)}
+     * or a negative number if the listing cannot be cached
+     */
+    public synchronized long startListing(@NotNull Path realPath) {
+        if (watchService == null) {
+            return -1;
+        }
+        if (!watchKeys.containsKey(realPath)) {
+            try {
+                watchKeys.put(realPath, realPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+                return -1;
+            }
+        }
+        listingsInProgress.merge(realPath, 1, Integer::sum);
+        return invalidationsNumber;
+    }
+
+    /**
+     * Caches the encoded listing of the directory unless the directory may have changed since the listing started.
+     * Should be called for every listing started, even if it has failed.
+     * @param realPath the real path of the directory
+     * @param encodedListing the encoded listing or <tt>null</tt> if the listing has failed
+     * @param stamp the stamp returned by {@link #startListing(Path)}
+     */
+    public synchronized void finishListing(@NotNull Path realPath, @Nullable byte[] encodedListing, long stamp) {
+        if (stamp < 0) {
+            return;
+        }
+        listingsInProgress.computeIfPresent(realPath, (path, count) -> count > 1 ? count - 1 : null);
+        if (encodedListing != null && stamp == invalidationsNumber && encodedListing.length <= maxBytes) {
+            byte[] previous = entries.put(realPath, encodedListing);
+            if (previous != null) {
+                bytes -= previous.length;
+            }
+            bytes += encodedListing.length;
+            Iterator<Map.Entry<Path, byte[]>> iterator = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+                Map.Entry<Path, byte[]> eldest = iterator.next();
+                iterator.remove();
+                bytes -= eldest.getValue().length;
+                evictionsNumber++;
+                stopWatchingIfUnused(eldest.getKey());
+            }
+        }
+        stopWatchingIfUnused(realPath);
+    }
+
+    /**
+     * Stops the thread watching the cached directories and drops all the entries.
+     */
+    public void close() {
+        synchronized (this) {
+            entries.clear();
+            watchKeys.clear();
+            listingsInProgress.clear();
+            bytes = 0;
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests served from the cache.
+     * @return the number of cache hits
+     */
+    public synchronized long getHitsNumber() {
+        return hitsNumber;
+    }
+
+    /**
+     * Returns the number of requests that were not served from the cache.
+     * @return the number of cache misses
+     */
+    public synchronized long getMissesNumber() {
+        return missesNumber;
+    }
+
+    /**
+     * Returns the number of entries dropped to respect the bounds of the cache.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionsNumber() {
+        return evictionsNumber;
+    }
+
+    /**
+     * Returns the number of times a cached directory changed.
+     * @return the number of invalidations
+     */
+    public synchronized long getInvalidationsNumber() {
+        return invalidationsNumber;
+    }
+
+    /**
+     * Returns the number of cached listings.
+     * @return the number of cached listings
+     */
+    public synchronized int getEntriesNumber() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the cached listings.
+     * @return the total size of the cached listings in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drops the entry of a changed directory. The directory stays watched until its entry is dropped,
+     * so that a listing being read concurrently is not cached.
+     * @param realPath the real path of the directory
+     */
+    private synchronized void invalidate(@Nullable Path realPath) {
+        invalidationsNumber++;
+        if (realPath == null) {
+            entries.clear();
+            bytes = 0;
+            return;
+        }
+        byte[] previous = entries.remove(realPath);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+    }
+
+    /**
+     * Stops watching the directory unless it is cached or being listed.
+     * @param realPath the real path of the directory
+     */
+    private void stopWatchingIfUnused(@NotNull Path realPath) {
+        if (entries.containsKey(realPath) || listingsInProgress.containsKey(realPath)) {
+            return;
+        }
+        WatchKey watchKey = watchKeys.remove(realPath);
+        if (watchKey != null) {
+            watchKey.cancel();
+        }
+    }
+
+    /**
+     * Invalidates the entries of the changed directories until the watch service is closed.
+     */
+    private void watch() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                boolean isOverflown = false;
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        isOverflown = true;
+                    }
+                }
+                invalidate(isOverflown ? null : (Path) watchKey.watchable());
+                if (!watchKey.reset()) {
+                    synchronized (this) {
+                        if (watchKeys.get((Path) watchKey.watchable()) == watchKey) {
+                            watchKeys.remove((Path) watchKey.watchable());
+                        }
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ignored) {
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ru.spbau.eshcherbin.hw4.server;
 import ru.spbau.eshcherbin.hw4.Config;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /**
@@ -11,10 +12,13 @@ import java.util.Scanner;
 public class Main {
     /**
      * Starts the server application.
-     * @param args command line arguments
+     * @param args command line arguments: the directory to accept uploads to, if any
      */
     public static void main(String[] args) {
-        Server server = new FtpServer(Config.serverBindingAddress);
+        FtpServer server = new FtpServer(Config.serverBindingAddress);
+        if (args.length > 0) {
+            server.setUploadRoot(Paths.get(args[0]));
+        }
         try {
             server.start();
         } catch (IOException e) {
@@ -0,0 +1,59 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body that is written from a file mapped by the {@link HotFileCache}.
+ * If the file is truncated while it is being sent, the mapped pages past its new end cannot be accessed,
+ * and copying them fails with an <tt>InternalError</tt>, which is reported as an I/O error of the client.
+ */
+class MappedResponseBody implements ResponseBody {
+    private final @NotNull HotFileCache cache;
+    private final @NotNull HotFileCache.Entry entry;
+    private final @NotNull ByteBuffer content;
+    private final int end;
+    private boolean isClosed = false;
+
+    /**
+     * Creates a body consisting of the mapped file content between the given positions.
+     * @param cache the cache the entry is leased from, which gets the lease back when the body is closed
+     * @param entry the leased entry
+     * @param position the position of the first byte to write
+     * @param end the position after the last byte to write
+     */
+    public MappedResponseBody(@NotNull HotFileCache cache, @NotNull HotFileCache.Entry entry,
+                              long position, long end) {
+        this.cache = cache;
+        this.entry = entry;
+        this.end = (int) end;
+        content = entry.getContent();
+        content.position((int) position);
+    }
+
+    @Override
+    public long transferTo(@NotNull WritableByteChannel channel, long maxBytes) throws IOException {
+        content.limit((int) Math.min(content.position() + maxBytes, end));
+        try {
+            return channel.write(content);
+        } catch (InternalError e) {
+            throw new IOException("Mapped file has been truncated", e);
+        }
+    }
+
+    @Override
+    public long getRemaining() {
+        return end - content.position();
+    }
+
+    @Override
+    public void close() {
+        if (!isClosed) {
+            isClosed = true;
+            cache.release(entry);
+        }
+    }
+}
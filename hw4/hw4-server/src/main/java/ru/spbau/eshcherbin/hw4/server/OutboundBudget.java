@@ -0,0 +1,56 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory budget for the encoded responses buffered for all the clients of the server
+ * that have not been written to their sockets yet. Shared by the workers.
+ * Exceeding the budget does not fail anything: the workers stop reading new queries from the clients
+ * that have buffered responses until the budget is available again.
+ */
+class OutboundBudget {
+    private final long maxBytes;
+    private final @NotNull AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * Creates the budget.
+     * @param maxBytes the maximum total size of the buffered responses
+     */
+    public OutboundBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Accounts for newly buffered bytes.
+     * @param bytes the number of bytes
+     */
+    public void acquire(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Accounts for bytes that are no longer buffered, because they have been written or discarded.
+     * @param bytes the number of bytes
+     */
+    public void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns whether the buffered bytes exceed the budget.
+     * @return whether the budget is exhausted
+     */
+    public boolean isExhausted() {
+        return usedBytes.get() >= maxBytes;
+    }
+
+    /**
+     * Returns the total size of the buffered responses.
+     * @return the number of buffered bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+}
@@ -0,0 +1,133 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQueryType;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A response to a client's query which is not completely sent yet.
+ * Responses are sent in the order of the queries. A response consists of parts that become ready
+ * as the filesystem work needed to answer the query is done; the response is sent once it is complete
+ * and all its parts are sent. The parts of a large response may be produced portion by portion
+ * by a {@link ResponseProducer}.
+ * Should only be accessed from the thread of the worker serving the client.
+ */
+class PendingResponse {
+    private final @NotNull FtpQueryType queryType;
+    private final @NotNull Queue<ResponsePart> parts = new ArrayDeque<>();
+    private boolean isComplete = false;
+    private @Nullable ResponseProducer producer;
+    private boolean isProducing = false;
+    private boolean isDiscarded = false;
+
+    public PendingResponse(@NotNull FtpQueryType queryType) {
+        this.queryType = queryType;
+    }
+
+    /**
+     * Returns the type of the query this response answers.
+     * @return the type of the query
+     */
+    public @NotNull FtpQueryType getQueryType() {
+        return queryType;
+    }
+
+    /**
+     * Adds a ready part to the response.
+     * @param part the part
+     */
+    public void addPart(@NotNull ResponsePart part) {
+        parts.add(part);
+    }
+
+    /**
+     * Marks the response as complete, i.e. no more parts will be added.
+     */
+    public void complete() {
+        isComplete = true;
+    }
+
+    /**
+     * Returns the producer of the parts of the response, if any.
+     * @return the producer or <tt>null</tt> if there is nothing more to produce
+     */
+    public @Nullable ResponseProducer getProducer() {
+        return producer;
+    }
+
+    /**
+     * Sets the producer of the parts of the response.
+     * @param producer the producer or <tt>null</tt> if there is nothing more to produce
+     */
+    public void setProducer(@Nullable ResponseProducer producer) {
+        this.producer = producer;
+    }
+
+    /**
+     * Returns whether a portion of the parts is being produced by the filesystem executor right now.
+     * @return whether a portion of the parts is being produced
+     */
+    public boolean isProducing() {
+        return isProducing;
+    }
+
+    /**
+     * Sets whether a portion of the parts is being produced by the filesystem executor right now.
+     * @param isProducing whether a portion of the parts is being produced
+     */
+    public void setProducing(boolean isProducing) {
+        this.isProducing = isProducing;
+    }
+
+    /**
+     * Returns whether the response has been discarded.
+     * @return whether the response has been discarded
+     */
+    public boolean isDiscarded() {
+        return isDiscarded;
+    }
+
+    /**
+     * Takes the next ready part to be sent.
+     * @return the next ready part or <tt>null</tt> if no part is ready
+     */
+    public @Nullable ResponsePart pollPart() {
+        return parts.poll();
+    }
+
+    /**
+     * Returns whether there is a part ready to be sent.
+     * @return whether there is a part ready to be sent
+     */
+    public boolean hasReadyParts() {
+        return !parts.isEmpty();
+    }
+
+    /**
+     * Returns whether the response is complete and all its parts have been taken for sending.
+     * @return whether the response is completely sent
+     */
+    public boolean isSent() {
+        return isComplete && parts.isEmpty();
+    }
+
+    /**
+     * Releases all the parts that are not sent yet.
+     * The producer is closed unless it is busy; then it is closed once its current portion is produced.
+     */
+    public void discard() {
+        ResponsePart part;
+        while ((part = parts.poll()) != null) {
+            part.discard();
+        }
+        isComplete = true;
+        isDiscarded = true;
+        if (producer != null && !isProducing) {
+            producer.close();
+            producer = null;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.chunks.ContentChunker;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpRecipePart;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Produces the parts of the response to a chunked get query, splitting the file into content-defined chunks
+ * and hashing them as it is read. Each part lists a bounded number of chunks, so that the client can look them up
+ * in its store while the rest of the file is still being read.
+ */
+class RecipeProducer implements ResponseProducer {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(RecipeProducer.class);
+    private static final int CHUNKS_PER_PART = 4096;
+    private static final int PARTS_PER_PORTION = 4;
+    private static final long MAX_READ_BYTES_PER_PORTION = 64 * 1024 * 1024;
+    private final @NotNull Path path;
+    private final int protocolVersion;
+    private final @NotNull FtpCompression compression;
+    private @Nullable FileChannel fileChannel;
+    private @Nullable ContentChunker chunker;
+    private long versionToken;
+    private long chunksNumber = 0;
+    private boolean isFinished = false;
+
+    /**
+     * Creates the producer. The file is opened by the first {@link #produce()} call.
+     * @param path the path to the file
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client, which applies to the parts
+     */
+    public RecipeProducer(@NotNull Path path, int protocolVersion, @NotNull FtpCompression compression) {
+        this.path = path;
+        this.protocolVersion = protocolVersion;
+        this.compression = compression;
+    }
+
+    @Override
+    public @NotNull List<ResponsePart> produce() throws IOException {
+        List<ResponsePart> parts = new ArrayList<>(PARTS_PER_PORTION);
+        if (isFinished) {
+            return parts;
+        }
+        if (chunker == null) {
+            try {
+                long lastModified = Files.getLastModifiedTime(path).toMillis();
+                fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                versionToken = FtpGetResponse.versionToken(fileChannel.size(), lastModified);
+            } catch (NoSuchFileException e) {
+                isFinished = true;
+                parts.add(encodePart(FtpRecipePart.notFoundResponse()));
+                return parts;
+            }
+            chunker = new ContentChunker(fileChannel);
+        }
+        long readEnd = chunker.getContentLength() + MAX_READ_BYTES_PER_PORTION;
+        while (parts.size() < PARTS_PER_PORTION && !isFinished && chunker.getContentLength() < readEnd) {
+            int[] chunkSizes = new int[CHUNKS_PER_PART];
+            byte[] chunkHashes = new byte[CHUNKS_PER_PART * ContentChunker.HASH_LENGTH];
+            int partChunks = 0;
+            while (partChunks < CHUNKS_PER_PART && !isFinished) {
+                int chunkSize = chunker.nextChunk(chunkHashes, partChunks * ContentChunker.HASH_LENGTH);
+                if (chunkSize == -1) {
+                    isFinished = true;
+                } else {
+                    chunkSizes[partChunks++] = chunkSize;
+                }
+            }
+            chunksNumber += partChunks;
+            chunkSizes = Arrays.copyOf(chunkSizes, partChunks);
+            chunkHashes = Arrays.copyOf(chunkHashes, partChunks * ContentChunker.HASH_LENGTH);
+            if (isFinished) {
+                logger.info("Recipe of {} computed: {} chunks of {} bytes", path, chunksNumber,
+                        chunker.getContentLength());
+                parts.add(encodePart(new FtpRecipePart(chunkSizes, chunkHashes, true, chunker.getContentLength(),
+                        versionToken)));
+            } else {
+                parts.add(encodePart(new FtpRecipePart(chunkSizes, chunkHashes)));
+            }
+        }
+        return parts;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    @Override
+    public void close() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            fileChannel = null;
+        }
+    }
+
+    private @NotNull ResponsePart encodePart(@NotNull FtpRecipePart part) {
+        return new ResponsePart(FtpServerWorker.encodeResponse(part, protocolVersion, compression));
+    }
+}
@@ -0,0 +1,31 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Raw content that follows a response message, e.g. the content of a requested file.
+ */
+interface ResponseBody {
+    /**
+     * Writes the next portion of the content to the channel.
+     * @param channel the channel to write the content to
+     * @param maxBytes the maximum number of bytes to write
+     * @return the number of bytes written
+     * @throws IOException if an I/O error occurs
+     */
+    long transferTo(@NotNull WritableByteChannel channel, long maxBytes) throws IOException;
+
+    /**
+     * Returns the number of bytes that are still to be written.
+     * @return the number of bytes that are still to be written
+     */
+    long getRemaining();
+
+    /**
+     * Releases the resources held by the body.
+     */
+    void close();
+}
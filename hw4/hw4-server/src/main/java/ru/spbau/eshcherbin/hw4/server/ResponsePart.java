@@ -0,0 +1,48 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbau.eshcherbin.hw4.messages.Message;
+
+/**
+ * A part of a response: a message optionally followed by raw content.
+ */
+class ResponsePart {
+    private final @NotNull Message message;
+    private final @Nullable ResponseBody body;
+
+    public ResponsePart(@NotNull Message message, @Nullable ResponseBody body) {
+        this.message = message;
+        this.body = body;
+    }
+
+    public ResponsePart(@NotNull Message message) {
+        this(message, null);
+    }
+
+    /**
+     * Returns the message of this part.
+     * @return the message of this part
+     */
+    public @NotNull Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the raw content that follows the message if present.
+     * @return the raw content that follows the message
+     */
+    public @Nullable ResponseBody getBody() {
+        return body;
+    }
+
+    /**
+     * Releases the message and the body without sending them.
+     */
+    public void discard() {
+        message.release();
+        if (body != null) {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A source of the parts of a response that is too large to be prepared at once.
+ * The parts are produced in bounded portions by the filesystem executor;
+ * the next portion is requested once the previous one has been taken for sending,
+ * so that a slow client does not make the server hold the whole response in memory.
+ */
+interface ResponseProducer {
+    /**
+     * Produces the next portion of the parts. Performed by the filesystem executor.
+     * @return the produced parts
+     * @throws IOException if an I/O error occurs
+     */
+    @NotNull List<ResponsePart> produce() throws IOException;
+
+    /**
+     * Returns whether all the parts have been produced.
+     * @return whether all the parts have been produced
+     */
+    boolean isFinished();
+
+    /**
+     * Releases the resources held by the producer.
+     */
+    void close();
+}
@@ -0,0 +1,184 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel: time is divided into ticks, and a timer is kept in the slot of its deadline tick
+ * modulo the number of slots, together with the number of full turns of the wheel left before it expires.
+ * Scheduling and cancelling a timer take constant time; advancing the wheel takes time proportional
+ * to the number of elapsed ticks and the timers in the visited slots.
+ * Timers expire with the precision of a tick, never earlier than their deadlines.
+ * Should only be accessed from a single thread.
+ * @param <T> the type of the objects the timers are attached to
+ */
+class TimerWheel<T> {
+    private final long tickNanos;
+    private final long startNanos;
+    private final @NotNull Timer<?>[] slots;
+    private final int mask;
+    private long currentTick;
+    private int timersNumber = 0;
+
+    /**
+     * Creates the wheel.
+     * @param tickNanos the duration of a tick in nanoseconds
+     * @param slotsNumber the number of slots, rounded up to a power of two
+     * @param nowNanos the current time in nanoseconds as returned by {@link System#nanoTime()}
+     */
+    public TimerWheel(long tickNanos, int slotsNumber, long nowNanos) {
+        if (tickNanos <= 0 || slotsNumber <= 0) {
+            throw new IllegalArgumentException("Tick duration and number of slots must be positive");
+        }
+        this.tickNanos = tickNanos;
+        startNanos = nowNanos;
+        int size = Integer.highestOneBit(slotsNumber);
+        if (size < slotsNumber) {
+            size <<= 1;
+        }
+        slots = new Timer<?>[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Timer<>(null); // the sentinel of the slot's circular list
+        }
+        mask = size - 1;
+        currentTick = 0;
+    }
+
+    /**
+     * Creates a timer that is not scheduled yet.
+     * @param attachment the object to pass to the expiration handler
+     * @return the timer
+     */
+    public @NotNull Timer<T> newTimer(@NotNull T attachment) {
+        return new Timer<>(attachment);
+    }
+
+    /**
+     * Schedules the timer to expire at the deadline, rescheduling it if it is scheduled already.
+     * @param timer the timer
+     * @param deadlineNanos the deadline in nanoseconds as returned by {@link System#nanoTime()}
+     */
+    public void schedule(@NotNull Timer<T> timer, long deadlineNanos) {
+        cancel(timer);
+        // rounded up, so that the timer never expires early; the current tick has been processed already
+        long deadlineTick = Math.max((Math.max(deadlineNanos - startNanos, 0) + tickNanos - 1) / tickNanos,
+                currentTick + 1);
+        long ticks = deadlineTick - currentTick;
+        timer.remainingRounds = (ticks - 1) / slots.length;
+        Timer<?> sentinel = slots[(int) (deadlineTick & mask)];
+        timer.previous = sentinel.previous;
+        timer.next = sentinel;
+        sentinel.previous.next = timer;
+        sentinel.previous = timer;
+        timersNumber++;
+    }
+
+    /**
+     * Cancels the timer if it is scheduled.
+     * @param timer the timer
+     */
+    public void cancel(@NotNull Timer<T> timer) {
+        if (timer.next == null) {
+            return;
+        }
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+        timersNumber--;
+    }
+
+    /**
+     * Processes the ticks elapsed since the previous call and passes the attachments
+     * of the expired timers to the handler. The handler may schedule the expired timer again
+     * but should not cancel other timers.
+     * @param nowNanos the current time in nanoseconds as returned by {@link System#nanoTime()}
+     * @param handler the handler of the expired timers
+     */
+    @SuppressWarnings("unchecked")
+    public void advance(long nowNanos, @NotNull Consumer<T> handler) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+        while (currentTick < nowTick) {
+            if (timersNumber == 0) {
+                currentTick = nowTick;
+                return;
+            }
+            currentTick++;
+            Timer<?> sentinel = slots[(int) (currentTick & mask)];
+            Timer<?> timer = sentinel.next;
+            if (timer == sentinel) {
+                continue;
+            }
+            // the slot's list is detached first, so that timers rescheduled into the same slot wait a full turn
+            sentinel.previous.next = null;
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            while (timer != null) {
+                Timer<?> next = timer.next;
+                if (timer.remainingRounds > 0) {
+                    timer.remainingRounds--;
+                    timer.previous = sentinel.previous;
+                    timer.next = sentinel;
+                    sentinel.previous.next = timer;
+                    sentinel.previous = timer;
+                } else {
+                    timer.previous = null;
+                    timer.next = null;
+                    timersNumber--;
+                    handler.accept(((Timer<T>) timer).attachment);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * Returns the time until the end of the current tick, which is when the wheel should be advanced next.
+     * @param nowNanos the current time in nanoseconds as returned by {@link System#nanoTime()}
+     * @return the time until the next tick in nanoseconds or <tt>-1</tt> if no timers are scheduled
+     */
+    public long getNanosUntilNextTick(long nowNanos) {
+        if (timersNumber == 0) {
+            return -1;
+        }
+        long elapsedNanos = nowNanos - startNanos;
+        return Math.max((elapsedNanos / tickNanos + 1) * tickNanos - elapsedNanos, 1);
+    }
+
+    /**
+     * Returns the number of scheduled timers.
+     * @return the number of scheduled timers
+     */
+    public int getTimersNumber() {
+        return timersNumber;
+    }
+
+    /**
+     * A timer of the wheel, an element of the circular list of its slot.
+     * @param <T> the type of the object the timer is attached to
+     */
+    static class Timer<T> {
+        private final @Nullable T attachment;
+        private @Nullable Timer<?> previous;
+        private @Nullable Timer<?> next;
+        private long remainingRounds;
+
+        private Timer(@Nullable T attachment) {
+            this.attachment = attachment;
+            if (attachment == null) {
+                previous = this;
+                next = this;
+            }
+        }
+
+        /**
+         * Returns whether the timer is scheduled.
+         * @return whether the timer is scheduled
+         */
+        public boolean isScheduled() {
+            return next != null;
+        }
+    }
+}
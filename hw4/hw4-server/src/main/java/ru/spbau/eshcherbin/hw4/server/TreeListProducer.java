@@ -0,0 +1,227 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpTreeChunk;
+import ru.spbau.eshcherbin.hw4.ftp.FtpTreeItem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Produces the chunks of the response to a recursive list query.
+ * The tree is walked breadth-first: the directories of the current frontier are listed in parallel
+ * by the tree walk pool, and their subdirectories form the next frontier.
+ * Symbolic links are reported but never followed, so the walk cannot loop.
+ * Directories deeper than the depth limit are not descended into, and the walk stops once the entry limit
+ * is reached; the last chunk tells whether any of the tree has been left out.
+ */
+class TreeListProducer implements ResponseProducer {
+    private static final @NotNull Logger logger = LoggerFactory.getLogger(TreeListProducer.class);
+    private static final int ITEMS_PER_CHUNK = 1024;
+    private static final int CHUNKS_PER_PORTION = 4;
+    private static final int DIRECTORIES_PER_BATCH = 64;
+    private final @NotNull Path root;
+    private final int protocolVersion;
+    private final @NotNull FtpCompression compression;
+    private final @NotNull ForkJoinPool treeWalkPool;
+    private final int maxDepth;
+    private final int maxEntries;
+    private final @NotNull Deque<PendingDirectory> frontier = new ArrayDeque<>();
+    private final @NotNull Deque<FtpTreeItem> readyItems = new ArrayDeque<>();
+    private int entriesNumber = 0;
+    private boolean isStarted = false;
+    private boolean isTruncated = false;
+    private boolean isFinished = false;
+
+    /**
+     * Creates the producer. The tree is walked by the {@link #produce()} calls.
+     * @param root the path of the listed directory
+     * @param protocolVersion the protocol version used by the client
+     * @param compression the compression negotiated with the client
+     * @param treeWalkPool the pool listing the directories in parallel
+     * @param maxDepth the maximum depth of the listed entries, the children of the root having depth one
+     * @param maxEntries the maximum number of the listed entries
+     */
+    public TreeListProducer(@NotNull Path root, int protocolVersion, @NotNull FtpCompression compression,
+                            @NotNull ForkJoinPool treeWalkPool, int maxDepth, int maxEntries) {
+        this.root = root;
+        this.protocolVersion = protocolVersion;
+        this.compression = compression;
+        this.treeWalkPool = treeWalkPool;
+        this.maxDepth = maxDepth;
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public @NotNull List<ResponsePart> produce() throws IOException {
+        List<ResponsePart> parts = new ArrayList<>(CHUNKS_PER_PORTION);
+        if (!isStarted) {
+            isStarted = true;
+            if (!Files.isDirectory(root)) {
+                parts.add(encodeChunk());
+                return parts;
+            }
+            frontier.add(new PendingDirectory(root, "", 0));
+        }
+        while (parts.size() < CHUNKS_PER_PORTION && !isFinished) {
+            if (readyItems.size() >= ITEMS_PER_CHUNK || frontier.isEmpty()) {
+                parts.add(encodeChunk());
+            } else {
+                walkNextBatch();
+            }
+        }
+        return parts;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    @Override
+    public void close() {
+        frontier.clear();
+        readyItems.clear();
+    }
+
+    /**
+     * Lists the next batch of the frontier directories in parallel and adds their entries to the ready items.
+     * @throws IOException if the listed directory itself cannot be read
+     */
+    private void walkNextBatch() throws IOException {
+        List<PendingDirectory> batch = new ArrayList<>(DIRECTORIES_PER_BATCH);
+        while (batch.size() < DIRECTORIES_PER_BATCH && !frontier.isEmpty()) {
+            batch.add(frontier.poll());
+        }
+        List<List<FtpTreeItem>> listings = treeWalkPool.invoke(new ListDirectoriesTask(batch, 0, batch.size()));
+        for (int i = 0; i < batch.size(); i++) {
+            PendingDirectory directory = batch.get(i);
+            List<FtpTreeItem> listing = listings.get(i);
+            if (listing == null) {
+                if (directory.depth == 0) {
+                    throw new IOException("Unable to list " + root);
+                }
+                isTruncated = true;
+                continue;
+            }
+            for (FtpTreeItem item : listing) {
+                if (entriesNumber == maxEntries) {
+                    isTruncated = true;
+                    frontier.clear();
+                    return;
+                }
+                entriesNumber++;
+                readyItems.add(item);
+                if (item.isDirectory()) {
+                    if (directory.depth + 1 < maxDepth) {
+                        frontier.add(new PendingDirectory(root.resolve(item.getRelativePath()),
+                                item.getRelativePath(), directory.depth + 1));
+                    } else {
+                        isTruncated = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes a chunk of the ready items. The chunk is the last one if nothing else is to be listed.
+     * @return the encoded chunk
+     */
+    private @NotNull ResponsePart encodeChunk() {
+        ArrayList<FtpTreeItem> items = new ArrayList<>(Math.min(ITEMS_PER_CHUNK, readyItems.size()));
+        while (items.size() < ITEMS_PER_CHUNK && !readyItems.isEmpty()) {
+            items.add(readyItems.poll());
+        }
+        isFinished = readyItems.isEmpty() && frontier.isEmpty();
+        FtpTreeChunk chunk = new FtpTreeChunk(items, isFinished, isFinished && isTruncated);
+        return new ResponsePart(FtpServerWorker.encodeResponse(chunk, protocolVersion, compression));
+    }
+
+    /**
+     * Lists a directory, reading the attributes of its entries without following symbolic links.
+     * @param directory the directory
+     * @return the entries or <tt>null</tt> if the directory cannot be read
+     */
+    private static @Nullable List<FtpTreeItem> listDirectory(@NotNull PendingDirectory directory) {
+        List<FtpTreeItem> items = new ArrayList<>();
+        String prefix = directory.relativePath.isEmpty() ? "" : directory.relativePath + "/";
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory.path)) {
+            for (Path entry : directoryStream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue; // deleted meanwhile
+                }
+                items.add(new FtpTreeItem(prefix + entry.getFileName(), attributes.isDirectory(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            logger.error("Unable to list {}: {}", directory.path, e.getMessage());
+            return null;
+        }
+        return items;
+    }
+
+    /**
+     * A directory waiting to be listed.
+     */
+    private static class PendingDirectory {
+        private final @NotNull Path path;
+        private final @NotNull String relativePath;
+        private final int depth;
+
+        private PendingDirectory(@NotNull Path path, @NotNull String relativePath, int depth) {
+            this.path = path;
+            this.relativePath = relativePath;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Lists a range of a batch of directories, splitting it in halves until single directories are left.
+     */
+    private static class ListDirectoriesTask extends RecursiveTask<List<List<FtpTreeItem>>> {
+        private final @NotNull List<PendingDirectory> batch;
+        private final int from;
+        private final int to;
+
+        private ListDirectoriesTask(@NotNull List<PendingDirectory> batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected @NotNull List<List<FtpTreeItem>> compute() {
+            if (to - from == 1) {
+                return Collections.singletonList(listDirectory(batch.get(from)));
+            }
+            int middle = (from + to) >>> 1;
+            ListDirectoriesTask left = new ListDirectoriesTask(batch, from, middle);
+            ListDirectoriesTask right = new ListDirectoriesTask(batch, middle, to);
+            left.fork();
+            List<List<FtpTreeItem>> result = new ArrayList<>(to - from);
+            result.addAll(right.compute());
+            result.addAll(0, left.join());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The quota of the uploads to the server, shared by the workers. An upload reserves the size of its file
+ * when it starts and gives it back when it is stored or aborted, so that the total size of the files
+ * being received at once is bounded, as well as the size of a single file. Uploads exceeding the quota are rejected.
+ */
+class UploadQuota {
+    private volatile long maxFileSize;
+    private volatile long maxReservedBytes;
+    private final @NotNull AtomicLong reservedBytes = new AtomicLong();
+
+    /**
+     * Creates the quota.
+     * @param maxFileSize the maximum size of an uploaded file
+     * @param maxReservedBytes the maximum total size of the files being uploaded at once
+     */
+    public UploadQuota(long maxFileSize, long maxReservedBytes) {
+        setLimits(maxFileSize, maxReservedBytes);
+    }
+
+    /**
+     * Changes the limits of the quota, which apply to the uploads started afterwards.
+     * @param maxFileSize the maximum size of an uploaded file
+     * @param maxReservedBytes the maximum total size of the files being uploaded at once
+     */
+    public void setLimits(long maxFileSize, long maxReservedBytes) {
+        if (maxFileSize < 0 || maxReservedBytes < 0) {
+            throw new IllegalArgumentException("Upload limits must not be negative");
+        }
+        this.maxFileSize = maxFileSize;
+        this.maxReservedBytes = maxReservedBytes;
+    }
+
+    /**
+     * Reserves the size of a file to be uploaded unless it exceeds the quota.
+     * @param bytes the size of the file
+     * @return whether the size has been reserved
+     */
+    public boolean tryReserve(long bytes) {
+        if (bytes > maxFileSize) {
+            return false;
+        }
+        while (true) {
+            long reserved = reservedBytes.get();
+            if (reserved + bytes > maxReservedBytes) {
+                return false;
+            }
+            if (reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the size reserved for an upload that has been stored or aborted.
+     * @param bytes the reserved size
+     */
+    public void release(long bytes) {
+        reservedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Returns the total size of the files being uploaded.
+     * @return the number of reserved bytes
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+}
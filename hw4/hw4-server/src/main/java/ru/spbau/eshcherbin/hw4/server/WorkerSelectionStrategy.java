@@ -0,0 +1,15 @@
+package ru.spbau.eshcherbin.hw4.server;
+
+/**
+ * Strategy used by the server to choose a worker for a newly accepted client.
+ */
+public enum WorkerSelectionStrategy {
+    /**
+     * Workers are chosen in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * The worker with the least number of connected clients is chosen.
+     */
+    LEAST_LOADED,
+}
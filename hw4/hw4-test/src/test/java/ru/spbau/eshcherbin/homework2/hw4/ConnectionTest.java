@@ -1,12 +1,22 @@
 package ru.spbau.eshcherbin.homework2.hw4;
 
+import org.junit.Assert;
 import org.junit.Test;
 import ru.spbau.eshcherbin.hw4.client.Client;
 import ru.spbau.eshcherbin.hw4.client.FtpClient;
+import ru.spbau.eshcherbin.hw4.client.FtpClientPool;
 import ru.spbau.eshcherbin.hw4.server.FtpServer;
 import ru.spbau.eshcherbin.hw4.server.Server;
+import ru.spbau.eshcherbin.hw4.server.WorkerSelectionStrategy;
 
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
 
 public class ConnectionTest {
     protected static final int PORT = 1117;
@@ -58,4 +68,111 @@ public class ConnectionTest {
         client.disconnect();
         server.stop();
     }
+
+    @Test
+    public void severalClientsSeveralWorkersTest() throws Exception {
+        Server server = new FtpServer(new InetSocketAddress(PORT + 4), 2, WorkerSelectionStrategy.LEAST_LOADED);
+        server.start();
+        Thread.sleep(100);
+        Client client1 = new FtpClient();
+        client1.connect(new InetSocketAddress("127.0.0.1", PORT + 4));
+        Client client2 = new FtpClient();
+        client2.connect(new InetSocketAddress("127.0.0.1", PORT + 4));
+        Client client3 = new FtpClient();
+        client3.connect(new InetSocketAddress("127.0.0.1", PORT + 4));
+        Thread.sleep(300);
+        client3.disconnect();
+        client2.disconnect();
+        client1.disconnect();
+        server.stop();
+    }
+
+    @Test
+    public void clientPoolTest() throws Exception {
+        Server server = new FtpServer(new InetSocketAddress(PORT + 5));
+        server.start();
+        Thread.sleep(100);
+        FtpClientPool pool = new FtpClientPool(new InetSocketAddress("127.0.0.1", PORT + 5), 1, 2, 200);
+        try {
+            Thread.sleep(100);
+            assertThat(pool.getIdleNumber(), is(1));
+            FtpClient client1 = pool.borrow();
+            FtpClient client2 = pool.borrow();
+            assertThat(pool.getBorrowedNumber(), is(2));
+            try {
+                pool.borrow(100, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (TimeoutException ignored) {
+            }
+            client1.executePing();
+            pool.release(client1);
+            assertThat(pool.borrow(), is(client1));
+            pool.release(client1);
+            pool.invalidate(client2);
+            assertThat(client2.isConnected(), is(false));
+            assertThat(pool.getBorrowedNumber(), is(0));
+            assertThat(pool.getBorrowsNumber(), is(3L));
+            Thread.sleep(600);
+            assertThat(pool.getIdleNumber(), is(1));
+        } finally {
+            pool.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void connectionLimitTest() throws Exception {
+        FtpServer server = new FtpServer(new InetSocketAddress(PORT + 6));
+        server.setMaxConnections(1);
+        server.start();
+        Thread.sleep(100);
+        FtpClient client = new FtpClient();
+        try (Socket rejectedSocket = new Socket()) {
+            client.connect(new InetSocketAddress("127.0.0.1", PORT + 6));
+            client.executePing();
+            rejectedSocket.connect(new InetSocketAddress("127.0.0.1", PORT + 6));
+            assertThat(isClosedByServer(rejectedSocket), is(true));
+            assertThat(server.getRejectedConnectionsNumber(), is(1L));
+            client.executePing();
+            assertThat(server.getConnectionsNumber(), is(1));
+        } finally {
+            client.disconnect();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void slowClientEvictionTest() throws Exception {
+        FtpServer server = new FtpServer(new InetSocketAddress(PORT + 7));
+        server.setTimeouts(1000, 300, 1000);
+        server.start();
+        Thread.sleep(100);
+        FtpClient client = new FtpClient();
+        try (Socket idleSocket = new Socket(); Socket slowSocket = new Socket()) {
+            client.connect(new InetSocketAddress("127.0.0.1", PORT + 7));
+            idleSocket.connect(new InetSocketAddress("127.0.0.1", PORT + 7));
+            slowSocket.connect(new InetSocketAddress("127.0.0.1", PORT + 7));
+            slowSocket.getOutputStream().write(new byte[] {0, 0});
+            slowSocket.getOutputStream().flush();
+            long startMillis = System.currentTimeMillis();
+            assertThat(isClosedByServer(slowSocket), is(true));
+            assertThat(System.currentTimeMillis() - startMillis < 1000, is(true));
+            for (int i = 0; i < 15; i++) {
+                client.executePing();
+                Thread.sleep(100);
+            }
+            assertThat(isClosedByServer(idleSocket), is(true));
+            assertThat(server.getEvictedClientsNumber(), is(2L));
+            client.executePing();
+        } finally {
+            client.disconnect();
+            server.stop();
+        }
+    }
+
+    private static boolean isClosedByServer(Socket socket) throws Exception {
+        socket.setSoTimeout(3000);
+        InputStream inputStream = socket.getInputStream();
+        return inputStream.read() == -1;
+    }
 }
@@ -1,22 +1,64 @@
 package ru.spbau.eshcherbin.homework2.hw4;
 
+import org.apache.commons.lang3.SerializationUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
+import ru.spbau.eshcherbin.hw4.chunks.ContentChunker;
+import ru.spbau.eshcherbin.hw4.client.AsyncFtpClient;
+import ru.spbau.eshcherbin.hw4.client.ChunkStore;
 import ru.spbau.eshcherbin.hw4.client.FtpClient;
+import ru.spbau.eshcherbin.hw4.client.FtpClientPool;
+import ru.spbau.eshcherbin.hw4.client.SegmentedDownloader;
+import ru.spbau.eshcherbin.hw4.delta.BlockSignatures;
+import ru.spbau.eshcherbin.hw4.ftp.FtpCompression;
+import ru.spbau.eshcherbin.hw4.ftp.FtpGetResponse;
 import ru.spbau.eshcherbin.hw4.ftp.FtpListResponse;
 import ru.spbau.eshcherbin.hw4.ftp.FtpListResponseItem;
+import ru.spbau.eshcherbin.hw4.ftp.FtpMessageCodec;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutResponse;
+import ru.spbau.eshcherbin.hw4.ftp.FtpPutStatus;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQuery;
+import ru.spbau.eshcherbin.hw4.ftp.FtpQueryType;
+import ru.spbau.eshcherbin.hw4.ftp.FtpTreeItem;
+import ru.spbau.eshcherbin.hw4.messages.Message;
+import ru.spbau.eshcherbin.hw4.messages.MessageReader;
+import ru.spbau.eshcherbin.hw4.messages.MessageWriter;
 import ru.spbau.eshcherbin.hw4.server.FtpServer;
 import ru.spbau.eshcherbin.hw4.server.Server;
+import ru.spbau.eshcherbin.hw4.server.WorkerSelectionStrategy;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
@@ -32,6 +74,7 @@ public class InteractionTest {
 
     @BeforeClass
     public static void setUpClass() throws Exception {
+        ((FtpServer) server).setUploadRoot(Paths.get(System.getProperty("java.io.tmpdir")));
         server.start();
         Thread.sleep(100);
     }
@@ -79,6 +122,27 @@ public class InteractionTest {
         assertThat(item2.isDirectory(), is(true));
     }
 
+    @Test
+    public void listMetadataTest() throws Exception {
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final List<FtpListResponseItem> responseItems =
+                client.executeList(temporaryFolder.getRoot().toString()).getResponseItems();
+        responseItems.sort(Comparator.comparing(FtpListResponseItem::getFileName));
+        assertThat(responseItems.get(0).getSize(), is(1024L));
+        assertThat(responseItems.get(0).getLastModified(), is(Files.getLastModifiedTime(file1).toMillis()));
+        assertThat(responseItems.get(0).getContentHash() == null, is(true));
+
+        final List<FtpListResponseItem> hashedItems =
+                client.executeListWithHashes(temporaryFolder.getRoot().toString()).getResponseItems();
+        hashedItems.sort(Comparator.comparing(FtpListResponseItem::getFileName));
+        assertThat(hashedItems.get(0).getContentHash(), is(MessageDigest.getInstance("SHA-256").digest(bytes)));
+        assertThat(hashedItems.get(1).getContentHash(), is(MessageDigest.getInstance("SHA-256").digest()));
+        assertThat(hashedItems.get(2).isDirectory(), is(true));
+        assertThat(hashedItems.get(2).getContentHash() == null, is(true));
+        client.disconnect();
+    }
+
     @Test
     public void getTest() throws Exception {
         FtpClient client = new FtpClient();
@@ -88,4 +152,897 @@ public class InteractionTest {
         assertThat(Files.readAllBytes(file3), is(bytes));
         client.disconnect();
     }
+
+    @Test
+    public void getMissingFileDoesNotAffectOtherClientsTest() throws Exception {
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final Path file3 = temporaryFolder.getRoot().toPath().resolve("file3");
+        client.executeGet(temporaryFolder.getRoot().toPath().resolve("missing").toString(), file3);
+        assertThat(Files.exists(file3), is(false));
+
+        FtpClient otherClient = new FtpClient();
+        otherClient.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final FtpListResponse response = otherClient.executeList(temporaryFolder.getRoot().toString());
+        otherClient.disconnect();
+        assertThat(response.getResponseItems().size(), is(3));
+    }
+
+    @Test(timeout = 10000)
+    public void invalidPathDoesNotAffectOtherClientsTest() throws Exception {
+        final List<FtpClient> otherClients = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            FtpClient otherClient = new FtpClient();
+            otherClient.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+            otherClients.add(otherClient);
+        }
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        // the server disconnects the client, which gets no items
+        assertThat(client.executeList(temporaryFolder.getRoot().toString() + "\0").getResponseItems().size(), is(0));
+        client.disconnect();
+
+        for (FtpClient otherClient : otherClients) {
+            final FtpListResponse response = otherClient.executeList(temporaryFolder.getRoot().toString());
+            otherClient.disconnect();
+            assertThat(response.getResponseItems().size(), is(3));
+        }
+        for (int i = 0; i < 8; i++) {
+            FtpClient newClient = new FtpClient();
+            newClient.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+            final FtpListResponse response = newClient.executeList(temporaryFolder.getRoot().toString());
+            newClient.disconnect();
+            assertThat(response.getResponseItems().size(), is(3));
+        }
+    }
+
+    @Test
+    public void legacyClientTest() throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        MessageWriter writer = new MessageWriter(channel);
+        writer.startNewMessage(new Message(SerializationUtils.serialize(
+                new FtpQuery(FtpQueryType.LIST, temporaryFolder.getRoot().toString())
+        )));
+        while (!writer.write()) {
+        }
+        MessageReader reader = new MessageReader(channel);
+        Optional<Message> messageOptional = reader.read();
+        while (!messageOptional.isPresent() && !reader.isClientDisconnected()) {
+            messageOptional = reader.read();
+        }
+        channel.close();
+
+        assertThat(messageOptional.isPresent(), is(true));
+        final FtpListResponse response = SerializationUtils.deserialize(messageOptional.get().getData());
+        assertThat(response.getResponseItems().size(), is(3));
+    }
+
+    @Test
+    public void legacyClientNonQueryClassTest() throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        MessageWriter writer = new MessageWriter(channel);
+        writer.startNewMessage(new Message(SerializationUtils.serialize(
+                new ArrayList<>(Arrays.asList(temporaryFolder.getRoot().toString()))
+        )));
+        while (!writer.write()) {
+        }
+        MessageReader reader = new MessageReader(channel);
+        Optional<Message> messageOptional = reader.read();
+        while (!messageOptional.isPresent() && !reader.isClientDisconnected()) {
+            messageOptional = reader.read();
+        }
+        channel.close();
+        assertThat(messageOptional.isPresent(), is(false));
+
+        FtpClient otherClient = new FtpClient();
+        otherClient.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final FtpListResponse response = otherClient.executeList(temporaryFolder.getRoot().toString());
+        otherClient.disconnect();
+        assertThat(response.getResponseItems().size(), is(3));
+    }
+
+    @Test(timeout = 10000)
+    public void tooLongQueryTest() throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        ByteBuffer buffer = ByteBuffer.allocate(Message.LENGTH_BYTES);
+        buffer.putInt(Integer.MAX_VALUE);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        // the server disconnects the client instead of allocating the message
+        assertThat(channel.read(buffer), is(-1));
+        channel.close();
+
+        FtpClient otherClient = new FtpClient();
+        otherClient.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final FtpListResponse response = otherClient.executeList(temporaryFolder.getRoot().toString());
+        otherClient.disconnect();
+        assertThat(response.getResponseItems().size(), is(3));
+    }
+
+    @Test
+    public void listBatchTest() throws Exception {
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            paths.add(i % 2 == 0 ? temporaryFolder.getRoot().toString() : file1.toString());
+        }
+        final List<FtpListResponse> responses = client.executeListBatch(paths);
+        client.disconnect();
+
+        assertThat(responses.size(), is(100));
+        for (int i = 0; i < 100; i++) {
+            assertThat(responses.get(i).getResponseItems().size(), is(i % 2 == 0 ? 3 : 0));
+        }
+    }
+
+    @Test
+    public void getBatchTest() throws Exception {
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final Path saveFolder = temporaryFolder.newFolder("saved").toPath();
+        final List<String> paths = new ArrayList<>();
+        final List<Path> savePaths = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            paths.add(i % 10 == 5 ? "missing" : file1.toString());
+            savePaths.add(saveFolder.resolve("file" + i));
+        }
+        client.executeGetBatch(paths, savePaths);
+        client.disconnect();
+
+        for (int i = 0; i < 50; i++) {
+            if (i % 10 == 5) {
+                assertThat(Files.exists(savePaths.get(i)), is(false));
+            } else {
+                assertThat(Files.readAllBytes(savePaths.get(i)), is(bytes));
+            }
+        }
+    }
+
+    @Test
+    public void getBatchManyFilesTest() throws Exception {
+        final Path sourceFolder = temporaryFolder.newFolder("configs").toPath();
+        final Path saveFolder = temporaryFolder.newFolder("savedConfigs").toPath();
+        final List<String> paths = new ArrayList<>();
+        final List<Path> savePaths = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            final Path source = sourceFolder.resolve("config" + i);
+            Files.write(source, ("value=" + i).getBytes());
+            paths.add(source.toString());
+            savePaths.add(saveFolder.resolve("config" + i));
+        }
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        client.executeGetBatch(paths, savePaths);
+        client.executePing();
+        client.disconnect();
+
+        for (int i = 0; i < 1500; i++) {
+            assertThat(new String(Files.readAllBytes(savePaths.get(i))), is("value=" + i));
+        }
+    }
+
+    @Test
+    public void asyncClientTest() throws Exception {
+        AsyncFtpClient client = new AsyncFtpClient();
+        client.start();
+        final InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1);
+        final Path saveFolder = temporaryFolder.newFolder("saved").toPath();
+        final List<CompletableFuture<FtpListResponse>> listFutures = new ArrayList<>();
+        final List<CompletableFuture<Path>> getFutures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            listFutures.add(client.list(serverAddress, file1.getParent().toString()));
+            getFutures.add(client.get(serverAddress, file1.toString(), saveFolder.resolve("file" + i)));
+        }
+        final CompletableFuture<Path> missingFuture = client.get(serverAddress, "missing", saveFolder.resolve("missing"));
+        try {
+            for (CompletableFuture<FtpListResponse> future : listFutures) {
+                assertThat(future.get(10, TimeUnit.SECONDS).getResponseItems().size(), is(4));
+            }
+            for (int i = 0; i < 20; i++) {
+                assertThat(getFutures.get(i).get(10, TimeUnit.SECONDS), is(saveFolder.resolve("file" + i)));
+                assertThat(Files.readAllBytes(saveFolder.resolve("file" + i)), is(bytes));
+            }
+            try {
+                missingFuture.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                assertThat(e.getCause() instanceof FileNotFoundException, is(true));
+            }
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void getRangeTest() throws Exception {
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final Path file3 = temporaryFolder.getRoot().toPath().resolve("file3");
+        try (FileChannel fileChannel = FileChannel.open(file3, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final FtpGetResponse response = client.executeGetRange(file1.toString(), 1000, 100, fileChannel);
+            assertThat(response.getFileSize(), is(1024L));
+        }
+        client.disconnect();
+        final byte[] savedBytes = Files.readAllBytes(file3);
+        assertThat(savedBytes.length, is(1024));
+        assertThat(Arrays.copyOfRange(savedBytes, 1000, 1024), is(Arrays.copyOfRange(bytes, 1000, 1024)));
+    }
+
+    @Test
+    public void segmentedDownloadTest() throws Exception {
+        final Path largeFile = temporaryFolder.newFile("large").toPath();
+        final byte[] largeBytes = new byte[1024 * 1024 + 17];
+        random.nextBytes(largeBytes);
+        Files.write(largeFile, largeBytes);
+        FtpClientPool pool = new FtpClientPool(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1), 0, 4, 1000);
+        SegmentedDownloader downloader = new SegmentedDownloader(pool, 4, 64 * 1024);
+        try {
+            final Path savePath = temporaryFolder.getRoot().toPath().resolve("saved");
+            assertThat(downloader.download(largeFile.toString(), savePath), is(true));
+            assertThat(Files.readAllBytes(savePath), is(largeBytes));
+            final Path missingSavePath = temporaryFolder.getRoot().toPath().resolve("missingSaved");
+            assertThat(downloader.download("missing", missingSavePath), is(false));
+            assertThat(Files.exists(missingSavePath), is(false));
+        } finally {
+            downloader.shutdown();
+            pool.close();
+        }
+    }
+
+    @Test
+    public void segmentedDownloadOfRewrittenFileTest() throws Exception {
+        final Path largeFile = temporaryFolder.newFile("rewritten").toPath();
+        final byte[] largeBytes = new byte[1024 * 1024];
+        random.nextBytes(largeBytes);
+        Files.write(largeFile, largeBytes);
+        Files.setLastModifiedTime(largeFile, FileTime.fromMillis(1000000000000L));
+        final byte[] newBytes = new byte[largeBytes.length];
+        random.nextBytes(newBytes);
+        final AtomicInteger borrowsNumber = new AtomicInteger();
+        // the file is rewritten with the same size once the first segment has been fetched
+        FtpClientPool pool = new FtpClientPool(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1),
+                0, 4, 1000) {
+            @Override
+            public @NotNull FtpClient borrow() throws IOException, InterruptedException {
+                if (borrowsNumber.incrementAndGet() == 2) {
+                    Files.write(largeFile, newBytes);
+                    Files.setLastModifiedTime(largeFile, FileTime.fromMillis(1000000001000L));
+                }
+                return super.borrow();
+            }
+        };
+        SegmentedDownloader downloader = new SegmentedDownloader(pool, 4, 64 * 1024);
+        try {
+            downloader.download(largeFile.toString(), temporaryFolder.getRoot().toPath().resolve("saved"));
+            Assert.fail("Download of a rewritten file succeeded");
+        } catch (IOException ignored) {
+        } finally {
+            downloader.shutdown();
+            pool.close();
+        }
+    }
+
+    @Test
+    public void resumeGetTest() throws Exception {
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final Path file3 = temporaryFolder.getRoot().toPath().resolve("file3");
+        final FtpGetResponse response;
+        try (FileChannel fileChannel = FileChannel.open(file3, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            response = client.executeGetRange(file1.toString(), 0, 500, fileChannel);
+        }
+        final byte[] partialBytes = new byte[500];
+        Files.write(file3, partialBytes);
+        writePartialDownloadRecord(file3, response.getFileSize(), response.getVersionToken());
+        client.executeGet(file1.toString(), file3);
+
+        final byte[] expectedBytes = Arrays.copyOf(bytes, bytes.length);
+        System.arraycopy(partialBytes, 0, expectedBytes, 0, partialBytes.length);
+        assertThat(Files.readAllBytes(file3), is(expectedBytes));
+        assertThat(Files.exists(temporaryFolder.getRoot().toPath().resolve("file3.ftp-partial")), is(false));
+
+        Files.write(file3, partialBytes);
+        writePartialDownloadRecord(file3, response.getFileSize(), response.getVersionToken() + 1);
+        client.executeGet(file1.toString(), file3);
+        client.disconnect();
+        assertThat(Files.readAllBytes(file3), is(bytes));
+    }
+
+    @Test
+    public void listingCacheTest() throws Exception {
+        final FtpServer ftpServer = (FtpServer) server;
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        client.executeList(temporaryFolder.getRoot().toString());
+        final long hitsNumber = ftpServer.getListingCacheHitsNumber();
+        assertThat(client.executeList(temporaryFolder.getRoot().toString()).getResponseItems().size(), is(3));
+        assertThat(ftpServer.getListingCacheHitsNumber(), is(hitsNumber + 1));
+
+        final long invalidationsNumber = ftpServer.getListingCacheInvalidationsNumber();
+        temporaryFolder.newFile("file3");
+        for (int i = 0; i < 100 && ftpServer.getListingCacheInvalidationsNumber() == invalidationsNumber; i++) {
+            Thread.sleep(50);
+        }
+        assertThat(client.executeList(temporaryFolder.getRoot().toString()).getResponseItems().size(), is(4));
+        client.disconnect();
+    }
+
+    @Test
+    public void listStreamTest() throws Exception {
+        final Path folder = temporaryFolder.newFolder("large").toPath();
+        for (int i = 0; i < 3000; i++) {
+            Files.createFile(folder.resolve("file" + i));
+        }
+        Files.createDirectory(folder.resolve("folder"));
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        try (Stream<FtpListResponseItem> items = client.executeListStream(folder.toString())) {
+            assertThat(items.filter(item -> !item.isDirectory()).count(), is(3000L));
+        }
+        try (Stream<FtpListResponseItem> items = client.executeListStream(folder.toString())) {
+            assertThat(items.limit(10).count(), is(10L));
+        }
+        try (Stream<FtpListResponseItem> items = client.executeListStream(folder.resolve("nonexistent").toString())) {
+            assertThat(items.count(), is(0L));
+        }
+        assertThat(client.executeList(temporaryFolder.getRoot().toString()).getResponseItems().size(), is(4));
+        client.disconnect();
+    }
+
+    @Test
+    public void listRecursiveTest() throws Exception {
+        final Path root = temporaryFolder.getRoot().toPath();
+        Path directory = root.resolve("folder1");
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 10; j++) {
+                Files.write(directory.resolve("file" + j), new byte[j]);
+            }
+            directory = Files.createDirectory(directory.resolve("nested" + i));
+        }
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final List<FtpTreeItem> items = new ArrayList<>();
+        assertThat(client.executeListRecursive(root.toString(), items::add), is(true));
+        // file1, file2, folder1 and 5 levels of 10 files and a directory
+        assertThat(items.size(), is(3 + 5 * 11));
+        final Optional<FtpTreeItem> deepFile = items.stream()
+                .filter(item -> item.getRelativePath().equals("folder1/nested0/nested1/file7"))
+                .findAny();
+        assertThat(deepFile.isPresent(), is(true));
+        assertThat(deepFile.get().isDirectory(), is(false));
+        assertThat(deepFile.get().getSize(), is(7L));
+        assertThat(deepFile.get().getLastModified(),
+                is(Files.getLastModifiedTime(root.resolve(deepFile.get().getRelativePath())).toMillis()));
+
+        final List<FtpTreeItem> missingItems = new ArrayList<>();
+        assertThat(client.executeListRecursive(root.resolve("nonexistent").toString(), missingItems::add), is(true));
+        assertThat(missingItems.isEmpty(), is(true));
+        client.disconnect();
+    }
+
+    @Test
+    public void hotFileCacheTest() throws Exception {
+        final FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 16), 2,
+                WorkerSelectionStrategy.ROUND_ROBIN, 16 * 1024 * 1024);
+        ftpServer.start();
+        Thread.sleep(100);
+        try {
+            checkHotFileCache(ftpServer);
+        } finally {
+            ftpServer.stop();
+        }
+    }
+
+    private void checkHotFileCache(@NotNull FtpServer ftpServer) throws Exception {
+        final Path hotFile = temporaryFolder.newFile("hot").toPath();
+        final byte[] content = new byte[100000];
+        random.nextBytes(content);
+        Files.write(hotFile, content);
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 16));
+        final Path savePath = temporaryFolder.getRoot().toPath().resolve("hotSaved");
+        final long hitsNumber = ftpServer.getHotFileCacheHitsNumber();
+        for (int i = 0; i < 3; i++) {
+            client.executeGet(hotFile.toString(), savePath);
+            assertThat(Files.readAllBytes(savePath), is(content));
+        }
+        assertThat(ftpServer.getHotFileCacheHitsNumber(), is(hitsNumber + 1));
+        try (FileChannel fileChannel = FileChannel.open(savePath, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final FtpGetResponse response = client.executeGetRange(hotFile.toString(), 1000, 500, fileChannel);
+            assertThat(response.getContentLength(), is(500L));
+        }
+        assertThat(Arrays.copyOfRange(Files.readAllBytes(savePath), 1000, 1500),
+                is(Arrays.copyOfRange(content, 1000, 1500)));
+
+        final long invalidationsNumber = ftpServer.getHotFileCacheInvalidationsNumber();
+        random.nextBytes(content);
+        Files.write(hotFile, content);
+        Files.setLastModifiedTime(hotFile, FileTime.fromMillis(Files.getLastModifiedTime(hotFile).toMillis() + 2000));
+        Thread.sleep(300);
+        client.executeGet(hotFile.toString(), savePath);
+        assertThat(Files.readAllBytes(savePath), is(content));
+        assertThat(ftpServer.getHotFileCacheInvalidationsNumber(), is(invalidationsNumber + 1));
+
+        // a range pinned to a version is not served from a mapping that has not been checked recently
+        client.executeGet(hotFile.toString(), savePath);
+        final long versionToken;
+        try (FileChannel fileChannel = FileChannel.open(savePath, StandardOpenOption.WRITE)) {
+            versionToken = client.executeGetRange(hotFile.toString(), 0, 500, fileChannel).getVersionToken();
+        }
+        random.nextBytes(content);
+        Files.write(hotFile, content);
+        Files.setLastModifiedTime(hotFile, FileTime.fromMillis(Files.getLastModifiedTime(hotFile).toMillis() + 4000));
+        try (FileChannel fileChannel = FileChannel.open(savePath, StandardOpenOption.WRITE)) {
+            client.executeGetRange(hotFile.toString(), 500, 500, versionToken, fileChannel);
+            Assert.fail("Range of a rewritten file served for its previous version");
+        } catch (IOException ignored) {
+            // the client disconnects once it sees the new version
+        }
+        assertThat(ftpServer.getHotFileCacheInvalidationsNumber(), is(invalidationsNumber + 2));
+    }
+
+    @Test
+    public void compressionTest() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("line ").append(i).append(' ').append(random.nextInt(10)).append('\n');
+        }
+        final byte[] textContent = text.toString().getBytes("UTF-8");
+        final Path textFile = temporaryFolder.newFile("text.txt").toPath();
+        Files.write(textFile, textContent);
+        final byte[] archiveContent = new byte[100000];
+        random.nextBytes(archiveContent);
+        final Path archiveFile = temporaryFolder.newFile("archive.gz").toPath();
+        Files.write(archiveFile, archiveContent);
+        final Path listedFolder = temporaryFolder.newFolder("compressedList").toPath();
+        for (int i = 0; i < 500; i++) {
+            Files.createFile(listedFolder.resolve("file" + i));
+        }
+
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        assertThat(client.negotiateCompression(FtpCompression.DEFLATE_FAST, FtpCompression.DEFLATE),
+                is(FtpCompression.DEFLATE_FAST));
+        final Path savePath = temporaryFolder.getRoot().toPath().resolve("compressedSaved");
+        client.executeGet(textFile.toString(), savePath);
+        assertThat(Files.readAllBytes(savePath), is(textContent));
+        client.executeGet(archiveFile.toString(), savePath);
+        assertThat(Files.readAllBytes(savePath), is(archiveContent));
+        client.executeGet(file1.toString(), savePath);
+        assertThat(Files.readAllBytes(savePath), is(Files.readAllBytes(file1)));
+        try (FileChannel fileChannel = FileChannel.open(savePath, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final FtpGetResponse response = client.executeGetRange(textFile.toString(), 1000, 50000, fileChannel);
+            assertThat(response.getCompression(), is(FtpCompression.DEFLATE_FAST));
+        }
+        assertThat(Arrays.copyOfRange(Files.readAllBytes(savePath), 1000, 51000),
+                is(Arrays.copyOfRange(textContent, 1000, 51000)));
+        assertThat(client.executeList(listedFolder.toString()).getResponseItems().size(), is(500));
+        client.executeGetBatch(Arrays.asList(textFile.toString(), archiveFile.toString()),
+                Arrays.asList(savePath, savePath.resolveSibling("compressedSaved2")));
+        assertThat(Files.readAllBytes(savePath), is(textContent));
+        assertThat(Files.readAllBytes(savePath.resolveSibling("compressedSaved2")), is(archiveContent));
+
+        assertThat(client.negotiateCompression(), is(FtpCompression.NONE));
+        client.executeGet(textFile.toString(), savePath);
+        assertThat(Files.readAllBytes(savePath), is(textContent));
+        client.disconnect();
+    }
+
+    @Test
+    public void backpressureTest() throws Exception {
+        final FtpServer ftpServer = (FtpServer) server;
+        final Path folder = temporaryFolder.newFolder("manyFiles").toPath();
+        for (int i = 0; i < 3000; i++) {
+            Files.createFile(folder.resolve("file-with-a-rather-long-name-" + i));
+        }
+        final int queriesNumber = 200;
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        MessageWriter writer = new MessageWriter(channel);
+        for (int i = 0; i < queriesNumber; i++) {
+            writer.startNewMessage(FtpMessageCodec.toMessage(new FtpQuery(FtpQueryType.LIST, folder.toString())));
+        }
+        while (!writer.write()) {
+        }
+        Thread.sleep(1000);
+        final long outboundBytes = ftpServer.getOutboundBytes();
+        assertThat(outboundBytes > 0, is(true));
+        assertThat(outboundBytes < 16 * 1024 * 1024, is(true));
+
+        MessageReader reader = new MessageReader(channel);
+        for (int i = 0; i < queriesNumber; i++) {
+            Optional<Message> messageOptional = reader.read();
+            while (!messageOptional.isPresent() && !reader.isClientDisconnected()) {
+                messageOptional = reader.read();
+            }
+            assertThat(messageOptional.isPresent(), is(true));
+            assertThat(FtpMessageCodec.decode(messageOptional.get(), FtpListResponse.class).getResponseItems().size(),
+                    is(3000));
+        }
+        channel.close();
+        assertThat(ftpServer.getOutboundBytes(), is(0L));
+    }
+
+    @Test
+    public void deltaGetTest() throws Exception {
+        final byte[] original = new byte[2 * 1024 * 1024];
+        random.nextBytes(original);
+        final Path serverFile = temporaryFolder.newFile("deltaFile").toPath();
+        final byte[] inserted = new byte[100];
+        random.nextBytes(inserted);
+        final byte[] current = new byte[original.length + inserted.length];
+        System.arraycopy(original, 0, current, 0, 1000000);
+        System.arraycopy(inserted, 0, current, 1000000, inserted.length);
+        System.arraycopy(original, 1000000, current, 1000000 + inserted.length, original.length - 1000000);
+        Files.write(serverFile, current);
+        final Path savePath = temporaryFolder.getRoot().toPath().resolve("deltaCopy");
+        Files.write(savePath, original);
+
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final long literalBytes = client.executeGetDelta(serverFile.toString(), savePath);
+        assertThat(Files.readAllBytes(savePath), is(current));
+        assertThat(literalBytes < 64 * 1024, is(true));
+
+        // only the tail shorter than a block is sent again
+        assertThat(client.executeGetDelta(serverFile.toString(), savePath)
+                < BlockSignatures.chooseBlockSize(current.length), is(true));
+        assertThat(Files.readAllBytes(savePath), is(current));
+
+        final Path missingCopyPath = temporaryFolder.getRoot().toPath().resolve("deltaMissingCopy");
+        client.executeGetDelta(file1.toString(), missingCopyPath);
+        assertThat(Files.readAllBytes(missingCopyPath), is(bytes));
+        client.disconnect();
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            assertThat(files.anyMatch(path -> path.toString().endsWith(".delta")), is(false));
+        }
+    }
+
+    @Test
+    public void chunkedGetTest() throws Exception {
+        final byte[] content = new byte[1024 * 1024];
+        random.nextBytes(content);
+        final Path serverFile = temporaryFolder.newFile("chunkedFile").toPath();
+        Files.write(serverFile, content);
+        final byte[] inserted = new byte[10];
+        random.nextBytes(inserted);
+        final byte[] changedContent = new byte[content.length + inserted.length];
+        System.arraycopy(content, 0, changedContent, 0, 500000);
+        System.arraycopy(inserted, 0, changedContent, 500000, inserted.length);
+        System.arraycopy(content, 500000, changedContent, 500000 + inserted.length, content.length - 500000);
+        final Path changedServerFile = temporaryFolder.newFolder("versions").toPath().resolve("chunkedFile");
+        Files.write(changedServerFile, changedContent);
+        final Path storeDirectory = temporaryFolder.newFolder("store").toPath();
+        final Path savePath = temporaryFolder.getRoot().toPath().resolve("chunkedCopy");
+
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        final int chunksNumber;
+        try (ChunkStore store = new ChunkStore(storeDirectory, 64 * 1024 * 1024)) {
+            assertThat(client.executeGetChunked(serverFile.toString(), savePath, store), is((long) content.length));
+            assertThat(Files.readAllBytes(savePath), is(content));
+            assertThat(store.getSize(), is((long) content.length));
+            final long bytesReceived = client.executeGetChunked(changedServerFile.toString(), savePath, store);
+            assertThat(Files.readAllBytes(savePath), is(changedContent));
+            assertThat(bytesReceived < 2 * ContentChunker.MAX_CHUNK_SIZE, is(true));
+            chunksNumber = store.getChunksNumber();
+        }
+        try (ChunkStore store = new ChunkStore(storeDirectory, 64 * 1024 * 1024)) {
+            assertThat(store.getChunksNumber(), is(chunksNumber));
+            final Path otherSavePath = temporaryFolder.newFolder("other").toPath().resolve("chunkedCopy");
+            assertThat(client.executeGetChunked(serverFile.toString(), otherSavePath, store), is(0L));
+            assertThat(Files.readAllBytes(otherSavePath), is(content));
+            assertThat(client.executeGetChunked(temporaryFolder.getRoot().toPath().resolve("missing").toString(),
+                    otherSavePath, store), is(0L));
+            assertThat(Files.readAllBytes(otherSavePath), is(content));
+        }
+        try (ChunkStore store = new ChunkStore(temporaryFolder.newFolder("smallStore").toPath(), 256 * 1024)) {
+            client.executeGetChunked(serverFile.toString(), savePath, store);
+            assertThat(Files.readAllBytes(savePath), is(content));
+            assertThat(store.getSize() <= 256 * 1024, is(true));
+            assertThat(store.getEvictedChunksNumber() > 0, is(true));
+        }
+        client.disconnect();
+    }
+
+    @Test
+    public void conditionalGetTest() throws Exception {
+        final FtpServer ftpServer = (FtpServer) server;
+        final byte[] content = new byte[256 * 1024];
+        random.nextBytes(content);
+        final Path serverFile = temporaryFolder.newFile("conditionalFile").toPath();
+        Files.write(serverFile, content);
+        final Path savePath = temporaryFolder.getRoot().toPath().resolve("conditionalCopy");
+
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        assertThat(client.executeGetIfChanged(serverFile.toString(), savePath), is(true));
+        assertThat(Files.readAllBytes(savePath), is(content));
+        final long computationsNumber = ftpServer.getHashIndexComputationsNumber();
+        assertThat(client.executeGetIfChanged(serverFile.toString(), savePath), is(false));
+        final long hitsNumber = ftpServer.getHashIndexHitsNumber();
+        assertThat(client.executeGetIfChanged(serverFile.toString(), savePath), is(false));
+        assertThat(ftpServer.getHashIndexHitsNumber(), is(hitsNumber + 1));
+        assertThat(ftpServer.getHashIndexComputationsNumber(), is(computationsNumber + 1));
+
+        // a change keeping the size and the modification time is caught by watching the directory
+        final FileTime lastModified = Files.getLastModifiedTime(serverFile);
+        final long invalidationsNumber = ftpServer.getHashIndexInvalidationsNumber();
+        final byte[] changedContent = content.clone();
+        changedContent[1000] ^= 1;
+        Files.write(serverFile, changedContent);
+        Files.setLastModifiedTime(serverFile, lastModified);
+        for (int i = 0; i < 100 && ftpServer.getHashIndexInvalidationsNumber() == invalidationsNumber; i++) {
+            Thread.sleep(50);
+        }
+        assertThat(client.executeGetIfChanged(serverFile.toString(), savePath), is(true));
+        assertThat(Files.readAllBytes(savePath), is(changedContent));
+
+        Files.write(savePath, content);
+        assertThat(client.executeGetIfChanged(serverFile.toString(), savePath), is(true));
+        assertThat(Files.readAllBytes(savePath), is(changedContent));
+        final Path missingPath = temporaryFolder.getRoot().toPath().resolve("missing");
+        assertThat(client.executeGetIfChanged(missingPath.toString(), savePath), is(false));
+        assertThat(Files.readAllBytes(savePath), is(changedContent));
+        client.disconnect();
+    }
+
+    @Test
+    public void hashIndexPersistenceTest() throws Exception {
+        final Path indexPath = temporaryFolder.getRoot().toPath().resolve("hash-index");
+        final Path savePath = temporaryFolder.getRoot().toPath().resolve("persistedCopy");
+        Files.write(savePath, bytes);
+        for (int run = 0; run < 2; run++) {
+            FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 8 + run));
+            ftpServer.setHashIndexPath(indexPath);
+            ftpServer.start();
+            Thread.sleep(100);
+            FtpClient client = new FtpClient();
+            try {
+                client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 8 + run));
+                assertThat(client.executeGetIfChanged(file1.toString(), savePath), is(false));
+                assertThat(ftpServer.getHashIndexComputationsNumber(), is(run == 0 ? 1L : 0L));
+            } finally {
+                client.disconnect();
+                ftpServer.stop();
+            }
+            assertThat(Files.exists(indexPath), is(true));
+        }
+    }
+
+    @Test
+    public void putTest() throws Exception {
+        final Path directory = temporaryFolder.newFolder().toPath();
+        final byte[] content = new byte[3 * 1024 * 1024 + 17];
+        random.nextBytes(content);
+        final Path localPath = temporaryFolder.getRoot().toPath().resolve("upload");
+        Files.write(localPath, content);
+        final Path target = directory.resolve("uploaded");
+        final Path emptyPath = temporaryFolder.getRoot().toPath().resolve("emptyUpload");
+        Files.createFile(emptyPath);
+        FtpClient client = new FtpClient();
+        client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT - 1));
+        try {
+            FtpPutResponse response = client.executePut(localPath, target.toString());
+            assertThat(response.getStatus(), is(FtpPutStatus.STORED));
+            assertThat(response.getFileSize(), is((long) content.length));
+            assertThat(Files.readAllBytes(target), is(content));
+
+            response = client.executePut(file1, target.toString());
+            assertThat(response.isStored(), is(true));
+            assertThat(Files.readAllBytes(target), is(bytes));
+
+            response = client.executePut(emptyPath, directory.resolve("empty").toString());
+            assertThat(response.isStored(), is(true));
+            assertThat(Files.size(directory.resolve("empty")), is(0L));
+
+            response = client.executePut(file1, directory.resolve("missing").resolve("file").toString());
+            assertThat(response.getStatus(), is(FtpPutStatus.FAILED));
+            client.executePing();
+        } finally {
+            client.disconnect();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.filter(file -> file.toString().endsWith(".upload")).count(), is(0L));
+        }
+        assertThat(((FtpServer) server).getUploadingBytes(), is(0L));
+    }
+
+    @Test
+    public void putQuotaTest() throws Exception {
+        final Path target = temporaryFolder.getRoot().toPath().resolve("quotaUpload");
+        final Path smallPath = temporaryFolder.getRoot().toPath().resolve("smallUpload");
+        Files.write(smallPath, Arrays.copyOf(bytes, 100));
+        FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 10));
+        ftpServer.setUploadQuota(512, 1024);
+        ftpServer.setUploadRoot(temporaryFolder.getRoot().toPath());
+        ftpServer.start();
+        Thread.sleep(100);
+        FtpClient client = new FtpClient();
+        try {
+            client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 10));
+            assertThat(client.executePut(file1, target.toString()).getStatus(), is(FtpPutStatus.QUOTA_EXCEEDED));
+            assertThat(Files.exists(target), is(false));
+            assertThat(client.executePut(smallPath, target.toString()).isStored(), is(true));
+            assertThat(Files.size(target), is(100L));
+            assertThat(ftpServer.getUploadingBytes(), is(0L));
+        } finally {
+            client.disconnect();
+            ftpServer.stop();
+        }
+    }
+
+    @Test
+    public void putOutsideUploadRootTest() throws Exception {
+        final Path root = temporaryFolder.newFolder("uploads").toPath();
+        final Path file2 = temporaryFolder.getRoot().toPath().resolve("file2");
+        Files.createSymbolicLink(root.resolve("link"), temporaryFolder.getRoot().toPath());
+        FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 14));
+        ftpServer.setUploadRoot(root);
+        ftpServer.start();
+        Thread.sleep(100);
+        FtpClient client = new FtpClient();
+        try {
+            client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 14));
+            assertThat(client.executePut(file2, "../file1").getStatus(), is(FtpPutStatus.FORBIDDEN));
+            assertThat(client.executePut(file2, file1.toString()).getStatus(), is(FtpPutStatus.FORBIDDEN));
+            assertThat(client.executePut(file2, root.resolve("../file1").toString()).getStatus(),
+                    is(FtpPutStatus.FORBIDDEN));
+            assertThat(client.executePut(file1, "link/file2").getStatus(), is(FtpPutStatus.FORBIDDEN));
+            assertThat(Files.readAllBytes(file1), is(bytes));
+            assertThat(Files.size(file2), is(0L));
+
+            assertThat(client.executePut(file1, "uploaded").isStored(), is(true));
+            assertThat(Files.readAllBytes(root.resolve("uploaded")), is(bytes));
+            client.executePing();
+        } finally {
+            client.disconnect();
+            ftpServer.stop();
+        }
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            assertThat(files.filter(file -> file.toString().endsWith(".upload")).count(), is(0L));
+        }
+        assertThat(ftpServer.getUploadingBytes(), is(0L));
+    }
+
+    @Test
+    public void putWithoutUploadRootTest() throws Exception {
+        final Path target = temporaryFolder.getRoot().toPath().resolve("forbiddenUpload");
+        FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 15));
+        ftpServer.start();
+        Thread.sleep(100);
+        FtpClient client = new FtpClient();
+        try {
+            client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 15));
+            assertThat(client.executePut(file1, target.toString()).getStatus(), is(FtpPutStatus.FORBIDDEN));
+            assertThat(Files.exists(target), is(false));
+            client.executePing();
+        } finally {
+            client.disconnect();
+            ftpServer.stop();
+        }
+    }
+
+    @Test
+    public void tlsTest() throws Exception {
+        final Path directory = temporaryFolder.getRoot().toPath();
+        final byte[] content = new byte[3 * 1024 * 1024 + 17];
+        random.nextBytes(content);
+        final Path largePath = directory.resolve("largeTls");
+        Files.write(largePath, content);
+        FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 11));
+        ftpServer.setTls(newTestSslContext());
+        ftpServer.setUploadRoot(directory);
+        ftpServer.start();
+        Thread.sleep(100);
+        FtpClient client = new FtpClient(newTestSslContext());
+        try {
+            client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 11));
+            assertThat(client.getTlsSession() != null, is(true));
+            client.executePing();
+            FtpListResponse response = client.executeList(directory.toString());
+            assertThat(response.getResponseItems().size(), is(4));
+
+            final Path savePath = temporaryFolder.newFile().toPath();
+            client.executeGet(file1.toString(), savePath);
+            assertThat(Files.readAllBytes(savePath), is(bytes));
+            client.executeGet(largePath.toString(), savePath);
+            assertThat(Files.readAllBytes(savePath), is(content));
+
+            final Path target = directory.resolve("uploadTls");
+            assertThat(client.executePut(largePath, target.toString()).isStored(), is(true));
+            assertThat(Files.readAllBytes(target), is(content));
+            client.executePing();
+        } finally {
+            client.disconnect();
+            ftpServer.stop();
+        }
+        assertThat(ftpServer.getTlsHandshakesNumber(), is(1L));
+        assertThat(ftpServer.getTlsFailedHandshakesNumber(), is(0L));
+    }
+
+    @Test
+    public void tlsSessionResumptionTest() throws Exception {
+        FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 12));
+        ftpServer.setTls(newTestSslContext());
+        ftpServer.start();
+        Thread.sleep(100);
+        try {
+            final SSLContext clientContext = newTestSslContext();
+            final boolean[] isResumed = new boolean[3];
+            for (int i = 0; i < isResumed.length; i++) {
+                // a fresh context holds no sessions to resume
+                FtpClient client = new FtpClient(i < 2 ? clientContext : newTestSslContext());
+                client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 12));
+                try {
+                    // the session may only be resumed after the server's ticket is received along with a response
+                    client.executePing();
+                    isResumed[i] = client.isTlsSessionResumed();
+                } finally {
+                    client.disconnect();
+                }
+                Thread.sleep(10);
+            }
+            assertThat(isResumed[0], is(false));
+            assertThat(isResumed[1], is(true));
+            assertThat(isResumed[2], is(false));
+            assertThat(ftpServer.getTlsHandshakesNumber(), is(3L));
+            assertThat(ftpServer.getTlsResumedHandshakesNumber(), is(1L));
+        } finally {
+            ftpServer.stop();
+        }
+    }
+
+    @Test
+    public void tlsPlaintextClientTest() throws Exception {
+        FtpServer ftpServer = new FtpServer(new InetSocketAddress(ConnectionTest.PORT + 13));
+        ftpServer.setTls(newTestSslContext());
+        ftpServer.start();
+        Thread.sleep(100);
+        FtpClient client = new FtpClient();
+        try {
+            client.connect(new InetSocketAddress("127.0.0.1", ConnectionTest.PORT + 13));
+            try {
+                client.executePing();
+                Assert.fail("Plaintext query answered by a TLS server");
+            } catch (IOException ignored) {
+            }
+            Thread.sleep(100);
+            assertThat(ftpServer.getTlsFailedHandshakesNumber(), is(1L));
+            assertThat(ftpServer.getTlsHandshakesNumber(), is(0L));
+        } finally {
+            client.disconnect();
+            ftpServer.stop();
+        }
+    }
+
+    static @NotNull SSLContext newTestSslContext() throws Exception {
+        final char[] password = "hw4-test".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream inputStream = InteractionTest.class.getResourceAsStream("/tls/test-keystore.p12")) {
+            keyStore.load(inputStream, password);
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    private static void writePartialDownloadRecord(@NotNull Path savePath, long fileSize, long versionToken)
+            throws Exception {
+        try (DataOutputStream outputStream = new DataOutputStream(
+                Files.newOutputStream(savePath.resolveSibling(savePath.getFileName() + ".ftp-partial")))) {
+            outputStream.writeLong(fileSize);
+            outputStream.writeLong(versionToken);
+        }
+    }
 }
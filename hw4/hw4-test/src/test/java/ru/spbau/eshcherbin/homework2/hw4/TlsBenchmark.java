@@ -0,0 +1,112 @@
+package ru.spbau.eshcherbin.homework2.hw4;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.spbau.eshcherbin.hw4.client.FtpClient;
+import ru.spbau.eshcherbin.hw4.server.FtpServer;
+
+import javax.net.ssl.SSLContext;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Compares the throughput of get and put queries and the cost of establishing a connection
+ * over plaintext and TLS. Not a test: run it with the test classpath, optionally passing the file size in MiB.
+ */
+public class TlsBenchmark {
+    private static final int PLAINTEXT_PORT = ConnectionTest.PORT + 20;
+    private static final int TLS_PORT = ConnectionTest.PORT + 21;
+    private static final int TRANSFER_ROUNDS = 5;
+    private static final int CONNECT_ROUNDS = 200;
+    private static final int WARMUP_ROUNDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        final int fileSize = (args.length > 0 ? Integer.parseInt(args[0]) : 64) * 1024 * 1024;
+        final Path directory = Files.createTempDirectory("hw4-tls-benchmark");
+        final Path source = directory.resolve("source");
+        final byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(source, content);
+
+        FtpServer plaintextServer = new FtpServer(new InetSocketAddress(PLAINTEXT_PORT));
+        FtpServer tlsServer = new FtpServer(new InetSocketAddress(TLS_PORT));
+        tlsServer.setTls(InteractionTest.newTestSslContext());
+        plaintextServer.setUploadRoot(directory);
+        tlsServer.setUploadRoot(directory);
+        plaintextServer.start();
+        tlsServer.start();
+        Thread.sleep(100);
+        try {
+            final SSLContext clientContext = InteractionTest.newTestSslContext();
+            benchmarkTransfer("plaintext", PLAINTEXT_PORT, null, source, fileSize);
+            benchmarkTransfer("TLS", TLS_PORT, clientContext, source, fileSize);
+            benchmarkConnect("plaintext", PLAINTEXT_PORT, null, false);
+            benchmarkConnect("TLS full handshake", TLS_PORT, clientContext, true);
+            benchmarkConnect("TLS resumed", TLS_PORT, clientContext, false);
+            System.out.printf("server: %d TLS handshakes, %d resumed%n",
+                    tlsServer.getTlsHandshakesNumber(), tlsServer.getTlsResumedHandshakesNumber());
+        } finally {
+            plaintextServer.stop();
+            tlsServer.stop();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Iterator<Path> iterator = files.iterator(); iterator.hasNext(); ) {
+                    Files.delete(iterator.next());
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void benchmarkTransfer(@NotNull String name, int port, @Nullable SSLContext sslContext,
+                                          @NotNull Path source, int fileSize) throws Exception {
+        final Path download = source.resolveSibling("download");
+        final Path upload = source.resolveSibling("upload");
+        FtpClient client = new FtpClient(sslContext);
+        client.connect(new InetSocketAddress("127.0.0.1", port));
+        try {
+            long getNanos = 0;
+            long putNanos = 0;
+            for (int i = 0; i < WARMUP_ROUNDS + TRANSFER_ROUNDS; i++) {
+                long start = System.nanoTime();
+                client.executeGet(source.toString(), download);
+                long middle = System.nanoTime();
+                client.executePut(source, upload.toString());
+                long end = System.nanoTime();
+                if (i >= WARMUP_ROUNDS) {
+                    getNanos += middle - start;
+                    putNanos += end - middle;
+                }
+            }
+            System.out.printf("%-20s get %8.1f MB/s, put %8.1f MB/s%n", name,
+                    toMegabytesPerSecond(fileSize, getNanos), toMegabytesPerSecond(fileSize, putNanos));
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static void benchmarkConnect(@NotNull String name, int port, @Nullable SSLContext sslContext,
+                                         boolean isFullHandshake) throws Exception {
+        long nanos = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + CONNECT_ROUNDS; i++) {
+            // a fresh context has no session to resume; creating it is not part of the measurement
+            FtpClient client = new FtpClient(isFullHandshake ? InteractionTest.newTestSslContext() : sslContext);
+            long start = System.nanoTime();
+            client.connect(new InetSocketAddress("127.0.0.1", port));
+            client.executePing();
+            long end = System.nanoTime();
+            client.disconnect();
+            if (i >= WARMUP_ROUNDS) {
+                nanos += end - start;
+            }
+        }
+        System.out.printf("%-20s connect and ping %8.3f ms%n", name, nanos / 1e6 / CONNECT_ROUNDS);
+    }
+
+    private static double toMegabytesPerSecond(long size, long nanos) {
+        return size * (double) TRANSFER_ROUNDS / nanos * 1e3;
+    }
+}